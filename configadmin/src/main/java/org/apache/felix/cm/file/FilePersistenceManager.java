@@ -290,6 +290,31 @@ public class FilePersistenceManager implements PersistenceManager
             acc = null;
         }
 
+        this.location = getLocationFile( bundleContext, location );
+    }
+
+
+    /**
+     * Resolves the configuration location as described for the
+     * {@link #FilePersistenceManager(BundleContext, String)} constructor and
+     * creates the directory if it does not exist yet.
+     * <p>
+     * This method is not part of the API of this class and is declared package
+     * private to share it with the {@link LogPersistenceManager}. This method
+     * may be removed or modified at any time without notice.
+     *
+     * @param bundleContext The <code>BundleContext</code> to optionally get
+     *      the data location. This may be <code>null</code>.
+     * @param location The configuration location. This may be
+     *      <code>null</code>.
+     *
+     * @return The absolute abstract path name of the configuration location.
+     *
+     * @throws IllegalArgumentException If the location exists but is not a
+     *      directory or does not exist and cannot be created.
+     */
+    static File getLocationFile( BundleContext bundleContext, String location )
+    {
         // no configured location, use the config dir in the bundle persistent
         // area
         if ( location == null && bundleContext != null )
@@ -339,7 +364,7 @@ public class FilePersistenceManager implements PersistenceManager
             }
         }
 
-        this.location = locationFile;
+        return locationFile;
     }
 
 
@@ -0,0 +1,1128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.file;
+
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+import org.apache.felix.cm.PersistenceManager;
+import org.osgi.framework.BundleContext;
+
+
+/**
+ * The <code>LogPersistenceManager</code> class stores all configuration data
+ * in a single binary log file named <code>configurations.log</code> inside a
+ * given directory. The directory is resolved exactly as for the
+ * {@link FilePersistenceManager}.
+ * <p>
+ * Each call to {@link #store(String, Dictionary)} or {@link #delete(String)}
+ * appends a record to the end of the log and forces it to the disk before
+ * returning. An in-memory index maps each PID to its latest record. When the
+ * log is opened it is memory mapped and scanned once to build the index,
+ * such that no configuration is parsed before it is actually loaded.
+ * <p>
+ * Each record carries its length and a CRC32 checksum of its contents. If
+ * the system crashes while a record is written, the incomplete record fails
+ * the check when the log is opened again and the log is truncated before
+ * this record. Thus a configuration is either completely stored or the
+ * previous state is kept. Only the last record of the log can be incomplete
+ * this way: if a damaged record is followed by further data, the log is left
+ * untouched and opening it fails with an <code>IOException</code>, rather
+ * than dropping all configurations stored after the damaged record.
+ * <p>
+ * Records replaced by a later store or delete are garbage. Once the garbage
+ * exceeds both 1MB and the size of the live records, the live records are
+ * copied into the file <code>configurations.log.compact</code>, which then
+ * replaces the log. If the system crashes during the compaction, the next
+ * open either continues with the old log or completes the replacement,
+ * depending on whether the old log has already been removed. The rename is
+ * the commit point of the compaction, so the directory is synced after it
+ * where the platform supports this. On platforms which do not allow to
+ * remove a mapped file, the compaction may fail until the old mapping has
+ * been garbage collected; the log remains valid nonetheless. If no log can
+ * be opened after the compaction, further changes fail with an
+ * <code>IOException</code>.
+ * <p>
+ * The values supported are the same as those supported by the
+ * {@link ConfigurationHandler}: strings, primitive wrappers and arrays and
+ * collections thereof as well as arrays of primitives.
+ */
+public class LogPersistenceManager implements PersistenceManager
+{
+
+    /**
+     * The name of the log file in the configuration directory (value is
+     * "configurations.log").
+     */
+    public static final String LOG_FILE = "configurations.log";
+
+    /**
+     * The name of the file written during compaction (value is
+     * "configurations.log.compact").
+     */
+    static final String COMPACT_FILE = LOG_FILE + ".compact";
+
+    /**
+     * The minimum number of bytes of garbage before the log is compacted.
+     */
+    static final long COMPACT_MIN_GARBAGE = 1024 * 1024;
+
+    // "FCML"
+    private static final int MAGIC = 0x46434d4c;
+
+    private static final int VERSION = 1;
+
+    // magic and version
+    private static final int HEADER_SIZE = 8;
+
+    // payload length and checksum
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte OP_STORE = 1;
+
+    private static final byte OP_DELETE = 2;
+
+    private static final byte VALUE_SIMPLE = 0;
+
+    private static final byte VALUE_ARRAY = 1;
+
+    private static final byte VALUE_COLLECTION = 2;
+
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * The access control context we use in the presence of a security manager.
+     */
+    private final AccessControlContext acc;
+
+    /**
+     * The abstract path name of the configuration directory.
+     */
+    private final File location;
+
+    /**
+     * The abstract path name of the log file.
+     */
+    private final File logFile;
+
+    /**
+     * The open log file.
+     */
+    private FileChannel channel;
+
+    /**
+     * The log file as mapped when opened. Records appended later are read
+     * from the channel.
+     */
+    private ByteBuffer mapped;
+
+    /**
+     * The end of the records which may be read through {@link #mapped}.
+     */
+    private long mappedLimit;
+
+    /**
+     * The end of the last record, where the next record is written.
+     */
+    private long end;
+
+    /**
+     * The number of bytes used by replaced and deleted records.
+     */
+    private long garbage;
+
+    /**
+     * The latest {@link Record} of each PID.
+     */
+    private Map index;
+
+
+    /**
+     * Creates an instance of this persistence manager using the given location
+     * as the directory for the log file.
+     * <p>
+     * This constructor is equivalent to calling
+     * {@link #LogPersistenceManager(BundleContext, String)} with a
+     * <code>null</code> <code>BundleContext</code>.
+     *
+     * @param location The configuration directory. If this is
+     *      <code>null</code> the <code>config</code> directory below the current
+     *      working directory is used.
+     *
+     * @throws IllegalArgumentException If the <code>location</code> exists but
+     *      is not a directory or does not exist and cannot be created.
+     * @throws IOException If the log file cannot be opened or is not a
+     *      configuration log.
+     */
+    public LogPersistenceManager( String location ) throws IOException
+    {
+        this( null, location );
+    }
+
+
+    /**
+     * Creates an instance of this persistence manager using the given location
+     * as the directory for the log file. The location is resolved as described
+     * for the {@link FilePersistenceManager#FilePersistenceManager(BundleContext, String)}
+     * constructor.
+     *
+     * @param bundleContext The <code>BundleContext</code> to optionally get
+     *      the data location for the log file. This may be <code>null</code>.
+     * @param location The configuration directory. If this is
+     *      <code>null</code> the <code>config</code> directory in the bundle
+     *      data area or below the current working directory is used.
+     *
+     * @throws IllegalArgumentException If the location exists but is not a
+     *      directory or does not exist and cannot be created.
+     * @throws IOException If the log file cannot be opened or is not a
+     *      configuration log.
+     */
+    public LogPersistenceManager( BundleContext bundleContext, String location ) throws IOException
+    {
+        // setup the access control context from the calling setup
+        if ( System.getSecurityManager() != null )
+        {
+            acc = AccessController.getContext();
+        }
+        else
+        {
+            acc = null;
+        }
+
+        this.location = FilePersistenceManager.getLocationFile( bundleContext, location );
+        this.logFile = new File( this.location, LOG_FILE );
+
+        open();
+        maybeCompact();
+    }
+
+
+    /**
+     * Returns the directory in which the log file is written as a
+     * <code>File</code> object.
+     *
+     * @return The configuration file location.
+     */
+    public File getLocation()
+    {
+        return location;
+    }
+
+
+    /**
+     * Closes the log file. This persistence manager must not be used any more
+     * after calling this method; loading, storing and deleting configurations
+     * fails with an <code>IOException</code>.
+     */
+    public synchronized void close()
+    {
+        if ( channel != null )
+        {
+            try
+            {
+                channel.close();
+            }
+            catch ( IOException ioe )
+            {
+                // ignore
+            }
+            channel = null;
+            mapped = null;
+            mappedLimit = 0;
+        }
+    }
+
+
+    /**
+     * Returns <code>true</code> if a configuration is stored for the given
+     * identifier.
+     *
+     * @param pid The identifier of the configuration to check.
+     */
+    public synchronized boolean exists( final String pid )
+    {
+        return index.containsKey( pid );
+    }
+
+
+    /**
+     * Reads the configuration for the given identifier into a new
+     * <code>Dictionary</code> object.
+     *
+     * @param pid The identifier of the configuration to load.
+     *
+     * @throws IOException If no configuration is stored for the identifier or
+     *      reading the configuration fails.
+     */
+    public Dictionary load( final String pid ) throws IOException
+    {
+        final byte[] record;
+        synchronized ( this )
+        {
+            final Record entry = ( Record ) index.get( pid );
+            if ( entry == null )
+            {
+                throw new IOException( "No configuration stored for " + pid );
+            }
+            record = read( entry );
+        }
+
+        final ByteBuffer in = ByteBuffer.wrap( record, RECORD_HEADER_SIZE, record.length - RECORD_HEADER_SIZE );
+        in.get(); // OP_STORE
+        readString( in ); // pid
+        return readDictionary( in );
+    }
+
+
+    /**
+     * Returns the configurations stored at the time of the call. The
+     * configurations are loaded as the enumeration proceeds; configurations
+     * deleted in the meantime are skipped.
+     */
+    public Enumeration getDictionaries()
+    {
+        final List pids;
+        synchronized ( this )
+        {
+            pids = new ArrayList( index.keySet() );
+        }
+        return new DictionaryEnumeration( pids.iterator() );
+    }
+
+
+    /**
+     * Appends the contents of the <code>Dictionary</code> to the log.
+     *
+     * @param pid The identifier of the configuration.
+     * @param properties The configuration data to write.
+     *
+     * @throws IOException If an error occurrs writing the configuration data
+     *      or a value is of an unsupported type.
+     */
+    public void store( final String pid, final Dictionary properties ) throws IOException
+    {
+        final RecordOutput out = new RecordOutput( OP_STORE, pid );
+        out.writeInt( properties.size() );
+        for ( Enumeration ke = properties.keys(); ke.hasMoreElements(); )
+        {
+            final String key = ( String ) ke.nextElement();
+            writeString( out, key );
+            writeValue( out, properties.get( key ) );
+        }
+        final byte[] record = out.toRecord();
+
+        synchronized ( this )
+        {
+            final Record old = ( Record ) index.put( pid, append( record ) );
+            if ( old != null )
+            {
+                garbage += old.size;
+            }
+            maybeCompact();
+        }
+    }
+
+
+    /**
+     * Appends a delete record for the given identifier to the log. If no
+     * configuration is stored for the identifier, nothing is written.
+     *
+     * @param pid The identifier of the configuration to delete.
+     *
+     * @throws IOException If an error occurrs writing the log.
+     */
+    public void delete( final String pid ) throws IOException
+    {
+        final byte[] record = new RecordOutput( OP_DELETE, pid ).toRecord();
+
+        synchronized ( this )
+        {
+            if ( index.containsKey( pid ) )
+            {
+                final Record entry = append( record );
+                final Record old = ( Record ) index.remove( pid );
+                garbage += old.size + entry.size;
+                maybeCompact();
+            }
+        }
+    }
+
+
+    /**
+     * Copies the live records into a new log replacing the current one.
+     * <p>
+     * This method is not part of the API of this class and is declared package
+     * private to enable JUnit testing on it. This method may be removed or
+     * modified at any time without notice.
+     */
+    synchronized void compact() throws IOException
+    {
+        if ( System.getSecurityManager() != null )
+        {
+            try
+            {
+                AccessController.doPrivileged( new PrivilegedExceptionAction()
+                {
+                    public Object run() throws IOException
+                    {
+                        _compact();
+                        return null;
+                    }
+                }, acc );
+            }
+            catch ( PrivilegedActionException pae )
+            {
+                throw ( IOException ) pae.getException();
+            }
+        }
+        else
+        {
+            _compact();
+        }
+    }
+
+
+    /**
+     * Returns the number of bytes used by replaced and deleted records.
+     * <p>
+     * This method is not part of the API of this class and is declared package
+     * private to enable JUnit testing on it. This method may be removed or
+     * modified at any time without notice.
+     */
+    synchronized long getGarbage()
+    {
+        return garbage;
+    }
+
+
+    private void maybeCompact()
+    {
+        if ( garbage >= COMPACT_MIN_GARBAGE && garbage > end - HEADER_SIZE - garbage )
+        {
+            try
+            {
+                compact();
+            }
+            catch ( IOException ioe )
+            {
+                // the current log is still valid, retry with the next change
+            }
+        }
+    }
+
+
+    private void _compact() throws IOException
+    {
+        final File compactFile = new File( location, COMPACT_FILE );
+
+        // write the new log completely before touching the current one
+        FileOutputStream fos = null;
+        try
+        {
+            fos = new FileOutputStream( compactFile );
+            final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( fos, 64 * 1024 ) );
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            for ( Iterator ri = index.values().iterator(); ri.hasNext(); )
+            {
+                out.write( read( ( Record ) ri.next() ) );
+            }
+            out.flush();
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+        }
+        catch ( IOException ioe )
+        {
+            if ( fos != null )
+            {
+                try
+                {
+                    fos.close();
+                }
+                catch ( IOException ignore )
+                {
+                    // ignore
+                }
+            }
+            compactFile.delete();
+            throw ioe;
+        }
+
+        // replace the log; whatever happens, open() either finds the
+        // new log, the old log or completes the replacement
+        close();
+        IOException failure = null;
+        if ( !compactFile.renameTo( logFile ) )
+        {
+            // platforms not replacing an existing file on rename
+            if ( !logFile.delete() || !compactFile.renameTo( logFile ) )
+            {
+                failure = new IOException( "Failed to replace '" + logFile + "' by '" + compactFile + "'" );
+            }
+        }
+
+        try
+        {
+            open();
+        }
+        catch ( IOException ioe )
+        {
+            // the manager stays closed and fails all further changes
+            if ( failure == null )
+            {
+                failure = ioe;
+            }
+        }
+        if ( failure != null )
+        {
+            throw failure;
+        }
+    }
+
+
+    /**
+     * Opens the log file, building the index from its records and truncating
+     * it after the last complete record.
+     */
+    private void open() throws IOException
+    {
+        final File compactFile = new File( location, COMPACT_FILE );
+        boolean renamed = false;
+        if ( compactFile.exists() )
+        {
+            // an interrupted compaction: the compacted log is complete only
+            // once the old log has been removed
+            if ( logFile.exists() )
+            {
+                compactFile.delete();
+            }
+            else if ( compactFile.renameTo( logFile ) )
+            {
+                renamed = true;
+            }
+            else
+            {
+                throw new IOException( "Failed to rename '" + compactFile + "' to '" + logFile + "'" );
+            }
+        }
+
+        final boolean created = !logFile.exists();
+        final RandomAccessFile file = new RandomAccessFile( logFile, "rw" );
+        try
+        {
+            channel = file.getChannel();
+            scan();
+
+            // records are only durable once the directory entry of the
+            // log is, i.e. after creating or replacing the log
+            if ( renamed || created )
+            {
+                syncLocation();
+            }
+        }
+        catch ( IOException ioe )
+        {
+            close();
+            throw ioe;
+        }
+        catch ( RuntimeException re )
+        {
+            close();
+            throw re;
+        }
+    }
+
+
+    /**
+     * Forces the entries of the configuration directory to the disk. This is
+     * required after renaming or creating the log, as syncing a file does not
+     * sync its directory entry. The Java 5 API cannot open directories, so
+     * the <code>java.nio.file</code> API is used through reflection if
+     * available. On other platforms, or where directories cannot be opened
+     * like on Windows, the entry is durable once the file system writes its
+     * metadata; until then a crash may revert the log to its state before
+     * the compaction.
+     */
+    private void syncLocation()
+    {
+        try
+        {
+            final Class pathClass = Class.forName( "java.nio.file.Path" );
+            final Class optionClass = Class.forName( "java.nio.file.OpenOption" );
+            final Object path = File.class.getMethod( "toPath", new Class[0] ).invoke( location, new Object[0] );
+            final Object options = Array.newInstance( optionClass, 1 );
+            Array.set( options, 0, Class.forName( "java.nio.file.StandardOpenOption" ).getField( "READ" )
+                .get( null ) );
+            final FileChannel dir = ( FileChannel ) FileChannel.class.getMethod( "open", new Class[]
+                { pathClass, options.getClass() } ).invoke( null, new Object[]
+                { path, options } );
+            try
+            {
+                dir.force( true );
+            }
+            finally
+            {
+                dir.close();
+            }
+        }
+        catch ( Exception e )
+        {
+            // not supported on this platform
+        }
+    }
+
+
+    private void scan() throws IOException
+    {
+        long size = channel.size();
+        if ( size < HEADER_SIZE )
+        {
+            // new log or crashed while writing the header
+            final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+            header.putInt( MAGIC ).putInt( VERSION ).flip();
+            channel.truncate( 0 );
+            write( header, 0 );
+            channel.force( true );
+            size = HEADER_SIZE;
+        }
+        else if ( size > Integer.MAX_VALUE )
+        {
+            throw new IOException( "Configuration log '" + logFile + "' is too large" );
+        }
+
+        final ByteBuffer buf = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+        if ( buf.getInt( 0 ) != MAGIC || buf.getInt( 4 ) != VERSION )
+        {
+            throw new IOException( "'" + logFile + "' is not a configuration log" );
+        }
+
+        final Map index = new HashMap();
+        final CRC32 crc = new CRC32();
+        byte[] payload = new byte[1024];
+        long garbage = 0;
+        int pos = HEADER_SIZE;
+        while ( pos + RECORD_HEADER_SIZE <= size )
+        {
+            final int length = buf.getInt( pos );
+            if ( length > size - pos - RECORD_HEADER_SIZE )
+            {
+                // the record runs past the end of the log
+                break;
+            }
+            else if ( length <= 0 )
+            {
+                // the log may have been extended without writing the record
+                if ( isZero( buf, pos, ( int ) size ) )
+                {
+                    break;
+                }
+                throw corrupt( pos );
+            }
+
+            if ( payload.length < length )
+            {
+                payload = new byte[Math.max( length, payload.length * 2 )];
+            }
+            buf.position( pos + RECORD_HEADER_SIZE );
+            buf.get( payload, 0, length );
+            crc.reset();
+            crc.update( payload, 0, length );
+            if ( ( int ) crc.getValue() != buf.getInt( pos + 4 ) )
+            {
+                if ( pos + RECORD_HEADER_SIZE + length == size )
+                {
+                    // the last record was not completely written
+                    break;
+                }
+                throw corrupt( pos );
+            }
+
+            final Record entry = new Record( pos, RECORD_HEADER_SIZE + length );
+            final ByteBuffer in = ByteBuffer.wrap( payload, 0, length );
+            final byte op = in.get();
+            final String pid = readString( in );
+            if ( op == OP_STORE )
+            {
+                final Record old = ( Record ) index.put( pid, entry );
+                if ( old != null )
+                {
+                    garbage += old.size;
+                }
+            }
+            else if ( op == OP_DELETE )
+            {
+                final Record old = ( Record ) index.remove( pid );
+                garbage += entry.size + ( old != null ? old.size : 0 );
+            }
+            else
+            {
+                throw corrupt( pos );
+            }
+            pos += entry.size;
+        }
+
+        if ( pos < size )
+        {
+            // drop the incomplete record written while crashing
+            channel.truncate( pos );
+            channel.force( true );
+        }
+
+        this.mapped = buf;
+        this.mappedLimit = pos;
+        this.end = pos;
+        this.garbage = garbage;
+        this.index = index;
+    }
+
+
+    private static boolean isZero( final ByteBuffer buf, final int from, final int to )
+    {
+        for ( int i = from; i < to; i++ )
+        {
+            if ( buf.get( i ) != 0 )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private IOException corrupt( final int pos )
+    {
+        return new IOException( "Configuration log '" + logFile + "' is corrupt at offset " + pos );
+    }
+
+
+    /**
+     * Writes the record at the end of the log and forces it to the disk.
+     */
+    private Record append( final byte[] record ) throws IOException
+    {
+        checkOpen();
+        final long position = end;
+        try
+        {
+            write( ByteBuffer.wrap( record ), position );
+            channel.force( false );
+        }
+        catch ( IOException ioe )
+        {
+            // drop what has been written of the record
+            try
+            {
+                channel.truncate( position );
+            }
+            catch ( IOException ignore )
+            {
+                // the next record overwrites it
+            }
+            throw ioe;
+        }
+        end = position + record.length;
+        return new Record( position, record.length );
+    }
+
+
+    /**
+     * Reads the complete record including its header.
+     */
+    private byte[] read( final Record entry ) throws IOException
+    {
+        checkOpen();
+        final byte[] record = new byte[entry.size];
+        if ( entry.position + entry.size <= mappedLimit )
+        {
+            final ByteBuffer buf = mapped.duplicate();
+            buf.position( ( int ) entry.position );
+            buf.get( record );
+        }
+        else
+        {
+            final ByteBuffer buf = ByteBuffer.wrap( record );
+            long position = entry.position;
+            while ( buf.hasRemaining() )
+            {
+                final int count = channel.read( buf, position );
+                if ( count < 0 )
+                {
+                    throw new EOFException( "Unexpected end of '" + logFile + "'" );
+                }
+                position += count;
+            }
+        }
+        return record;
+    }
+
+
+    private void checkOpen() throws IOException
+    {
+        if ( channel == null )
+        {
+            throw new IOException( "Configuration log '" + logFile + "' is closed" );
+        }
+    }
+
+
+    private void write( final ByteBuffer buf, long position ) throws IOException
+    {
+        while ( buf.hasRemaining() )
+        {
+            position += channel.write( buf, position );
+        }
+    }
+
+
+    // ---------- Record encoding ----------------------------------------------
+
+    private static Dictionary readDictionary( final ByteBuffer in ) throws IOException
+    {
+        final int count = in.getInt();
+        final Hashtable properties = new Hashtable( count * 4 / 3 + 1 );
+        for ( int i = 0; i < count; i++ )
+        {
+            final String key = readString( in );
+            properties.put( key, readValue( in ) );
+        }
+        return properties;
+    }
+
+
+    private static Object readValue( final ByteBuffer in ) throws IOException
+    {
+        final byte kind = in.get();
+        if ( kind == VALUE_SIMPLE )
+        {
+            return readSimple( in, in.get() );
+        }
+        else if ( kind == VALUE_ARRAY )
+        {
+            final int type = in.get();
+            final Class componentType = ( Class ) ConfigurationHandler.code2Type.get( new Integer( type ) );
+            if ( componentType == null )
+            {
+                throw new IOException( "Unsupported type code " + type );
+            }
+            final int length = in.getInt();
+            final Object array = Array.newInstance( componentType, length );
+            for ( int i = 0; i < length; i++ )
+            {
+                Array.set( array, i, readSimple( in, type ) );
+            }
+            return array;
+        }
+        else if ( kind == VALUE_COLLECTION )
+        {
+            final int size = in.getInt();
+            final List list = new ArrayList( size );
+            for ( int i = 0; i < size; i++ )
+            {
+                list.add( readSimple( in, in.get() ) );
+            }
+            return list;
+        }
+        throw new IOException( "Unsupported value kind " + kind );
+    }
+
+
+    private static Object readSimple( final ByteBuffer in, final int type ) throws IOException
+    {
+        switch ( type )
+        {
+            case ConfigurationHandler.TOKEN_SIMPLE_STRING:
+                return readString( in );
+            case ConfigurationHandler.TOKEN_SIMPLE_INTEGER:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_INT:
+                return new Integer( in.getInt() );
+            case ConfigurationHandler.TOKEN_SIMPLE_LONG:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_LONG:
+                return new Long( in.getLong() );
+            case ConfigurationHandler.TOKEN_SIMPLE_FLOAT:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_FLOAT:
+                return new Float( Float.intBitsToFloat( in.getInt() ) );
+            case ConfigurationHandler.TOKEN_SIMPLE_DOUBLE:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_DOUBLE:
+                return new Double( Double.longBitsToDouble( in.getLong() ) );
+            case ConfigurationHandler.TOKEN_SIMPLE_BYTE:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_BYTE:
+                return new Byte( in.get() );
+            case ConfigurationHandler.TOKEN_SIMPLE_SHORT:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_SHORT:
+                return new Short( in.getShort() );
+            case ConfigurationHandler.TOKEN_SIMPLE_CHARACTER:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_CHAR:
+                return new Character( in.getChar() );
+            case ConfigurationHandler.TOKEN_SIMPLE_BOOLEAN:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_BOOLEAN:
+                // FELIX-2771: Boolean.valueOf(boolean) is not in Foundation
+                return in.get() != 0 ? Boolean.TRUE : Boolean.FALSE;
+            default:
+                throw new IOException( "Unsupported type code " + type );
+        }
+    }
+
+
+    private static String readString( final ByteBuffer in ) throws IOException
+    {
+        final int length = in.getInt();
+        final String value = new String( in.array(), in.arrayOffset() + in.position(), length, ENCODING );
+        in.position( in.position() + length );
+        return value;
+    }
+
+
+    private static void writeValue( final DataOutputStream out, final Object value ) throws IOException
+    {
+        if ( value.getClass().isArray() )
+        {
+            final int type = getTypeCode( value.getClass().getComponentType() );
+            final int length = Array.getLength( value );
+            out.writeByte( VALUE_ARRAY );
+            out.writeByte( type );
+            out.writeInt( length );
+            for ( int i = 0; i < length; i++ )
+            {
+                writeSimple( out, type, Array.get( value, i ) );
+            }
+        }
+        else if ( value instanceof Collection )
+        {
+            // the elements are not required to be of the same type
+            final Collection collection = ( Collection ) value;
+            out.writeByte( VALUE_COLLECTION );
+            out.writeInt( collection.size() );
+            for ( Iterator ci = collection.iterator(); ci.hasNext(); )
+            {
+                final Object element = ci.next();
+                final int type = getTypeCode( element.getClass() );
+                out.writeByte( type );
+                writeSimple( out, type, element );
+            }
+        }
+        else
+        {
+            final int type = getTypeCode( value.getClass() );
+            out.writeByte( VALUE_SIMPLE );
+            out.writeByte( type );
+            writeSimple( out, type, value );
+        }
+    }
+
+
+    private static int getTypeCode( final Class type ) throws IOException
+    {
+        if ( type == String.class )
+        {
+            return ConfigurationHandler.TOKEN_SIMPLE_STRING;
+        }
+        final Integer code = ( Integer ) ConfigurationHandler.type2Code.get( type );
+        if ( code == null )
+        {
+            throw new IOException( "Unsupported configuration value type " + type.getName() );
+        }
+        return code.intValue();
+    }
+
+
+    private static void writeSimple( final DataOutputStream out, final int type, final Object value )
+        throws IOException
+    {
+        switch ( type )
+        {
+            case ConfigurationHandler.TOKEN_SIMPLE_STRING:
+                writeString( out, ( String ) value );
+                break;
+            case ConfigurationHandler.TOKEN_SIMPLE_INTEGER:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_INT:
+                out.writeInt( ( ( Integer ) value ).intValue() );
+                break;
+            case ConfigurationHandler.TOKEN_SIMPLE_LONG:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_LONG:
+                out.writeLong( ( ( Long ) value ).longValue() );
+                break;
+            case ConfigurationHandler.TOKEN_SIMPLE_FLOAT:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_FLOAT:
+                out.writeInt( Float.floatToRawIntBits( ( ( Float ) value ).floatValue() ) );
+                break;
+            case ConfigurationHandler.TOKEN_SIMPLE_DOUBLE:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_DOUBLE:
+                out.writeLong( Double.doubleToRawLongBits( ( ( Double ) value ).doubleValue() ) );
+                break;
+            case ConfigurationHandler.TOKEN_SIMPLE_BYTE:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_BYTE:
+                out.writeByte( ( ( Byte ) value ).byteValue() );
+                break;
+            case ConfigurationHandler.TOKEN_SIMPLE_SHORT:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_SHORT:
+                out.writeShort( ( ( Short ) value ).shortValue() );
+                break;
+            case ConfigurationHandler.TOKEN_SIMPLE_CHARACTER:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_CHAR:
+                out.writeChar( ( ( Character ) value ).charValue() );
+                break;
+            case ConfigurationHandler.TOKEN_SIMPLE_BOOLEAN:
+            case ConfigurationHandler.TOKEN_PRIMITIVE_BOOLEAN:
+                out.writeBoolean( ( ( Boolean ) value ).booleanValue() );
+                break;
+        }
+    }
+
+
+    private static void writeString( final DataOutputStream out, final String value ) throws IOException
+    {
+        final byte[] bytes = value.getBytes( ENCODING );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+    /**
+     * The position and size of a record in the log.
+     */
+    private static final class Record
+    {
+        final long position;
+        final int size;
+
+
+        Record( final long position, final int size )
+        {
+            this.position = position;
+            this.size = size;
+        }
+    }
+
+    /**
+     * The <code>RecordOutput</code> encodes a record. The record header is
+     * filled in by {@link #toRecord()}.
+     */
+    private static final class RecordOutput extends DataOutputStream
+    {
+        RecordOutput( final byte op, final String pid ) throws IOException
+        {
+            super( new ByteArrayOutputStream( 256 ) );
+            writeInt( 0 ); // length
+            writeInt( 0 ); // checksum
+            writeByte( op );
+            writeString( this, pid );
+        }
+
+
+        byte[] toRecord() throws IOException
+        {
+            flush();
+            final byte[] record = ( ( ByteArrayOutputStream ) out ).toByteArray();
+            final CRC32 crc = new CRC32();
+            crc.update( record, RECORD_HEADER_SIZE, record.length - RECORD_HEADER_SIZE );
+            final ByteBuffer header = ByteBuffer.wrap( record );
+            header.putInt( 0, record.length - RECORD_HEADER_SIZE );
+            header.putInt( 4, ( int ) crc.getValue() );
+            return record;
+        }
+    }
+
+    /**
+     * The <code>DictionaryEnumeration</code> class implements the
+     * <code>Enumeration</code> returning configuration <code>Dictionary</code>
+     * objects on behalf of the {@link LogPersistenceManager#getDictionaries()}
+     * method.
+     * <p>
+     * This enumeration loads each configuration when it is asked for such
+     * that configurations deleted after creating the enumeration are skipped.
+     */
+    private class DictionaryEnumeration implements Enumeration
+    {
+        private final Iterator pids;
+        private Dictionary next;
+
+
+        DictionaryEnumeration( final Iterator pids )
+        {
+            this.pids = pids;
+        }
+
+
+        public boolean hasMoreElements()
+        {
+            if ( next == null )
+            {
+                next = seek();
+            }
+            return next != null;
+        }
+
+
+        public Object nextElement()
+        {
+            if ( !hasMoreElements() )
+            {
+                throw new NoSuchElementException();
+            }
+
+            Dictionary toReturn = next;
+            next = null;
+            return toReturn;
+        }
+
+
+        private Dictionary seek()
+        {
+            while ( pids.hasNext() )
+            {
+                try
+                {
+                    return load( ( String ) pids.next() );
+                }
+                catch ( IOException ioe )
+                {
+                    // deleted in the meantime, check next configuration
+                }
+            }
+
+            // exhausted
+            return null;
+        }
+    }
+}
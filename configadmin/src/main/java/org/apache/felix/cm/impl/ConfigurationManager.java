@@ -35,6 +35,7 @@ import java.util.Random;
 
 import org.apache.felix.cm.PersistenceManager;
 import org.apache.felix.cm.file.FilePersistenceManager;
+import org.apache.felix.cm.file.LogPersistenceManager;
 import org.apache.felix.cm.impl.helper.BaseTracker;
 import org.apache.felix.cm.impl.helper.ConfigurationMap;
 import org.apache.felix.cm.impl.helper.ManagedServiceFactoryTracker;
@@ -88,7 +89,9 @@ import org.osgi.util.tracker.ServiceTracker;
  * location taken from the <code>felix.cm.dir</code> framework property. If
  * this property is not set the <code>config</code> directory in the current
  * working directory as specified in the <code>user.dir</code> system property
- * is used.
+ * is used. If the <code>felix.cm.pm</code> framework property is set to
+ * <code>log</code>, a {@link LogPersistenceManager} keeping all configurations
+ * in a single log file in this location is registered instead.
  */
 public class ConfigurationManager implements BundleActivator, BundleListener
 {
@@ -101,6 +104,24 @@ public class ConfigurationManager implements BundleActivator, BundleListener
      */
     public static final String CM_CONFIG_DIR = "felix.cm.dir";
 
+    /**
+     * The name of the bundle context property selecting the default
+     * persistence manager (value is "felix.cm.pm"). If this property is set to
+     * {@link #CM_PERSISTENCE_MANAGER_LOG}, a {@link LogPersistenceManager} is
+     * registered in place of the {@link FilePersistenceManager}. Both use the
+     * location set by the {@link #CM_CONFIG_DIR} property but do not see the
+     * configurations stored by each other.
+     *
+     * @see #start(BundleContext)
+     */
+    public static final String CM_PERSISTENCE_MANAGER = "felix.cm.pm";
+
+    /**
+     * The value of the {@link #CM_PERSISTENCE_MANAGER} property selecting the
+     * {@link LogPersistenceManager} (value is "log").
+     */
+    public static final String CM_PERSISTENCE_MANAGER_LOG = "log";
+
     /**
      * The name of the bundle context property defining the maximum log level
      * (value is "felix.cm.loglevel"). The log level setting is only used if
@@ -129,6 +150,9 @@ public class ConfigurationManager implements BundleActivator, BundleListener
     // the service registration of the default file persistence manager
     private volatile ServiceRegistration filepmRegistration;
 
+    // the default log persistence manager, if selected
+    private volatile LogPersistenceManager logPersistenceManager;
+
     // the service registration of the configuration admin
     private volatile ServiceRegistration configurationAdminRegistration;
 
@@ -240,11 +264,23 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         // set up the location (might throw IllegalArgumentException)
         try
         {
-            FilePersistenceManager fpm = new FilePersistenceManager( bundleContext, bundleContext
-                .getProperty( CM_CONFIG_DIR ) );
+            final PersistenceManager fpm;
+            final String description;
+            if ( CM_PERSISTENCE_MANAGER_LOG.equals( bundleContext.getProperty( CM_PERSISTENCE_MANAGER ) ) )
+            {
+                logPersistenceManager = new LogPersistenceManager( bundleContext, bundleContext
+                    .getProperty( CM_CONFIG_DIR ) );
+                fpm = logPersistenceManager;
+                description = "Platform Log File Persistence Manager";
+            }
+            else
+            {
+                fpm = new FilePersistenceManager( bundleContext, bundleContext.getProperty( CM_CONFIG_DIR ) );
+                description = "Platform Filesystem Persistence Manager";
+            }
             Hashtable props = new Hashtable();
             props.put( Constants.SERVICE_PID, fpm.getClass().getName() );
-            props.put( Constants.SERVICE_DESCRIPTION, "Platform Filesystem Persistence Manager" );
+            props.put( Constants.SERVICE_DESCRIPTION, description );
             props.put( Constants.SERVICE_VENDOR, "Apache Software Foundation" );
             props.put( Constants.SERVICE_RANKING, new Integer( Integer.MIN_VALUE ) );
             filepmRegistration = bundleContext.registerService( PersistenceManager.class.getName(), fpm, props );
@@ -254,7 +290,7 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         }
         catch ( IOException ioe )
         {
-            log( LogService.LOG_ERROR, "Failure setting up dynamic configuration bindings", ioe );
+            log( LogService.LOG_ERROR, "Failure setting up the persistence manager or dynamic configuration bindings", ioe );
         }
         catch ( IllegalArgumentException iae )
         {
@@ -339,6 +375,12 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         {
             filePmReg.unregister();
         }
+        final LogPersistenceManager logPm = logPersistenceManager;
+        logPersistenceManager = null;
+        if ( logPm != null )
+        {
+            logPm.close();
+        }
 
         // stop listening for events
         bundleContext.removeBundleListener( this );
@@ -0,0 +1,489 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.file;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Set;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+
+public class LogPersistenceManagerTest extends TestCase
+{
+    private File file = new File( System.getProperty( "java.io.tmpdir" ), "configlog" );
+
+    private File logFile = new File( file, LogPersistenceManager.LOG_FILE );
+
+    private LogPersistenceManager lpm;
+
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        lpm = new LogPersistenceManager( file.getAbsolutePath() );
+    }
+
+
+    protected void tearDown() throws Exception
+    {
+        lpm.close();
+
+        File[] children = file.listFiles();
+        for ( int i = 0; children != null && i < children.length; i++ )
+        {
+            children[i].delete();
+        }
+        file.delete();
+
+        super.tearDown();
+    }
+
+
+    public void testCreateLog()
+    {
+        assertTrue( file.isDirectory() );
+        assertTrue( logFile.isFile() );
+        assertFalse( lpm.getDictionaries().hasMoreElements() );
+    }
+
+
+    public void testSimple() throws IOException
+    {
+        check( "String", "String Value" );
+        check( "Integer", new Integer( 2 ) );
+        check( "Long", new Long( 2 ) );
+        check( "Float", new Float( 2 ) );
+        check( "Double", new Double( 2 ) );
+        check( "Byte", new Byte( ( byte ) 2 ) );
+        check( "Short", new Short( ( short ) 2 ) );
+        check( "Character", new Character( 'a' ) );
+        check( "Boolean", Boolean.TRUE );
+        check( "Unicode", "encod\u00E8 \u1234" );
+    }
+
+
+    public void testArray() throws IOException
+    {
+        check( "StringArray", new String[]
+            { "one", "two", "three" } );
+        check( "IntArray", new int[]
+            { 0, 1, 2 } );
+        check( "IntegerArray", new Integer[]
+            { new Integer( 0 ), new Integer( 1 ), new Integer( 2 ) } );
+        check( "BooleanArray", new boolean[]
+            { true, false } );
+        check( "CharArray", new char[0] );
+    }
+
+
+    public void testVector() throws IOException
+    {
+        check( "StringVector", new Vector( Arrays.asList( new String[]
+            { "one", "two", "three" } ) ) );
+        check( "MixedVector", new Vector( Arrays.asList( new Object[]
+            { "one", new Integer( 2 ), new Long( 3 ) } ) ) );
+        check( "EmptyList", new ArrayList( 0 ) );
+    }
+
+
+    public void testUnsupportedType() throws IOException
+    {
+        Dictionary props = new Hashtable();
+        props.put( "Object", new Object() );
+        try
+        {
+            lpm.store( "unsupported", props );
+            fail( "Expected IOException" );
+        }
+        catch ( IOException ioe )
+        {
+            // expected
+        }
+        assertFalse( lpm.exists( "unsupported" ) );
+    }
+
+
+    public void testDelete() throws IOException
+    {
+        check( "String", "String Value" );
+        assertTrue( lpm.exists( "String" ) );
+
+        lpm.delete( "String" );
+        assertFalse( lpm.exists( "String" ) );
+        try
+        {
+            lpm.load( "String" );
+            fail( "Expected IOException" );
+        }
+        catch ( IOException ioe )
+        {
+            // expected
+        }
+
+        // deleting a missing configuration has no effect
+        final long length = logFile.length();
+        lpm.delete( "String" );
+        assertEquals( length, logFile.length() );
+    }
+
+
+    public void testReopen() throws IOException
+    {
+        store( "first", "one" );
+        store( "second", "two" );
+        store( "first", "three" );
+        lpm.delete( "second" );
+
+        reopen();
+
+        assertEquals( "three", lpm.load( "first" ).get( "value" ) );
+        assertFalse( lpm.exists( "second" ) );
+        final Enumeration dictionaries = lpm.getDictionaries();
+        assertEquals( "three", ( ( Dictionary ) dictionaries.nextElement() ).get( "value" ) );
+        assertFalse( dictionaries.hasMoreElements() );
+    }
+
+
+    public void testIncompleteRecord() throws IOException
+    {
+        store( "first", "one" );
+        store( "second", "two" );
+        final long length = logFile.length();
+        lpm.close();
+
+        // a crash while writing the second record
+        truncate( length - 3 );
+        lpm = new LogPersistenceManager( file.getAbsolutePath() );
+
+        assertTrue( lpm.exists( "first" ) );
+        assertFalse( lpm.exists( "second" ) );
+        assertTrue( logFile.length() < length - 3 );
+
+        // records written after the truncation are kept
+        store( "third", "three" );
+        reopen();
+        assertEquals( "one", lpm.load( "first" ).get( "value" ) );
+        assertEquals( "three", lpm.load( "third" ).get( "value" ) );
+    }
+
+
+    public void testCorruptRecord() throws IOException
+    {
+        store( "first", "one" );
+        store( "second", "two" );
+        final long length = logFile.length();
+        lpm.close();
+
+        // corrupt the last byte of the value of the second record
+        final RandomAccessFile raf = new RandomAccessFile( logFile, "rw" );
+        try
+        {
+            raf.seek( length - 1 );
+            raf.write( 'x' );
+        }
+        finally
+        {
+            raf.close();
+        }
+        lpm = new LogPersistenceManager( file.getAbsolutePath() );
+
+        assertTrue( lpm.exists( "first" ) );
+        assertFalse( lpm.exists( "second" ) );
+    }
+
+
+    public void testCorruptRecordBeforeOthers() throws IOException
+    {
+        store( "first", "one" );
+        final long firstEnd = logFile.length();
+        store( "second", "two" );
+        store( "third", "three" );
+        final long length = logFile.length();
+        lpm.close();
+
+        // corrupt the last byte of the value of the first record
+        final RandomAccessFile raf = new RandomAccessFile( logFile, "rw" );
+        try
+        {
+            raf.seek( firstEnd - 1 );
+            raf.write( 'x' );
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        // this cannot be an incomplete write, so nothing is dropped
+        try
+        {
+            lpm = new LogPersistenceManager( file.getAbsolutePath() );
+            fail( "Expected IOException" );
+        }
+        catch ( IOException ioe )
+        {
+            // expected
+        }
+        assertEquals( length, logFile.length() );
+
+        // repairing the record makes all configurations available again
+        final RandomAccessFile repair = new RandomAccessFile( logFile, "rw" );
+        try
+        {
+            repair.seek( firstEnd - 1 );
+            repair.write( 'e' );
+        }
+        finally
+        {
+            repair.close();
+        }
+        lpm = new LogPersistenceManager( file.getAbsolutePath() );
+        assertEquals( "one", lpm.load( "first" ).get( "value" ) );
+        assertEquals( "two", lpm.load( "second" ).get( "value" ) );
+        assertEquals( "three", lpm.load( "third" ).get( "value" ) );
+    }
+
+
+    public void testCompact() throws IOException
+    {
+        store( "first", "one" );
+        for ( int i = 0; i < 10; i++ )
+        {
+            store( "second", "value" + i );
+        }
+        lpm.delete( "first" );
+        assertTrue( lpm.getGarbage() > 0 );
+        final long length = logFile.length();
+
+        lpm.compact();
+
+        assertEquals( 0, lpm.getGarbage() );
+        assertTrue( logFile.length() < length );
+        assertFalse( lpm.exists( "first" ) );
+        assertEquals( "value9", lpm.load( "second" ).get( "value" ) );
+        assertFalse( new File( file, LogPersistenceManager.COMPACT_FILE ).exists() );
+
+        reopen();
+        assertFalse( lpm.exists( "first" ) );
+        assertEquals( "value9", lpm.load( "second" ).get( "value" ) );
+    }
+
+
+    public void testCompactAutomatically() throws IOException
+    {
+        final char[] chars = new char[1000];
+        Arrays.fill( chars, 'x' );
+        final String value = new String( chars );
+
+        final int count = ( int ) ( LogPersistenceManager.COMPACT_MIN_GARBAGE / chars.length ) * 3;
+        for ( int i = 0; i < count; i++ )
+        {
+            store( "pid", value + i );
+        }
+
+        assertTrue( logFile.length() < 2 * LogPersistenceManager.COMPACT_MIN_GARBAGE + 2 * chars.length );
+        assertEquals( value + ( count - 1 ), lpm.load( "pid" ).get( "value" ) );
+    }
+
+
+    public void testInterruptedCompaction() throws IOException
+    {
+        store( "first", "one" );
+        lpm.close();
+
+        // crashed while writing the compacted log: the old log is used
+        final File compactFile = new File( file, LogPersistenceManager.COMPACT_FILE );
+        final RandomAccessFile raf = new RandomAccessFile( compactFile, "rw" );
+        try
+        {
+            raf.write( new byte[5] );
+        }
+        finally
+        {
+            raf.close();
+        }
+        lpm = new LogPersistenceManager( file.getAbsolutePath() );
+        assertTrue( lpm.exists( "first" ) );
+        assertFalse( compactFile.exists() );
+        lpm.close();
+
+        // crashed after removing the old log: the compacted log is used
+        assertTrue( logFile.renameTo( compactFile ) );
+        lpm = new LogPersistenceManager( file.getAbsolutePath() );
+        assertTrue( lpm.exists( "first" ) );
+        assertFalse( compactFile.exists() );
+        assertTrue( logFile.exists() );
+    }
+
+
+    public void testClosed() throws IOException
+    {
+        store( "first", "one" );
+        lpm.close();
+
+        try
+        {
+            store( "second", "two" );
+            fail( "Expected IOException" );
+        }
+        catch ( IOException ioe )
+        {
+            // expected
+        }
+        try
+        {
+            lpm.load( "first" );
+            fail( "Expected IOException" );
+        }
+        catch ( IOException ioe )
+        {
+            // expected
+        }
+        try
+        {
+            lpm.compact();
+            fail( "Expected IOException" );
+        }
+        catch ( IOException ioe )
+        {
+            // expected
+        }
+    }
+
+
+    public void testGetDictionaries() throws IOException
+    {
+        store( "first", "one" );
+        store( "second", "two" );
+        store( "third", "three" );
+
+        final Enumeration dictionaries = lpm.getDictionaries();
+        lpm.delete( "third" );
+
+        final Set values = new HashSet();
+        while ( dictionaries.hasMoreElements() )
+        {
+            values.add( ( ( Dictionary ) dictionaries.nextElement() ).get( "value" ) );
+        }
+        assertEquals( new HashSet( Arrays.asList( new String[]
+            { "one", "two" } ) ), values );
+    }
+
+
+    public void testLoadReturnsCopy() throws IOException
+    {
+        store( "first", "one" );
+        final Dictionary loaded = lpm.load( "first" );
+        loaded.put( "value", "changed" );
+        assertEquals( "one", lpm.load( "first" ).get( "value" ) );
+    }
+
+
+    private void store( String pid, String value ) throws IOException
+    {
+        Dictionary props = new Hashtable();
+        props.put( "value", value );
+        lpm.store( pid, props );
+    }
+
+
+    private void reopen() throws IOException
+    {
+        lpm.close();
+        lpm = new LogPersistenceManager( file.getAbsolutePath() );
+    }
+
+
+    private void truncate( long length ) throws IOException
+    {
+        final RandomAccessFile raf = new RandomAccessFile( logFile, "rw" );
+        try
+        {
+            raf.setLength( length );
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+
+    private void check( String name, Object value ) throws IOException
+    {
+        Dictionary props = new Hashtable();
+        props.put( name, value );
+
+        check( name, props );
+        reopen();
+        check( name, props, lpm.load( name ) );
+    }
+
+
+    private void check( String pid, Dictionary props ) throws IOException
+    {
+        lpm.store( pid, props );
+
+        assertTrue( lpm.exists( pid ) );
+        check( pid, props, lpm.load( pid ) );
+    }
+
+
+    private void check( String pid, Dictionary props, Dictionary loaded )
+    {
+        assertNotNull( loaded );
+        assertEquals( props.size(), loaded.size() );
+
+        for ( Enumeration pe = props.keys(); pe.hasMoreElements(); )
+        {
+            String key = ( String ) pe.nextElement();
+            checkValues( props.get( key ), loaded.get( key ) );
+        }
+    }
+
+
+    private void checkValues( Object value1, Object value2 )
+    {
+        assertNotNull( value2 );
+        if ( value1.getClass().isArray() )
+        {
+            assertTrue( value2.getClass().isArray() );
+            assertEquals( value1.getClass().getComponentType(), value2.getClass().getComponentType() );
+            assertEquals( Array.getLength( value1 ), Array.getLength( value2 ) );
+            for ( int i = 0; i < Array.getLength( value1 ); i++ )
+            {
+                assertEquals( Array.get( value1, i ), Array.get( value2, i ) );
+            }
+        }
+        else
+        {
+            assertEquals( value1, value2 );
+        }
+    }
+}
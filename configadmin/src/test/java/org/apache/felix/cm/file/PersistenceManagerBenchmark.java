@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.file;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Random;
+
+import org.apache.felix.cm.PersistenceManager;
+import org.osgi.framework.Constants;
+
+
+/**
+ * Compares the {@link FilePersistenceManager} and the
+ * {@link LogPersistenceManager} storing, enumerating as on startup and
+ * loading factory configurations. Run the main method with the test
+ * classpath, optionally passing the number of configurations (default
+ * 25000) and the directory to use (default in <code>java.io.tmpdir</code>).
+ */
+public class PersistenceManagerBenchmark
+{
+
+    private static final String FACTORY_PID = "org.apache.felix.cm.benchmark.Factory";
+
+
+    public static void main( String[] args ) throws IOException
+    {
+        final int count = args.length > 0 ? Integer.parseInt( args[0] ) : 25000;
+        final File dir = new File( args.length > 1 ? args[1] : System.getProperty( "java.io.tmpdir" ),
+            "cm-benchmark" );
+
+        final String[] pids = new String[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            pids[i] = FACTORY_PID + "." + Long.toHexString( 0x100000000L + i );
+        }
+
+        final File fileDir = new File( dir, "file" );
+        final File logDir = new File( dir, "log" );
+        delete( dir );
+        try
+        {
+            run( "file", new FilePersistenceManager( fileDir.getAbsolutePath() ), pids );
+            run( "log ", new LogPersistenceManager( logDir.getAbsolutePath() ), pids );
+
+            // startup: a new instance enumerating the stored configurations
+            for ( int i = 0; i < 3; i++ )
+            {
+                enumerate( "file", new FilePersistenceManager( fileDir.getAbsolutePath() ), count );
+                enumerate( "log ", new LogPersistenceManager( logDir.getAbsolutePath() ), count );
+            }
+        }
+        finally
+        {
+            delete( dir );
+        }
+    }
+
+
+    private static void run( String name, PersistenceManager pm, String[] pids ) throws IOException
+    {
+        long start = System.nanoTime();
+        for ( int i = 0; i < pids.length; i++ )
+        {
+            pm.store( pids[i], createProperties( pids[i], i ) );
+        }
+        report( name, "store", start, pids.length );
+
+        // load in random order, twice to warm up
+        final Random random = new Random( 42 );
+        for ( int n = 0; n < 2; n++ )
+        {
+            start = System.nanoTime();
+            for ( int i = 0; i < pids.length; i++ )
+            {
+                pm.load( pids[random.nextInt( pids.length )] );
+            }
+            report( name, "load", start, pids.length );
+        }
+
+        close( pm );
+    }
+
+
+    private static void enumerate( String name, PersistenceManager pm, int expected ) throws IOException
+    {
+        final long start = System.nanoTime();
+        int count = 0;
+        for ( Enumeration de = pm.getDictionaries(); de.hasMoreElements(); )
+        {
+            de.nextElement();
+            count++;
+        }
+        report( name, "enumerate", start, count );
+        if ( count != expected )
+        {
+            throw new IllegalStateException( "Expected " + expected + " configurations, got " + count );
+        }
+        close( pm );
+    }
+
+
+    private static Dictionary createProperties( String pid, int i )
+    {
+        final Dictionary props = new Hashtable();
+        props.put( Constants.SERVICE_PID, pid );
+        props.put( "service.factoryPid", FACTORY_PID );
+        props.put( "service.bundleLocation", "mvn:org.apache.felix/org.apache.felix.benchmark/1.0.0" );
+        props.put( "name", "configuration " + i );
+        props.put( "port", new Integer( 8000 + i % 1000 ) );
+        props.put( "timeout", new Long( 30000L ) );
+        props.put( "enabled", ( i & 1 ) == 0 ? Boolean.TRUE : Boolean.FALSE );
+        props.put( "ratio", new Double( i / 7.0 ) );
+        props.put( "hosts", new String[]
+            { "host-a.example.org", "host-b.example.org", "host-c.example.org" } );
+        props.put( "weights", new int[]
+            { 1, 2, 3, 4 } );
+        return props;
+    }
+
+
+    private static void report( String name, String operation, long start, int count )
+    {
+        final long elapsed = System.nanoTime() - start;
+        System.out.println( name + " " + operation + ": " + ( elapsed / 1000000 ) + " ms, "
+            + ( elapsed / 1000 / Math.max( 1, count ) ) + " us/configuration" );
+    }
+
+
+    private static void close( PersistenceManager pm )
+    {
+        if ( pm instanceof LogPersistenceManager )
+        {
+            ( ( LogPersistenceManager ) pm ).close();
+        }
+    }
+
+
+    private static void delete( File file )
+    {
+        final File[] children = file.listFiles();
+        for ( int i = 0; children != null && i < children.length; i++ )
+        {
+            delete( children[i] );
+        }
+        file.delete();
+    }
+}
@@ -31,6 +31,7 @@ import org.apache.felix.eventadmin.impl.adapter.ServiceEventAdapter;
 import org.apache.felix.eventadmin.impl.handler.EventAdminImpl;
 import org.apache.felix.eventadmin.impl.security.SecureEventAdminFactory;
 import org.apache.felix.eventadmin.impl.tasks.DefaultThreadPool;
+import org.apache.felix.eventadmin.impl.tasks.QueuedDeliverTasks;
 import org.apache.felix.eventadmin.impl.util.LogWrapper;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
@@ -114,6 +115,39 @@ import org.osgi.service.metatype.MetaTypeProvider;
  * </p>
  * <p>
  * <p>
+ *      <tt>org.apache.felix.eventadmin.InlineDelivery</tt> - Call event handlers
+ *         on the delivering thread.
+ * </p>
+ * <p>
+ * The default is <tt>false</tt>: if a timeout is configured, each event is handed
+ * over to a thread from the pool while the delivering thread watches the timeout.
+ * If set to <tt>true</tt>, the delivering thread calls the handlers itself and a
+ * watchdog thread blacklists the handlers exceeding the timeout. This saves two
+ * thread switches per event and handler.
+ * </p>
+ * <p>
+ * <p>
+ *      <tt>org.apache.felix.eventadmin.AsyncQueueSize</tt> - The size of the
+ *         queue of each event handler for asynchronous delivery.
+ * </p>
+ * <p>
+ * The default is 0, which delivers each posted event through the asynchronous
+ * thread pool. A higher value queues the posted events for each handler, and
+ * a fixed set of threads, as many as the asynchronous thread pool has, delivers
+ * them in batches. This is faster if a lot of events are posted.
+ * </p>
+ * <p>
+ * <p>
+ *      <tt>org.apache.felix.eventadmin.AsyncQueuePolicy</tt> - What to do if
+ *         the queue of an event handler is full.
+ * </p>
+ * <p>
+ * Either <tt>block</tt>, the default, to wait until there is room in the queue,
+ * <tt>dropNewest</tt> to drop the posted event or <tt>dropOldest</tt> to drop
+ * the oldest queued event.
+ * </p>
+ * <p>
+ * <p>
  * These properties are read at startup and serve as a default configuration.
  * If a configuration admin is configured, the event admin can be configured
  * through the config admin.
@@ -133,6 +167,9 @@ public class Configuration
     static final String PROP_IGNORE_TIMEOUT = "org.apache.felix.eventadmin.IgnoreTimeout";
     static final String PROP_IGNORE_TOPIC = "org.apache.felix.eventadmin.IgnoreTopic";
     static final String PROP_LOG_LEVEL = "org.apache.felix.eventadmin.LogLevel";
+    static final String PROP_INLINE_DELIVERY = "org.apache.felix.eventadmin.InlineDelivery";
+    static final String PROP_ASYNC_QUEUE_SIZE = "org.apache.felix.eventadmin.AsyncQueueSize";
+    static final String PROP_ASYNC_QUEUE_POLICY = "org.apache.felix.eventadmin.AsyncQueuePolicy";
 
     /** The bundle context. */
     private final BundleContext m_bundleContext;
@@ -153,6 +190,12 @@ public class Configuration
 
     private int m_logLevel;
 
+    private boolean m_inlineDelivery;
+
+    private int m_asyncQueueSize;
+
+    private String m_asyncQueuePolicy;
+
     // The thread pool used - this is a member because we need to close it on stop
     private volatile DefaultThreadPool m_sync_pool;
 
@@ -301,6 +344,17 @@ public class Configuration
                     m_bundleContext.getProperty(PROP_LOG_LEVEL),
                     LogWrapper.LOG_WARNING, // default log level is WARNING
                     LogWrapper.LOG_ERROR);
+
+            // Call the event handlers on the delivering thread and enforce the
+            // timeout with a watchdog thread? - The default is false.
+            m_inlineDelivery = getBooleanProperty(
+                m_bundleContext.getProperty(PROP_INLINE_DELIVERY), false);
+
+            // The size of the queue of each event handler for asynchronous delivery.
+            // A value of 0 delivers the events through the asynchronous thread pool.
+            m_asyncQueueSize = getIntProperty(PROP_ASYNC_QUEUE_SIZE,
+                    m_bundleContext.getProperty(PROP_ASYNC_QUEUE_SIZE), 0, 0);
+            m_asyncQueuePolicy = getPolicyProperty(m_bundleContext.getProperty(PROP_ASYNC_QUEUE_POLICY));
         }
         else
         {
@@ -343,6 +397,9 @@ public class Configuration
                     config.get(PROP_LOG_LEVEL),
                     LogWrapper.LOG_WARNING, // default log level is WARNING
                     LogWrapper.LOG_ERROR);
+            m_inlineDelivery = getBooleanProperty(config.get(PROP_INLINE_DELIVERY), false);
+            m_asyncQueueSize = getIntProperty(PROP_ASYNC_QUEUE_SIZE, config.get(PROP_ASYNC_QUEUE_SIZE), 0, 0);
+            m_asyncQueuePolicy = getPolicyProperty(config.get(PROP_ASYNC_QUEUE_POLICY));
         }
         // a timeout less or equals to 100 means : disable timeout
         if ( m_timeout <= 100 )
@@ -367,6 +424,12 @@ public class Configuration
             PROP_TIMEOUT + "=" + m_timeout);
         LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
             PROP_REQUIRE_TOPIC + "=" + m_requireTopic);
+        LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
+            PROP_INLINE_DELIVERY + "=" + m_inlineDelivery);
+        LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
+            PROP_ASYNC_QUEUE_SIZE + "=" + m_asyncQueueSize);
+        LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
+            PROP_ASYNC_QUEUE_POLICY + "=" + m_asyncQueuePolicy);
 
         // Note that this uses a lazy thread pool that will create new threads on
         // demand - in case none of its cached threads is free - until threadPoolSize
@@ -398,7 +461,10 @@ public class Configuration
                     m_timeout,
                     m_ignoreTimeout,
                     m_requireTopic,
-                    m_ignoreTopics);
+                    m_ignoreTopics,
+                    m_inlineDelivery,
+                    m_asyncQueueSize,
+                    m_asyncQueuePolicy);
 
             // Finally, adapt the outside events to our kind of events as per spec
             adaptEvents(m_admin);
@@ -411,7 +477,8 @@ public class Configuration
         }
         else
         {
-            m_admin.update(m_timeout, m_ignoreTimeout, m_requireTopic, m_ignoreTopics);
+            m_admin.update(m_timeout, m_ignoreTimeout, m_requireTopic, m_ignoreTopics,
+                    m_inlineDelivery, asyncThreadPoolSize, m_asyncQueueSize, m_asyncQueuePolicy);
         }
 
     }
@@ -482,7 +549,8 @@ public class Configuration
         {
             return new MetaTypeProviderImpl((ManagedService)managedService,
                     m_threadPoolSize, m_timeout, m_requireTopic,
-                    m_ignoreTimeout, m_ignoreTopics, m_asyncToSyncThreadRatio);
+                    m_ignoreTimeout, m_ignoreTopics, m_asyncToSyncThreadRatio,
+                    m_inlineDelivery, m_asyncQueueSize, m_asyncQueuePolicy);
         }
         catch (final Throwable t)
         {
@@ -593,6 +661,28 @@ public class Configuration
         return defaultValue;
     }
 
+    /**
+     * Returns the queue policy if the value of the property is one of the
+     * policies, the block policy otherwise. Additionally, a warning is
+     * generated in case the value is not a policy.
+     */
+    private String getPolicyProperty(final Object value)
+    {
+        if ( value != null )
+        {
+            final String policy = value.toString().trim();
+            if ( QueuedDeliverTasks.POLICY_BLOCK.equals(policy)
+                    || QueuedDeliverTasks.POLICY_DROP_NEWEST.equals(policy)
+                    || QueuedDeliverTasks.POLICY_DROP_OLDEST.equals(policy) )
+            {
+                return policy;
+            }
+            LogWrapper.getLogger().log(LogWrapper.LOG_WARNING,
+                    "Value for property: " + PROP_ASYNC_QUEUE_POLICY + " is not a queue policy - Using default");
+        }
+        return QueuedDeliverTasks.POLICY_BLOCK;
+    }
+
     /**
      * Returns true if the value of the property is set and is either 1, true, or yes
      * Returns false if the value of the property is set and is either 0, false, or no
@@ -22,6 +22,7 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Dictionary;
 
+import org.apache.felix.eventadmin.impl.tasks.QueuedDeliverTasks;
 import org.osgi.service.cm.ConfigurationException;
 import org.osgi.service.cm.ManagedService;
 import org.osgi.service.metatype.AttributeDefinition;
@@ -42,6 +43,9 @@ public class MetaTypeProviderImpl
     private final String[] m_ignoreTimeout;
     private final String[] m_ignoreTopic;
     private final double m_asyncThreadPoolRatio;
+    private final boolean m_inlineDelivery;
+    private final int m_asyncQueueSize;
+    private final String m_asyncQueuePolicy;
 
     private final ManagedService m_delegatee;
 
@@ -50,7 +54,10 @@ public class MetaTypeProviderImpl
             final int timeout, final boolean requireTopic,
             final String[] ignoreTimeout,
             final String[] ignoreTopic,
-            final double asyncThreadPoolRatio)
+            final double asyncThreadPoolRatio,
+            final boolean inlineDelivery,
+            final int asyncQueueSize,
+            final String asyncQueuePolicy)
     {
         m_threadPoolSize = threadPoolSize;
         m_timeout = timeout;
@@ -59,6 +66,9 @@ public class MetaTypeProviderImpl
         m_ignoreTimeout = ignoreTimeout;
         m_ignoreTopic = ignoreTopic;
         m_asyncThreadPoolRatio = asyncThreadPoolRatio;
+        m_inlineDelivery = inlineDelivery;
+        m_asyncQueueSize = asyncQueueSize;
+        m_asyncQueuePolicy = asyncQueuePolicy;
     }
 
     private ObjectClassDefinition ocd;
@@ -143,6 +153,28 @@ public class MetaTypeProviderImpl
                     "are ignored. If a single value neither ends with a dot nor with a start, this is assumed " +
                     "to define an exact topic. A single star can be used to disable delivery completely.",
                     AttributeDefinition.STRING, m_ignoreTopic, Integer.MAX_VALUE, null, null));
+            adList.add( new AttributeDefinitionImpl( Configuration.PROP_INLINE_DELIVERY, "Inline Delivery",
+                    "Call event handlers on the delivering thread. By default, if a timeout is configured, " +
+                    "each event is handed over to a thread from the pool while the delivering thread watches " +
+                    "the timeout. If enabled, the delivering thread calls the handlers itself and a watchdog " +
+                    "thread blacklists the handlers exceeding the timeout. This saves two thread switches " +
+                    "per event and handler.",
+                    m_inlineDelivery ) );
+            adList.add( new AttributeDefinitionImpl( Configuration.PROP_ASYNC_QUEUE_SIZE, "Async Queue Size",
+                    "The size of the queue of each event handler for asynchronous delivery. The default " +
+                    "value is 0, which delivers each posted event through the asynchronous thread pool. " +
+                    "A higher value queues the posted events for each handler, and a fixed set of threads, " +
+                    "as many as the asynchronous thread pool has, delivers them in batches. This is faster " +
+                    "if a lot of events are posted.",
+                    m_asyncQueueSize ) );
+            adList.add( new AttributeDefinitionImpl( Configuration.PROP_ASYNC_QUEUE_POLICY, "Async Queue Policy",
+                    "What to do if the queue of an event handler is full: wait until there is room in the " +
+                    "queue, drop the posted event or drop the oldest queued event.",
+                    AttributeDefinition.STRING, new String[] {m_asyncQueuePolicy}, 0,
+                    new String[] {"Wait", "Drop posted event", "Drop oldest event"},
+                    new String[] {QueuedDeliverTasks.POLICY_BLOCK,
+                            QueuedDeliverTasks.POLICY_DROP_NEWEST,
+                            QueuedDeliverTasks.POLICY_DROP_OLDEST}));
             ocd = new ObjectClassDefinition()
             {
 
@@ -18,6 +18,7 @@
  */
 package org.apache.felix.eventadmin.impl.adapter;
 
+import org.apache.felix.eventadmin.impl.handler.EventAdminImpl;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.event.EventAdmin;
 
@@ -51,5 +52,18 @@ public abstract class AbstractAdapter
         return m_admin;
     }
 
+    /**
+     * Check whether an event with the given topic would be delivered to any
+     * handler, so that adapting events nobody is interested in can be skipped.
+     *
+     * @param topic The event topic
+     * @return <code>true</code> if the event should be adapted and posted
+     */
+    protected boolean hasHandlers(final String topic)
+    {
+        final EventAdmin admin = m_admin;
+        return !(admin instanceof EventAdminImpl) || ((EventAdminImpl) admin).hasHandlers(topic);
+    }
+
     public abstract void destroy(final BundleContext bundleContext);
 }
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.adapter;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read only view of the properties of an adapted event. The values are
+ * taken from the framework event when the view is first read instead of being
+ * copied into a new dictionary upfront. Each value is computed once, as
+ * computing a value may create objects or log. A key with a <code>null</code>
+ * value is not part of the map.
+ * <p>
+ * A view is read by the thread creating the event only and is therefore not
+ * thread safe.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+abstract class AdaptedProperties extends AbstractMap<String, Object>
+{
+    /** All keys the properties might have. */
+    private final String[] m_keys;
+
+    /** The values by key index, computed on demand. */
+    private Object[] m_values;
+
+    /** The number of keys with a value. */
+    private int m_size;
+
+    /** The entries, created on demand. */
+    private Set<Map.Entry<String, Object>> m_entrySet;
+
+    AdaptedProperties(final String[] keys)
+    {
+        m_keys = keys;
+    }
+
+    /**
+     * Get the value of a property.
+     *
+     * @param key One of the keys
+     * @return The value or <code>null</code> if the property is not set
+     */
+    protected abstract Object getValue(final String key);
+
+    /**
+     * Get the values of all keys, computing them on the first call.
+     */
+    private Object[] getValues()
+    {
+        if (m_values == null)
+        {
+            final Object[] values = new Object[m_keys.length];
+            int size = 0;
+            for (int i = 0; i < m_keys.length; i++)
+            {
+                values[i] = getValue(m_keys[i]);
+                if (values[i] != null)
+                {
+                    size++;
+                }
+            }
+            m_size = size;
+            m_values = values;
+        }
+        return m_values;
+    }
+
+    @Override
+    public Object get(final Object key)
+    {
+        for (int i = 0; i < m_keys.length; i++)
+        {
+            if (m_keys[i].equals(key))
+            {
+                return getValues()[i];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(final Object key)
+    {
+        return get(key) != null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet()
+    {
+        if (m_entrySet == null)
+        {
+            m_entrySet = new AbstractSet<Map.Entry<String, Object>>()
+            {
+                @Override
+                public Iterator<Map.Entry<String, Object>> iterator()
+                {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size()
+                {
+                    getValues();
+                    return m_size;
+                }
+            };
+        }
+        return m_entrySet;
+    }
+
+    /**
+     * Iterates over the keys with a value.
+     */
+    private final class EntryIterator implements Iterator<Map.Entry<String, Object>>
+    {
+        private int m_index;
+
+        private Map.Entry<String, Object> m_next;
+
+        @Override
+        public boolean hasNext()
+        {
+            final Object[] values = getValues();
+            while (m_next == null && m_index < m_keys.length)
+            {
+                final int index = m_index++;
+                if (values[index] != null)
+                {
+                    m_next = new SimpleImmutableEntry<String, Object>(m_keys[index], values[index]);
+                }
+            }
+            return m_next != null;
+        }
+
+        @Override
+        public Map.Entry<String, Object> next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            final Map.Entry<String, Object> next = m_next;
+            m_next = null;
+            return next;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -18,9 +18,6 @@
  */
 package org.apache.felix.eventadmin.impl.adapter;
 
-import java.util.Dictionary;
-import java.util.Hashtable;
-
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleListener;
@@ -36,6 +33,15 @@ import org.osgi.service.event.EventConstants;
  */
 public class BundleEventAdapter extends AbstractAdapter implements BundleListener
 {
+    private static final String TOPIC_PREFIX = BundleEvent.class.getName().replace('.', '/') + '/';
+    private static final String TOPIC_INSTALLED = TOPIC_PREFIX + "INSTALLED";
+    private static final String TOPIC_STARTED = TOPIC_PREFIX + "STARTED";
+    private static final String TOPIC_STOPPED = TOPIC_PREFIX + "STOPPED";
+    private static final String TOPIC_UPDATED = TOPIC_PREFIX + "UPDATED";
+    private static final String TOPIC_UNINSTALLED = TOPIC_PREFIX + "UNINSTALLED";
+    private static final String TOPIC_RESOLVED = TOPIC_PREFIX + "RESOLVED";
+    private static final String TOPIC_UNRESOLVED = TOPIC_PREFIX + "UNRESOLVED";
+
     /**
      * The constructor of the adapter. This will register the adapter with the given
      * context as a <tt>BundleListener</tt> and subsequently, will post received
@@ -64,57 +70,84 @@ public class BundleEventAdapter extends AbstractAdapter implements BundleListene
     @Override
     public void bundleChanged(final BundleEvent event)
     {
-        final Dictionary<String, Object> properties = new Hashtable<String, Object>();
-
-        properties.put(EventConstants.EVENT, event);
-
-        properties.put("bundle.id", new Long(event.getBundle()
-            .getBundleId()));
-
-        final String symbolicName = event.getBundle().getSymbolicName();
-
-        if (null != symbolicName)
-        {
-            properties.put(EventConstants.BUNDLE_SYMBOLICNAME,
-                symbolicName);
-        }
-
-        properties.put("bundle", event.getBundle());
-
-        final StringBuffer topic = new StringBuffer(BundleEvent.class
-            .getName().replace('.', '/')).append('/');
+        final String topic;
 
         switch (event.getType())
         {
             case BundleEvent.INSTALLED:
-                topic.append("INSTALLED");
+                topic = TOPIC_INSTALLED;
                 break;
             case BundleEvent.STARTED:
-                topic.append("STARTED");
+                topic = TOPIC_STARTED;
                 break;
             case BundleEvent.STOPPED:
-                topic.append("STOPPED");
+                topic = TOPIC_STOPPED;
                 break;
             case BundleEvent.UPDATED:
-                topic.append("UPDATED");
+                topic = TOPIC_UPDATED;
                 break;
             case BundleEvent.UNINSTALLED:
-                topic.append("UNINSTALLED");
+                topic = TOPIC_UNINSTALLED;
                 break;
             case BundleEvent.RESOLVED:
-                topic.append("RESOLVED");
+                topic = TOPIC_RESOLVED;
                 break;
             case BundleEvent.UNRESOLVED:
-                topic.append("UNRESOLVED");
+                topic = TOPIC_UNRESOLVED;
                 break;
             default:
                 return; // IGNORE EVENT
         }
 
+        if (!hasHandlers(topic))
+        {
+            return;
+        }
+
         try {
-            getEventAdmin().postEvent(new Event(topic.toString(), properties));
+            getEventAdmin().postEvent(new Event(topic, new BundleEventProperties(event)));
         } catch (IllegalStateException e) {
             // This is o.k. - indicates that we are stopped.
         }
     }
+
+    /**
+     * The properties of an adapted bundle event, taken from the bundle
+     * when they are read.
+     */
+    private static final class BundleEventProperties extends AdaptedProperties
+    {
+        private static final String[] KEYS = {
+            EventConstants.EVENT, "bundle.id", EventConstants.BUNDLE_SYMBOLICNAME, "bundle"};
+
+        private final BundleEvent m_event;
+
+        BundleEventProperties(final BundleEvent event)
+        {
+            super(KEYS);
+            m_event = event;
+        }
+
+        @Override
+        protected Object getValue(final String key)
+        {
+            if (EventConstants.EVENT.equals(key))
+            {
+                return m_event;
+            }
+            else if ("bundle.id".equals(key))
+            {
+                return new Long(m_event.getBundle().getBundleId());
+            }
+            else if (EventConstants.BUNDLE_SYMBOLICNAME.equals(key))
+            {
+                return m_event.getBundle().getSymbolicName();
+            }
+            else if ("bundle".equals(key))
+            {
+                return m_event.getBundle();
+            }
+            return null;
+        }
+    }
 }
@@ -18,9 +18,6 @@
  */
 package org.apache.felix.eventadmin.impl.adapter;
 
-import java.util.Dictionary;
-import java.util.Hashtable;
-
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.FrameworkEvent;
@@ -37,6 +34,14 @@ import org.osgi.service.event.EventConstants;
  */
 public class FrameworkEventAdapter extends AbstractAdapter implements FrameworkListener
 {
+    private static final String TOPIC_PREFIX = FrameworkEvent.class.getName().replace('.', '/') + '/';
+    private static final String TOPIC_STARTED = TOPIC_PREFIX + "STARTED";
+    private static final String TOPIC_ERROR = TOPIC_PREFIX + "ERROR";
+    private static final String TOPIC_PACKAGES_REFRESHED = TOPIC_PREFIX + "PACKAGES_REFRESHED";
+    private static final String TOPIC_STARTLEVEL_CHANGED = TOPIC_PREFIX + "STARTLEVEL_CHANGED";
+    private static final String TOPIC_WARNING = TOPIC_PREFIX + "WARNING";
+    private static final String TOPIC_INFO = TOPIC_PREFIX + "INFO";
+
     /**
      * The constructor of the adapter. This will register the adapter with the
      * given context as a <tt>FrameworkListener</tt> and subsequently, will
@@ -66,77 +71,106 @@ public class FrameworkEventAdapter extends AbstractAdapter implements FrameworkL
     @Override
     public void frameworkEvent(final FrameworkEvent event)
     {
-        final Dictionary<String, Object> properties = new Hashtable<String, Object>();
-
-        properties.put(EventConstants.EVENT, event);
-
-        final Bundle bundle = event.getBundle();
-
-        if (null != bundle)
-        {
-            properties.put("bundle.id", new Long(bundle.getBundleId()));
-
-            final String symbolicName = bundle.getSymbolicName();
-
-            if (null != symbolicName)
-            {
-                properties.put(EventConstants.BUNDLE_SYMBOLICNAME,
-                    symbolicName);
-            }
-
-            properties.put("bundle", bundle);
-        }
-
-        final Throwable thrown = event.getThrowable();
-
-        if (null != thrown)
-        {
-            properties.put(EventConstants.EXCEPTION_CLASS,
-                thrown.getClass().getName());
-
-            final String message = thrown.getMessage();
-
-            if (null != message)
-            {
-                properties.put(EventConstants.EXCEPTION_MESSAGE,
-                    message);
-            }
-
-            properties.put(EventConstants.EXCEPTION, thrown);
-        }
-
-        final StringBuffer topic = new StringBuffer(
-            FrameworkEvent.class.getName().replace('.', '/'))
-            .append('/');
+        final String topic;
 
         switch (event.getType())
         {
             case FrameworkEvent.STARTED:
-                topic.append("STARTED");
+                topic = TOPIC_STARTED;
                 break;
             case FrameworkEvent.ERROR:
-                topic.append("ERROR");
+                topic = TOPIC_ERROR;
                 break;
             case FrameworkEvent.PACKAGES_REFRESHED:
-                topic.append("PACKAGES_REFRESHED");
+                topic = TOPIC_PACKAGES_REFRESHED;
                 break;
             case FrameworkEvent.STARTLEVEL_CHANGED:
-                topic.append("STARTLEVEL_CHANGED");
+                topic = TOPIC_STARTLEVEL_CHANGED;
                 break;
             case FrameworkEvent.WARNING:
-                topic.append("WARNING");
+                topic = TOPIC_WARNING;
                 break;
             case FrameworkEvent.INFO:
-                topic.append("INFO");
+                topic = TOPIC_INFO;
                 break;
             default:
                 return; // IGNORE EVENT
         }
 
+        if (!hasHandlers(topic))
+        {
+            return;
+        }
+
         try {
-            getEventAdmin().postEvent(new Event(topic.toString(), properties));
+            getEventAdmin().postEvent(new Event(topic, new FrameworkEventProperties(event)));
         } catch(IllegalStateException e) {
             // This is o.k. - indicates that we are stopped.
         }
     }
+
+    /**
+     * The properties of an adapted framework event, taken from the bundle
+     * and the exception when they are read.
+     */
+    private static final class FrameworkEventProperties extends AdaptedProperties
+    {
+        private static final String[] KEYS = {
+            EventConstants.EVENT, "bundle.id", EventConstants.BUNDLE_SYMBOLICNAME, "bundle",
+            EventConstants.EXCEPTION_CLASS, EventConstants.EXCEPTION_MESSAGE, EventConstants.EXCEPTION};
+
+        private final FrameworkEvent m_event;
+
+        FrameworkEventProperties(final FrameworkEvent event)
+        {
+            super(KEYS);
+            m_event = event;
+        }
+
+        @Override
+        protected Object getValue(final String key)
+        {
+            if (EventConstants.EVENT.equals(key))
+            {
+                return m_event;
+            }
+
+            final Bundle bundle = m_event.getBundle();
+
+            if (null != bundle)
+            {
+                if ("bundle.id".equals(key))
+                {
+                    return new Long(bundle.getBundleId());
+                }
+                else if (EventConstants.BUNDLE_SYMBOLICNAME.equals(key))
+                {
+                    return bundle.getSymbolicName();
+                }
+                else if ("bundle".equals(key))
+                {
+                    return bundle;
+                }
+            }
+
+            final Throwable thrown = m_event.getThrowable();
+
+            if (null != thrown)
+            {
+                if (EventConstants.EXCEPTION_CLASS.equals(key))
+                {
+                    return thrown.getClass().getName();
+                }
+                else if (EventConstants.EXCEPTION_MESSAGE.equals(key))
+                {
+                    return thrown.getMessage();
+                }
+                else if (EventConstants.EXCEPTION.equals(key))
+                {
+                    return thrown;
+                }
+            }
+            return null;
+        }
+    }
 }
@@ -18,14 +18,12 @@
  */
 package org.apache.felix.eventadmin.impl.adapter;
 
-import java.util.Dictionary;
-import java.util.Hashtable;
-
 import org.apache.felix.eventadmin.impl.util.LogWrapper;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
 import org.osgi.service.event.EventConstants;
@@ -38,6 +36,11 @@ import org.osgi.service.event.EventConstants;
  */
 public class ServiceEventAdapter extends AbstractAdapter implements ServiceListener
 {
+    private static final String TOPIC_PREFIX = ServiceEvent.class.getName().replace('.', '/') + '/';
+    private static final String TOPIC_REGISTERED = TOPIC_PREFIX + "REGISTERED";
+    private static final String TOPIC_MODIFIED = TOPIC_PREFIX + "MODIFIED";
+    private static final String TOPIC_UNREGISTERING = TOPIC_PREFIX + "UNREGISTERING";
+
     /**
      * The constructor of the adapter. This will register the adapter with the
      * given context as a <tt>ServiceListener</tt> and subsequently, will
@@ -67,78 +70,106 @@ public class ServiceEventAdapter extends AbstractAdapter implements ServiceListe
     @Override
     public void serviceChanged(final ServiceEvent event)
     {
-        final Dictionary<String, Object> properties = new Hashtable<String, Object>();
-
-        properties.put(EventConstants.EVENT, event);
-
-        properties.put(EventConstants.SERVICE, event
-            .getServiceReference());
-
-        final Object id = event.getServiceReference().getProperty(
-            EventConstants.SERVICE_ID);
-
-        if (null != id)
-        {
-            try
-            {
-                properties.put(EventConstants.SERVICE_ID, new Long(id
-                    .toString()));
-            } catch (NumberFormatException ne)
-            {
-                // LOG and IGNORE
-                LogWrapper.getLogger().log(event.getServiceReference(),
-                    LogWrapper.LOG_WARNING, "Exception parsing " +
-                    EventConstants.SERVICE_ID + "=" + id, ne);
-            }
-        }
-
-        final Object pid = event.getServiceReference().getProperty(
-            EventConstants.SERVICE_PID);
-
-        if (null != pid)
-        {
-            properties.put(EventConstants.SERVICE_PID, pid.toString());
-        }
-
-        final Object objectClass = event.getServiceReference()
-            .getProperty(Constants.OBJECTCLASS);
-
-        if (null != objectClass)
-        {
-            if (objectClass instanceof String[])
-            {
-                properties.put(EventConstants.SERVICE_OBJECTCLASS,
-                    objectClass);
-            }
-            else
-            {
-                properties.put(EventConstants.SERVICE_OBJECTCLASS,
-                    new String[] { objectClass.toString() });
-            }
-        }
-
-        final StringBuffer topic = new StringBuffer(ServiceEvent.class
-            .getName().replace('.', '/')).append('/');
+        final String topic;
 
         switch (event.getType())
         {
             case ServiceEvent.REGISTERED:
-                topic.append("REGISTERED");
+                topic = TOPIC_REGISTERED;
                 break;
             case ServiceEvent.MODIFIED:
-                topic.append("MODIFIED");
+                topic = TOPIC_MODIFIED;
                 break;
             case ServiceEvent.UNREGISTERING:
-                topic.append("UNREGISTERING");
+                topic = TOPIC_UNREGISTERING;
                 break;
             default:
                 return; // IGNORE
         }
 
+        if (!hasHandlers(topic))
+        {
+            return;
+        }
+
         try {
-            getEventAdmin().postEvent(new Event(topic.toString(), properties));
+            getEventAdmin().postEvent(new Event(topic, new ServiceEventProperties(event)));
         } catch(IllegalStateException e) {
             // This is o.k. - indicates that we are stopped.
         }
     }
+
+    /**
+     * The properties of an adapted service event, taken from the service
+     * reference when they are read.
+     */
+    private static final class ServiceEventProperties extends AdaptedProperties
+    {
+        private static final String[] KEYS = {
+            EventConstants.EVENT, EventConstants.SERVICE, EventConstants.SERVICE_ID,
+            EventConstants.SERVICE_PID, EventConstants.SERVICE_OBJECTCLASS};
+
+        private final ServiceEvent m_event;
+
+        ServiceEventProperties(final ServiceEvent event)
+        {
+            super(KEYS);
+            m_event = event;
+        }
+
+        @Override
+        protected Object getValue(final String key)
+        {
+            if (EventConstants.EVENT.equals(key))
+            {
+                return m_event;
+            }
+            final ServiceReference<?> ref = m_event.getServiceReference();
+            if (EventConstants.SERVICE.equals(key))
+            {
+                return ref;
+            }
+            else if (EventConstants.SERVICE_ID.equals(key))
+            {
+                final Object id = ref.getProperty(EventConstants.SERVICE_ID);
+
+                if (null != id)
+                {
+                    try
+                    {
+                        return new Long(id.toString());
+                    } catch (NumberFormatException ne)
+                    {
+                        // LOG and IGNORE
+                        LogWrapper.getLogger().log(ref,
+                            LogWrapper.LOG_WARNING, "Exception parsing " +
+                            EventConstants.SERVICE_ID + "=" + id, ne);
+                    }
+                }
+            }
+            else if (EventConstants.SERVICE_PID.equals(key))
+            {
+                final Object pid = ref.getProperty(EventConstants.SERVICE_PID);
+
+                if (null != pid)
+                {
+                    return pid.toString();
+                }
+            }
+            else if (EventConstants.SERVICE_OBJECTCLASS.equals(key))
+            {
+                final Object objectClass = ref.getProperty(Constants.OBJECTCLASS);
+
+                if (objectClass instanceof String[])
+                {
+                    return objectClass;
+                }
+                else if (null != objectClass)
+                {
+                    return new String[] { objectClass.toString() };
+                }
+            }
+            return null;
+        }
+    }
 }
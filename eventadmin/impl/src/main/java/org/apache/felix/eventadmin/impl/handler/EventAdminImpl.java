@@ -21,7 +21,9 @@ package org.apache.felix.eventadmin.impl.handler;
 import org.apache.felix.eventadmin.impl.handler.EventHandlerTracker.Matcher;
 import org.apache.felix.eventadmin.impl.tasks.AsyncDeliverTasks;
 import org.apache.felix.eventadmin.impl.tasks.DefaultThreadPool;
+import org.apache.felix.eventadmin.impl.tasks.QueuedDeliverTasks;
 import org.apache.felix.eventadmin.impl.tasks.SyncDeliverTasks;
+import org.apache.felix.eventadmin.impl.util.LogWrapper;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
@@ -50,14 +52,25 @@ public class EventAdminImpl implements EventAdmin
     // The synchronous event dispatcher
     private final SyncDeliverTasks m_sendManager;
 
+    // The queued asynchronous event dispatcher, if a queue size is configured
+    private volatile QueuedDeliverTasks m_queuedPostManager;
+
     // matchers for ignore topics
     private Matcher[] m_ignoreTopics;
 
+    // The maximum time to wait for posted events on a configuration update
+    private static final long DRAIN_TIMEOUT = 5000;
+
     /**
      * The constructor of the <tt>EventAdmin</tt> implementation.
      *
      * @param syncPool The synchronous thread pool
      * @param asyncPool The asynchronous thread pool
+     * @param inlineDelivery Whether to call the handlers of synchronous events
+     *      on the calling thread, with a watchdog enforcing the timeout
+     * @param asyncQueueSize The size of the per handler queues for asynchronous
+     *      delivery or 0 to deliver through the asynchronous thread pool
+     * @param asyncQueuePolicy The policy if the queue of a handler is full
      */
     public EventAdminImpl(
                     final BundleContext bundleContext,
@@ -66,7 +79,10 @@ public class EventAdminImpl implements EventAdmin
                     final int timeout,
                     final String[] ignoreTimeout,
                     final boolean requireTopic,
-                    final String[] ignoreTopics)
+                    final String[] ignoreTopics,
+                    final boolean inlineDelivery,
+                    final int asyncQueueSize,
+                    final String asyncQueuePolicy)
     {
         checkNull(syncPool, "syncPool");
         checkNull(asyncPool, "asyncPool");
@@ -74,9 +90,10 @@ public class EventAdminImpl implements EventAdmin
         this.tracker = new EventHandlerTracker(bundleContext);
         this.tracker.update(ignoreTimeout, requireTopic);
         this.tracker.open();
-        m_sendManager = new SyncDeliverTasks(syncPool, timeout);
+        m_sendManager = new SyncDeliverTasks(syncPool, timeout, inlineDelivery);
         m_postManager = new AsyncDeliverTasks(asyncPool, m_sendManager);
         m_ignoreTopics = EventHandlerTracker.createMatchers(ignoreTopics);
+        this.updateQueuedPostManager(asyncPool.getPoolSize(), asyncQueueSize, asyncQueuePolicy, timeout);
     }
 
     /**
@@ -96,13 +113,21 @@ public class EventAdminImpl implements EventAdmin
      * Check whether the topic should be delivered at all
      */
     private boolean checkTopic( final Event event )
+    {
+        return checkTopic(event.getTopic());
+    }
+
+    /**
+     * Check whether the topic should be delivered at all
+     */
+    private boolean checkTopic( final String topic )
     {
         boolean result = true;
         if ( this.m_ignoreTopics != null )
         {
             for(final Matcher m : this.m_ignoreTopics)
             {
-                if ( m.match(event.getTopic()) )
+                if ( m.match(topic) )
                 {
                     result = false;
                     break;
@@ -112,6 +137,20 @@ public class EventAdminImpl implements EventAdmin
         return result;
     }
 
+    /**
+     * Check whether an event with the given topic would be delivered to
+     * any handler, ignoring the filters of the handlers. This allows to
+     * skip creating events nobody is interested in.
+     *
+     * @param topic The event topic
+     * @return <code>true</code> if an event with this topic might be delivered
+     */
+    public boolean hasHandlers(final String topic)
+    {
+        final EventHandlerTracker localTracker = tracker;
+        return localTracker != null && checkTopic(topic) && localTracker.hasHandlers(topic);
+    }
+
     /**
      * Post an asynchronous event.
      *
@@ -126,7 +165,15 @@ public class EventAdminImpl implements EventAdmin
     {
         if ( checkTopic(event) )
         {
-            m_postManager.execute(this.getTracker().getHandlers(event), event);
+            final QueuedDeliverTasks queuedPostManager = m_queuedPostManager;
+            if ( queuedPostManager != null )
+            {
+                queuedPostManager.execute(this.getTracker().getHandlers(event), event);
+            }
+            else
+            {
+                m_postManager.execute(this.getTracker().getHandlers(event), event);
+            }
         }
     }
 
@@ -155,6 +202,8 @@ public class EventAdminImpl implements EventAdmin
     {
         this.tracker.close();
         this.tracker = null;
+        this.updateQueuedPostManager(0, 0, null, 0);
+        this.m_sendManager.close();
     }
 
     /**
@@ -163,13 +212,85 @@ public class EventAdminImpl implements EventAdmin
     public void update(final int timeout,
                     final String[] ignoreTimeout,
                     final boolean requireTopic,
-                    final String[] ignoreTopics)
+                    final String[] ignoreTopics,
+                    final boolean inlineDelivery,
+                    final int asyncThreadPoolSize,
+                    final int asyncQueueSize,
+                    final String asyncQueuePolicy)
     {
         this.tracker.close();
+        this.drain();
         this.tracker.update(ignoreTimeout, requireTopic);
-        this.m_sendManager.update(timeout);
+        this.m_sendManager.update(timeout, inlineDelivery);
         this.tracker.open();
         this.m_ignoreTopics = EventHandlerTracker.createMatchers(ignoreTopics);
+        this.updateQueuedPostManager(asyncThreadPoolSize, asyncQueueSize, asyncQueuePolicy, timeout);
+    }
+
+    /**
+     * Wait until the events posted so far are delivered. While the tracker
+     * is closed, events are not posted to any handler. Once it is open
+     * again, events are posted to new handler proxies and, if the queue
+     * size changed from or to 0, through a different dispatcher. Without
+     * draining, these events could overtake events posted before by the
+     * same thread.
+     */
+    private void drain()
+    {
+        try
+        {
+            final QueuedDeliverTasks queuedPostManager = m_queuedPostManager;
+            if ( !m_postManager.drain(DRAIN_TIMEOUT)
+                    || (queuedPostManager != null && !queuedPostManager.drain(DRAIN_TIMEOUT)) )
+            {
+                LogWrapper.getLogger().log(LogWrapper.LOG_WARNING,
+                        "Events posted before the configuration update are still being delivered"
+                        + " and may be received out of order.");
+            }
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Start, update or stop the queued asynchronous delivery. Events already
+     * queued when it is stopped are still delivered.
+     */
+    private synchronized void updateQueuedPostManager(final int workers,
+                    final int queueSize,
+                    final String policy,
+                    final int timeout)
+    {
+        final QueuedDeliverTasks current = m_queuedPostManager;
+        if ( queueSize <= 0 )
+        {
+            m_queuedPostManager = null;
+            if ( current != null )
+            {
+                current.close();
+            }
+        }
+        else if ( current == null )
+        {
+            m_queuedPostManager = new QueuedDeliverTasks(workers, queueSize, policy, timeout);
+        }
+        else
+        {
+            current.update(workers, queueSize, policy, timeout);
+        }
+    }
+
+    /**
+     * Return the queued asynchronous event dispatcher, which provides the
+     * metrics of the queues.
+     *
+     * @return The dispatcher or <code>null</code> if no queue size is configured.
+     */
+    public QueuedDeliverTasks getQueuedDeliverTasks()
+    {
+        return m_queuedPostManager;
     }
 
     /**
@@ -18,10 +18,10 @@
  */
 package org.apache.felix.eventadmin.impl.handler;
 
+import java.security.Permission;
 import java.util.Collection;
 import java.util.Iterator;
 
-import org.apache.felix.eventadmin.impl.security.PermissionsUtil;
 import org.apache.felix.eventadmin.impl.util.LogWrapper;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.Filter;
@@ -316,6 +316,14 @@ public class EventHandlerProxy {
         }
     }
 
+    /**
+     * Get the service reference of the handler.
+     */
+    public ServiceReference<EventHandler> getReference()
+    {
+        return this.reference;
+    }
+
     /**
      * Get the topics of this handler.
      * If this handler matches all topics <code>null</code> is returned
@@ -326,12 +334,22 @@ public class EventHandlerProxy {
     }
 
     /**
-     * Check if this handler is allowed to receive the event
+     * Get the filter of this handler.
+     * If this handler has no filter <code>null</code> is returned
+     */
+    public Filter getFilter()
+    {
+        return this.filter;
+    }
+
+    /**
+     * Check if this handler is allowed to receive an event. The
+     * filter of the handler has already been matched by the caller.
      * - blacklisted
-     * - check filter
      * - check permission
+     * @param permission The subscribe permission for the topic or <code>null</code>
      */
-    public boolean canDeliver(final Event event)
+    public boolean canDeliver(final Permission permission)
     {
         if ( this.blacklisted )
         {
@@ -344,16 +362,8 @@ public class EventHandlerProxy {
             return false;
         }
 
-        // filter match
-        final Filter eventFilter = this.filter;
-        if ( eventFilter != null && !event.matches(eventFilter) )
-        {
-            return false;
-        }
-
         // permission check
-        final Object p = PermissionsUtil.createSubscribePermission(event.getTopic());
-        if (p != null && !bundle.hasPermission(p) )
+        if (permission != null && !bundle.hasPermission(permission) )
         {
             return false;
         }
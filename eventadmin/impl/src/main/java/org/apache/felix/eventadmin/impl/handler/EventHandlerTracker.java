@@ -18,16 +18,21 @@
  */
 package org.apache.felix.eventadmin.impl.handler;
 
+import java.security.Permission;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 
+import org.apache.felix.eventadmin.impl.security.PermissionsUtil;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Filter;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
@@ -36,34 +41,26 @@ import org.osgi.util.tracker.ServiceTracker;
 /**
  * The event handler tracker keeps track of all event handler services.
  *
+ * The handlers are looked up through an immutable {@link Snapshot} which
+ * is rebuilt whenever a handler is added, modified or removed. Delivering
+ * an event therefore does not need any locking, and in the common case
+ * does not allocate anything.
+ *
  * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
  */
 public class EventHandlerTracker extends ServiceTracker<EventHandler, EventHandlerProxy> {
 
-    /** The proxies in this list match all events. */
-	private final List<EventHandlerProxy> matchingAllEvents;
-
-    /** This is a map for exact topic matches. The key is the topic,
-     * the value is a list of proxies.
-     */
-    private final Map<String, List<EventHandlerProxy>> matchingTopic;
-
-	/** This is a map for wildcard topics. The key is the prefix of the topic,
-	 * the value is a list of proxies
-	 */
-	private final Map<String, List<EventHandlerProxy>> matchingPrefixTopic;
+    /** The proxies with a valid configuration, in the order they were added. */
+    private final Set<EventHandlerProxy> proxies = new LinkedHashSet<EventHandlerProxy>();
 
+    /** The current snapshot of the proxies. */
+    private volatile Snapshot snapshot = new Snapshot(this.proxies);
 
 	/** The context for the proxies. */
 	private HandlerContext handlerContext;
 
     public EventHandlerTracker(final BundleContext context) {
 		super(context, EventHandler.class.getName(), null);
-
-		// we start with empty collections
-		this.matchingAllEvents = new CopyOnWriteArrayList<EventHandlerProxy>();
-		this.matchingTopic = new ConcurrentHashMap<String, List<EventHandlerProxy>>();
-		this.matchingPrefixTopic = new ConcurrentHashMap<String, List<EventHandlerProxy>>();
 	}
 
     /**
@@ -138,141 +135,44 @@ public class EventHandlerTracker extends ServiceTracker<EventHandler, EventHandl
         proxy.dispose();
 	}
 
-	private void updateMap(final Map<String, List<EventHandlerProxy>> proxyListMap, final String key, final EventHandlerProxy proxy, final boolean add) {
-        List<EventHandlerProxy> proxies = proxyListMap.get(key);
-        if (proxies == null)
-        {
-            if ( !add )
-            {
-                return;
-            }
-            proxies = new CopyOnWriteArrayList<EventHandlerProxy>();
-            proxyListMap.put(key, proxies);
-        }
-
-        if ( add )
-        {
-            proxies.add(proxy);
-        }
-        else
-        {
-            proxies.remove(proxy);
-            if ( proxies.size() == 0 )
-            {
-                proxyListMap.remove(key);
-            }
-        }
-	}
-
 	/**
-	 * Check the topics of the event handler and put it into the
-	 * corresponding collections.
+	 * Add the event handler and publish a new snapshot.
 	 */
 	private synchronized void put(final EventHandlerProxy proxy) {
-		final String[] topics = proxy.getTopics();
-		if ( topics == null )
-		{
-		    this.matchingAllEvents.add(proxy);
-		}
-		else
-		{
-    		for(int i = 0; i < topics.length; i++) {
-    			final String topic = topics[i];
-
-    			if ( topic.endsWith("/*") )
-    			{
-                    // prefix topic: we remove the /*
-    				final String prefix = topic.substring(0, topic.length() - 2);
-                    this.updateMap(this.matchingPrefixTopic, prefix, proxy, true);
-    			}
-    			else
-    			{
-    			    // exact match
-                    this.updateMap(this.matchingTopic, topic, proxy, true);
-    			}
-    		}
-		}
+        this.proxies.add(proxy);
+        this.snapshot = new Snapshot(this.proxies);
 	}
 
     /**
-     * Check the topics of the event handler and remove it from the
-     * corresponding collections.
+     * Remove the event handler and publish a new snapshot.
      */
 	private synchronized void remove(final EventHandlerProxy proxy) {
-        final String[] topics = proxy.getTopics();
-        if ( topics == null )
+        if ( this.proxies.remove(proxy) )
         {
-            this.matchingAllEvents.remove(proxy);
-        } else {
-            for(int i = 0; i < topics.length; i++) {
-                final String topic = topics[i];
-
-                if ( topic.endsWith("/*") )
-                {
-                    // prefix topic: we remove the /*
-                    final String prefix = topic.substring(0, topic.length() - 2);
-                    this.updateMap(this.matchingPrefixTopic, prefix, proxy, false);
-                }
-                else
-                {
-                    // exact match
-                    this.updateMap(this.matchingTopic, topic, proxy, false);
-                }
-            }
+            this.snapshot = new Snapshot(this.proxies);
         }
 	}
 
 	/**
-	 * Get all handlers for this event
+	 * Check whether any handler is registered for the topic, regardless
+	 * of its filter.
 	 *
-	 * @param event The event topic
-	 * @return All handlers for the event
+	 * @param topic The event topic
+	 * @return <code>true</code> if an event with this topic might be delivered
 	 */
-	public Collection<EventHandlerProxy> getHandlers(final Event event) {
-	    final String topic = event.getTopic();
-
-		final Set<EventHandlerProxy> handlers = new HashSet<EventHandlerProxy>();
-
-		// Add all handlers matching everything
-        this.checkHandlerAndAdd(handlers, this.matchingAllEvents, event);
-
-		// Now check for prefix matches
-		if ( !this.matchingPrefixTopic.isEmpty() )
-		{
-		    int pos = topic.lastIndexOf('/');
-			while (pos != -1)
-			{
-			    final String prefix = topic.substring(0, pos);
-		        this.checkHandlerAndAdd(handlers, this.matchingPrefixTopic.get(prefix), event);
-
-				pos = prefix.lastIndexOf('/');
-			}
-		}
-
-		// Add the handlers for matching topic names
-		this.checkHandlerAndAdd(handlers, this.matchingTopic.get(topic), event);
-
-		return handlers;
+	public boolean hasHandlers(final String topic) {
+	    return !this.snapshot.getHandlers(topic).isEmpty();
 	}
 
 	/**
-	 * Checks each handler from the proxy list if it can deliver the event
-	 * If the event can be delivered, the proxy is added to the handlers.
+	 * Get all handlers for this event
+	 *
+	 * @param event The event topic
+	 * @return All handlers for the event. The array might be shared and
+	 *         must not be modified.
 	 */
-	private void checkHandlerAndAdd( final Set<EventHandlerProxy> handlers,
-	        final List<EventHandlerProxy> proxies,
-	        final Event event)
-	{
-	    if ( proxies != null )
-	    {
-            for(final EventHandlerProxy p : proxies)
-            {
-                if ( p.canDeliver(event) )
-                {
-                    handlers.add(p);
-                }
-            }
-	    }
+	public EventHandlerProxy[] getHandlers(final Event event) {
+	    return this.snapshot.getHandlers(event.getTopic()).select(event);
 	}
 
 	static Matcher[] createMatchers(final String[] config)
@@ -417,4 +317,260 @@ public class EventHandlerTracker extends ServiceTracker<EventHandler, EventHandl
             this.requireTopic = requireTopic;
         }
     }
+
+    /**
+     * An immutable view of the handlers. The topics of the handlers are
+     * kept in a trie with one node per topic segment. As events are usually
+     * sent to a limited set of topics, the handlers found for a topic are
+     * cached, so a topic is only looked up in the trie the first time.
+     */
+    static final class Snapshot
+    {
+        /** The maximum number of cached topics. */
+        private static final int MAX_CACHED_TOPICS = 1024;
+
+        /** The proxies matching all events. */
+        private final List<EventHandlerProxy> matchingAllEvents = new ArrayList<EventHandlerProxy>();
+
+        /** The root of the topic trie. */
+        private final TopicNode root = new TopicNode();
+
+        /** The handlers by topic. */
+        private final Map<String, Handlers> cache = new ConcurrentHashMap<String, Handlers>();
+
+        Snapshot(final Collection<EventHandlerProxy> proxies)
+        {
+            for(final EventHandlerProxy proxy : proxies)
+            {
+                final String[] topics = proxy.getTopics();
+                if ( topics == null )
+                {
+                    this.matchingAllEvents.add(proxy);
+                }
+                else
+                {
+                    for(int i = 0; i < topics.length; i++)
+                    {
+                        final String topic = topics[i];
+                        if ( topic.endsWith("/*") )
+                        {
+                            // prefix topic: we remove the /*
+                            this.root.getNode(topic.substring(0, topic.length() - 2)).prefix.add(proxy);
+                        }
+                        else
+                        {
+                            // exact match
+                            this.root.getNode(topic).exact.add(proxy);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Get the handlers for a topic, before checking the event.
+         */
+        Handlers getHandlers(final String topic)
+        {
+            Handlers handlers = this.cache.get(topic);
+            if ( handlers == null )
+            {
+                handlers = new Handlers(this.find(topic));
+                if ( this.cache.size() < MAX_CACHED_TOPICS )
+                {
+                    this.cache.put(topic, handlers);
+                }
+            }
+            return handlers;
+        }
+
+        /**
+         * Walk the trie along the segments of the topic. The prefix
+         * handlers of each node match as long as there are more segments,
+         * the exact handlers only at the node of the last segment.
+         */
+        private Set<EventHandlerProxy> find(final String topic)
+        {
+            final Set<EventHandlerProxy> result = new LinkedHashSet<EventHandlerProxy>(this.matchingAllEvents);
+            TopicNode node = this.root;
+            int start = 0;
+            while ( node != null )
+            {
+                final int pos = topic.indexOf('/', start);
+                node = node.getChild(pos == -1 ? topic.substring(start) : topic.substring(start, pos));
+                if ( node != null )
+                {
+                    if ( pos == -1 )
+                    {
+                        result.addAll(node.exact);
+                        break;
+                    }
+                    result.addAll(node.prefix);
+                    start = pos + 1;
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A node of the topic trie.
+     */
+    private static final class TopicNode
+    {
+        /** The child nodes by topic segment, created on demand. */
+        private Map<String, TopicNode> children;
+
+        /** The proxies for exactly this topic. */
+        final List<EventHandlerProxy> exact = new ArrayList<EventHandlerProxy>();
+
+        /** The proxies for the topics below this topic. */
+        final List<EventHandlerProxy> prefix = new ArrayList<EventHandlerProxy>();
+
+        TopicNode getChild(final String segment)
+        {
+            return this.children == null ? null : this.children.get(segment);
+        }
+
+        /**
+         * Get the node for a topic relative to this node, creating it if needed.
+         */
+        TopicNode getNode(final String topic)
+        {
+            TopicNode node = this;
+            int start = 0;
+            while ( true )
+            {
+                final int pos = topic.indexOf('/', start);
+                final String segment = pos == -1 ? topic.substring(start) : topic.substring(start, pos);
+                if ( node.children == null )
+                {
+                    node.children = new HashMap<String, TopicNode>();
+                }
+                TopicNode child = node.children.get(segment);
+                if ( child == null )
+                {
+                    child = new TopicNode();
+                    node.children.put(segment, child);
+                }
+                node = child;
+                if ( pos == -1 )
+                {
+                    return node;
+                }
+                start = pos + 1;
+            }
+        }
+    }
+
+    /**
+     * The handlers for a topic, grouped by their filter. Handlers with
+     * the same filter are next to each other, so each distinct filter is
+     * only matched once per event.
+     */
+    static final class Handlers
+    {
+        /** An empty array of handlers. */
+        private static final EventHandlerProxy[] EMPTY = new EventHandlerProxy[0];
+
+        /** The handlers. */
+        private final EventHandlerProxy[] handlers;
+
+        /** The filter of each group, or <code>null</code>. */
+        private final Filter[] filters;
+
+        /** The end index of each group in the handlers. */
+        private final int[] ends;
+
+        Handlers(final Collection<EventHandlerProxy> proxies)
+        {
+            // group the handlers by filter
+            final Map<String, List<EventHandlerProxy>> groups = new LinkedHashMap<String, List<EventHandlerProxy>>();
+            final Map<String, Filter> groupFilters = new HashMap<String, Filter>();
+            for(final EventHandlerProxy proxy : proxies)
+            {
+                final Filter filter = proxy.getFilter();
+                final String key = filter == null ? null : filter.toString();
+                List<EventHandlerProxy> group = groups.get(key);
+                if ( group == null )
+                {
+                    group = new ArrayList<EventHandlerProxy>();
+                    groups.put(key, group);
+                    groupFilters.put(key, filter);
+                }
+                group.add(proxy);
+            }
+            this.handlers = proxies.isEmpty() ? EMPTY : new EventHandlerProxy[proxies.size()];
+            this.filters = new Filter[groups.size()];
+            this.ends = new int[groups.size()];
+            int index = 0;
+            int groupIndex = 0;
+            for(final Map.Entry<String, List<EventHandlerProxy>> entry : groups.entrySet())
+            {
+                for(final EventHandlerProxy proxy : entry.getValue())
+                {
+                    this.handlers[index] = proxy;
+                    index++;
+                }
+                this.filters[groupIndex] = groupFilters.get(entry.getKey());
+                this.ends[groupIndex] = index;
+                groupIndex++;
+            }
+        }
+
+        /**
+         * Are there no handlers for the topic?
+         */
+        boolean isEmpty()
+        {
+            return this.handlers.length == 0;
+        }
+
+        /**
+         * Select the handlers which can receive the event. If all of them
+         * can, the shared array is returned, otherwise a new one.
+         */
+        EventHandlerProxy[] select(final Event event)
+        {
+            if ( this.handlers.length == 0 )
+            {
+                return this.handlers;
+            }
+            final Permission permission = PermissionsUtil.createSubscribePermission(event.getTopic());
+            EventHandlerProxy[] result = null;
+            int count = 0;
+            int start = 0;
+            for(int g = 0; g < this.filters.length; g++)
+            {
+                final boolean matches = this.filters[g] == null || event.matches(this.filters[g]);
+                for(int i = start; i < this.ends[g]; i++)
+                {
+                    final EventHandlerProxy proxy = this.handlers[i];
+                    if ( matches && proxy.canDeliver(permission) )
+                    {
+                        if ( result != null )
+                        {
+                            result[count] = proxy;
+                        }
+                        count++;
+                    }
+                    else if ( result == null )
+                    {
+                        result = new EventHandlerProxy[this.handlers.length];
+                        System.arraycopy(this.handlers, 0, result, 0, count);
+                    }
+                }
+                start = this.ends[g];
+            }
+            if ( result == null )
+            {
+                return this.handlers;
+            }
+            if ( count == 0 )
+            {
+                return EMPTY;
+            }
+            return count == result.length ? result : Arrays.copyOf(result, count);
+        }
+    }
 }
@@ -18,9 +18,9 @@
  */
 package org.apache.felix.eventadmin.impl.tasks;
 
-import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
 import org.osgi.service.event.Event;
@@ -44,6 +44,9 @@ public class AsyncDeliverTasks
     /** A map of running threads currently delivering async events. */
     private final Map<Long, TaskExecuter> m_running_threads = new ConcurrentHashMap<Long, TaskExecuter>();
 
+    /** The number of events which are not yet delivered. */
+    private final AtomicInteger m_pending = new AtomicInteger();
+
     /**
      * The constructor of the class that will use the asynchronous.
      *
@@ -64,7 +67,7 @@ public class AsyncDeliverTasks
      * @param tasks The event handler dispatch tasks to execute
      *
      */
-    public void execute(final Collection<EventHandlerProxy> tasks, final Event event)
+    public void execute(final EventHandlerProxy[] tasks, final Event event)
     {
         /*
         final Iterator i = tasks.iterator();
@@ -89,8 +92,9 @@ public class AsyncDeliverTasks
             TaskExecuter executer = m_running_threads.get(currentThreadId);
             if ( executer == null )
             {
-                executer = new TaskExecuter(m_running_threads);
+                executer = new TaskExecuter(m_running_threads, m_pending);
             }
+            m_pending.incrementAndGet();
             synchronized ( executer )
             {
                 executer.add(info);
@@ -109,13 +113,34 @@ public class AsyncDeliverTasks
         //}
     }
 
+    /**
+     * Wait until all events posted so far are delivered.
+     *
+     * @param timeout The maximum time to wait in milliseconds
+     * @return <code>true</code> if all events have been delivered
+     */
+    public boolean drain(final long timeout) throws InterruptedException
+    {
+        final long end = System.currentTimeMillis() + timeout;
+        while ( m_pending.get() > 0 )
+        {
+            final long remaining = end - System.currentTimeMillis();
+            if ( remaining <= 0 )
+            {
+                return false;
+            }
+            Thread.sleep(Math.min(remaining, QueuedDeliverTasks.DRAIN_INTERVAL));
+        }
+        return true;
+    }
+
     private final static class TaskInfo {
-        public final Collection<EventHandlerProxy> tasks;
+        public final EventHandlerProxy[] tasks;
         public final Event event;
 
         public TaskInfo next;
 
-        public TaskInfo(final Collection<EventHandlerProxy> tasks, final Event event) {
+        public TaskInfo(final EventHandlerProxy[] tasks, final Event event) {
             this.tasks = tasks;
             this.event = event;
         }
@@ -130,8 +155,11 @@ public class AsyncDeliverTasks
 
         private final Map<Long, TaskExecuter> m_running_threads;
 
-        public TaskExecuter(Map<Long, TaskExecuter> runningThreads) {
+        private final AtomicInteger m_pending;
+
+        public TaskExecuter(Map<Long, TaskExecuter> runningThreads, AtomicInteger pending) {
             m_running_threads = runningThreads;
+            m_pending = pending;
         }
 
         public boolean isActive()
@@ -160,7 +188,14 @@ public class AsyncDeliverTasks
                         last = null;
                     }
                 }
-                m_deliver_task.execute(info.tasks, info.event, true);
+                try
+                {
+                    m_deliver_task.execute(info.tasks, info.event, true);
+                }
+                finally
+                {
+                    m_pending.decrementAndGet();
+                }
                 synchronized ( this )
                 {
                     running = first != null;
@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
+import org.apache.felix.eventadmin.impl.util.LogWrapper;
+import org.osgi.service.event.Event;
+
+/**
+ * Delivers events to handlers on the calling thread and blacklists the
+ * handlers exceeding the timeout.
+ *
+ * Each delivering thread has a slot holding the handler it is currently
+ * calling together with the time the call started. Both are published as
+ * one immutable object, such that the watchdog never combines a handler
+ * with the start time of another call. A watchdog thread samples these slots
+ * every half timeout and blacklists the handlers running for longer than
+ * the timeout. As with the delivery through the thread pool, the caller
+ * still waits until the handler returns, but the handler does not receive
+ * further events.
+ *
+ * If a handler sends an event itself, the time spent delivering this inner
+ * event does not count for the handler.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class BlacklistWatchdog implements Runnable
+{
+    /** The slots of all threads which have delivered events. */
+    private final List<Slot> m_slots = new CopyOnWriteArrayList<Slot>();
+
+    /** The slot of the current thread. */
+    private final ThreadLocal<Slot> m_slot = new ThreadLocal<Slot>();
+
+    /** The timeout in milliseconds. */
+    private volatile long m_timeout;
+
+    /** The watchdog thread, <code>null</code> once stopped. */
+    private volatile Thread m_thread;
+
+    /**
+     * Create and start a watchdog.
+     * @param timeout The timeout in milliseconds.
+     */
+    public BlacklistWatchdog(final long timeout)
+    {
+        m_timeout = timeout;
+        final Thread thread = new Thread(this, "EventAdminBlacklistWatchdog");
+        thread.setDaemon(true);
+        m_thread = thread;
+        thread.start();
+    }
+
+    /**
+     * Update the timeout.
+     */
+    public void update(final long timeout)
+    {
+        m_timeout = timeout;
+    }
+
+    /**
+     * Stop the watchdog thread.
+     */
+    public void stop()
+    {
+        final Thread thread = m_thread;
+        m_thread = null;
+        if ( thread != null )
+        {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Deliver the event to the handler on the calling thread.
+     */
+    public void deliver(final EventHandlerProxy proxy, final Event event)
+    {
+        Slot slot = m_slot.get();
+        if ( slot == null )
+        {
+            slot = new Slot(Thread.currentThread());
+            m_slot.set(slot);
+            m_slots.add(slot);
+        }
+        // the handler sending this event, if any
+        final Call outer = slot.call;
+
+        final long start = System.currentTimeMillis();
+        slot.call = new Call(proxy, start);
+        try
+        {
+            proxy.sendEvent(event);
+        }
+        finally
+        {
+            final long now = System.currentTimeMillis();
+            // nested events have moved the start of this call
+            final long time = now - slot.call.startTime;
+            // the time spent on this event does not count for the outer handler
+            slot.call = (outer == null ? null : new Call(outer.proxy, outer.startTime + now - start));
+            // the watchdog might not have sampled the handler in time
+            final long timeout = m_timeout;
+            if ( timeout > 0 && time > timeout && proxy.useTimeout() )
+            {
+                proxy.blackListHandler();
+            }
+        }
+    }
+
+    /**
+     * Sample the slots every half timeout.
+     */
+    @Override
+    public void run()
+    {
+        while ( m_thread == Thread.currentThread() )
+        {
+            try
+            {
+                Thread.sleep(Math.max(50, m_timeout / 2));
+            }
+            catch ( final InterruptedException e )
+            {
+                continue;
+            }
+            final long timeout = m_timeout;
+            final long now = System.currentTimeMillis();
+            for ( final Slot slot : m_slots )
+            {
+                final Call call = slot.call;
+                if ( call != null )
+                {
+                    if ( timeout > 0 && now - call.startTime > timeout && call.proxy.useTimeout() )
+                    {
+                        try
+                        {
+                            call.proxy.blackListHandler();
+                        }
+                        catch ( final RuntimeException e )
+                        {
+                            // keep watching the other handlers
+                            LogWrapper.getLogger().log(
+                                    LogWrapper.LOG_WARNING,
+                                    "Exception while blacklisting handler: " + e, e);
+                        }
+                    }
+                }
+                else if ( !slot.thread.isAlive() )
+                {
+                    m_slots.remove(slot);
+                }
+            }
+        }
+    }
+
+    /**
+     * The call of a thread, <code>null</code> while it is not calling a handler.
+     */
+    private static final class Slot
+    {
+        final Thread thread;
+
+        volatile Call call;
+
+        Slot(final Thread thread)
+        {
+            this.thread = thread;
+        }
+    }
+
+    /**
+     * A handler and the time it has been called.
+     */
+    private static final class Call
+    {
+        final EventHandlerProxy proxy;
+
+        final long startTime;
+
+        Call(final EventHandlerProxy proxy, final long startTime)
+        {
+            this.proxy = proxy;
+            this.startTime = startTime;
+        }
+    }
+}
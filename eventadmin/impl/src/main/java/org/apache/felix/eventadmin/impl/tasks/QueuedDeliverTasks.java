@@ -0,0 +1,541 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.security.Permission;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
+import org.apache.felix.eventadmin.impl.util.LogWrapper;
+import org.osgi.service.event.Event;
+
+/**
+ * This class does the asynchronous event delivery if a queue size is
+ * configured.
+ *
+ * Each event handler gets a bounded ring buffer of the events posted to it.
+ * A fixed set of worker threads takes the handlers with queued events and
+ * delivers these events in batches. A handler is only served by one worker
+ * at a time, and its events are delivered in the order they were queued,
+ * hence events posted by one thread are received in the order they were
+ * posted.
+ *
+ * If the queue of a handler is full, the configured policy applies: the
+ * posting thread waits until there is room, the new event is dropped or
+ * the oldest queued event is dropped. Worker threads never wait for room,
+ * as they might be the ones which have to make it; if they post to a full
+ * queue, the queue grows instead.
+ *
+ * A handler that takes longer than the timeout to handle an event is
+ * blacklisted once it returns.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class QueuedDeliverTasks
+{
+    /** Wait for room in the queue of a handler. */
+    public static final String POLICY_BLOCK = "block";
+
+    /** Drop the posted event if the queue of a handler is full. */
+    public static final String POLICY_DROP_NEWEST = "dropNewest";
+
+    /** Drop the oldest queued event if the queue of a handler is full. */
+    public static final String POLICY_DROP_OLDEST = "dropOldest";
+
+    /** The maximum number of events delivered to a handler at once. */
+    private static final int BATCH_SIZE = 64;
+
+    /** How long an idle worker waits before looking for unused queues. */
+    private static final long IDLE_TIMEOUT = 1000;
+
+    /** How often draining checks whether all events are delivered. */
+    static final long DRAIN_INTERVAL = 10;
+
+    /** The queues by handler. */
+    private final ConcurrentMap<EventHandlerProxy, HandlerQueue> m_queues =
+        new ConcurrentHashMap<EventHandlerProxy, HandlerQueue>();
+
+    /** The queues with events which are not served by a worker. */
+    private final BlockingQueue<HandlerQueue> m_ready = new LinkedBlockingQueue<HandlerQueue>();
+
+    /** The number of dropped events. */
+    private final AtomicLong m_dropped = new AtomicLong();
+
+    /** The current workers. */
+    private volatile Worker[] m_workers = new Worker[0];
+
+    /** The number of created workers, used for their names. */
+    private int m_workerCount;
+
+    private volatile int m_capacity;
+
+    private volatile String m_policy;
+
+    private volatile long m_timeout;
+
+    private volatile boolean m_closed;
+
+    /**
+     * Construct new queued deliver tasks and start the workers.
+     * @param workers The number of worker threads.
+     * @param capacity The maximum number of queued events per handler.
+     * @param policy The policy if the queue of a handler is full.
+     * @param timeout The blacklisting timeout in milliseconds or 0.
+     */
+    public QueuedDeliverTasks(final int workers, final int capacity, final String policy, final long timeout)
+    {
+        this.update(workers, capacity, policy, timeout);
+    }
+
+    /**
+     * Update the configuration. Changes to the capacity of the queues
+     * apply when events are posted.
+     */
+    public synchronized void update(final int workers, final int capacity, final String policy, final long timeout)
+    {
+        m_capacity = capacity;
+        m_policy = policy;
+        m_timeout = timeout;
+        final int count = Math.max(1, workers);
+        final Worker[] current = m_workers;
+        if ( count != current.length )
+        {
+            final Worker[] updated = new Worker[count];
+            System.arraycopy(current, 0, updated, 0, Math.min(count, current.length));
+            for ( int i = current.length; i < count; i++ )
+            {
+                m_workerCount++;
+                updated[i] = new Worker("EventAdminAsyncDelivery-" + m_workerCount);
+            }
+            // workers no longer in the array stop after their current batch
+            m_workers = updated;
+            for ( int i = current.length; i < count; i++ )
+            {
+                updated[i].start();
+            }
+        }
+    }
+
+    /**
+     * Stop the workers once all queued events are delivered.
+     */
+    public void close()
+    {
+        m_closed = true;
+        for ( final HandlerQueue queue : m_queues.values() )
+        {
+            synchronized ( queue )
+            {
+                // wake up posting threads waiting for room
+                queue.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Queue the event for each of the handlers.
+     *
+     * @param tasks The handlers to deliver the event to
+     * @param event The event
+     */
+    public void execute(final EventHandlerProxy[] tasks, final Event event)
+    {
+        for ( int i = 0; i < tasks.length; i++ )
+        {
+            final EventHandlerProxy proxy = tasks[i];
+            while ( true )
+            {
+                HandlerQueue queue = m_queues.get(proxy);
+                if ( queue == null )
+                {
+                    queue = new HandlerQueue(proxy);
+                    final HandlerQueue existing = m_queues.putIfAbsent(proxy, queue);
+                    if ( existing != null )
+                    {
+                        queue = existing;
+                    }
+                }
+                // a retired queue has been removed, use a new one
+                if ( queue.offer(event) )
+                {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until all queued events are delivered.
+     *
+     * @param timeout The maximum time to wait in milliseconds
+     * @return <code>true</code> if all queued events have been delivered
+     */
+    public boolean drain(final long timeout) throws InterruptedException
+    {
+        // a worker might be the one which has to deliver the events
+        if ( Thread.currentThread() instanceof Worker )
+        {
+            return !this.isBusy();
+        }
+        final long end = System.currentTimeMillis() + timeout;
+        while ( this.isBusy() )
+        {
+            final long remaining = end - System.currentTimeMillis();
+            if ( remaining <= 0 )
+            {
+                return false;
+            }
+            Thread.sleep(Math.min(remaining, DRAIN_INTERVAL));
+        }
+        return true;
+    }
+
+    /**
+     * Are there events which are queued or being delivered?
+     */
+    private boolean isBusy()
+    {
+        for ( final HandlerQueue queue : m_queues.values() )
+        {
+            synchronized ( queue )
+            {
+                if ( queue.m_scheduled )
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the number of queued events.
+     */
+    public int getQueueDepth()
+    {
+        int depth = 0;
+        for ( final HandlerQueue queue : m_queues.values() )
+        {
+            synchronized ( queue )
+            {
+                depth += queue.m_size;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Get the largest number of events queued for a single handler.
+     */
+    public int getMaxQueueDepth()
+    {
+        int depth = 0;
+        for ( final HandlerQueue queue : m_queues.values() )
+        {
+            synchronized ( queue )
+            {
+                depth = Math.max(depth, queue.m_maxSize);
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Get the number of events dropped because the queue of a handler was full.
+     */
+    public long getDroppedEvents()
+    {
+        return m_dropped.get();
+    }
+
+    /**
+     * Remove the empty queues of handlers which are gone or blacklisted.
+     */
+    private void removeUnusedQueues()
+    {
+        final Iterator<HandlerQueue> i = m_queues.values().iterator();
+        while ( i.hasNext() )
+        {
+            final HandlerQueue queue = i.next();
+            synchronized ( queue )
+            {
+                if ( !queue.m_scheduled && !queue.m_proxy.canDeliver((Permission) null) )
+                {
+                    queue.retire();
+                }
+            }
+        }
+    }
+
+    /**
+     * The ring buffer of the events for one handler.
+     */
+    private final class HandlerQueue
+    {
+        private final EventHandlerProxy m_proxy;
+
+        private Event[] m_events;
+
+        private int m_head;
+
+        private int m_size;
+
+        private int m_maxSize;
+
+        /** Is the queue in the ready queue or served by a worker? */
+        private boolean m_scheduled;
+
+        /** Has the queue been removed? */
+        private boolean m_retired;
+
+        /** Has the overflow of the queue been logged? */
+        private boolean m_logged;
+
+        HandlerQueue(final EventHandlerProxy proxy)
+        {
+            m_proxy = proxy;
+            m_events = new Event[Math.min(16, Math.max(1, m_capacity))];
+        }
+
+        /**
+         * Queue the event.
+         * @return <code>false</code> if the queue has been retired.
+         */
+        synchronized boolean offer(final Event event)
+        {
+            if ( m_retired )
+            {
+                return false;
+            }
+            final int capacity = Math.max(1, m_capacity);
+            if ( m_size >= capacity && !(Thread.currentThread() instanceof Worker) )
+            {
+                final String policy = m_policy;
+                if ( POLICY_DROP_NEWEST.equals(policy) )
+                {
+                    dropped();
+                    return true;
+                }
+                else if ( POLICY_DROP_OLDEST.equals(policy) )
+                {
+                    while ( m_size >= capacity )
+                    {
+                        m_events[m_head] = null;
+                        m_head = (m_head + 1) % m_events.length;
+                        m_size--;
+                        dropped();
+                    }
+                }
+                else
+                {
+                    while ( m_size >= Math.max(1, m_capacity) && !m_retired && !m_closed )
+                    {
+                        try
+                        {
+                            this.wait();
+                        }
+                        catch ( final InterruptedException e )
+                        {
+                            Thread.currentThread().interrupt();
+                            dropped();
+                            return true;
+                        }
+                    }
+                    if ( m_retired )
+                    {
+                        return false;
+                    }
+                }
+            }
+            if ( m_size == m_events.length )
+            {
+                final Event[] events = new Event[Math.max(m_size + 1, Math.min(m_events.length * 2, capacity))];
+                for ( int i = 0; i < m_size; i++ )
+                {
+                    events[i] = m_events[(m_head + i) % m_events.length];
+                }
+                m_events = events;
+                m_head = 0;
+            }
+            m_events[(m_head + m_size) % m_events.length] = event;
+            m_size++;
+            m_maxSize = Math.max(m_maxSize, m_size);
+            if ( !m_scheduled )
+            {
+                m_scheduled = true;
+                m_ready.offer(this);
+            }
+            return true;
+        }
+
+        /**
+         * Move up to a batch of events into the given array.
+         * @return The number of events.
+         */
+        synchronized int poll(final Event[] batch)
+        {
+            final int count = Math.min(m_size, batch.length);
+            for ( int i = 0; i < count; i++ )
+            {
+                batch[i] = m_events[m_head];
+                m_events[m_head] = null;
+                m_head = (m_head + 1) % m_events.length;
+            }
+            m_size -= count;
+            if ( count > 0 )
+            {
+                this.notifyAll();
+            }
+            return count;
+        }
+
+        /**
+         * Finish serving the queue, schedule it again if there are more events.
+         */
+        synchronized void done()
+        {
+            if ( m_size > 0 )
+            {
+                m_ready.offer(this);
+            }
+            else
+            {
+                m_scheduled = false;
+                if ( !m_proxy.canDeliver((Permission) null) )
+                {
+                    retire();
+                }
+            }
+        }
+
+        /**
+         * Remove the queue, posting threads then use a new one.
+         */
+        void retire()
+        {
+            m_retired = true;
+            m_queues.remove(m_proxy, this);
+            this.notifyAll();
+        }
+
+        private void dropped()
+        {
+            m_dropped.incrementAndGet();
+            if ( !m_logged )
+            {
+                m_logged = true;
+                LogWrapper.getLogger().log(
+                        m_proxy.getReference(),
+                        LogWrapper.LOG_WARNING,
+                        "Event queue is full, dropping events for ServiceReference ["
+                                + m_proxy.getReference() + "]");
+            }
+        }
+    }
+
+    /**
+     * A worker delivering the events of the ready queues.
+     */
+    private final class Worker extends Thread
+    {
+        private final Event[] m_batch = new Event[BATCH_SIZE];
+
+        Worker(final String name)
+        {
+            super(name);
+            this.setDaemon(true);
+        }
+
+        private boolean isCurrent()
+        {
+            final Worker[] workers = m_workers;
+            for ( int i = 0; i < workers.length; i++ )
+            {
+                if ( workers[i] == this )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void run()
+        {
+            while ( this.isCurrent() )
+            {
+                final HandlerQueue queue;
+                try
+                {
+                    queue = m_ready.poll(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+                }
+                catch ( final InterruptedException e )
+                {
+                    return;
+                }
+                if ( queue == null )
+                {
+                    if ( m_closed )
+                    {
+                        return;
+                    }
+                    removeUnusedQueues();
+                }
+                else
+                {
+                    try
+                    {
+                        this.deliver(queue);
+                    }
+                    finally
+                    {
+                        queue.done();
+                    }
+                }
+            }
+        }
+
+        private void deliver(final HandlerQueue queue)
+        {
+            final int count = queue.poll(m_batch);
+            final long timeout = m_timeout;
+            for ( int i = 0; i < count; i++ )
+            {
+                final Event event = m_batch[i];
+                m_batch[i] = null;
+                if ( queue.m_proxy.canDeliver((Permission) null) )
+                {
+                    final long start = System.currentTimeMillis();
+                    queue.m_proxy.sendEvent(event);
+                    if ( timeout > 0 && queue.m_proxy.useTimeout()
+                            && System.currentTimeMillis() - start > timeout )
+                    {
+                        queue.m_proxy.blackListHandler();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -18,9 +18,6 @@
  */
 package org.apache.felix.eventadmin.impl.tasks;
 
-import java.util.Collection;
-import java.util.Iterator;
-
 import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
 import org.osgi.service.event.Event;
 
@@ -50,6 +47,10 @@ import org.osgi.service.event.Event;
  * within the event handler, the timeout handler is stopped for the
  * delivery time of the inner event!
  *
+ * If inline delivery is configured, the handlers are always called by
+ * the calling thread and a {@link BlacklistWatchdog} enforces the timeout
+ * instead, which avoids handing each event over to another thread.
+ *
  * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
  */
 public class SyncDeliverTasks
@@ -60,22 +61,50 @@ public class SyncDeliverTasks
 
     private long timeout;
 
+    /** The watchdog if inline delivery with a timeout is configured. */
+    private volatile BlacklistWatchdog watchdog;
+
     /**
      * Construct a new sync deliver tasks.
      * @param pool The thread pool used to spin-off new threads.
      */
-    public SyncDeliverTasks(final DefaultThreadPool pool, final long timeout)
+    public SyncDeliverTasks(final DefaultThreadPool pool, final long timeout, final boolean inline)
     {
         this.pool = pool;
-        this.update(timeout);
+        this.update(timeout, inline);
     }
 
     /**
      * Update the timeout configuration
      */
-    public void update(final long timeout)
+    public synchronized void update(final long timeout, final boolean inline)
     {
         this.timeout = timeout;
+        final BlacklistWatchdog current = this.watchdog;
+        if ( inline && timeout > 0 )
+        {
+            if ( current == null )
+            {
+                this.watchdog = new BlacklistWatchdog(timeout);
+            }
+            else
+            {
+                current.update(timeout);
+            }
+        }
+        else if ( current != null )
+        {
+            this.watchdog = null;
+            current.stop();
+        }
+    }
+
+    /**
+     * Stop the watchdog, if any.
+     */
+    public void close()
+    {
+        this.update(0, false);
     }
 
     /**
@@ -85,17 +114,26 @@ public class SyncDeliverTasks
      * @param tasks The event handler dispatch tasks to execute
      *
      */
-    public void execute(final Collection<EventHandlerProxy> tasks, final Event event, final boolean filterAsyncUnordered)
+    public void execute(final EventHandlerProxy[] tasks, final Event event, final boolean filterAsyncUnordered)
     {
+        final BlacklistWatchdog localWatchdog = this.watchdog;
+        if ( localWatchdog != null )
+        {
+            for(int i = 0; i < tasks.length; i++)
+            {
+                localWatchdog.deliver(tasks[i], event);
+            }
+            return;
+        }
+
         final Thread sleepingThread = Thread.currentThread();
         final SyncThread syncThread = sleepingThread instanceof SyncThread ? (SyncThread)sleepingThread : null;
 
-        final Iterator<EventHandlerProxy> i = tasks.iterator();
-        final BlacklistLatch handlerLatch = new BlacklistLatch(tasks.size(), this.timeout/2);
+        final BlacklistLatch handlerLatch = new BlacklistLatch(tasks.length, this.timeout/2);
 
-        while ( i.hasNext() )
+        for(int i = 0; i < tasks.length; i++)
         {
-            final EventHandlerProxy task = i.next();
+            final EventHandlerProxy task = tasks[i];
             HandlerTask handlerTask = new HandlerTask(task, event, this.timeout, handlerLatch);
 //            if ( !filterAsyncUnordered || task.isAsyncOrderedDelivery() )
 //            {
@@ -0,0 +1,413 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.adapter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.felix.eventadmin.impl.handler.EventAdminImpl;
+import org.apache.felix.eventadmin.impl.tasks.DefaultThreadPool;
+import org.apache.felix.eventadmin.impl.util.LogWrapper;
+import org.junit.After;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.osgi.service.log.LogService;
+
+public class AdaptedPropertiesTest {
+
+    private final List<Event> posted = Collections.synchronizedList(new ArrayList<Event>());
+
+    private final List<String> logged = Collections.synchronizedList(new ArrayList<String>());
+
+    private DefaultThreadPool syncPool;
+
+    private DefaultThreadPool asyncPool;
+
+    private EventAdminImpl admin;
+
+    private ServiceReference<?> handler;
+
+    private final ServiceReference<?> logReference = reference(new HashMap<String, Object>());
+
+    private final LogService logService = (LogService) mock(LogService.class, new InvocationHandler() {
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            if ("log".equals(method.getName())) {
+                for (final Object arg : args) {
+                    if (arg instanceof String) {
+                        logged.add((String) arg);
+                    }
+                }
+            }
+            return null;
+        }
+    });
+
+    @After
+    public void tearDown() {
+        LogWrapper.setContext(null);
+        if (admin != null) {
+            admin.stop();
+        }
+        if (syncPool != null) {
+            syncPool.close();
+            asyncPool.close();
+        }
+    }
+
+    @Test
+    public void testValuesAreComputedOnce() {
+        final int[] calls = new int[3];
+        final AdaptedProperties props = new AdaptedProperties(new String[] {"a", "b", "c"}) {
+            @Override
+            protected Object getValue(final String key) {
+                final int index = key.charAt(0) - 'a';
+                calls[index]++;
+                return "b".equals(key) ? null : key.toUpperCase();
+            }
+        };
+
+        // A key without a value is not part of the map.
+        assertEquals(2, props.size());
+        assertEquals("A", props.get("a"));
+        assertNull(props.get("b"));
+        assertFalse(props.containsKey("b"));
+        assertFalse(props.containsKey("d"));
+        assertEquals(new HashSet<String>(Arrays.asList("a", "c")), props.keySet());
+        int count = 0;
+        for (final Map.Entry<String, Object> entry : props.entrySet()) {
+            assertEquals(entry.getKey().toUpperCase(), entry.getValue());
+            count++;
+        }
+        assertEquals(props.size(), count);
+        assertEquals(new HashMap<String, Object>(props), props);
+
+        assertArrayEquals(new int[] {1, 1, 1}, calls);
+    }
+
+    @Test
+    public void testNoEventWithoutHandler() {
+        createEventAdmin(null, "org/osgi/framework/BundleEvent/*");
+        assertFalse(admin.hasHandlers("org/osgi/framework/ServiceEvent/REGISTERED"));
+        assertTrue(admin.hasHandlers("org/osgi/framework/BundleEvent/STARTED"));
+
+        new ServiceEventAdapter(context(), admin).serviceChanged(
+            new ServiceEvent(ServiceEvent.REGISTERED, reference(serviceProperties(1L))));
+        new FrameworkEventAdapter(context(), admin).frameworkEvent(
+            new FrameworkEvent(FrameworkEvent.STARTED, bundle(0, "system"), null));
+        assertTrue(posted.isEmpty());
+
+        new BundleEventAdapter(context(), admin).bundleChanged(
+            new BundleEvent(BundleEvent.STARTED, bundle(1, "test")));
+        assertEquals(1, posted.size());
+        assertEquals("org/osgi/framework/BundleEvent/STARTED", posted.get(0).getTopic());
+    }
+
+    @Test
+    public void testNoEventForIgnoredTopic() {
+        createEventAdmin(new String[] {"org/osgi/framework/ServiceEvent/REGISTERED"}, "*");
+        assertFalse(admin.hasHandlers("org/osgi/framework/ServiceEvent/REGISTERED"));
+        assertTrue(admin.hasHandlers("org/osgi/framework/BundleEvent/STARTED"));
+
+        new ServiceEventAdapter(context(), admin).serviceChanged(
+            new ServiceEvent(ServiceEvent.REGISTERED, reference(serviceProperties(1L))));
+        assertTrue(posted.isEmpty());
+    }
+
+    @Test
+    public void testServiceEventProperties() {
+        createEventAdmin(null, "*");
+        final ServiceAdapter adapter = new ServiceAdapter();
+
+        final ServiceEvent event = new ServiceEvent(ServiceEvent.MODIFIED,
+            reference(serviceProperties(5L)));
+        adapter.serviceChanged(event);
+        assertProperties(adapter.expected(event), posted.get(0));
+
+        // Missing properties are left out.
+        final Map<String, Object> props = new HashMap<String, Object>();
+        props.put(Constants.OBJECTCLASS, "single.Class");
+        final ServiceEvent sparse = new ServiceEvent(ServiceEvent.REGISTERED, reference(props));
+        adapter.serviceChanged(sparse);
+        assertProperties(adapter.expected(sparse), posted.get(1));
+        assertNull(posted.get(1).getProperty(EventConstants.SERVICE_ID));
+        assertNull(posted.get(1).getProperty(EventConstants.SERVICE_PID));
+    }
+
+    @Test
+    public void testBundleEventProperties() {
+        createEventAdmin(null, "*");
+        final BundleEventAdapter adapter = new BundleEventAdapter(context(), admin);
+
+        final BundleEvent event = new BundleEvent(BundleEvent.INSTALLED, bundle(7, "test"));
+        adapter.bundleChanged(event);
+        assertProperties(expectedBundleProperties(event), posted.get(0));
+
+        final BundleEvent unnamed = new BundleEvent(BundleEvent.RESOLVED, bundle(8, null));
+        adapter.bundleChanged(unnamed);
+        assertProperties(expectedBundleProperties(unnamed), posted.get(1));
+        assertNull(posted.get(1).getProperty(EventConstants.BUNDLE_SYMBOLICNAME));
+    }
+
+    @Test
+    public void testFrameworkEventProperties() {
+        createEventAdmin(null, "*");
+        final FrameworkEventAdapter adapter = new FrameworkEventAdapter(context(), admin);
+
+        final FrameworkEvent error = new FrameworkEvent(FrameworkEvent.ERROR,
+            bundle(3, "failing"), new IllegalStateException("failed"));
+        adapter.frameworkEvent(error);
+        assertProperties(expectedFrameworkProperties(error), posted.get(0));
+
+        final FrameworkEvent started = new FrameworkEvent(FrameworkEvent.STARTED,
+            bundle(0, "system"), new RuntimeException());
+        adapter.frameworkEvent(started);
+        assertProperties(expectedFrameworkProperties(started), posted.get(1));
+        assertNull(posted.get(1).getProperty(EventConstants.EXCEPTION_MESSAGE));
+    }
+
+    @Test
+    public void testInvalidServiceIdIsLoggedOnce() {
+        createEventAdmin(null, "*");
+        LogWrapper.setContext(context());
+        final ServiceAdapter adapter = new ServiceAdapter();
+
+        final ServiceEvent event = new ServiceEvent(ServiceEvent.REGISTERED,
+            reference(serviceProperties("invalid")));
+        adapter.serviceChanged(event);
+        assertEquals(1, posted.size());
+        assertProperties(adapter.expected(event), posted.get(0));
+        assertNull(posted.get(0).getProperty(EventConstants.SERVICE_ID));
+        assertEquals(1, logged.size());
+        assertTrue(logged.get(0).contains(EventConstants.SERVICE_ID + "=invalid"));
+    }
+
+    /**
+     * A service event adapter which also computes the properties the same
+     * way the adapter did before the properties were adapted on demand.
+     */
+    private final class ServiceAdapter extends ServiceEventAdapter {
+
+        ServiceAdapter() {
+            super(context(), admin);
+        }
+
+        Map<String, Object> expected(final ServiceEvent event) {
+            final Map<String, Object> properties = new Hashtable<String, Object>();
+            properties.put(EventConstants.EVENT, event);
+            properties.put(EventConstants.SERVICE, event.getServiceReference());
+            final Object id = event.getServiceReference().getProperty(EventConstants.SERVICE_ID);
+            if (null != id) {
+                try {
+                    properties.put(EventConstants.SERVICE_ID, new Long(id.toString()));
+                } catch (NumberFormatException ne) {
+                    // ignored as before
+                }
+            }
+            final Object pid = event.getServiceReference().getProperty(EventConstants.SERVICE_PID);
+            if (null != pid) {
+                properties.put(EventConstants.SERVICE_PID, pid.toString());
+            }
+            final Object objectClass = event.getServiceReference().getProperty(Constants.OBJECTCLASS);
+            if (null != objectClass) {
+                if (objectClass instanceof String[]) {
+                    properties.put(EventConstants.SERVICE_OBJECTCLASS, objectClass);
+                } else {
+                    properties.put(EventConstants.SERVICE_OBJECTCLASS, new String[] {objectClass.toString()});
+                }
+            }
+            return properties;
+        }
+    }
+
+    private static Map<String, Object> expectedBundleProperties(final BundleEvent event) {
+        final Map<String, Object> properties = new Hashtable<String, Object>();
+        properties.put(EventConstants.EVENT, event);
+        properties.put("bundle.id", new Long(event.getBundle().getBundleId()));
+        final String symbolicName = event.getBundle().getSymbolicName();
+        if (null != symbolicName) {
+            properties.put(EventConstants.BUNDLE_SYMBOLICNAME, symbolicName);
+        }
+        properties.put("bundle", event.getBundle());
+        return properties;
+    }
+
+    private static Map<String, Object> expectedFrameworkProperties(final FrameworkEvent event) {
+        final Map<String, Object> properties = new Hashtable<String, Object>();
+        properties.put(EventConstants.EVENT, event);
+        final Bundle bundle = event.getBundle();
+        if (null != bundle) {
+            properties.put("bundle.id", new Long(bundle.getBundleId()));
+            final String symbolicName = bundle.getSymbolicName();
+            if (null != symbolicName) {
+                properties.put(EventConstants.BUNDLE_SYMBOLICNAME, symbolicName);
+            }
+            properties.put("bundle", bundle);
+        }
+        final Throwable thrown = event.getThrowable();
+        if (null != thrown) {
+            properties.put(EventConstants.EXCEPTION_CLASS, thrown.getClass().getName());
+            final String message = thrown.getMessage();
+            if (null != message) {
+                properties.put(EventConstants.EXCEPTION_MESSAGE, message);
+            }
+            properties.put(EventConstants.EXCEPTION, thrown);
+        }
+        return properties;
+    }
+
+    private static void assertProperties(final Map<String, Object> expected, final Event event) {
+        final Set<String> names = new HashSet<String>(Arrays.asList(event.getPropertyNames()));
+        names.remove(EventConstants.EVENT_TOPIC);
+        assertEquals(expected.keySet(), names);
+        for (final Map.Entry<String, Object> entry : expected.entrySet()) {
+            if (entry.getValue() instanceof Object[]) {
+                assertArrayEquals((Object[]) entry.getValue(), (Object[]) event.getProperty(entry.getKey()));
+            } else {
+                assertEquals(entry.getValue(), event.getProperty(entry.getKey()));
+            }
+        }
+    }
+
+    private static Map<String, Object> serviceProperties(final Object id) {
+        final Map<String, Object> props = new HashMap<String, Object>();
+        props.put(EventConstants.SERVICE_ID, id);
+        props.put(EventConstants.SERVICE_PID, "test.pid");
+        props.put(Constants.OBJECTCLASS, new String[] {"test.A", "test.B"});
+        return props;
+    }
+
+    /**
+     * Create an event admin with a single handler for the given topic,
+     * recording the posted events instead of delivering them.
+     */
+    private void createEventAdmin(final String[] ignoreTopics, final String handlerTopic) {
+        final Map<String, Object> props = new HashMap<String, Object>();
+        props.put(EventConstants.EVENT_TOPIC, handlerTopic);
+        handler = reference(props);
+
+        syncPool = new DefaultThreadPool(1, true);
+        asyncPool = new DefaultThreadPool(1, false);
+        admin = new EventAdminImpl(context(), syncPool, asyncPool, 0, null, false,
+            ignoreTopics, false, 0, null) {
+            @Override
+            public void postEvent(final Event event) {
+                posted.add(event);
+            }
+        };
+    }
+
+    private BundleContext context() {
+        return (BundleContext) mock(BundleContext.class, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Exception {
+                final String name = method.getName();
+                if ("createFilter".equals(name)) {
+                    return FrameworkUtil.createFilter((String) args[0]);
+                } else if ("getServiceReferences".equals(name) && args[0] instanceof String) {
+                    if (EventHandler.class.getName().equals(args[0]) && handler != null) {
+                        return new ServiceReference[] {handler};
+                    } else if (LogService.class.getName().equals(args[0])) {
+                        return new ServiceReference[] {logReference};
+                    }
+                    return null;
+                } else if ("getService".equals(name)) {
+                    return args[0] == logReference ? logService : null;
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+    }
+
+    private static ServiceReference<?> reference(final Map<String, Object> props) {
+        return (ServiceReference<?>) mock(ServiceReference.class, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("getProperty".equals(method.getName())) {
+                    return props.get(args[0]);
+                } else if ("getPropertyKeys".equals(method.getName())) {
+                    return props.keySet().toArray(new String[props.size()]);
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+    }
+
+    private static Bundle bundle(final long id, final String symbolicName) {
+        return (Bundle) mock(Bundle.class, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("getBundleId".equals(method.getName())) {
+                    return id;
+                } else if ("getSymbolicName".equals(method.getName())) {
+                    return symbolicName;
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+    }
+
+    private static Object mock(final Class<?> type, final InvocationHandler handler) {
+        return Proxy.newProxyInstance(AdaptedPropertiesTest.class.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    private static Object defaultValue(final Object proxy, final Method method, final Object[] args) {
+        final String name = method.getName();
+        if ("equals".equals(name)) {
+            return proxy == args[0];
+        } else if ("hashCode".equals(name)) {
+            return System.identityHashCode(proxy);
+        } else if ("toString".equals(name)) {
+            return "mock@" + Integer.toHexString(System.identityHashCode(proxy));
+        } else if (method.getReturnType() == boolean.class) {
+            return false;
+        } else if (method.getReturnType() == int.class) {
+            return 0;
+        } else if (method.getReturnType() == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+
+public class BlacklistWatchdogTest {
+
+    private static final long TIMEOUT = 100;
+
+    private final Event event = new Event("org/apache/felix/test", (Map<String, ?>) null);
+
+    @Test
+    public void testFastHandlerIsNotBlacklisted() throws Exception {
+        final BlacklistWatchdog watchdog = new BlacklistWatchdog(TIMEOUT);
+        try {
+            final TestProxy proxy = new TestProxy(0);
+            final Thread[] threads = new Thread[4];
+            final long end = System.currentTimeMillis() + 20 * TIMEOUT;
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        while (System.currentTimeMillis() < end && !proxy.blacklisted) {
+                            watchdog.deliver(proxy, event);
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+            assertFalse(proxy.blacklisted);
+        } finally {
+            watchdog.stop();
+        }
+    }
+
+    @Test
+    public void testSlowHandlerIsBlacklistedWhileRunning() throws Exception {
+        final BlacklistWatchdog watchdog = new BlacklistWatchdog(TIMEOUT);
+        try {
+            final TestProxy proxy = new TestProxy(5 * TIMEOUT);
+            watchdog.deliver(proxy, event);
+            assertTrue(proxy.blacklistedWhileRunning);
+        } finally {
+            watchdog.stop();
+        }
+    }
+
+    @Test
+    public void testNestedEventDoesNotCountForOuterHandler() throws Exception {
+        final BlacklistWatchdog watchdog = new BlacklistWatchdog(TIMEOUT);
+        try {
+            final TestProxy inner = new TestProxy(TIMEOUT / 5);
+            final TestProxy outer = new TestProxy(0) {
+                @Override
+                public void sendEvent(final Event event) {
+                    // the inner deliveries take longer than the timeout
+                    final long end = System.currentTimeMillis() + 3 * TIMEOUT;
+                    while (System.currentTimeMillis() < end) {
+                        watchdog.deliver(inner, event);
+                    }
+                }
+            };
+            watchdog.deliver(outer, event);
+            assertFalse(outer.blacklisted);
+            assertFalse(inner.blacklisted);
+        } finally {
+            watchdog.stop();
+        }
+    }
+
+    private static class TestProxy extends EventHandlerProxy {
+
+        private final long duration;
+
+        volatile boolean running;
+
+        volatile boolean blacklisted;
+
+        volatile boolean blacklistedWhileRunning;
+
+        TestProxy(final long duration) {
+            super(null, null);
+            this.duration = duration;
+        }
+
+        @Override
+        public void sendEvent(final Event event) {
+            if (duration > 0) {
+                running = true;
+                try {
+                    Thread.sleep(duration);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running = false;
+                }
+            }
+        }
+
+        @Override
+        public boolean useTimeout() {
+            return true;
+        }
+
+        @Override
+        public void blackListHandler() {
+            blacklistedWhileRunning |= running;
+            blacklisted = true;
+        }
+    }
+}
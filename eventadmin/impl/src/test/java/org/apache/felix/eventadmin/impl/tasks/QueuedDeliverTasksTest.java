@@ -0,0 +1,268 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.Permission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
+import org.junit.After;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+
+public class QueuedDeliverTasksTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private QueuedDeliverTasks tasks;
+
+    @After
+    public void tearDown() {
+        if (tasks != null) {
+            tasks.close();
+        }
+    }
+
+    @Test
+    public void testOrderPerHandler() throws Exception {
+        tasks = new QueuedDeliverTasks(4, 16, QueuedDeliverTasks.POLICY_BLOCK, 0);
+        final TestProxy first = new TestProxy();
+        final TestProxy second = new TestProxy();
+        final EventHandlerProxy[] handlers = new EventHandlerProxy[] {first, second};
+
+        final Thread[] threads = new Thread[3];
+        for (int i = 0; i < threads.length; i++) {
+            final String name = "thread" + i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < 200; n++) {
+                        tasks.execute(handlers, event(name, n));
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(tasks.drain(TIMEOUT));
+
+        for (final TestProxy proxy : new TestProxy[] {first, second}) {
+            final List<Event> received = proxy.getEvents();
+            assertEquals(threads.length * 200, received.size());
+            final Map<Object, Integer> last = new HashMap<Object, Integer>();
+            for (final Event event : received) {
+                final Integer previous = last.put(event.getProperty("thread"), (Integer) event.getProperty("n"));
+                final int expected = previous == null ? 0 : previous.intValue() + 1;
+                assertEquals(expected, event.getProperty("n"));
+            }
+        }
+    }
+
+    @Test
+    public void testBlockPolicy() throws Exception {
+        tasks = new QueuedDeliverTasks(1, 2, QueuedDeliverTasks.POLICY_BLOCK, 0);
+        final TestProxy proxy = new TestProxy();
+        fill(proxy, 3);
+
+        final Thread poster = post(proxy, 3);
+        poster.join(200);
+        assertTrue(poster.isAlive());
+
+        proxy.release();
+        poster.join(TIMEOUT);
+        assertFalse(poster.isAlive());
+        assertTrue(tasks.drain(TIMEOUT));
+        assertEquals(Arrays.asList(0, 1, 2, 3), proxy.getNumbers());
+        assertEquals(0, tasks.getDroppedEvents());
+    }
+
+    @Test
+    public void testDropNewestPolicy() throws Exception {
+        tasks = new QueuedDeliverTasks(1, 2, QueuedDeliverTasks.POLICY_DROP_NEWEST, 0);
+        final TestProxy proxy = new TestProxy();
+        fill(proxy, 3);
+        tasks.execute(new EventHandlerProxy[] {proxy}, event("main", 3));
+        tasks.execute(new EventHandlerProxy[] {proxy}, event("main", 4));
+        assertEquals(2, tasks.getDroppedEvents());
+
+        proxy.release();
+        assertTrue(tasks.drain(TIMEOUT));
+        assertEquals(Arrays.asList(0, 1, 2), proxy.getNumbers());
+    }
+
+    @Test
+    public void testDropOldestPolicy() throws Exception {
+        tasks = new QueuedDeliverTasks(1, 2, QueuedDeliverTasks.POLICY_DROP_OLDEST, 0);
+        final TestProxy proxy = new TestProxy();
+        fill(proxy, 3);
+        tasks.execute(new EventHandlerProxy[] {proxy}, event("main", 3));
+        tasks.execute(new EventHandlerProxy[] {proxy}, event("main", 4));
+        assertEquals(2, tasks.getDroppedEvents());
+
+        proxy.release();
+        assertTrue(tasks.drain(TIMEOUT));
+        assertEquals(Arrays.asList(0, 3, 4), proxy.getNumbers());
+    }
+
+    @Test
+    public void testCloseDeliversQueuedEvents() throws Exception {
+        tasks = new QueuedDeliverTasks(1, 2, QueuedDeliverTasks.POLICY_BLOCK, 0);
+        final TestProxy proxy = new TestProxy();
+        fill(proxy, 3);
+        final Thread poster = post(proxy, 3);
+        poster.join(200);
+        assertTrue(poster.isAlive());
+
+        // closing wakes up the blocked poster, its event is queued as well
+        tasks.close();
+        poster.join(TIMEOUT);
+        assertFalse(poster.isAlive());
+        assertFalse(tasks.drain(0));
+
+        proxy.release();
+        assertTrue(tasks.drain(TIMEOUT));
+        assertEquals(Arrays.asList(0, 1, 2, 3), proxy.getNumbers());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        tasks = new QueuedDeliverTasks(1, 4, QueuedDeliverTasks.POLICY_DROP_NEWEST, 0);
+        final TestProxy first = new TestProxy();
+        final TestProxy second = new TestProxy();
+        assertEquals(0, tasks.getQueueDepth());
+        assertEquals(0, tasks.getMaxQueueDepth());
+
+        fill(first, 5);
+        tasks.execute(new EventHandlerProxy[] {first, second}, event("main", 5));
+        // second is not blocked, but its event might not be delivered yet
+        final int depth = tasks.getQueueDepth();
+        assertTrue(depth == 4 || depth == 5);
+        assertEquals(4, tasks.getMaxQueueDepth());
+        assertEquals(1, tasks.getDroppedEvents());
+
+        first.release();
+        assertTrue(tasks.drain(TIMEOUT));
+        assertEquals(0, tasks.getQueueDepth());
+        assertEquals(4, tasks.getMaxQueueDepth());
+        assertEquals(1, tasks.getDroppedEvents());
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), first.getNumbers());
+        assertEquals(Arrays.asList(5), second.getNumbers());
+    }
+
+    /**
+     * Post the given number of events to the handler, such that the worker
+     * blocks in the handler on the first one and the others are queued.
+     */
+    private void fill(final TestProxy proxy, final int count) throws InterruptedException {
+        proxy.block();
+        tasks.execute(new EventHandlerProxy[] {proxy}, event("main", 0));
+        assertTrue(proxy.awaitBlocked());
+        for (int n = 1; n < count; n++) {
+            tasks.execute(new EventHandlerProxy[] {proxy}, event("main", n));
+        }
+    }
+
+    private Thread post(final TestProxy proxy, final int n) {
+        final Thread poster = new Thread() {
+            @Override
+            public void run() {
+                tasks.execute(new EventHandlerProxy[] {proxy}, event("poster", n));
+            }
+        };
+        poster.start();
+        return poster;
+    }
+
+    private static Event event(final String thread, final int n) {
+        final Map<String, Object> props = new HashMap<String, Object>();
+        props.put("thread", thread);
+        props.put("n", n);
+        return new Event("org/apache/felix/test", props);
+    }
+
+    private static class TestProxy extends EventHandlerProxy {
+
+        private final List<Event> events = Collections.synchronizedList(new ArrayList<Event>());
+
+        private volatile CountDownLatch blocked;
+
+        private volatile CountDownLatch released;
+
+        TestProxy() {
+            super(null, null);
+        }
+
+        void block() {
+            blocked = new CountDownLatch(1);
+            released = new CountDownLatch(1);
+        }
+
+        boolean awaitBlocked() throws InterruptedException {
+            return blocked.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+
+        void release() {
+            released.countDown();
+        }
+
+        List<Event> getEvents() {
+            synchronized (events) {
+                return new ArrayList<Event>(events);
+            }
+        }
+
+        List<Integer> getNumbers() {
+            final List<Integer> numbers = new ArrayList<Integer>();
+            for (final Event event : getEvents()) {
+                numbers.add((Integer) event.getProperty("n"));
+            }
+            return numbers;
+        }
+
+        @Override
+        public boolean canDeliver(final Permission permission) {
+            return true;
+        }
+
+        @Override
+        public void sendEvent(final Event event) {
+            events.add(event);
+            final CountDownLatch b = blocked;
+            if (b != null && b.getCount() > 0) {
+                b.countDown();
+                try {
+                    released.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
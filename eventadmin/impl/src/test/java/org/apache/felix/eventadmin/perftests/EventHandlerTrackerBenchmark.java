@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.eventadmin.perftests;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
+import org.apache.felix.eventadmin.impl.handler.EventHandlerTracker;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+
+/**
+ * Measures how long it takes to find the handlers of an event, for a
+ * varying number of handlers and topic depth. Run the main method with the
+ * test classpath; the handlers are tracked without a framework.
+ */
+public class EventHandlerTrackerBenchmark {
+
+    private static final int[] HANDLER_COUNTS = {10, 100, 1000};
+    private static final int[] TOPIC_DEPTHS = {2, 4, 8};
+    private static final int TOPICS = 50;
+    private static final int FILTERS = 5;
+    private static final int EVENTS = 2000000;
+
+    public static void main(final String[] args) throws Exception {
+        for (final int handlers : HANDLER_COUNTS) {
+            for (final int depth : TOPIC_DEPTHS) {
+                run(handlers, depth);
+            }
+        }
+    }
+
+    private static void run(final int handlerCount, final int depth) throws Exception {
+        final Random random = new Random(42);
+        final String[] topics = new String[TOPICS];
+        for (int i = 0; i < TOPICS; i++) {
+            final StringBuilder sb = new StringBuilder("org/apache/felix");
+            for (int d = 3; d < depth; d++) {
+                sb.append("/level").append(random.nextInt(3));
+            }
+            topics[i] = sb.append("/topic").append(i).toString();
+        }
+
+        final EventHandlerTracker tracker = new EventHandlerTracker(newContext(new HashMap<ServiceReference<EventHandler>, EventHandler>()));
+        tracker.update(null, true);
+        for (int i = 0; i < handlerCount; i++) {
+            final Map<String, Object> props = new HashMap<String, Object>();
+            final String topic = topics[random.nextInt(TOPICS)];
+            if (i % 4 == 0) {
+                // subscribe to a parent topic
+                props.put(EventConstants.EVENT_TOPIC, topic.substring(0, topic.lastIndexOf('/')) + "/*");
+            } else {
+                props.put(EventConstants.EVENT_TOPIC, topic);
+            }
+            if (i % 2 == 0) {
+                props.put(EventConstants.EVENT_FILTER, "(value<=" + random.nextInt(FILTERS) + ")");
+            }
+            tracker.addingService(newReference(props));
+        }
+
+        final Event[] events = new Event[TOPICS];
+        for (int i = 0; i < TOPICS; i++) {
+            final Map<String, Object> props = new HashMap<String, Object>();
+            props.put("value", Integer.valueOf(i % FILTERS));
+            events[i] = new Event(topics[i], props);
+        }
+
+        // warm up
+        long matched = select(tracker, events, EVENTS);
+        final long start = System.nanoTime();
+        matched += select(tracker, events, EVENTS);
+        final long elapsed = System.nanoTime() - start;
+
+        System.out.println("handlers=" + handlerCount + " depth=" + depth + ": "
+                + (elapsed / EVENTS) + " ns/event (" + matched + " matches)");
+    }
+
+    private static long select(final EventHandlerTracker tracker, final Event[] events, final int count) {
+        long matched = 0;
+        for (int i = 0; i < count; i++) {
+            final EventHandlerProxy[] handlers = tracker.getHandlers(events[i % events.length]);
+            matched += handlers.length;
+        }
+        return matched;
+    }
+
+    static BundleContext newContext(final Map<ServiceReference<EventHandler>, EventHandler> services) {
+        return (BundleContext) Proxy.newProxyInstance(BundleContext.class.getClassLoader(),
+                new Class[] {BundleContext.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                        if ("createFilter".equals(method.getName())) {
+                            return FrameworkUtil.createFilter((String) args[0]);
+                        } else if ("getService".equals(method.getName())) {
+                            return services.get(args[0]);
+                        } else if ("ungetService".equals(method.getName())) {
+                            return Boolean.TRUE;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    @SuppressWarnings("unchecked")
+    static ServiceReference<EventHandler> newReference(final Map<String, Object> props) {
+        final Bundle bundle = (Bundle) Proxy.newProxyInstance(Bundle.class.getClassLoader(),
+                new Class[] {Bundle.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                        if ("hasPermission".equals(method.getName())) {
+                            return Boolean.TRUE;
+                        }
+                        return null;
+                    }
+                });
+        return (ServiceReference<EventHandler>) Proxy.newProxyInstance(ServiceReference.class.getClassLoader(),
+                new Class[] {ServiceReference.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                        if ("getProperty".equals(method.getName())) {
+                            return props.get(args[0]);
+                        } else if ("getBundle".equals(method.getName())) {
+                            return bundle;
+                        } else if ("hashCode".equals(method.getName())) {
+                            return System.identityHashCode(proxy);
+                        } else if ("equals".equals(method.getName())) {
+                            return proxy == args[0];
+                        }
+                        return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.eventadmin.perftests;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.felix.eventadmin.impl.handler.EventHandlerTracker;
+import org.apache.felix.eventadmin.impl.tasks.DefaultThreadPool;
+import org.apache.felix.eventadmin.impl.tasks.SyncDeliverTasks;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+
+/**
+ * Measures the latency of sending an event to 1 to 100 handlers, with
+ * the handlers called through the thread pool and inline. Run the main
+ * method with the test classpath; the handlers are tracked without a
+ * framework.
+ */
+public class SyncDeliveryBenchmark {
+
+    private static final int[] HANDLER_COUNTS = {1, 10, 100};
+    private static final long TIMEOUT = 5000;
+    private static final int EVENTS = 100000;
+
+    public static void main(final String[] args) throws Exception {
+        final DefaultThreadPool pool = new DefaultThreadPool(20, true);
+        try {
+            for (final int handlers : HANDLER_COUNTS) {
+                run(pool, handlers, false);
+                run(pool, handlers, true);
+            }
+        } finally {
+            pool.close();
+        }
+    }
+
+    private static void run(final DefaultThreadPool pool, final int handlerCount, final boolean inline) {
+        final AtomicLong received = new AtomicLong();
+        final Map<ServiceReference<EventHandler>, EventHandler> services =
+                new HashMap<ServiceReference<EventHandler>, EventHandler>();
+        final EventHandlerTracker tracker = new EventHandlerTracker(EventHandlerTrackerBenchmark.newContext(services));
+        tracker.update(null, true);
+        for (int i = 0; i < handlerCount; i++) {
+            final Map<String, Object> props = new HashMap<String, Object>();
+            props.put(EventConstants.EVENT_TOPIC, "org/apache/felix/benchmark");
+            final ServiceReference<EventHandler> reference = EventHandlerTrackerBenchmark.newReference(props);
+            services.put(reference, new EventHandler() {
+                @Override
+                public void handleEvent(final Event event) {
+                    received.incrementAndGet();
+                }
+            });
+            tracker.addingService(reference);
+        }
+
+        final SyncDeliverTasks tasks = new SyncDeliverTasks(pool, TIMEOUT, inline);
+        final Event event = new Event("org/apache/felix/benchmark", (Map<String, ?>) null);
+        final long[] latencies = new long[EVENTS];
+        try {
+            // warm up
+            send(tasks, tracker, event, latencies);
+            send(tasks, tracker, event, latencies);
+        } finally {
+            tasks.close();
+        }
+
+        Arrays.sort(latencies);
+        long total = 0;
+        for (final long latency : latencies) {
+            total += latency;
+        }
+        System.out.println("handlers=" + handlerCount + (inline ? " inline:  " : " pooled:  ")
+                + "mean=" + (total / EVENTS) + "ns"
+                + " p50=" + latencies[EVENTS / 2] + "ns"
+                + " p99=" + latencies[EVENTS * 99 / 100] + "ns"
+                + " (" + received.get() + " received)");
+    }
+
+    private static void send(final SyncDeliverTasks tasks, final EventHandlerTracker tracker,
+            final Event event, final long[] latencies) {
+        for (int i = 0; i < latencies.length; i++) {
+            final long start = System.nanoTime();
+            tasks.execute(tracker.getHandlers(event), event, false);
+            latencies[i] = System.nanoTime() - start;
+        }
+    }
+}
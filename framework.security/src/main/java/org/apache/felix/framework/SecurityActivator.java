@@ -84,6 +84,19 @@ import org.osgi.service.permissionadmin.PermissionAdmin;
  * certificates. The urls must be separated by a guard (i.e., <tt>|</tt>). The
  * default is {@link SecurityConstants#CRL_FILE_VALUE}.
  * </p>
+ * <p>
+ * {@link SecurityConstants#VERIFIER_THREADS_PROP} - The maximum number of
+ * threads used to verify the entries of a signed bundle; <tt>0</tt> means
+ * the number of available processors. The default is
+ * {@link SecurityConstants#VERIFIER_THREADS_VALUE}.
+ * </p>
+ * <p>
+ * {@link SecurityConstants#VERIFIER_CACHE_PROP} - Whether or not (
+ * <tt>true</tt>|<tt>false</tt>) to persist the signer chains of verified
+ * bundles, keyed by a hash of their content, so that they are not verified
+ * again after a restart. The default is
+ * {@link SecurityConstants#VERIFIER_CACHE_VALUE}.
+ * </p>
  * </p>
  */
 /*
@@ -201,8 +214,40 @@ public final class SecurityActivator implements BundleActivator
                     "Each CACerts keystore must have one type and one passwd entry and vice versa.");
             }
 
+            int threads = 1;
+            try
+            {
+                threads = Integer.parseInt(getProperty(context,
+                    SecurityConstants.VERIFIER_THREADS_PROP,
+                    SecurityConstants.VERIFIER_THREADS_VALUE).trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                throw new BundleException("Invalid value for "
+                    + SecurityConstants.VERIFIER_THREADS_PROP);
+            }
+            if (threads <= 0)
+            {
+                threads = Runtime.getRuntime().availableProcessors();
+            }
+
+            File signers = null;
+            if ("TRUE".equalsIgnoreCase(getProperty(context,
+                SecurityConstants.VERIFIER_CACHE_PROP,
+                SecurityConstants.VERIFIER_CACHE_VALUE)))
+            {
+                signers = context.getDataFile("security" + File.separator
+                    + "signers");
+                if ((signers == null)
+                    || (!signers.isDirectory() && !signers.mkdirs()))
+                {
+                    throw new IOException("Can't create signers dir.");
+                }
+            }
+
             SecurityProvider provider = new SecurityProviderImpl(crlList,
-                typeList, passwdList, storeList, pai, cpai, action, ((Felix) context.getBundle(0)).getLogger());
+                typeList, passwdList, storeList, pai, cpai, action, ((Felix) context.getBundle(0)).getLogger(),
+                threads, signers);
 
             ((Felix) context.getBundle(0)).setSecurityProvider(provider);
         }
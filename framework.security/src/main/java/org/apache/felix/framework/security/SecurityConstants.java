@@ -43,4 +43,12 @@ public interface SecurityConstants
     public static final String ENABLE_PERMISSIONADMIN_PROP = "felix.security.permissionadmin";
 
     public static final String ENABLE_PERMISSIONADMIN_VALUE = "true";
+
+    public static final String VERIFIER_THREADS_PROP = "felix.security.verifier.threads";
+
+    public static final String VERIFIER_THREADS_VALUE = "1";
+
+    public static final String VERIFIER_CACHE_PROP = "felix.security.verifier.cache";
+
+    public static final String VERIFIER_CACHE_VALUE = "false";
 }
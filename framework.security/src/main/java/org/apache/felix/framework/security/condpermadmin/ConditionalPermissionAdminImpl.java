@@ -43,10 +43,12 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.WeakHashMap;
 import java.util.Map.Entry;
 
 import org.apache.felix.framework.BundleProtectionDomain;
@@ -67,9 +69,13 @@ import org.apache.felix.moduleloader.IWire;
 */
 import org.apache.felix.framework.cache.Content;
 
+import org.osgi.framework.AdminPermission;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
+import org.osgi.framework.CapabilityPermission;
+import org.osgi.framework.PackagePermission;
+import org.osgi.framework.ServicePermission;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.Version;
 import org.osgi.service.condpermadmin.ConditionInfo;
@@ -219,6 +225,22 @@ public final class ConditionalPermissionAdminImpl implements
     private final LocalPermissions m_localPermissions;
     private final PermissionAdminImpl m_pai;
 
+    // The maximum number of cached decisions per protection domain.
+    private static final int MAX_DECISIONS = 512;
+
+    // Cached decisions of eval() per bundle revision, which are valid as
+    // long as neither the conditional permission table nor the permission
+    // admin changes. Decisions are only cached if they cannot change
+    // otherwise, i.e., if they do not depend on mutable or postponed
+    // conditions. Revisions are compared by identity, unlike protection
+    // domains, so an updated bundle does not see the decisions made for
+    // its previous revision.
+    private final Map m_decisions = new WeakHashMap();
+    // The generation the cached decisions belong to, guarded by m_decisions.
+    private long m_decisionsGeneration = -1;
+    // Incremented whenever the table changes.
+    private volatile long m_generation = 0;
+
     public ConditionalPermissionAdminImpl(Permissions permissions,
         Conditions condtions, LocalPermissions localPermissions,
         PropertiesCache cache, PermissionAdminImpl pai) throws IOException
@@ -283,6 +305,8 @@ public final class ConditionalPermissionAdminImpl implements
                 }
             }
 
+            m_generation++;
+
             try
             {
                 m_propertiesCache.write(m_condPermInfos);
@@ -297,6 +321,7 @@ public final class ConditionalPermissionAdminImpl implements
                         m_condPermInfos.putAll(tmp);
                     }
                 }
+                m_generation++;
                 ex.printStackTrace();
                 throw new IllegalStateException(ex.getMessage());
             }
@@ -669,6 +694,8 @@ public final class ConditionalPermissionAdminImpl implements
             }
         }
         final Bundle fake = new FakeBundle(certificates);
+        final BundleRevisionImpl fakeModule = new BundleRevisionImpl(fake,
+            Long.toString(fake.getBundleId()));
         ProtectionDomain domain = new ProtectionDomain(null, null)
         {
             public boolean implies(Permission permission)
@@ -680,7 +707,7 @@ public final class ConditionalPermissionAdminImpl implements
                 {
                     return result.booleanValue();
                 }
-                if (eval(posts, new BundleRevisionImpl(fake, Long.toString(fake.getBundleId())), permission, m_pai))
+                if (evalCached(posts, fakeModule, permission, m_pai))
                 {
                     if (!posts.isEmpty())
                     {
@@ -884,7 +911,7 @@ public final class ConditionalPermissionAdminImpl implements
 
         List posts = new ArrayList();
 
-        boolean result = eval(posts, module, permission, admin);
+        boolean result = evalCached(posts, module, permission, admin);
 
         domains.remove(pd);
 
@@ -931,13 +958,138 @@ public final class ConditionalPermissionAdminImpl implements
         }
     }
 
+    // Like eval() but uses and maintains the cached decisions of the given
+    // bundle revision. A decision is cached if it did not postpone any
+    // conditions, all conditions it consulted are resolved, and it was not
+    // made while evaluating a condition, where the recursion check makes
+    // conditions of the same type fail.
+    private boolean evalCached(List posts, BundleRevisionImpl module,
+        Permission permission, Object admin)
+    {
+        if (!isCacheable(permission))
+        {
+            return eval(posts, module, permission, admin, new ArrayList());
+        }
+
+        long generation = getGeneration();
+        PermissionKey key = new PermissionKey(permission);
+        synchronized (m_decisions)
+        {
+            if (m_decisionsGeneration != generation)
+            {
+                m_decisions.clear();
+                m_decisionsGeneration = generation;
+            }
+            Map decisions = (Map) m_decisions.get(module);
+            Boolean decision = (decisions != null) ? (Boolean) decisions.get(key) : null;
+            if (decision != null)
+            {
+                return decision.booleanValue();
+            }
+        }
+
+        boolean nested = Conditions.isEvaluating();
+        List consulted = new ArrayList();
+        boolean result = eval(posts, module, permission, admin, consulted);
+        if (!nested && posts.isEmpty() && isResolved(consulted))
+        {
+            synchronized (m_decisions)
+            {
+                if ((m_decisionsGeneration == generation)
+                    && (getGeneration() == generation))
+                {
+                    Map decisions = (Map) m_decisions.get(module);
+                    if (decisions == null)
+                    {
+                        decisions = new LinkedHashMap(16, 0.75f, true)
+                        {
+                            protected boolean removeEldestEntry(Map.Entry eldest)
+                            {
+                                return size() > MAX_DECISIONS;
+                            }
+                        };
+                        m_decisions.put(module, decisions);
+                    }
+                    decisions.put(key, Boolean.valueOf(result));
+                }
+            }
+        }
+        return result;
+    }
+
+    // The generations of the table and of the permission admin only ever
+    // increase, so their sum changes whenever either of them changes.
+    private long getGeneration()
+    {
+        return m_generation + ((m_pai != null) ? m_pai.getGeneration() : 0);
+    }
+
+    private static boolean isResolved(List consulted)
+    {
+        for (Iterator iter = consulted.iterator(); iter.hasNext();)
+        {
+            if (!((Conditions) iter.next()).isResolved())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Permissions that may refer to a bundle or service whose properties
+    // are taken into account by implies() are not identified by their name
+    // and actions alone, so their decisions are not cached.
+    private static boolean isCacheable(Permission permission)
+    {
+        return !((permission instanceof AdminPermission)
+            || (permission instanceof ServicePermission)
+            || (permission instanceof PackagePermission)
+            || (permission instanceof CapabilityPermission));
+    }
+
+    private static final class PermissionKey
+    {
+        private final Class m_type;
+        private final String m_name;
+        private final String m_actions;
+
+        PermissionKey(Permission permission)
+        {
+            m_type = permission.getClass();
+            m_name = permission.getName();
+            m_actions = permission.getActions();
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof PermissionKey))
+            {
+                return false;
+            }
+            PermissionKey other = (PermissionKey) o;
+            return (m_type == other.m_type) && equals(m_name, other.m_name)
+                && equals(m_actions, other.m_actions);
+        }
+
+        public int hashCode()
+        {
+            return (m_type.hashCode() * 31 + ((m_name != null) ? m_name.hashCode() : 0)) * 31
+                + ((m_actions != null) ? m_actions.hashCode() : 0);
+        }
+
+        private static boolean equals(String s1, String s2)
+        {
+            return (s1 == null) ? (s2 == null) : s1.equals(s2);
+        }
+    }
+
     // we need to find all conditions that apply and then check whether they
     // de note the permission in question unless the conditions are postponed
     // then we make sure their permissions imply the permission and add them
     // to the list of posts. Return true in case we pass or have posts
     // else falls and clear the posts first.
     private boolean eval(List posts, BundleRevisionImpl module, Permission permission,
-        Object admin)
+        Object admin, List consulted)
     {
         List condPermInfos = null;
 
@@ -969,6 +1121,7 @@ public final class ConditionalPermissionAdminImpl implements
             List currentPosts = new ArrayList();
 
             Conditions conds = m_conditions.getConditions(module, conditions);
+            consulted.add(conds);
             if (!conds.isSatisfied(currentPosts, m_permissions
                 .getPermissions(cpi._getPermissionInfos()), permission))
             {
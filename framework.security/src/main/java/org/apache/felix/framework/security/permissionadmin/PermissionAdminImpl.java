@@ -58,6 +58,9 @@ public final class PermissionAdminImpl implements PermissionAdmin
 
     private PermissionInfo[] m_default = null;
 
+    // Incremented whenever the permissions change, guarded by m_store.
+    private volatile long m_generation = 0;
+
     public PermissionAdminImpl(Permissions permissions, PropertiesCache cache)
         throws IOException
     {
@@ -78,6 +81,17 @@ public final class PermissionAdminImpl implements PermissionAdmin
         }
     }
 
+    /**
+     * Returns a number that changes whenever the permissions or the default
+     * permissions change, which allows to invalidate cached decisions.
+     * 
+     * @return the current generation of the permissions.
+     */
+    public long getGeneration()
+    {
+        return m_generation;
+    }
+
     public synchronized String[] getLocations()
     {
         synchronized (m_store)
@@ -198,6 +212,7 @@ public final class PermissionAdminImpl implements PermissionAdmin
                 store = new HashMap(m_store);
 
                 m_default = (permissions != null) ? notNull(permissions) : null;
+                m_generation++;
             }
 
             try
@@ -209,6 +224,7 @@ public final class PermissionAdminImpl implements PermissionAdmin
                 synchronized (m_store)
                 {
                     m_default = def;
+                    m_generation++;
                 }
 
                 ex.printStackTrace();
@@ -244,6 +260,7 @@ public final class PermissionAdminImpl implements PermissionAdmin
                     {
                         m_store.remove(location);
                     }
+                    m_generation++;
                     store = new HashMap(m_store);
                 }
                 try
@@ -256,6 +273,7 @@ public final class PermissionAdminImpl implements PermissionAdmin
                     {
                         m_store.clear();
                         m_store.putAll(storeCopy);
+                        m_generation++;
                     }
 
                     ex.printStackTrace();
@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
@@ -49,6 +50,24 @@ public final class BundleInputStream extends InputStream
     private static final String DUMMY_ENTRY = "__DUMMY-ENTRY__/";
 
     public BundleInputStream(Content root) throws IOException
+    {
+        this(root, null);
+    }
+
+    /**
+     * Create a stream that only contains the given entries of the content,
+     * besides the manifest and the signature related files in
+     * <tt>META-INF/</tt>. This allows to verify subsets of the entries
+     * of a signed bundle independently.
+     * 
+     * @param root
+     *            the content to read from.
+     * @param included
+     *            the names of the entries to include or <tt>null</tt> to
+     *            include all entries.
+     */
+    public BundleInputStream(Content root, Collection included)
+        throws IOException
     {
         m_root = root;
 
@@ -76,7 +95,7 @@ public final class BundleInputStream extends InputStream
             {
                 entries.add(count++, entry);
             }
-            else
+            else if ((included == null) || included.contains(entry))
             {
                 entries.add(entry);
             }
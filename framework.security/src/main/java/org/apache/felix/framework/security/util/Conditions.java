@@ -125,6 +125,44 @@ public final class Conditions
         return result;
     }
 
+    /**
+     * Returns true if the result of isSatisfied() can no longer change, which
+     * is the case once every condition up to the first unsatisfied one has
+     * been found to be immutable and evaluated. Mutable and postponed
+     * conditions are never resolved.
+     */
+    public boolean isResolved()
+    {
+        if ((m_module == null) || (m_conditionInfos == null))
+        {
+            return true;
+        }
+        synchronized (m_conditions)
+        {
+            for (int i = 0; i < m_conditions.length; i++)
+            {
+                if (m_conditions[i] == Condition.FALSE)
+                {
+                    return true;
+                }
+                if (m_conditions[i] != Condition.TRUE)
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the current thread is evaluating a condition, in which
+     * case conditions of the same type are not satisfied to avoid recursion.
+     */
+    public static boolean isEvaluating()
+    {
+        return m_conditionStack.get() != null;
+    }
+
     // See whether the given list is satisfied or not
     public boolean isSatisfied(List posts, Permissions permissions,
         Permission permission)
@@ -18,18 +18,23 @@
  */
 package org.apache.felix.framework.security.verifier;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Method;
 import java.security.cert.CRL;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
+import java.security.cert.X509CRL;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
@@ -38,6 +43,7 @@ import org.apache.felix.framework.BundleRevisionImpl;
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.security.util.BundleInputStream;
 import org.apache.felix.framework.security.util.TrustManager;
+import org.apache.felix.framework.util.SecureAction;
 /*
 import org.apache.felix.moduleloader.IContent;
 import org.apache.felix.moduleloader.IModule;
@@ -85,10 +91,40 @@ public final class BundleDNParser
 
     private final TrustManager m_manager;
 
+    // The minimum number of entries worth verifying in a separate thread.
+    private static final int MIN_ENTRIES_PER_TASK = 16;
+
+    private final int m_threads;
+    private final SignerChainStore m_store;
+
     public BundleDNParser(TrustManager manager, Logger logger)
+    {
+        this(manager, logger, 1, null, null);
+    }
+
+    /**
+     * Create a parser that verifies the entries of a bundle with up to the
+     * given number of threads and, if a directory is given, persists the
+     * signer chains of verified bundles there.
+     * 
+     * @param manager
+     *            the trust manager to use.
+     * @param logger
+     *            the logger to use.
+     * @param threads
+     *            the maximum number of threads verifying a bundle.
+     * @param store
+     *            the directory for verified signer chains or <tt>null</tt>.
+     * @param action
+     *            the secure action to access the directory with.
+     */
+    public BundleDNParser(TrustManager manager, Logger logger, int threads,
+        File store, SecureAction action)
     {
         m_manager = manager;
         m_logger = logger;
+        m_threads = threads;
+        m_store = (store != null) ? new SignerChainStore(store, action) : null;
     }
 
     public Map getCache()
@@ -234,10 +270,97 @@ public final class BundleDNParser
 
     private Map _getDNChains(Content content, boolean check)
         throws IOException
+    {
+        if (m_store == null)
+        {
+            return verifyDNChains(content, check);
+        }
+
+        String key = SignerChainStore.getContentHash(content)
+            + (check ? "-trusted" : "-all");
+        String trust = getTrustFingerprint();
+        Map result = m_store.read(key, trust);
+        if ((result != null) && (!check || isValid(result)))
+        {
+            return result;
+        }
+
+        result = verifyDNChains(content, check);
+
+        if (result != null)
+        {
+            try
+            {
+                m_store.write(key, trust, result);
+            }
+            catch (Exception ex)
+            {
+                m_logger.log(Logger.LOG_WARNING,
+                    "Unable to store signer chains", ex);
+            }
+        }
+
+        return result;
+    }
+
+    // Checks whether the chains of a previous verification are still valid
+    // and not revoked, as verifying them again would check.
+    private boolean isValid(Map chains)
+    {
+        for (Iterator iter = chains.values().iterator(); iter.hasNext();)
+        {
+            for (Iterator certs = ((List) iter.next()).iterator(); certs
+                .hasNext();)
+            {
+                X509Certificate cert = (X509Certificate) certs.next();
+                try
+                {
+                    cert.checkValidity();
+                }
+                catch (CertificateException ex)
+                {
+                    return false;
+                }
+                if (isRevoked(cert))
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private String getTrustFingerprint()
+    {
+        List encoded = new ArrayList();
+        try
+        {
+            for (Iterator iter = m_manager.getCaCerts().iterator(); iter
+                .hasNext();)
+            {
+                encoded.add(((Certificate) iter.next()).getEncoded());
+            }
+            for (Iterator iter = m_manager.getCRLs().iterator(); iter.hasNext();)
+            {
+                Object crl = iter.next();
+                encoded.add((crl instanceof X509CRL) ? ((X509CRL) crl)
+                    .getEncoded() : crl.toString().getBytes("UTF-8"));
+            }
+        }
+        catch (Exception ex)
+        {
+            // Make sure nothing stored is used with unknown trust settings
+            encoded.add(Long.toString(System.currentTimeMillis()).getBytes());
+        }
+        return SignerChainStore.getFingerprint(encoded);
+    }
+
+    private Map verifyDNChains(Content content, boolean check)
+        throws IOException
     {
         X509Certificate[] certificates = null;
 
-        certificates = getCertificates(new BundleInputStream(content), check);
+        certificates = getCertificates(content, check);
 
         if (certificates == null)
         {
@@ -271,6 +394,85 @@ public final class BundleDNParser
         throw new IOException();
     }
 
+    private X509Certificate[] getCertificates(Content content, boolean check)
+        throws IOException
+    {
+        List names = (m_threads > 1) ? getEntryNames(content) : null;
+        int tasks = (names != null) ? Math.min(m_threads, names.size()
+            / MIN_ENTRIES_PER_TASK) : 1;
+        if (tasks < 2)
+        {
+            return getCertificates(new BundleInputStream(content), check);
+        }
+
+        // Verify contiguous ranges of the entries in parallel, using the
+        // current thread for the first one. Every range is verified against
+        // the complete manifest and signature files.
+        EntryVerifier[] verifiers = new EntryVerifier[tasks];
+        Thread[] threads = new Thread[tasks];
+        for (int i = 0; i < tasks; i++)
+        {
+            verifiers[i] = new EntryVerifier(content, new HashSet(names.subList(
+                i * names.size() / tasks, (i + 1) * names.size() / tasks)));
+            if (i > 0)
+            {
+                threads[i] = new Thread(verifiers[i], "FelixBundleVerifier-" + i);
+                threads[i].setDaemon(true);
+                threads[i].start();
+            }
+        }
+        verifiers[0].run();
+        for (int i = 1; i < tasks; i++)
+        {
+            try
+            {
+                threads[i].join();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while verifying bundle");
+            }
+        }
+
+        // Combine the results in the order of the entries, so that the
+        // outcome is the same as for verifying them one after the other.
+        SignerChains signers = new SignerChains(check);
+        for (int i = 0; i < tasks; i++)
+        {
+            if (verifiers[i].m_noManifest)
+            {
+                return null;
+            }
+            for (Iterator iter = verifiers[i].m_certificates.iterator(); iter
+                .hasNext();)
+            {
+                if (!signers.add((Certificate[]) iter.next()))
+                {
+                    return null;
+                }
+            }
+            Throwable failure = verifiers[i].m_failure;
+            if (failure instanceof IOException)
+            {
+                throw (IOException) failure;
+            }
+            else if (failure instanceof RuntimeException)
+            {
+                throw (RuntimeException) failure;
+            }
+            else if (failure instanceof Error)
+            {
+                throw (Error) failure;
+            }
+            else if (failure != null)
+            {
+                throw new IOException(failure.toString());
+            }
+        }
+        return signers.getCertificates();
+    }
+
     private X509Certificate[] getCertificates(InputStream input, boolean check)
         throws IOException
     {
@@ -281,10 +483,24 @@ public final class BundleDNParser
             return null;
         }
 
-        List certificateChains = new ArrayList();
+        SignerChains signers = new SignerChains(check);
+
+        for (JarEntry entry = getNextSignedEntry(bundle); entry != null; entry = getNextSignedEntry(bundle))
+        {
+            if (!signers.add(getCertificates(entry)))
+            {
+                return null;
+            }
+        }
 
-        int count = certificateChains.size();
+        return signers.getCertificates();
+    }
 
+    // Returns the next entry that needs to be signed after reading it
+    // completely, which makes its certificates available.
+    private static JarEntry getNextSignedEntry(JarInputStream bundle)
+        throws IOException
+    {
         // This is tricky: jdk1.3 doesn't say anything about what is happening
         // if a bad sig is detected on an entry - later jdk's do say that they
         // will throw a security Exception. The below should cater for both
@@ -304,63 +520,111 @@ public final class BundleDNParser
             {
             }
 
-            Certificate[] certificates = entry.getCertificates();
+            return entry;
+        }
+        return null;
+    }
 
-            // Workaround stupid bug in the sun jdk 1.5.x - getCertificates()
-            // returns null there even if there are valid certificates.
-            // This is a regression bug that has been fixed in 1.6.
-            // 
-            // We use reflection to see whether we have a SignerCertPath
-            // for the entry (available >= 1.5) and if so check whether
-            // there are valid certificates - don't try this at home.
-            if ((certificates == null) && (m_getCodeSigners != null))
+    private static Certificate[] getCertificates(JarEntry entry)
+    {
+        Certificate[] certificates = entry.getCertificates();
+
+        // Workaround stupid bug in the sun jdk 1.5.x - getCertificates()
+        // returns null there even if there are valid certificates.
+        // This is a regression bug that has been fixed in 1.6.
+        // 
+        // We use reflection to see whether we have a SignerCertPath
+        // for the entry (available >= 1.5) and if so check whether
+        // there are valid certificates - don't try this at home.
+        if ((certificates == null) && (m_getCodeSigners != null))
+        {
+            try
             {
-                try
+                Object[] signers = (Object[]) m_getCodeSigners.invoke(
+                    entry, null);
+
+                if (signers != null)
                 {
-                    Object[] signers = (Object[]) m_getCodeSigners.invoke(
-                        entry, null);
+                    List certChains = new ArrayList();
 
-                    if (signers != null)
+                    for (int i = 0; i < signers.length; i++)
                     {
-                        List certChains = new ArrayList();
-
-                        for (int i = 0; i < signers.length; i++)
-                        {
-                            Object path = m_getSignerCertPath.invoke(
-                                signers[i], null);
-
-                            certChains.addAll((List) m_getCertificates.invoke(
-                                path, null));
-                        }
+                        Object path = m_getSignerCertPath.invoke(
+                            signers[i], null);
 
-                        certificates = (Certificate[]) certChains
-                            .toArray(new Certificate[certChains.size()]);
+                        certChains.addAll((List) m_getCertificates.invoke(
+                            path, null));
                     }
-                }
-                catch (Exception ex)
-                {
-                    ex.printStackTrace();
-                    // Not much we can do - probably we are not on >= 1.5
+
+                    certificates = (Certificate[]) certChains
+                        .toArray(new Certificate[certChains.size()]);
                 }
             }
+            catch (Exception ex)
+            {
+                ex.printStackTrace();
+                // Not much we can do - probably we are not on >= 1.5
+            }
+        }
+        return certificates;
+    }
 
+    // Returns the names of the entries of the given content that need to be
+    // signed, in the order in which a BundleInputStream returns them.
+    private static List getEntryNames(Content content)
+    {
+        List names = new ArrayList();
+        Enumeration e = content.getEntries();
+        while ((e != null) && e.hasMoreElements())
+        {
+            String entry = (String) e.nextElement();
+            if (!entry.endsWith("/")
+                && !(entry.toUpperCase().startsWith("META-INF/")
+                && (entry.indexOf('/', "META-INF/".length()) < 0)))
+            {
+                names.add(entry);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * The signer chains common to all entries seen so far.
+     */
+    private final class SignerChains
+    {
+        private final boolean m_check;
+        private final List m_chains = new ArrayList();
+        private int m_count = 0;
+
+        SignerChains(boolean check)
+        {
+            m_check = check;
+        }
+
+        /**
+         * Adds the certificates of the next entry and returns <tt>false</tt>
+         * if the bundle is not signed by a (trusted) signer of all entries.
+         */
+        boolean add(Certificate[] certificates) throws IOException
+        {
             if ((certificates == null) || (certificates.length == 0))
             {
-                return null;
+                return false;
             }
 
             List chains = new ArrayList();
 
-            getRootChains(certificates, chains, check);
+            getRootChains(certificates, chains, m_check);
 
-            if (certificateChains.isEmpty())
+            if (m_chains.isEmpty())
             {
-                certificateChains.addAll(chains);
-                count = certificateChains.size();
+                m_chains.addAll(chains);
+                m_count = m_chains.size();
             }
             else
             {
-                for (Iterator iter2 = certificateChains.iterator(); iter2
+                for (Iterator iter2 = m_chains.iterator(); iter2
                     .hasNext();)
                 {
                     X509Certificate cert = (X509Certificate) ((List) iter2
@@ -385,25 +649,77 @@ public final class BundleDNParser
                 }
             }
 
-            if (certificateChains.isEmpty())
+            if (m_chains.isEmpty())
             {
-                if (count > 0)
+                if (m_count > 0)
                 {
                     throw new IOException("Bad signers");
                 }
-                return null;
+                return false;
+            }
+            return true;
+        }
+
+        X509Certificate[] getCertificates()
+        {
+            List result = new ArrayList();
+
+            for (Iterator iter = m_chains.iterator(); iter.hasNext();)
+            {
+                result.addAll((List) iter.next());
             }
+
+            return (X509Certificate[]) result.toArray(new X509Certificate[result
+                .size()]);
         }
+    }
 
-        List result = new ArrayList();
+    /**
+     * Reads the given entries of a bundle and records their certificates
+     * up to the first entry that is not signed or the first failure.
+     */
+    private static final class EntryVerifier implements Runnable
+    {
+        private final Content m_content;
+        private final Set m_entries;
+        private final List m_certificates = new ArrayList();
+        private volatile boolean m_noManifest = false;
+        private volatile Throwable m_failure = null;
 
-        for (Iterator iter = certificateChains.iterator(); iter.hasNext();)
+        EntryVerifier(Content content, Set entries)
         {
-            result.addAll((List) iter.next());
+            m_content = content;
+            m_entries = entries;
         }
 
-        return (X509Certificate[]) result.toArray(new X509Certificate[result
-            .size()]);
+        public void run()
+        {
+            try
+            {
+                JarInputStream bundle = new JarInputStream(
+                    new BundleInputStream(m_content, m_entries), true);
+
+                if (bundle.getManifest() == null)
+                {
+                    m_noManifest = true;
+                    return;
+                }
+
+                for (JarEntry entry = getNextSignedEntry(bundle); entry != null; entry = getNextSignedEntry(bundle))
+                {
+                    Certificate[] certificates = getCertificates(entry);
+                    m_certificates.add(certificates);
+                    if ((certificates == null) || (certificates.length == 0))
+                    {
+                        return;
+                    }
+                }
+            }
+            catch (Throwable t)
+            {
+                m_failure = t;
+            }
+        }
     }
 
     private boolean isRevoked(Certificate certificate)
@@ -0,0 +1,255 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.security.verifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.felix.framework.cache.Content;
+import org.apache.felix.framework.util.SecureAction;
+
+/**
+ * Persists the signer chains of verified bundles in a directory, keyed by a
+ * hash of the bundle content, so that they survive restarts and memory
+ * pressure. Each file also records a fingerprint of the trust settings the
+ * chains were verified with; chains verified with other settings are ignored.
+ */
+final class SignerChainStore
+{
+    private static final int VERSION = 1;
+
+    private final File m_dir;
+    private final SecureAction m_action;
+
+    SignerChainStore(File dir, SecureAction action)
+    {
+        m_dir = dir;
+        m_action = action;
+    }
+
+    /**
+     * Returns a hash over the names and contents of all entries of the
+     * given content. Hashing the raw entries is considerably cheaper than
+     * verifying them, as the latter needs to recreate a jar stream and
+     * check the digest of every entry against the manifest.
+     */
+    static String getContentHash(Content content) throws IOException
+    {
+        MessageDigest digest = getDigest();
+        byte[] buffer = new byte[8 * 1024];
+        for (Enumeration e = content.getEntries(); (e != null)
+            && e.hasMoreElements();)
+        {
+            String name = (String) e.nextElement();
+            if (name.endsWith("/"))
+            {
+                continue;
+            }
+            digest.update(name.getBytes("UTF-8"));
+            digest.update((byte) 0);
+            InputStream in = content.getEntryAsStream(name);
+            if (in == null)
+            {
+                throw new IOException("Missing entry");
+            }
+            try
+            {
+                for (int c = in.read(buffer); c != -1; c = in.read(buffer))
+                {
+                    digest.update(buffer, 0, c);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            digest.update((byte) 0);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Returns a fingerprint of the given certificates and CRLs.
+     */
+    static String getFingerprint(List encoded)
+    {
+        MessageDigest digest = getDigest();
+        for (Iterator iter = encoded.iterator(); iter.hasNext();)
+        {
+            byte[] bytes = (byte[]) iter.next();
+            digest.update(bytes);
+            digest.update((byte) 0);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Returns the stored signer chains for the given key or <tt>null</tt>
+     * if there are none or they were verified with other trust settings.
+     */
+    Map read(String key, String trust)
+    {
+        File file = new File(m_dir, key);
+        if (!m_action.fileExists(file))
+        {
+            return null;
+        }
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(
+                m_action.getFileInputStream(file)));
+            if ((in.readInt() != VERSION) || !trust.equals(in.readUTF()))
+            {
+                return null;
+            }
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            Map result = new HashMap();
+            for (int chains = in.readInt(); chains > 0; chains--)
+            {
+                List chain = new ArrayList();
+                for (int certs = in.readInt(); certs > 0; certs--)
+                {
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    chain.add(factory.generateCertificate(
+                        new ByteArrayInputStream(bytes)));
+                }
+                if (chain.isEmpty())
+                {
+                    return null;
+                }
+                result.put(chain.get(0), chain);
+            }
+            return result.isEmpty() ? null : result;
+        }
+        catch (Exception ex)
+        {
+            // Not much we can do - verify the bundle again
+            return null;
+        }
+        finally
+        {
+            if (in != null)
+            {
+                try
+                {
+                    in.close();
+                }
+                catch (IOException ex)
+                {
+                    // Not much we can do
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores the given signer chains under the given key.
+     */
+    void write(String key, String trust, Map chains)
+        throws IOException, CertificateException
+    {
+        File tmp = m_action.createTempFile("tmp", null, m_dir);
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(
+                m_action.getFileOutputStream(tmp)));
+            out.writeInt(VERSION);
+            out.writeUTF(trust);
+            out.writeInt(chains.size());
+            for (Iterator iter = chains.values().iterator(); iter.hasNext();)
+            {
+                List chain = (List) iter.next();
+                out.writeInt(chain.size());
+                for (Iterator certs = chain.iterator(); certs.hasNext();)
+                {
+                    byte[] bytes = ((X509Certificate) certs.next()).getEncoded();
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+            out.close();
+            out = null;
+
+            File file = new File(m_dir, key);
+            m_action.deleteFile(file);
+            if (!m_action.renameFile(tmp, file))
+            {
+                throw new IOException("Unable to write signer chains");
+            }
+        }
+        finally
+        {
+            if (out != null)
+            {
+                try
+                {
+                    out.close();
+                }
+                catch (IOException ex)
+                {
+                    // Not much we can do
+                }
+            }
+            m_action.deleteFile(tmp);
+        }
+    }
+
+    private static MessageDigest getDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException("SHA-256 not available");
+        }
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuffer buffer = new StringBuffer(bytes.length * 2);
+        for (int i = 0; i < bytes.length; i++)
+        {
+            buffer.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16));
+            buffer.append(Character.forDigit(bytes[i] & 0xF, 16));
+        }
+        return buffer.toString();
+    }
+}
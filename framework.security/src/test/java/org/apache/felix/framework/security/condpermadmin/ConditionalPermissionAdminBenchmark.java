@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.security.condpermadmin;
+
+import java.io.File;
+import java.io.FilePermission;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.CodeSource;
+import java.security.Permission;
+import java.security.ProtectionDomain;
+import java.util.List;
+import java.util.PropertyPermission;
+
+import org.apache.felix.framework.BundleRevisionImpl;
+import org.apache.felix.framework.cache.Content;
+import org.apache.felix.framework.security.util.Conditions;
+import org.apache.felix.framework.security.util.LocalPermissions;
+import org.apache.felix.framework.security.util.Permissions;
+import org.apache.felix.framework.security.util.PropertiesCache;
+import org.apache.felix.framework.util.SecureAction;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.condpermadmin.ConditionalPermissionUpdate;
+
+/**
+ * Measures the cost of a permission check against a policy table of about
+ * fifty rows with bundle location conditions, as done for every protection
+ * domain on the stack when a security manager checks a permission. Checking
+ * the same permissions repeatedly is answered from the decision cache, while
+ * checking distinct permissions evaluates the table every time, as all checks
+ * did before decisions were cached. This is not a test; run it with the
+ * framework and the security provider on the class path.
+ */
+public class ConditionalPermissionAdminBenchmark
+{
+    private static final int ROWS = 50;
+
+    public static void main(String[] args) throws Exception
+    {
+        int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+
+        File dir = File.createTempFile("felix-security", ".dir");
+        dir.delete();
+        dir.mkdirs();
+        File store = new File(dir, "cpa.txt");
+        store.createNewFile();
+
+        SecureAction action = new SecureAction();
+        BundleContext context = (BundleContext) proxy(BundleContext.class, null);
+        Permissions permissions = new Permissions(context, action);
+        ConditionalPermissionAdminImpl cpai = new ConditionalPermissionAdminImpl(
+            permissions, new Conditions(action), new LocalPermissions(permissions),
+            new PropertiesCache(store, dir, action), null);
+
+        ConditionalPermissionUpdate update = cpai.newConditionalPermissionUpdate();
+        List rows = update.getConditionalPermissionInfos();
+        for (int i = 0; i < ROWS; i++)
+        {
+            String location = "[org.osgi.service.condpermadmin.BundleLocationCondition \""
+                + "file:bundles/app" + i + "-*\"]";
+            if (i % 10 == 9)
+            {
+                rows.add(cpai.newConditionalPermissionInfo("DENY { " + location
+                    + " (java.lang.RuntimePermission \"exitVM.*\") } \"deny" + i + "\""));
+            }
+            rows.add(cpai.newConditionalPermissionInfo("ALLOW { " + location
+                + " (java.util.PropertyPermission \"app" + i + ".*\" \"read,write\")"
+                + " (java.io.FilePermission \"/var/app" + i + "/-\" \"read\")"
+                + " (java.lang.RuntimePermission \"getClassLoader\") } \"allow" + i + "\""));
+        }
+        rows.add(cpai.newConditionalPermissionInfo(
+            "ALLOW { (java.util.PropertyPermission \"*\" \"read\") } \"defaults\""));
+        update.commit();
+
+        // The bundle matches one of the last rows of the table.
+        Bundle bundle = (Bundle) proxy(Bundle.class, "file:bundles/app" + (ROWS - 2) + "-1.0.jar");
+        BundleRevisionImpl module = new BundleRevisionImpl(bundle, "1");
+        Content content = (Content) proxy(Content.class, null);
+        ProtectionDomain pd = new ProtectionDomain(new CodeSource(null,
+            (java.security.cert.Certificate[]) null), null);
+
+        Permission[] repeated = new Permission[] {
+            new PropertyPermission("java.version", "read"),
+            new PropertyPermission("app" + (ROWS - 2) + ".config", "write"),
+            new FilePermission("/var/app" + (ROWS - 2) + "/data/x", "read"),
+            new RuntimePermission("getClassLoader"),
+            new RuntimePermission("exitVM.0")
+        };
+
+        for (int round = 0; round < 3; round++)
+        {
+            long start = System.nanoTime();
+            int granted = 0;
+            for (int i = 0; i < iterations; i++)
+            {
+                if (cpai.hasPermission(module, content, pd,
+                    repeated[i % repeated.length], true, null))
+                {
+                    granted++;
+                }
+            }
+            long cached = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                if (cpai.hasPermission(module, content, pd, new PropertyPermission(
+                    "app" + (ROWS - 2) + ".key" + round + "." + i, "read"), true, null))
+                {
+                    granted++;
+                }
+            }
+            long uncached = System.nanoTime() - start;
+            System.out.println("repeated: " + (cached / iterations)
+                + " ns/check, distinct: " + (uncached / iterations)
+                + " ns/check (" + granted + " granted)");
+        }
+
+        File[] files = dir.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            files[i].delete();
+        }
+        dir.delete();
+    }
+
+    private static Object proxy(Class clazz, final String location)
+    {
+        return Proxy.newProxyInstance(clazz.getClassLoader(), new Class[] { clazz },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    String name = method.getName();
+                    if (name.equals("getLocation"))
+                    {
+                        return location;
+                    }
+                    else if (name.equals("getBundleId"))
+                    {
+                        return new Long(42);
+                    }
+                    else if (name.equals("hashCode"))
+                    {
+                        return new Integer(System.identityHashCode(proxy));
+                    }
+                    else if (name.equals("equals"))
+                    {
+                        return Boolean.valueOf(proxy == args[0]);
+                    }
+                    else if (method.getReturnType() == boolean.class)
+                    {
+                        return Boolean.FALSE;
+                    }
+                    else if (method.getReturnType() == int.class)
+                    {
+                        return new Integer(0);
+                    }
+                    else if (method.getReturnType() == long.class)
+                    {
+                        return new Long(0);
+                    }
+                    return null;
+                }
+            });
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.security.condpermadmin;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.CodeSource;
+import java.security.Permission;
+import java.security.ProtectionDomain;
+import java.util.List;
+import java.util.PropertyPermission;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.BundleRevisionImpl;
+import org.apache.felix.framework.cache.Content;
+import org.apache.felix.framework.security.util.Conditions;
+import org.apache.felix.framework.security.util.LocalPermissions;
+import org.apache.felix.framework.security.util.Permissions;
+import org.apache.felix.framework.security.util.PropertiesCache;
+import org.apache.felix.framework.util.SecureAction;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.condpermadmin.ConditionalPermissionUpdate;
+
+public class ConditionalPermissionAdminImplTest extends TestCase
+{
+    private File m_dir;
+    private ConditionalPermissionAdminImpl m_cpai;
+    private Content m_content;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_dir = File.createTempFile("felix-security", ".dir");
+        m_dir.delete();
+        m_dir.mkdirs();
+        File store = new File(m_dir, "cpa.txt");
+        store.createNewFile();
+
+        SecureAction action = new SecureAction();
+        BundleContext context = (BundleContext) proxy(BundleContext.class, null);
+        Permissions permissions = new Permissions(context, action);
+        m_cpai = new ConditionalPermissionAdminImpl(
+            permissions, new Conditions(action), new LocalPermissions(permissions),
+            new PropertiesCache(store, m_dir, action), null);
+        m_content = (Content) proxy(Content.class, null);
+
+        ConditionalPermissionUpdate update = m_cpai.newConditionalPermissionUpdate();
+        List rows = update.getConditionalPermissionInfos();
+        rows.add(m_cpai.newConditionalPermissionInfo("ALLOW { "
+            + "[org.osgi.service.condpermadmin.BundleLocationCondition \"file:trusted/*\"]"
+            + " (java.util.PropertyPermission \"app.*\" \"read\") } \"trusted\""));
+        assertTrue(update.commit());
+    }
+
+    protected void tearDown() throws Exception
+    {
+        File[] files = m_dir.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            files[i].delete();
+        }
+        m_dir.delete();
+        super.tearDown();
+    }
+
+    public void testDecisionIsCachedPerRevision() throws Exception
+    {
+        Permission permission = new PropertyPermission("app.name", "read");
+        ProtectionDomain pd = new ProtectionDomain(new CodeSource(null,
+            (java.security.cert.Certificate[]) null), null);
+
+        BundleRevisionImpl trusted = new BundleRevisionImpl(
+            (Bundle) proxy(Bundle.class, "file:trusted/app.jar"), "1");
+        assertTrue(m_cpai.hasPermission(trusted, m_content, pd, permission, true, null));
+        assertTrue(m_cpai.hasPermission(trusted, m_content, pd, permission, true, null));
+
+        // A new revision reusing an equal protection domain, as a bundle
+        // update does, must not see the decisions of the previous revision.
+        BundleRevisionImpl untrusted = new BundleRevisionImpl(
+            (Bundle) proxy(Bundle.class, "file:untrusted/app.jar"), "1");
+        assertFalse(m_cpai.hasPermission(untrusted, m_content, pd, permission, true, null));
+        assertTrue(m_cpai.hasPermission(trusted, m_content, pd, permission, true, null));
+    }
+
+    public void testCommitInvalidatesDecisions() throws Exception
+    {
+        Permission permission = new PropertyPermission("app.name", "read");
+        ProtectionDomain pd = new ProtectionDomain(new CodeSource(null,
+            (java.security.cert.Certificate[]) null), null);
+        BundleRevisionImpl trusted = new BundleRevisionImpl(
+            (Bundle) proxy(Bundle.class, "file:trusted/app.jar"), "1");
+        assertTrue(m_cpai.hasPermission(trusted, m_content, pd, permission, true, null));
+
+        ConditionalPermissionUpdate update = m_cpai.newConditionalPermissionUpdate();
+        List rows = update.getConditionalPermissionInfos();
+        rows.clear();
+        rows.add(m_cpai.newConditionalPermissionInfo("ALLOW { "
+            + "(java.util.PropertyPermission \"other.*\" \"read\") } \"other\""));
+        assertTrue(update.commit());
+
+        assertFalse(m_cpai.hasPermission(trusted, m_content, pd, permission, true, null));
+    }
+
+    private static Object proxy(Class clazz, final String location)
+    {
+        return Proxy.newProxyInstance(clazz.getClassLoader(), new Class[] { clazz },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    String name = method.getName();
+                    if (name.equals("getLocation"))
+                    {
+                        return location;
+                    }
+                    else if (name.equals("getBundleId"))
+                    {
+                        return new Long(42);
+                    }
+                    else if (name.equals("hashCode"))
+                    {
+                        return new Integer(System.identityHashCode(proxy));
+                    }
+                    else if (name.equals("equals"))
+                    {
+                        return Boolean.valueOf(proxy == args[0]);
+                    }
+                    else if (method.getReturnType() == boolean.class)
+                    {
+                        return Boolean.FALSE;
+                    }
+                    else if (method.getReturnType() == int.class)
+                    {
+                        return new Integer(0);
+                    }
+                    else if (method.getReturnType() == long.class)
+                    {
+                        return new Long(0);
+                    }
+                    return null;
+                }
+            });
+    }
+}
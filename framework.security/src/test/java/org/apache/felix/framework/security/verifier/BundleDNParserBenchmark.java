@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.security.verifier;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.felix.framework.BundleRevisionImpl;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.cache.Content;
+import org.apache.felix.framework.security.util.TrustManager;
+import org.apache.felix.framework.util.SecureAction;
+import org.osgi.framework.Bundle;
+
+/**
+ * Measures the time to verify a set of signed bundles as done when they are
+ * installed or the framework starts: serially, in parallel, and after a
+ * restart with persisted signer chains. The bundles are signed with the
+ * <tt>keytool</tt> and <tt>jarsigner</tt> tools of the running JDK. This is
+ * not a test; run it with the framework and the security provider on the
+ * class path.
+ */
+public class BundleDNParserBenchmark
+{
+    private static final String PASSWORD = "password";
+
+    public static void main(String[] args) throws Exception
+    {
+        int bundles = (args.length > 0) ? Integer.parseInt(args[0]) : 40;
+        int entries = (args.length > 1) ? Integer.parseInt(args[1]) : 300;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        File dir = File.createTempFile("felix-verifier", ".dir");
+        dir.delete();
+        dir.mkdirs();
+        try
+        {
+            File keystore = new File(dir, "keystore.jks");
+            exec(new String[] { tool("keytool"), "-genkeypair", "-alias",
+                "signer", "-keyalg", "RSA", "-keysize", "2048", "-dname",
+                "CN=Benchmark, O=Apache Felix", "-validity", "365",
+                "-keystore", keystore.getPath(), "-storetype", "JKS",
+                "-storepass", PASSWORD, "-keypass", PASSWORD });
+
+            ZipFile[] jars = new ZipFile[bundles];
+            Random random = new Random(42);
+            for (int i = 0; i < bundles; i++)
+            {
+                File jar = new File(dir, "bundle" + i + ".jar");
+                createBundle(jar, i, entries, random);
+                exec(new String[] { tool("jarsigner"), "-keystore",
+                    keystore.getPath(), "-storepass", PASSWORD,
+                    jar.getPath(), "signer" });
+                jars[i] = new ZipFile(jar);
+            }
+
+            SecureAction action = new SecureAction();
+            TrustManager manager = new TrustManager("", "JKS", PASSWORD,
+                "file:" + keystore.getPath(), action);
+            File store = new File(dir, "signers");
+            store.mkdirs();
+
+            for (int round = 0; round < 3; round++)
+            {
+                deleteFiles(store);
+                long serial = verify(new BundleDNParser(manager, new Logger()),
+                    jars);
+                long parallel = verify(new BundleDNParser(manager,
+                    new Logger(), threads, null, action), jars);
+                long cold = verify(new BundleDNParser(manager, new Logger(),
+                    threads, store, action), jars);
+                long warm = verify(new BundleDNParser(manager, new Logger(),
+                    threads, store, action), jars);
+                System.out.println(bundles + " bundles with " + entries
+                    + " entries - serial: " + serial + " ms, " + threads
+                    + " threads: " + parallel + " ms, storing: " + cold
+                    + " ms, restart: " + warm + " ms");
+            }
+
+            for (int i = 0; i < bundles; i++)
+            {
+                jars[i].close();
+            }
+        }
+        finally
+        {
+            deleteFiles(dir);
+        }
+    }
+
+    private static long verify(BundleDNParser parser, ZipFile[] jars)
+        throws Exception
+    {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < jars.length; i++)
+        {
+            Bundle bundle = (Bundle) proxy(Bundle.class, null);
+            parser.checkDNChains(new BundleRevisionImpl(bundle, "1"),
+                (Content) proxy(Content.class, jars[i]), Bundle.SIGNERS_TRUSTED);
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private static void createBundle(File jar, int index, int entries,
+        Random random) throws IOException
+    {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.putValue("Manifest-Version", "1.0");
+        attributes.putValue("Bundle-ManifestVersion", "2");
+        attributes.putValue("Bundle-SymbolicName", "benchmark.bundle" + index);
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar),
+            manifest);
+        try
+        {
+            byte[] data = new byte[4096];
+            for (int i = 0; i < entries; i++)
+            {
+                out.putNextEntry(new JarEntry("org/example/bundle" + index
+                    + "/Class" + i + ".class"));
+                // Half random, half repeated data compresses like classes.
+                for (int j = 0; j < data.length; j++)
+                {
+                    data[j] = (j % 2 == 0) ? (byte) random.nextInt() : (byte) j;
+                }
+                out.write(data, 0, 1024 + random.nextInt(data.length - 1024));
+                out.closeEntry();
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private static Object proxy(Class clazz, final ZipFile jar)
+    {
+        return Proxy.newProxyInstance(clazz.getClassLoader(),
+            new Class[] { clazz }, new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                    throws IOException
+                {
+                    String name = method.getName();
+                    if (name.equals("getEntries"))
+                    {
+                        List names = new ArrayList();
+                        for (Enumeration e = jar.entries(); e
+                            .hasMoreElements();)
+                        {
+                            names.add(((ZipEntry) e.nextElement()).getName());
+                        }
+                        return Collections.enumeration(names);
+                    }
+                    else if (name.equals("getEntryAsStream"))
+                    {
+                        ZipEntry entry = jar.getEntry((String) args[0]);
+                        return (entry != null) ? jar.getInputStream(entry) : null;
+                    }
+                    else if (name.equals("hasEntry"))
+                    {
+                        return Boolean.valueOf(jar.getEntry((String) args[0]) != null);
+                    }
+                    else if (name.equals("hashCode"))
+                    {
+                        return new Integer(System.identityHashCode(proxy));
+                    }
+                    else if (name.equals("equals"))
+                    {
+                        return Boolean.valueOf(proxy == args[0]);
+                    }
+                    else if (method.getReturnType() == long.class)
+                    {
+                        return new Long(0);
+                    }
+                    else if (method.getReturnType() == int.class)
+                    {
+                        return new Integer(0);
+                    }
+                    else if (method.getReturnType() == boolean.class)
+                    {
+                        return Boolean.FALSE;
+                    }
+                    return null;
+                }
+            });
+    }
+
+    private static String tool(String name)
+    {
+        return System.getProperty("java.home") + File.separator + "bin"
+            + File.separator + name;
+    }
+
+    private static void exec(String[] command) throws Exception
+    {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true)
+            .start();
+        InputStream in = process.getInputStream();
+        for (byte[] tmp = new byte[4096]; in.read(tmp) != -1;)
+        {
+        }
+        if (process.waitFor() != 0)
+        {
+            throw new IOException("Failed to run " + command[0]);
+        }
+    }
+
+    private static void deleteFiles(File root)
+    {
+        File[] files = root.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteFiles(files[i]);
+            files[i].delete();
+        }
+        if (root.getName().endsWith(".dir"))
+        {
+            root.delete();
+        }
+    }
+}
@@ -25,7 +25,9 @@ import java.net.URL;
 import java.security.AccessControlContext;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -38,10 +40,12 @@ import java.util.Set;
 import java.util.StringTokenizer;
 
 import org.apache.felix.framework.cache.BundleArchive;
+import org.apache.felix.framework.cache.BundleArchiveRevision;
 import org.apache.felix.framework.util.SecurityManagerEx;
 import org.apache.felix.framework.util.ShrinkableCollection;
 import org.apache.felix.framework.util.StringMap;
 import org.apache.felix.framework.util.Util;
+import org.apache.felix.framework.util.manifestparser.ManifestParser;
 import org.osgi.dto.DTO;
 import org.osgi.framework.AdaptPermission;
 import org.osgi.framework.AdminPermission;
@@ -54,6 +58,7 @@ import org.osgi.framework.ServicePermission;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.Version;
 import org.osgi.framework.hooks.bundle.CollisionHook;
+import org.osgi.framework.namespace.IdentityNamespace;
 import org.osgi.framework.startlevel.BundleStartLevel;
 import org.osgi.framework.wiring.BundleRevision;
 import org.osgi.framework.wiring.BundleRevisions;
@@ -67,6 +72,15 @@ class BundleImpl implements Bundle, BundleRevisions
 
     private final BundleArchive m_archive;
     private final List<BundleRevision> m_revisions = new ArrayList<BundleRevision>(0);
+    // Set while the creation of the initial revision is deferred, in which
+    // case only the symbolic name and version of the bundle are known, as
+    // well as the unparsed headers declaring its capabilities.
+    private volatile boolean m_revisionPending = false;
+    private String m_pendingSymbolicName;
+    private Version m_pendingVersion;
+    private String m_pendingExports;
+    private String m_pendingCapabilities;
+    private boolean m_pendingFragmentOrSingleton;
     private volatile int m_state;
     private boolean m_useDeclaredActivationPolicy;
     private BundleActivator m_activator = null;
@@ -100,6 +114,17 @@ class BundleImpl implements Bundle, BundleRevisions
     }
 
     BundleImpl(Felix felix, Bundle installingBundle, BundleArchive archive) throws Exception
+    {
+        this(felix, installingBundle, archive, true);
+    }
+
+    /**
+     * This constructor is used for batch installs with <tt>createRevision</tt>
+     * set to <tt>false</tt>, in which case the initial revision is created
+     * with <tt>parseRevision()</tt> and added with <tt>addInitialRevision()</tt>.
+    **/
+    BundleImpl(Felix felix, Bundle installingBundle, BundleArchive archive,
+        boolean createRevision) throws Exception
     {
         __m_felix = felix;
         m_archive = archive;
@@ -110,8 +135,11 @@ class BundleImpl implements Bundle, BundleRevisions
         m_context = null;
         m_installingBundle = installingBundle;
 
-        BundleRevision revision = createRevision(false);
-        addRevision(revision);
+        if (createRevision)
+        {
+            BundleRevision revision = createRevision(false);
+            addRevision(revision);
+        }
     }
 
     // This method exists because the system bundle extends BundleImpl
@@ -915,11 +943,19 @@ class BundleImpl implements Bundle, BundleRevisions
 
     public String getSymbolicName()
     {
+        if (m_revisionPending)
+        {
+            return m_pendingSymbolicName;
+        }
         return adapt(BundleRevisionImpl.class).getSymbolicName();
     }
 
     public Version getVersion()
     {
+        if (m_revisionPending)
+        {
+            return m_pendingVersion;
+        }
         return adapt(BundleRevisionImpl.class).getVersion();
     }
 
@@ -1064,7 +1100,21 @@ class BundleImpl implements Bundle, BundleRevisions
         }
     }
 
-    public synchronized <A> A adapt(Class<A> type)
+    public <A> A adapt(Class<A> type)
+    {
+        // Create a deferred revision without holding the bundle lock, since
+        // a bundle whose revision cannot be created is removed from the
+        // installed bundles under the global lock.
+        if (m_revisionPending && ((type == BundleRevisionImpl.class)
+            || ((m_state != Bundle.UNINSTALLED)
+                && ((type == BundleRevision.class) || (type == BundleWiring.class)))))
+        {
+            createPendingRevision(null);
+        }
+        return adaptInternal(type);
+    }
+
+    private synchronized <A> A adaptInternal(Class<A> type)
     {
         checkAdapt(type);
         if (type == BundleContext.class)
@@ -1162,9 +1212,13 @@ class BundleImpl implements Bundle, BundleRevisions
         return this;
     }
 
-    public synchronized List<BundleRevision> getRevisions()
+    public List<BundleRevision> getRevisions()
     {
-        return new ArrayList<BundleRevision>(m_revisions);
+        createPendingRevision(null);
+        synchronized (this)
+        {
+            return new ArrayList<BundleRevision>(m_revisions);
+        }
     }
 
     /**
@@ -1178,20 +1232,24 @@ class BundleImpl implements Bundle, BundleRevisions
         return m_revisions.contains(revision);
     }
 
-    synchronized void revise(String location, InputStream is)
+    void revise(String location, InputStream is)
         throws Exception
     {
-        // This operation will increase the revision count for the bundle.
-        m_archive.revise(location, is);
-        try
-        {
-            BundleRevision revision = createRevision(true);
-            addRevision(revision);
-        }
-        catch (Exception ex)
+        createPendingRevision(null);
+        synchronized (this)
         {
-            m_archive.rollbackRevise();
-            throw ex;
+            // This operation will increase the revision count for the bundle.
+            m_archive.revise(location, is);
+            try
+            {
+                BundleRevision revision = createRevision(true);
+                addRevision(revision);
+            }
+            catch (Exception ex)
+            {
+                m_archive.rollbackRevise();
+                throw ex;
+            }
         }
     }
 
@@ -1236,20 +1294,229 @@ class BundleImpl implements Bundle, BundleRevisions
         }
     }
 
-    private BundleRevision createRevision(boolean isUpdate) throws Exception
+    /**
+     * Adds the initial revision created by <tt>parseRevision()</tt> for
+     * a batch install, after checking that it does not collide with any
+     * installed bundle or any bundle of the batch added before it.
+     * @param revision the parsed initial revision.
+     * @param pending the bundles of the batch that are not installed yet.
+     * @throws Exception if the revision collides with another bundle or
+     *         cannot be added.
+    **/
+    void addInitialRevision(BundleRevisionImpl revision, Collection<Bundle> pending)
+        throws Exception
+    {
+        checkUniqueness(revision, false, pending);
+        addRevision(revision);
+    }
+
+    /**
+     * Parses the manifest of the current archive revision and creates a
+     * revision for it. This does not depend on any framework state, so it
+     * can be called concurrently for different bundles.
+    **/
+    BundleRevisionImpl parseRevision() throws Exception
     {
+        BundleArchiveRevision archiveRevision = m_archive.getCurrentRevision();
+        String id = Long.toString(getBundleId())
+            + "." + m_archive.getCurrentRevisionNumber().toString();
+
+        // Reuse the metadata of the revision cached by an earlier
+        // framework instance, if there is any.
+        byte[] metadata = archiveRevision.getMetadata();
+        if (metadata != null)
+        {
+            try
+            {
+                return new BundleRevisionImpl(
+                    this, id, metadata, archiveRevision.getContent());
+            }
+            catch (IOException ex)
+            {
+                getFramework().getLogger().log(
+                    this, Logger.LOG_WARNING,
+                    "Ignoring invalid cached bundle metadata.", ex);
+            }
+        }
+
         // Get and parse the manifest from the most recent revision and
         // create an associated revision object for it.
-        Map headerMap = m_archive.getCurrentRevision().getManifestHeader();
+        Map headerMap = archiveRevision.getManifestHeader();
 
         // Create the bundle revision instance.
         BundleRevisionImpl revision = new BundleRevisionImpl(
             this,
-            Long.toString(getBundleId())
-                + "." + m_archive.getCurrentRevisionNumber().toString(),
+            id,
             headerMap,
-            m_archive.getCurrentRevision().getContent());
+            archiveRevision.getContent());
+
+        // Cache the parsed metadata for the next framework start.
+        try
+        {
+            metadata = revision.getMetadata();
+            if (metadata != null)
+            {
+                archiveRevision.setMetadata(metadata);
+            }
+        }
+        catch (Exception ex)
+        {
+            getFramework().getLogger().log(
+                this, Logger.LOG_WARNING,
+                "Unable to cache bundle metadata.", ex);
+        }
+        return revision;
+    }
 
+    /**
+     * Defers the creation of the initial revision of a bundle reloaded from
+     * the cache until it is needed, only reading its symbolic name and
+     * version from its manifest for now. The revision is created when the
+     * bundle is adapted to its revision or wiring, when its revisions are
+     * queried, or when the resolver needs it; see
+     * <tt>Felix.createPendingRevisions()</tt>. The export and capability
+     * headers are kept unparsed, so the resolver can tell which bundles may
+     * provide a requirement. Extension bundles and bundles with invalid
+     * identities are not deferred.
+     * @return <tt>true</tt> if the revision was deferred.
+    **/
+    synchronized boolean deferRevision() throws Exception
+    {
+        Map headers = m_archive.getCurrentRevision().getManifestHeader();
+        String name = (String) headers.get(Constants.BUNDLE_SYMBOLICNAME);
+        String version = (String) headers.get(Constants.BUNDLE_VERSION);
+        String host = (String) headers.get(Constants.FRAGMENT_HOST);
+        try
+        {
+            if ((host != null)
+                && (ManifestParser.parseExtensionBundleHeader(host) != null))
+            {
+                return false;
+            }
+            m_pendingVersion = (version == null)
+                ? Version.emptyVersion : Version.parseVersion(version);
+        }
+        catch (Exception ex)
+        {
+            // Let the revision report the error.
+            return false;
+        }
+        // Any mention of the singleton directive is taken as a singleton.
+        m_pendingFragmentOrSingleton = (host != null) || ((name != null)
+            && (name.indexOf(Constants.SINGLETON_DIRECTIVE) >= 0));
+        if (name != null)
+        {
+            List<String> names = ManifestParser.parseDelimitedString(name, ";");
+            name = names.isEmpty() ? null : names.get(0);
+        }
+        m_pendingSymbolicName = name;
+        m_pendingExports = (String) headers.get(Constants.EXPORT_PACKAGE);
+        m_pendingCapabilities = (String) headers.get(Constants.PROVIDE_CAPABILITY);
+        m_revisionPending = true;
+        return true;
+    }
+
+    boolean isRevisionPending()
+    {
+        return m_revisionPending;
+    }
+
+    /**
+     * Returns whether the deferred revision of the bundle is a fragment or
+     * may be a singleton. Such revisions must be created before resolving,
+     * since fragments may attach to any host and singletons take part in
+     * singleton selection.
+    **/
+    boolean isPendingFragmentOrSingleton()
+    {
+        return m_pendingFragmentOrSingleton;
+    }
+
+    /**
+     * Returns whether the deferred revision of the bundle may provide a
+     * capability in the specified namespace, judging by the unparsed
+     * headers only. This may return <tt>true</tt> for a bundle that does
+     * not provide such a capability, but never the other way around.
+     * @param namespace the namespace of the requirement.
+     * @param name the value of the namespace attribute the requirement
+     *        matches exactly or <tt>null</tt> if it is not known.
+    **/
+    boolean mayProvide(String namespace, String name)
+    {
+        if (BundleRevision.PACKAGE_NAMESPACE.equals(namespace))
+        {
+            return (m_pendingExports != null)
+                && ((name == null) || (m_pendingExports.indexOf(name) >= 0));
+        }
+        else if (BundleRevision.BUNDLE_NAMESPACE.equals(namespace)
+            || BundleRevision.HOST_NAMESPACE.equals(namespace)
+            || IdentityNamespace.IDENTITY_NAMESPACE.equals(namespace))
+        {
+            return (m_pendingSymbolicName != null)
+                && ((name == null) || name.equals(m_pendingSymbolicName));
+        }
+        return (m_pendingCapabilities != null)
+            && (m_pendingCapabilities.indexOf(namespace) >= 0);
+    }
+
+    /**
+     * Creates the deferred initial revision of the bundle, if it has not
+     * been created yet. If it cannot be created, the bundle is removed from
+     * the installed bundles, like a bundle that cannot be reloaded eagerly;
+     * see <tt>Felix.removePendingBundle()</tt>. This must not be called while
+     * holding the bundle lock.
+     * @param revision the revision parsed with <tt>parseRevision()</tt>
+     *        or <tt>null</tt> to parse it now.
+     * @throws IllegalStateException if the revision cannot be created.
+    **/
+    void createPendingRevision(BundleRevisionImpl revision)
+    {
+        if (!m_revisionPending)
+        {
+            return;
+        }
+        Exception failure = null;
+        synchronized (this)
+        {
+            if (m_revisionPending)
+            {
+                try
+                {
+                    if (revision == null)
+                    {
+                        revision = parseRevision();
+                    }
+                    // Adding the revision adapts the bundle to it.
+                    m_revisionPending = false;
+                    addRevision(revision);
+                }
+                catch (Exception ex)
+                {
+                    m_revisionPending = m_revisions.isEmpty();
+                    failure = ex;
+                }
+            }
+        }
+        if (failure != null)
+        {
+            getFramework().removePendingBundle(this, failure);
+            throw new IllegalStateException(
+                "Unable to create revision of bundle " + getBundleId()
+                + ": " + failure.getMessage());
+        }
+    }
+
+    private BundleRevision createRevision(boolean isUpdate) throws Exception
+    {
+        BundleRevisionImpl revision = parseRevision();
+        checkUniqueness(revision, isUpdate, Collections.<Bundle>emptyList());
+        return revision;
+    }
+
+    private void checkUniqueness(
+        BundleRevisionImpl revision, boolean isUpdate, Collection<Bundle> pending)
+        throws Exception
+    {
         // For R4 bundles, verify that the bundle symbolic name + version
         // is unique unless this check has been disabled.
         String allowMultiple =
@@ -1265,16 +1532,21 @@ class BundleImpl implements Bundle, BundleRevisions
             String symName = revision.getSymbolicName();
 
             List<Bundle> collisionCanditates = new ArrayList<Bundle>();
-            Bundle[] bundles = getFramework().getBundles();
-            for (int i = 0; (bundles != null) && (i < bundles.length); i++)
+            List<Bundle> bundles = new ArrayList<Bundle>(pending);
+            Bundle[] installed = getFramework().getBundles();
+            if (installed != null)
+            {
+                bundles.addAll(Arrays.asList(installed));
+            }
+            for (int i = 0; i < bundles.size(); i++)
             {
-                long id = ((BundleImpl) bundles[i]).getBundleId();
+                long id = ((BundleImpl) bundles.get(i)).getBundleId();
                 if (id != getBundleId())
                 {
-                    if (symName.equals(bundles[i].getSymbolicName())
-                        && bundleVersion.equals(bundles[i].getVersion()))
+                    if (symName.equals(bundles.get(i).getSymbolicName())
+                        && bundleVersion.equals(bundles.get(i).getVersion()))
                     {
-                        collisionCanditates.add(bundles[i]);
+                        collisionCanditates.add(bundles.get(i));
                     }
                 }
             }
@@ -1315,17 +1587,19 @@ class BundleImpl implements Bundle, BundleRevisions
                     + symName + ':' + bundleVersion, BundleException.DUPLICATE_BUNDLE_ERROR);
             }
         }
-
-        return revision;
     }
 
-    synchronized ProtectionDomain getProtectionDomain()
+    ProtectionDomain getProtectionDomain()
     {
+        createPendingRevision(null);
         ProtectionDomain pd = null;
 
-        for (int i = m_revisions.size() - 1; (i >= 0) && (pd == null); i--)
+        synchronized (this)
         {
-            pd = ((BundleRevisionImpl) m_revisions.get(i)).getProtectionDomain();
+            for (int i = m_revisions.size() - 1; (i >= 0) && (pd == null); i--)
+            {
+                pd = ((BundleRevisionImpl) m_revisions.get(i)).getProtectionDomain();
+            }
         }
 
         return pd;
@@ -142,6 +142,39 @@ public class BundleRevisionImpl implements BundleRevision, Resource
         m_isFragment = m_headerMap.containsKey(Constants.FRAGMENT_HOST);
     }
 
+    /**
+     * This constructor recreates a revision from the metadata persisted
+     * for it by a previous framework instance, instead of parsing its
+     * manifest.
+     * @param bundle
+     * @param id
+     * @param metadata the metadata returned by <tt>getMetadata()</tt>.
+     * @param content
+     * @throws IOException if the metadata is invalid.
+     */
+    BundleRevisionImpl(
+        Bundle bundle, String id, byte[] metadata, Content content)
+        throws IOException
+    {
+        m_bundle = bundle;
+        m_id = id;
+        m_content = content;
+
+        BundleRevisionMetadata md = BundleRevisionMetadata.read(metadata, this);
+        m_headerMap = md.m_headerMap;
+        m_manifestVersion = md.m_manifestVersion;
+        m_version = md.m_version;
+        m_declaredCaps = md.m_capabilities;
+        m_declaredReqs = md.m_requirements;
+        m_declaredNativeLibs = null;
+        m_declaredActivationPolicy = md.m_activationPolicy;
+        m_activationExcludes = md.m_activationExcludes;
+        m_activationIncludes = md.m_activationIncludes;
+        m_symbolicName = md.m_symbolicName;
+        m_isExtension = md.m_isExtension;
+        m_isFragment = m_headerMap.containsKey(Constants.FRAGMENT_HOST);
+    }
+
     static SecureAction getSecureAction()
     {
         return m_secureAction;
@@ -152,6 +185,27 @@ public class BundleRevisionImpl implements BundleRevision, Resource
         return m_declaredActivationPolicy;
     }
 
+    List<String> getActivationIncludes()
+    {
+        return m_activationIncludes;
+    }
+
+    List<String> getActivationExcludes()
+    {
+        return m_activationExcludes;
+    }
+
+    /**
+     * Returns the parsed manifest metadata of this revision in a binary form
+     * that can be persisted and passed to the constructor later on.
+     * @return the metadata or <tt>null</tt> if it cannot be persisted.
+     * @throws IOException if an error occurs.
+     */
+    byte[] getMetadata() throws IOException
+    {
+        return BundleRevisionMetadata.write(this);
+    }
+
     boolean isActivationTrigger(String pkgName)
     {
         if ((m_activationIncludes == null) && (m_activationExcludes == null))
@@ -0,0 +1,325 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.apache.felix.framework.util.StringMap;
+import org.apache.felix.framework.util.VersionRange;
+import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.apache.felix.framework.wiring.BundleRequirementImpl;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * The parsed manifest metadata of a bundle revision in a compact binary
+ * form, so it can be persisted in the bundle cache and the revision can
+ * be recreated on the next start without parsing its manifest again.
+ * Revisions with native code are not supported, since selecting their
+ * native libraries depends on the framework configuration.
+**/
+class BundleRevisionMetadata
+{
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte NULL_VALUE = 0;
+    private static final byte STRING_VALUE = 1;
+    private static final byte LONG_VALUE = 2;
+    private static final byte DOUBLE_VALUE = 3;
+    private static final byte VERSION_VALUE = 4;
+    private static final byte VERSION_RANGE_VALUE = 5;
+    private static final byte LIST_VALUE = 6;
+    private static final byte FILTER_VALUE = 7;
+    private static final byte MAP_VALUE = 8;
+
+    final Map m_headerMap;
+    final String m_manifestVersion;
+    final String m_symbolicName;
+    final Version m_version;
+    final List<BundleCapability> m_capabilities;
+    final List<BundleRequirement> m_requirements;
+    final int m_activationPolicy;
+    final List<String> m_activationIncludes;
+    final List<String> m_activationExcludes;
+    final boolean m_isExtension;
+
+    private BundleRevisionMetadata(DataInputStream in, BundleRevision owner)
+        throws IOException
+    {
+        if (in.readInt() != FORMAT_VERSION)
+        {
+            throw new IOException("Unsupported metadata format.");
+        }
+        m_headerMap = new StringMap((Map) readValue(in));
+        m_manifestVersion = (String) readValue(in);
+        m_symbolicName = (String) readValue(in);
+        m_version = (Version) readValue(in);
+
+        int count = in.readInt();
+        m_capabilities = new ArrayList<BundleCapability>(count);
+        for (int i = 0; i < count; i++)
+        {
+            m_capabilities.add(new BundleCapabilityImpl(
+                owner, (String) readValue(in), (Map) readValue(in), (Map) readValue(in)));
+        }
+        count = in.readInt();
+        m_requirements = new ArrayList<BundleRequirement>(count);
+        for (int i = 0; i < count; i++)
+        {
+            m_requirements.add(new BundleRequirementImpl(
+                owner, (String) readValue(in), (Map) readValue(in), (Map) readValue(in),
+                (SimpleFilter) readValue(in)));
+        }
+
+        m_activationPolicy = in.readInt();
+        m_activationIncludes = (List<String>) readValue(in);
+        m_activationExcludes = (List<String>) readValue(in);
+        m_isExtension = in.readBoolean();
+    }
+
+    /**
+     * Recreates the metadata of a revision from its binary form.
+     * @param data the binary form returned by <tt>write()</tt>.
+     * @param owner the revision owning the capabilities and requirements.
+     * @return the metadata of the revision.
+     * @throws IOException if the binary form is invalid.
+    **/
+    static BundleRevisionMetadata read(byte[] data, BundleRevision owner)
+        throws IOException
+    {
+        try
+        {
+            return new BundleRevisionMetadata(
+                new DataInputStream(new ByteArrayInputStream(data)), owner);
+        }
+        catch (RuntimeException ex)
+        {
+            IOException ioe = new IOException("Invalid metadata.");
+            ioe.initCause(ex);
+            throw ioe;
+        }
+    }
+
+    /**
+     * Returns the binary form of the metadata of a revision.
+     * @param revision the revision.
+     * @return the binary form or <tt>null</tt> if the metadata of the
+     *         revision cannot be persisted.
+     * @throws IOException if an error occurs.
+    **/
+    static byte[] write(BundleRevisionImpl revision) throws IOException
+    {
+        Map headerMap = revision.getHeaders();
+        if ((headerMap == null)
+            || (headerMap.get(Constants.BUNDLE_NATIVECODE) != null)
+            || (revision.getDeclaredNativeLibraries() != null))
+        {
+            return null;
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(baos);
+        try
+        {
+            out.writeInt(FORMAT_VERSION);
+            writeValue(out, headerMap);
+            writeValue(out, revision.getManifestVersion());
+            writeValue(out, revision.getSymbolicName());
+            writeValue(out, revision.getVersion());
+
+            List<BundleCapability> caps = revision.getDeclaredCapabilities(null);
+            out.writeInt(caps.size());
+            for (BundleCapability cap : caps)
+            {
+                if (cap.getClass() != BundleCapabilityImpl.class)
+                {
+                    return null;
+                }
+                writeValue(out, cap.getNamespace());
+                writeValue(out, cap.getDirectives());
+                writeValue(out, cap.getAttributes());
+            }
+            List<BundleRequirement> reqs = revision.getDeclaredRequirements(null);
+            out.writeInt(reqs.size());
+            for (BundleRequirement req : reqs)
+            {
+                if (req.getClass() != BundleRequirementImpl.class)
+                {
+                    return null;
+                }
+                writeValue(out, req.getNamespace());
+                writeValue(out, req.getDirectives());
+                writeValue(out, req.getAttributes());
+                writeValue(out, ((BundleRequirementImpl) req).getFilter());
+            }
+
+            out.writeInt(revision.getDeclaredActivationPolicy());
+            writeValue(out, revision.getActivationIncludes());
+            writeValue(out, revision.getActivationExcludes());
+            out.writeBoolean(revision.isExtension());
+        }
+        catch (UnsupportedValueException ex)
+        {
+            return null;
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    private static void writeValue(DataOutputStream out, Object value)
+        throws IOException
+    {
+        if (value == null)
+        {
+            out.writeByte(NULL_VALUE);
+        }
+        else if (value instanceof String)
+        {
+            out.writeByte(STRING_VALUE);
+            writeString(out, (String) value);
+        }
+        else if (value instanceof Long)
+        {
+            out.writeByte(LONG_VALUE);
+            out.writeLong(((Long) value).longValue());
+        }
+        else if (value instanceof Double)
+        {
+            out.writeByte(DOUBLE_VALUE);
+            out.writeDouble(((Double) value).doubleValue());
+        }
+        else if (value instanceof Version)
+        {
+            out.writeByte(VERSION_VALUE);
+            writeString(out, value.toString());
+        }
+        else if (value instanceof VersionRange)
+        {
+            out.writeByte(VERSION_RANGE_VALUE);
+            writeString(out, value.toString());
+        }
+        else if (value instanceof List)
+        {
+            List list = (List) value;
+            out.writeByte(LIST_VALUE);
+            out.writeInt(list.size());
+            for (Object o : list)
+            {
+                writeValue(out, o);
+            }
+        }
+        else if (value instanceof Map)
+        {
+            Map<Object, Object> map = (Map<Object, Object>) value;
+            out.writeByte(MAP_VALUE);
+            out.writeInt(map.size());
+            for (Entry<Object, Object> entry : map.entrySet())
+            {
+                writeString(out, (String) entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        }
+        else if (value instanceof SimpleFilter)
+        {
+            SimpleFilter sf = (SimpleFilter) value;
+            out.writeByte(FILTER_VALUE);
+            out.writeByte(sf.getOperation());
+            writeValue(out, sf.getName());
+            writeValue(out, sf.getValue());
+        }
+        else
+        {
+            throw new UnsupportedValueException();
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException
+    {
+        byte tag = in.readByte();
+        switch (tag)
+        {
+            case NULL_VALUE:
+                return null;
+            case STRING_VALUE:
+                return readString(in);
+            case LONG_VALUE:
+                return new Long(in.readLong());
+            case DOUBLE_VALUE:
+                return new Double(in.readDouble());
+            case VERSION_VALUE:
+                return Version.parseVersion(readString(in));
+            case VERSION_RANGE_VALUE:
+                return VersionRange.parse(readString(in));
+            case LIST_VALUE:
+                int size = in.readInt();
+                List list = new ArrayList(size);
+                for (int i = 0; i < size; i++)
+                {
+                    list.add(readValue(in));
+                }
+                return list;
+            case MAP_VALUE:
+                size = in.readInt();
+                Map map = new LinkedHashMap(size);
+                for (int i = 0; i < size; i++)
+                {
+                    map.put(readString(in), readValue(in));
+                }
+                return map;
+            case FILTER_VALUE:
+                int op = in.readByte();
+                return new SimpleFilter((String) readValue(in), readValue(in), op);
+            default:
+                throw new IOException("Invalid metadata value type: " + tag);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+        throws IOException
+    {
+        // Manifest headers may exceed the length supported by writeUTF().
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static class UnsupportedValueException extends IOException
+    {
+    }
+}
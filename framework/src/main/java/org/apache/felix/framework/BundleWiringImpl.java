@@ -34,16 +34,20 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.felix.framework.cache.Content;
 import org.apache.felix.framework.cache.JarContent;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.apache.felix.framework.ext.InstrumentationListener;
 import org.apache.felix.framework.resolver.ResourceNotFoundException;
 import org.apache.felix.framework.util.CompoundEnumeration;
 import org.apache.felix.framework.util.FelixConstants;
@@ -83,6 +87,13 @@ public class BundleWiringImpl implements BundleWiring
     public final static int EAGER_ACTIVATION = 0;
     public final static int LAZY_ACTIVATION = 1;
 
+    // Default number of class and resource lookup misses cached per wiring.
+    private final static int DEFAULT_LOOKUP_CACHE_SIZE = 128;
+    // Markers for cached lookup misses: either an imported package did not
+    // contain the name or nothing in the bundle's class space provides it.
+    private final static Object IMPORT_MISS = new Object();
+    private final static Object CLASS_SPACE_MISS = new Object();
+
     private final Logger m_logger;
     private final Map m_configMap;
     private final StatefulResolver m_resolver;
@@ -154,6 +165,9 @@ public class BundleWiringImpl implements BundleWiring
     // Flag indicating whether this wiring has been disposed.
     private volatile boolean m_isDisposed = false;
 
+    // Cache of class and resource lookup misses, null if disabled.
+    private final LookupCache m_lookupCache;
+
     BundleWiringImpl(
         Logger logger, Map configMap, StatefulResolver resolver,
         BundleRevisionImpl revision, List<BundleRevision> fragments,
@@ -449,6 +463,25 @@ public class BundleWiringImpl implements BundleWiring
         m_useLocalURLs =
             (m_configMap.get(FelixConstants.USE_LOCALURLS_PROP) == null)
                 ? false : true;
+
+        int lookupCacheSize = DEFAULT_LOOKUP_CACHE_SIZE;
+        String lookupCacheSizeStr =
+            (String) m_configMap.get(FelixConstants.WIRING_LOOKUP_CACHE_SIZE_PROP);
+        if (lookupCacheSizeStr != null)
+        {
+            try
+            {
+                lookupCacheSize = Integer.parseInt(lookupCacheSizeStr.trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                m_logger.log(Logger.LOG_WARNING,
+                    "Invalid lookup cache size: " + lookupCacheSizeStr);
+            }
+        }
+        // Without a resolver there is no way to notice wiring changes.
+        m_lookupCache = ((m_resolver != null) && (lookupCacheSize > 0))
+            ? new LookupCache(lookupCacheSize) : null;
     }
 
     private static List<List<String>> parsePkgFilters(BundleCapability cap, String filtername)
@@ -487,6 +520,29 @@ public class BundleWiringImpl implements BundleWiring
         }
         m_classLoader = null;
         m_isDisposed = true;
+        if (m_lookupCache != null)
+        {
+            m_lookupCache.clear();
+        }
+    }
+
+    /**
+     * Returns the number of class and resource lookups that were answered
+     * from this wiring's cache of lookup misses.
+    **/
+    public long getLookupCacheHits()
+    {
+        return (m_lookupCache != null) ? m_lookupCache.getHits() : 0;
+    }
+
+    /**
+     * Returns the number of class and resource lookups that were not found
+     * in this wiring's cache of lookup misses and had to search the
+     * bundle's class space.
+    **/
+    public long getLookupCacheMisses()
+    {
+        return (m_lookupCache != null) ? m_lookupCache.getMisses() : 0;
     }
 
 // TODO: OSGi R4.3 - This really shouldn't be public, but it is needed by the
@@ -654,6 +710,12 @@ public class BundleWiringImpl implements BundleWiring
         // to cause any issues.
         m_wires = ImmutableList.newInstance(wires);
         m_importedPkgs = importedPkgs;
+        // Invalidate cached lookup misses, since the new wire may
+        // provide classes that could not be found before.
+        if (m_resolver != null)
+        {
+            m_resolver.incrementGeneration();
+        }
     }
 
     public BundleRevision getResource()
@@ -1503,13 +1565,55 @@ public class BundleWiringImpl implements BundleWiring
                     }
                 }
 
-                // Look in the revision's imports. Note that the search may
-                // be aborted if this method throws an exception, otherwise
-                // it continues if a null is returned.
-                result = searchImports(pkgName, name, isClass);
+                // Check whether an earlier search already found that neither
+                // the imports nor the bundle's own content nor a dynamic
+                // import provides the name. Cached misses are dropped when
+                // the resolver generation changes.
+                long generation = 0;
+                Object miss = null;
+                if (m_lookupCache != null)
+                {
+                    generation = m_resolver.getGeneration();
+                    miss = m_lookupCache.get(getLookupKey(name, isClass), generation);
+                }
+
+                if (miss == IMPORT_MISS)
+                {
+                    if (isClass)
+                    {
+                        throw new ClassNotFoundException(name);
+                    }
+                    throw new ResourceNotFoundException(name);
+                }
+                else if (miss == CLASS_SPACE_MISS)
+                {
+                    // Implicit boot delegation depends on the caller,
+                    // so it must always be performed.
+                    result = searchImplicitBootDelegation(name, isClass);
+                }
+                else
+                {
+                    // Look in the revision's imports. Note that the search may
+                    // be aborted if this method throws an exception, otherwise
+                    // it continues if a null is returned.
+                    try
+                    {
+                        result = searchImports(pkgName, name, isClass);
+                    }
+                    catch (ClassNotFoundException ex)
+                    {
+                        cacheLookupMiss(name, isClass, IMPORT_MISS, generation);
+                        throw ex;
+                    }
+                    catch (ResourceNotFoundException ex)
+                    {
+                        cacheLookupMiss(name, isClass, IMPORT_MISS, generation);
+                        throw ex;
+                    }
+                }
 
                 // If not found, try the revision's own class path.
-                if (result == null)
+                if ((result == null) && (miss == null))
                 {
                     if (isClass)
                     {
@@ -1533,7 +1637,7 @@ public class BundleWiringImpl implements BundleWiring
                     // If still not found, then try the revision's dynamic imports.
                     if (result == null)
                     {
-                        result = searchDynamicImports(pkgName, name, isClass);
+                        result = searchDynamicImports(pkgName, name, isClass, generation);
                     }
                 }
             }
@@ -1567,6 +1671,22 @@ public class BundleWiringImpl implements BundleWiring
         return result;
     }
 
+    private static String getLookupKey(String name, boolean isClass)
+    {
+        // Class names never start with a slash, so resource names
+        // cannot collide with them.
+        return (isClass) ? name : "/" + name;
+    }
+
+    private void cacheLookupMiss(
+        String name, boolean isClass, Object miss, long generation)
+    {
+        if (m_lookupCache != null)
+        {
+            m_lookupCache.put(getLookupKey(name, isClass), miss, generation);
+        }
+    }
+
     private Object searchImports(String pkgName, String name, boolean isClass)
         throws ClassNotFoundException, ResourceNotFoundException
     {
@@ -1624,13 +1744,15 @@ public class BundleWiringImpl implements BundleWiring
     }
 
     private Object searchDynamicImports(
-        final String pkgName, final String name, final boolean isClass)
+        final String pkgName, final String name, final boolean isClass,
+        long generation)
         throws ClassNotFoundException, ResourceNotFoundException
     {
         // At this point, the module's imports were searched and so was the
         // the module's content. Now we make an attempt to load the
         // class/resource via a dynamic import, if possible.
         BundleRevision provider = null;
+        boolean failed = false;
         try
         {
             provider = m_resolver.resolve(m_revision, pkgName);
@@ -1638,10 +1760,12 @@ public class BundleWiringImpl implements BundleWiring
         catch (ResolutionException ex)
         {
             // Ignore this since it is likely normal.
+            failed = true;
         }
         catch (BundleException ex)
         {
             // Ignore this since it is likely the result of a resolver hook.
+            failed = true;
         }
 
         // If the dynamic import was successful, then this initial
@@ -1657,6 +1781,20 @@ public class BundleWiringImpl implements BundleWiring
                 : (Object) ((BundleWiringImpl) provider.getWiring()).getResourceByDelegation(name);
         }
 
+        // Nothing in the bundle's class space provides the class/resource.
+        // A failed resolve may succeed later without any change to the
+        // resolver state, so only remember the miss if there was none.
+        if (!failed)
+        {
+            cacheLookupMiss(name, isClass, CLASS_SPACE_MISS, generation);
+        }
+
+        return searchImplicitBootDelegation(name, isClass);
+    }
+
+    private Object searchImplicitBootDelegation(final String name, final boolean isClass)
+        throws ClassNotFoundException, ResourceNotFoundException
+    {
         // If implicit boot delegation is enabled, then try to guess whether
         // we should boot delegate.
         if (m_implicitBootDelegation)
@@ -1944,7 +2082,14 @@ public class BundleWiringImpl implements BundleWiring
         private Object[][] m_cachedLibs = new Object[0][];
         private static final int LIBNAME_IDX = 0;
         private static final int LIBPATH_IDX = 1;
-        private final Map<String, Thread> m_classLocks = new HashMap<String, Thread>();
+        // Maps the names of classes currently being defined to the
+        // defining thread.
+        private final Map<String, Thread> m_classLocks =
+            new ConcurrentHashMap<String, Thread>();
+        // Per class name monitors used when parallel capable, so threads
+        // defining different classes do not contend on a common lock.
+        private final ConcurrentMap<String, Object> m_classLoadingLocks =
+            new ConcurrentHashMap<String, Object>();
         private final BundleWiringImpl m_wiring;
         private final Logger m_logger;
 
@@ -1968,6 +2113,31 @@ public class BundleWiringImpl implements BundleWiring
             return false;
         }
 
+        /**
+         * Returns the monitor guarding the definition of the named class.
+         * Parallel capable class loaders use one monitor per class name,
+         * otherwise the class loader itself is used. Per name monitors are
+         * never discarded, since threads may still be waiting on them.
+        **/
+        private Object getClassLock(String name)
+        {
+            if (!isParallel())
+            {
+                return this;
+            }
+            Object lock = m_classLoadingLocks.get(name);
+            if (lock == null)
+            {
+                Object newLock = new Object();
+                lock = m_classLoadingLocks.putIfAbsent(name, newLock);
+                if (lock == null)
+                {
+                    lock = newLock;
+                }
+            }
+            return lock;
+        }
+
         public boolean isActivationTriggered()
         {
             return m_isActivationTriggered;
@@ -1984,12 +2154,19 @@ public class BundleWiringImpl implements BundleWiring
         {
             Class clazz;
 
-            // Make sure the class was not already loaded.
-            Object lock = (isParallel()) ? m_classLocks : this;
-            synchronized (lock)
+            // Make sure the class was not already loaded. This needs no
+            // lock when parallel capable.
+            if (isParallel())
             {
                 clazz = findLoadedClass(name);
             }
+            else
+            {
+                synchronized (this)
+                {
+                    clazz = findLoadedClass(name);
+                }
+            }
 
             if (clazz == null)
             {
@@ -2026,6 +2203,28 @@ public class BundleWiringImpl implements BundleWiring
 
         @Override
         protected Class findClass(String name) throws ClassNotFoundException
+        {
+            Felix felix = ((BundleImpl) m_wiring.m_revision.getBundle()).getFramework();
+            InstrumentationListener instrumentation =
+                (felix != null) ? felix.getInstrumentation() : null;
+            if (instrumentation == null)
+            {
+                return doFindClass(name);
+            }
+            long start = System.nanoTime();
+            try
+            {
+                return doFindClass(name);
+            }
+            finally
+            {
+                instrumentation.record(InstrumentationListener.CLASS_FIND,
+                    m_wiring.m_revision.getBundle().getBundleId(), name, start,
+                    System.nanoTime() - start);
+            }
+        }
+
+        private Class doFindClass(String name) throws ClassNotFoundException
         {
             Class clazz = null;
 
@@ -2102,9 +2301,9 @@ public class BundleWiringImpl implements BundleWiring
                         }
                     }
                     // Before we actually attempt to define the class, grab
-                    // the lock for this class loader and make sure than no
+                    // the lock for this class name and make sure than no
                     // other thread has defined this class in the meantime.
-                    Object lock = (isParallel()) ? m_classLocks : this;
+                    Object lock = getClassLock(name);
                     synchronized (lock)
                     {
                         Thread me = Thread.currentThread();
@@ -2129,6 +2328,8 @@ public class BundleWiringImpl implements BundleWiring
                         }
                     }
 
+                    InstrumentationListener instrumentation = felix.getInstrumentation();
+                    long start = (instrumentation != null) ? System.nanoTime() : 0;
                     try
                     {
                         clazz = defineClass(felix, wovenClassListeners, wci, name,
@@ -2143,6 +2344,15 @@ public class BundleWiringImpl implements BundleWiring
                         }
                         throw e;
                     }
+                    finally
+                    {
+                        if (instrumentation != null)
+                        {
+                            instrumentation.record(InstrumentationListener.CLASS_DEFINE,
+                                m_wiring.m_revision.getBundle().getBundleId(), name,
+                                start, System.nanoTime() - start);
+                        }
+                    }
 
                     // Perform deferred activation without holding the class loader lock,
                     // if the class we are returning is the instigating class.
@@ -2639,6 +2849,82 @@ public class BundleWiringImpl implements BundleWiring
         return url;
     }
 
+    /**
+     * Bounded, least recently used cache of lookup misses. All entries
+     * belong to a single resolver generation; a lookup or store with a
+     * newer generation discards them.
+    **/
+    private static class LookupCache
+    {
+        private final Map<String, Object> m_entries;
+        private long m_generation = -1;
+        private long m_hits = 0;
+        private long m_misses = 0;
+
+        LookupCache(final int maxSize)
+        {
+            m_entries = new LinkedHashMap<String, Object>(16, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Object> eldest)
+                {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        synchronized Object get(String key, long generation)
+        {
+            Object value = null;
+            if (generation != m_generation)
+            {
+                m_entries.clear();
+                m_generation = generation;
+            }
+            else
+            {
+                value = m_entries.get(key);
+            }
+            if (value != null)
+            {
+                m_hits++;
+            }
+            else
+            {
+                m_misses++;
+            }
+            return value;
+        }
+
+        synchronized void put(String key, Object value, long generation)
+        {
+            if (generation > m_generation)
+            {
+                m_entries.clear();
+                m_generation = generation;
+            }
+            if (generation == m_generation)
+            {
+                m_entries.put(key, value);
+            }
+        }
+
+        synchronized void clear()
+        {
+            m_entries.clear();
+        }
+
+        synchronized long getHits()
+        {
+            return m_hits;
+        }
+
+        synchronized long getMisses()
+        {
+            return m_misses;
+        }
+    }
+
     private static class ResourceSource implements Comparable<ResourceSource>
     {
         public final String m_resource;
@@ -35,11 +35,13 @@ import java.security.Permission;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -49,6 +51,13 @@ import java.util.StringTokenizer;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.felix.framework.BundleWiringImpl.BundleClassLoader;
 import org.apache.felix.framework.ServiceRegistry.ServiceRegistryCallbacks;
@@ -56,9 +65,11 @@ import org.apache.felix.framework.cache.BundleArchive;
 import org.apache.felix.framework.cache.BundleCache;
 import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.apache.felix.framework.ext.InstrumentationListener;
 import org.apache.felix.framework.ext.SecurityProvider;
 import org.apache.felix.framework.util.EventDispatcher;
 import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.JfrInstrumentation;
 import org.apache.felix.framework.util.ListenerInfo;
 import org.apache.felix.framework.util.MapToDictionary;
 import org.apache.felix.framework.util.SecureAction;
@@ -117,6 +128,8 @@ public class Felix extends BundleImpl implements Framework
 
     // Logging related member variables.
     private final Logger m_logger;
+    // Receives the timings of lifecycle operations, null if disabled.
+    private final InstrumentationListener m_instrumentation;
     // Immutable config properties.
     private final Map m_configMap;
     // Mutable configuration properties passed into constructor.
@@ -124,6 +137,11 @@ public class Felix extends BundleImpl implements Framework
 
     // Resolver and resolver state.
     private final StatefulResolver m_resolver;
+    // Whether to defer creating the revisions of reloaded bundles and
+    // the bundles whose revision is still deferred.
+    private final boolean m_lazyRevisions;
+    private final Map<BundleImpl, Boolean> m_pendingRevisions =
+        new ConcurrentHashMap<BundleImpl, Boolean>();
 
     // Lock object used to determine if an individual bundle
     // lock or the global lock can be acquired.
@@ -172,6 +190,9 @@ public class Felix extends BundleImpl implements Framework
     // Keep track of bundles currently being processed by start level thread.
     private final SortedSet<StartLevelTuple> m_startLevelBundles =
         new TreeSet<StartLevelTuple>();
+    // Set while a thread starts a bundle of a start level on behalf of the
+    // start level thread, so that startBundle() does not queue the start.
+    private final ThreadLocal<Boolean> m_startLevelWorker = new ThreadLocal<Boolean>();
 
     // Local bundle cache.
     private BundleCache m_cache = null;
@@ -381,6 +402,9 @@ public class Felix extends BundleImpl implements Framework
             // Ignore and just use the default logging level.
         }
 
+        // Create instrumentation, if configured.
+        m_instrumentation = createInstrumentation();
+
         // Initialize framework properties.
         initializeFrameworkProperties();
 
@@ -409,6 +433,10 @@ public class Felix extends BundleImpl implements Framework
         // Read the security default policy property
         m_securityDefaultPolicy = "true".equals(getProperty(FelixConstants.SECURITY_DEFAULT_POLICY));
 
+        // Read the lazy revisions property
+        m_lazyRevisions = "true".equalsIgnoreCase(
+            (String) m_configMap.get(FelixConstants.LAZY_REVISIONS_PROP));
+
         // Create default bundle stream handler.
         m_bundleStreamHandler = new URLHandlersBundleStreamHandler(this);
 
@@ -418,7 +446,7 @@ public class Felix extends BundleImpl implements Framework
             {
                 fireServiceEvent(event, oldProps);
             }
-        });
+        }, m_instrumentation);
 
         // Create a resolver and its state.
         m_resolver = new StatefulResolver(this, m_registry);
@@ -438,7 +466,8 @@ public class Felix extends BundleImpl implements Framework
         }
 
         // Create event dispatcher.
-        m_dispatcher = new EventDispatcher(m_logger, m_registry);
+        m_dispatcher = new EventDispatcher(
+            m_logger, m_registry, m_configMap, m_instrumentation);
 
         // Create framework wiring object.
         m_fwkWiring = new FrameworkWiringImpl(this, m_registry);
@@ -451,6 +480,44 @@ public class Felix extends BundleImpl implements Framework
         return m_logger;
     }
 
+    /**
+     * Returns the listener receiving the timings of lifecycle operations,
+     * or <tt>null</tt> if they are not measured.
+    **/
+    InstrumentationListener getInstrumentation()
+    {
+        return m_instrumentation;
+    }
+
+    private InstrumentationListener createInstrumentation()
+    {
+        Object listener = m_configMutableMap.get(FelixConstants.INSTRUMENTATION_PROP);
+        if (listener instanceof InstrumentationListener)
+        {
+            return (InstrumentationListener) listener;
+        }
+        else if (listener != null)
+        {
+            m_logger.log(Logger.LOG_WARNING,
+                "Ignoring instrumentation listener of type "
+                + listener.getClass().getName());
+        }
+        if ("true".equalsIgnoreCase(
+            String.valueOf(m_configMutableMap.get(FelixConstants.INSTRUMENTATION_JFR_PROP))))
+        {
+            try
+            {
+                return JfrInstrumentation.create();
+            }
+            catch (Throwable ex)
+            {
+                m_logger.log(Logger.LOG_WARNING,
+                    "Flight Recorder is not available, instrumentation disabled.", ex);
+            }
+        }
+        return null;
+    }
+
     Map getConfig()
     {
         return m_configMap;
@@ -461,6 +528,11 @@ public class Felix extends BundleImpl implements Framework
         return m_resolver;
     }
 
+    EventDispatcher getEventDispatcher()
+    {
+        return m_dispatcher;
+    }
+
     BundleRevisionDependencies getDependencies()
     {
         return m_dependencies;
@@ -714,6 +786,9 @@ public class Felix extends BundleImpl implements Framework
                     }
                 }
 
+                // Load the wiring persisted by the last run, if enabled.
+                m_resolver.openResolutionCache(m_cache);
+
                 // Initialize installed bundle data structures.
                 Map[] maps = new Map[] {
                     new HashMap<String, BundleImpl>(1),
@@ -866,6 +941,7 @@ public class Felix extends BundleImpl implements Framework
                     }
                     try
                     {
+                        createPendingRevisions();
                         for (Object bundle : m_installedBundles[IDENTIFIER_MAP_IDX].values())
                         {
                             try
@@ -1286,10 +1362,15 @@ public class Felix extends BundleImpl implements Framework
             int high = (isLowering) ? m_activeStartLevel : m_targetStartLevel;
             m_activeStartLevel = (isLowering) ? high : low;
 
+            // Bundles of the same start level may be started concurrently
+            // if configured to do so.
+            int parallelism = getStartLevelParallelism();
+
             // Process bundles and stop or start them accordingly.
             while (bundlesRemaining)
             {
                 StartLevelTuple tuple;
+                List<StartLevelTuple> batch = null;
 
                 // Remove our tuple to be processed while holding the queue lock
                 // and update the active start level accordingly, which allows
@@ -1310,7 +1391,32 @@ public class Felix extends BundleImpl implements Framework
                     if ((tuple.m_level >= low) && (tuple.m_level <= high))
                     {
                         m_activeStartLevel = tuple.m_level;
+
+                        // Take all bundles of the start level at once.
+                        if (!isLowering && (parallelism > 1))
+                        {
+                            batch = new ArrayList<StartLevelTuple>();
+                            for (StartLevelTuple t : m_startLevelBundles)
+                            {
+                                if (t.m_level != tuple.m_level)
+                                {
+                                    break;
+                                }
+                                batch.add(t);
+                            }
+                        }
+                    }
+                }
+
+                if (batch != null)
+                {
+                    startBundlesConcurrently(batch, parallelism);
+                    synchronized (m_startLevelBundles)
+                    {
+                        m_startLevelBundles.removeAll(batch);
+                        bundlesRemaining = !m_startLevelBundles.isEmpty();
                     }
+                    continue;
                 }
 
                 // Ignore the system bundle, since its start() and
@@ -1436,6 +1542,226 @@ public class Felix extends BundleImpl implements Framework
         }
     }
 
+    private int getStartLevelParallelism()
+    {
+        String s = (String) m_configMap.get(FelixConstants.STARTLEVEL_PARALLELISM_PROP);
+        if (s != null)
+        {
+            try
+            {
+                return Integer.parseInt(s.trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                m_logger.log(Logger.LOG_WARNING,
+                    "Invalid start level parallelism: " + s);
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Starts the bundles of a start level concurrently on the given executor
+     * and returns once all of them are processed. The bundles are resolved
+     * first, so that a bundle is only started after the bundles of the same
+     * start level it is wired to; bundles in a dependency cycle are started
+     * in bundle ID order. Failures are reported for each bundle as with
+     * sequential starts, and a summary of the start times is logged.
+     * @param batch The bundles of the start level, sorted by bundle ID.
+     * @param parallelism The maximum number of bundles to start concurrently.
+    **/
+    private void startBundlesConcurrently(
+        List<StartLevelTuple> batch, int parallelism)
+    {
+        long start = System.nanoTime();
+
+        // Determine the bundles that need to be started; the system
+        // bundle is started explicitly in Felix.start().
+        List<StartLevelTuple> pending = new ArrayList<StartLevelTuple>();
+        List<Bundle> bundles = new ArrayList<Bundle>();
+        for (StartLevelTuple tuple : batch)
+        {
+            if ((tuple.m_bundle.getBundleId() != 0)
+                && ((tuple.m_bundle.getPersistentState() == Bundle.ACTIVE)
+                    || (tuple.m_bundle.getPersistentState() == Bundle.STARTING)))
+            {
+                pending.add(tuple);
+                bundles.add(tuple.m_bundle);
+            }
+        }
+        if (pending.isEmpty())
+        {
+            return;
+        }
+        resolveBundles(bundles);
+
+        // Determine the bundles of this start level each bundle is wired to.
+        Map<Bundle, Set<Bundle>> dependencies = new HashMap<Bundle, Set<Bundle>>();
+        for (StartLevelTuple tuple : pending)
+        {
+            Set<Bundle> deps = new HashSet<Bundle>();
+            BundleWiring wiring = tuple.m_bundle.adapt(BundleWiring.class);
+            if (wiring != null)
+            {
+                for (BundleWire wire : wiring.getRequiredWires(null))
+                {
+                    Bundle provider = wire.getProvider().getBundle();
+                    if ((provider != tuple.m_bundle) && bundles.contains(provider))
+                    {
+                        deps.add(provider);
+                    }
+                }
+            }
+            dependencies.put(tuple.m_bundle, deps);
+        }
+
+        // Start the bundles in waves of bundles whose dependencies
+        // have already been processed.
+        final Map<Bundle, Long> times = Collections.synchronizedMap(
+            new HashMap<Bundle, Long>());
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.min(parallelism, pending.size()), new StartLevelThreadFactory());
+        try
+        {
+            while (!pending.isEmpty())
+            {
+                List<StartLevelTuple> wave = new ArrayList<StartLevelTuple>();
+                for (StartLevelTuple tuple : pending)
+                {
+                    Set<Bundle> deps = dependencies.get(tuple.m_bundle);
+                    deps.retainAll(bundles);
+                    if (deps.isEmpty())
+                    {
+                        wave.add(tuple);
+                    }
+                }
+                // Break dependency cycles by starting the lowest bundle ID.
+                if (wave.isEmpty())
+                {
+                    wave.add(pending.get(0));
+                }
+
+                List<Future<?>> futures = new ArrayList<Future<?>>(wave.size());
+                for (final StartLevelTuple tuple : wave)
+                {
+                    futures.add(executor.submit(new Runnable()
+                    {
+                        public void run()
+                        {
+                            long bundleStart = System.nanoTime();
+                            m_startLevelWorker.set(Boolean.TRUE);
+                            try
+                            {
+                                startStartLevelBundle(tuple);
+                            }
+                            finally
+                            {
+                                m_startLevelWorker.remove();
+                            }
+                            times.put(tuple.m_bundle, System.nanoTime() - bundleStart);
+                        }
+                    }));
+                }
+                for (Future<?> future : futures)
+                {
+                    try
+                    {
+                        future.get();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    catch (ExecutionException ex)
+                    {
+                        m_logger.log(Logger.LOG_ERROR,
+                            "Error starting bundles concurrently.", ex.getCause());
+                    }
+                }
+                pending.removeAll(wave);
+                for (StartLevelTuple tuple : wave)
+                {
+                    bundles.remove(tuple.m_bundle);
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        // Report the start times, slowest bundles first.
+        List<Map.Entry<Bundle, Long>> entries =
+            new ArrayList<Map.Entry<Bundle, Long>>(times.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<Bundle, Long>>()
+        {
+            public int compare(Map.Entry<Bundle, Long> e1, Map.Entry<Bundle, Long> e2)
+            {
+                return e2.getValue().compareTo(e1.getValue());
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        sb.append("Started ").append(entries.size()).append(" bundles of start level ")
+            .append(m_activeStartLevel).append(" in ")
+            .append((System.nanoTime() - start) / 1000000).append(" ms:");
+        for (Map.Entry<Bundle, Long> entry : entries)
+        {
+            sb.append(' ').append(entry.getKey()).append('=')
+                .append(entry.getValue() / 1000000).append("ms");
+        }
+        m_logger.log(Logger.LOG_INFO, sb.toString());
+    }
+
+    private void startStartLevelBundle(StartLevelTuple tuple)
+    {
+        // Lock the current bundle.
+        try
+        {
+            acquireBundleLock(tuple.m_bundle,
+                Bundle.INSTALLED | Bundle.RESOLVED | Bundle.ACTIVE
+                | Bundle.STARTING | Bundle.STOPPING);
+        }
+        catch (IllegalStateException ex)
+        {
+            // Ignore if the bundle has been uninstalled.
+            if (tuple.m_bundle.getState() != Bundle.UNINSTALLED)
+            {
+                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, ex);
+                m_logger.log(tuple.m_bundle,
+                    Logger.LOG_ERROR,
+                    "Error locking " + tuple.m_bundle._getLocation(), ex);
+            }
+            return;
+        }
+
+        try
+        {
+            // Check the persistent state again, since it may have
+            // changed while the bundle was not locked.
+            if ((tuple.m_bundle.getPersistentState() == Bundle.ACTIVE)
+                || (tuple.m_bundle.getPersistentState() == Bundle.STARTING))
+            {
+                int options = Bundle.START_TRANSIENT;
+                options = (tuple.m_bundle.getPersistentState() == Bundle.STARTING)
+                    ? options | Bundle.START_ACTIVATION_POLICY
+                    : options;
+                startBundle(tuple.m_bundle, options);
+            }
+        }
+        catch (Throwable th)
+        {
+            fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
+            m_logger.log(tuple.m_bundle,
+                Logger.LOG_ERROR,
+                "Error starting " + tuple.m_bundle._getLocation(), th);
+        }
+        finally
+        {
+            // Always release bundle lock.
+            releaseBundleLock(tuple.m_bundle);
+        }
+    }
+
     /**
      * Returns the start level into which newly installed bundles will
      * be placed by default; this method implements functionality for
@@ -1927,6 +2253,26 @@ public class Felix extends BundleImpl implements Framework
      * Implementation for Bundle.start().
     **/
     void startBundle(BundleImpl bundle, int options) throws BundleException
+    {
+        InstrumentationListener instrumentation = m_instrumentation;
+        if (instrumentation == null)
+        {
+            doStartBundle(bundle, options);
+            return;
+        }
+        long start = System.nanoTime();
+        try
+        {
+            doStartBundle(bundle, options);
+        }
+        finally
+        {
+            instrumentation.record(InstrumentationListener.BUNDLE_START,
+                bundle.getBundleId(), null, start, System.nanoTime() - start);
+        }
+    }
+
+    private void doStartBundle(BundleImpl bundle, int options) throws BundleException
     {
         // CONCURRENCY NOTE:
         // We will first acquire the bundle lock for the specific bundle
@@ -2022,9 +2368,11 @@ public class Felix extends BundleImpl implements Framework
             // so queue this bundle to the start level bundle queue for the start
             // level thread and return, except for transient starts which are
             // queued but processed synchronously.
-            // Note: Don't queue starts from the start level thread, otherwise
-            // we'd never get anything started.
-            if (!Thread.currentThread().getName().equals(FrameworkStartLevelImpl.THREAD_NAME))
+            // Note: Don't queue starts from the start level thread or the
+            // threads it starts bundles on, otherwise we'd never get anything
+            // started.
+            if (!Thread.currentThread().getName().equals(FrameworkStartLevelImpl.THREAD_NAME)
+                && (m_startLevelWorker.get() == null))
             {
                 synchronized (m_startLevelBundles)
                 {
@@ -2519,6 +2867,27 @@ public class Felix extends BundleImpl implements Framework
 
     void stopBundle(BundleImpl bundle, boolean record)
         throws BundleException
+    {
+        InstrumentationListener instrumentation = m_instrumentation;
+        if (instrumentation == null)
+        {
+            doStopBundle(bundle, record);
+            return;
+        }
+        long start = System.nanoTime();
+        try
+        {
+            doStopBundle(bundle, record);
+        }
+        finally
+        {
+            instrumentation.record(InstrumentationListener.BUNDLE_STOP,
+                bundle.getBundleId(), null, start, System.nanoTime() - start);
+        }
+    }
+
+    private void doStopBundle(BundleImpl bundle, boolean record)
+        throws BundleException
     {
         // Acquire bundle lock.
         try
@@ -2862,7 +3231,21 @@ public class Felix extends BundleImpl implements Framework
             }
             try
             {
-                bundle = new BundleImpl(this, null, ba);
+                // In lazy mode, only the identity of the bundle is read
+                // now and its revision is created when needed.
+                bundle = new BundleImpl(this, null, ba, !m_lazyRevisions);
+                if (m_lazyRevisions)
+                {
+                    if (bundle.deferRevision())
+                    {
+                        m_pendingRevisions.put(bundle, Boolean.TRUE);
+                    }
+                    else
+                    {
+                        bundle.addInitialRevision(
+                            bundle.parseRevision(), Collections.<Bundle>emptyList());
+                    }
+                }
 
                 // Extensions are handled as a special case.
                 if (bundle.isExtension())
@@ -3138,6 +3521,467 @@ public class Felix extends BundleImpl implements Framework
         return (existing != null) ? existing : bundle;
     }
 
+    /**
+     * Installs a batch of bundles from their locations. Caching the bundle
+     * archives and parsing their manifests is done concurrently; the new
+     * bundles are then added to the framework at once under the global lock
+     * and their INSTALLED events are fired afterwards. If any bundle of the
+     * batch cannot be installed, none of them is installed. Locations that
+     * are already installed are treated like in <tt>installBundle()</tt>.
+     * Extension bundles cannot be installed in a batch.
+     *
+     * @param origin The bundle installing the batch.
+     * @param locations The locations of the bundles to install.
+     * @return The bundles in the order of the locations.
+     * @throws BundleException If any bundle could not be installed.
+    **/
+    List<Bundle> installBundles(Bundle origin, List<String> locations)
+        throws BundleException
+    {
+        // Acquire the install locks in a fixed order, so concurrent batches
+        // cannot deadlock.
+        List<String> locked = new ArrayList<String>();
+        List<BundleImpl> installed = new ArrayList<BundleImpl>();
+        try
+        {
+            for (String location : new TreeSet<String>(locations))
+            {
+                acquireInstallLock(location);
+                locked.add(location);
+            }
+
+            // Check to see if the framework is still running;
+            if ((getState() == Bundle.STOPPING) ||
+                (getState() == Bundle.UNINSTALLED))
+            {
+                throw new BundleException("The framework has been shutdown.");
+            }
+
+            // Determine the locations that need to be installed, generating
+            // their identifiers in the order of the locations.
+            Set<String> newLocations = new LinkedHashSet<String>();
+            for (String location : locations)
+            {
+                if (getBundle(location) == null)
+                {
+                    newLocations.add(location);
+                }
+            }
+            if (!newLocations.isEmpty())
+            {
+                installed = installBundleBatch(
+                    origin, new ArrayList<String>(newLocations));
+            }
+        }
+        finally
+        {
+            // Always release install locks.
+            for (String location : locked)
+            {
+                releaseInstallLock(location);
+            }
+        }
+
+        // Fire all bundle events once the whole batch is installed.
+        for (BundleImpl bundle : installed)
+        {
+            fireBundleEvent(BundleEvent.INSTALLED, bundle, origin);
+        }
+
+        // Already installed bundles are subject to the find hooks,
+        // which installBundle() takes care of.
+        Map<String, BundleImpl> byLocation = new HashMap<String, BundleImpl>();
+        for (BundleImpl bundle : installed)
+        {
+            byLocation.put(bundle._getLocation(), bundle);
+        }
+        List<Bundle> result = new ArrayList<Bundle>(locations.size());
+        for (String location : locations)
+        {
+            BundleImpl bundle = byLocation.get(location);
+            result.add((bundle != null) ? bundle : installBundle(origin, location, null));
+        }
+        return result;
+    }
+
+    private int getInstallParallelism()
+    {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        String parallelismStr = (String) m_configMap.get(FelixConstants.INSTALL_PARALLELISM_PROP);
+        if (parallelismStr != null)
+        {
+            try
+            {
+                parallelism = Integer.parseInt(parallelismStr.trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                m_logger.log(Logger.LOG_WARNING,
+                    "Invalid install parallelism: " + parallelismStr);
+            }
+        }
+        return parallelism;
+    }
+
+    /**
+     * Creates the deferred revisions of all bundles reloaded in lazy mode,
+     * which is needed when the whole resolver state is used, for instance
+     * by resolver hooks.
+    **/
+    void createPendingRevisions()
+    {
+        createPendingRevisions(null, null, false);
+    }
+
+    /**
+     * Creates the deferred revisions of the bundles reloaded in lazy mode
+     * which may provide a capability in the specified namespace, so that
+     * the resolver state can be queried for it; the revisions of all other
+     * bundles stay deferred.
+     * @param namespace the namespace of the requirement.
+     * @param name the value of the namespace attribute the requirement
+     *        matches exactly or <tt>null</tt> if it is not known.
+    **/
+    void createPendingRevisions(String namespace, String name)
+    {
+        createPendingRevisions(namespace, name, false);
+    }
+
+    /**
+     * Creates the deferred revisions of fragments and singletons reloaded in
+     * lazy mode, which must be known before resolving, since fragments may
+     * attach to any host and singletons take part in singleton selection.
+    **/
+    void createPendingFragmentsAndSingletons()
+    {
+        createPendingRevisions(null, null, true);
+    }
+
+    private void createPendingRevisions(
+        String namespace, String name, boolean fragmentsAndSingletons)
+    {
+        if (m_pendingRevisions.isEmpty())
+        {
+            return;
+        }
+        final List<BundleImpl> bundles = new ArrayList<BundleImpl>();
+        for (BundleImpl bundle : m_pendingRevisions.keySet())
+        {
+            if (!bundle.isRevisionPending())
+            {
+                m_pendingRevisions.remove(bundle);
+            }
+            else if (fragmentsAndSingletons
+                ? bundle.isPendingFragmentOrSingleton()
+                : ((namespace == null) || bundle.mayProvide(namespace, name)))
+            {
+                bundles.add(bundle);
+            }
+        }
+        if (bundles.isEmpty())
+        {
+            return;
+        }
+
+        // The manifests are parsed concurrently, like for batch installs.
+        final BundleRevisionImpl[] revisions = new BundleRevisionImpl[bundles.size()];
+        int parallelism = Math.min(getInstallParallelism(), bundles.size());
+        if (parallelism > 1)
+        {
+            ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+            try
+            {
+                List<Future<?>> futures = new ArrayList<Future<?>>(bundles.size());
+                for (int i = 0; i < bundles.size(); i++)
+                {
+                    final int idx = i;
+                    futures.add(executor.submit(new Callable<Object>()
+                    {
+                        public Object call() throws Exception
+                        {
+                            revisions[idx] = bundles.get(idx).parseRevision();
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<?> future : futures)
+                {
+                    try
+                    {
+                        future.get();
+                    }
+                    catch (ExecutionException ex)
+                    {
+                        // Parsed again and reported below.
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            finally
+            {
+                executor.shutdown();
+            }
+        }
+
+        for (int i = 0; i < bundles.size(); i++)
+        {
+            try
+            {
+                bundles.get(i).createPendingRevision(revisions[i]);
+            }
+            catch (IllegalStateException ex)
+            {
+                // Already reported and the bundle is removed.
+            }
+            m_pendingRevisions.remove(bundles.get(i));
+        }
+    }
+
+    /**
+     * Removes a bundle reloaded in lazy mode whose deferred revision cannot
+     * be created. Like a bundle that cannot be reloaded eagerly, the error
+     * is reported and the bundle is no longer installed, while its archive
+     * is kept in the cache.
+     * @param bundle the bundle whose revision cannot be created.
+     * @param ex the reason.
+    **/
+    void removePendingBundle(BundleImpl bundle, Exception ex)
+    {
+        m_pendingRevisions.remove(bundle);
+
+        BundleImpl target = null;
+        boolean locked = acquireGlobalLock();
+        if (!locked)
+        {
+            m_logger.log(bundle, Logger.LOG_ERROR,
+                "Unable to acquire global lock to remove bundle.", ex);
+            return;
+        }
+        try
+        {
+            // Use a copy-on-write approach to remove the bundle
+            // from the installed maps.
+            Map[] maps = new Map[] {
+                new HashMap<String, BundleImpl>(m_installedBundles[LOCATION_MAP_IDX]),
+                new TreeMap<Long, BundleImpl>(m_installedBundles[IDENTIFIER_MAP_IDX])
+            };
+            target = (BundleImpl) maps[LOCATION_MAP_IDX].remove(bundle._getLocation());
+            if (target == bundle)
+            {
+                maps[IDENTIFIER_MAP_IDX].remove(new Long(bundle.getBundleId()));
+                m_installedBundles = maps;
+            }
+        }
+        finally
+        {
+            releaseGlobalLock();
+        }
+
+        // Only report the error once.
+        if (target == bundle)
+        {
+            bundle.close();
+            setBundleStateAndNotify(bundle, Bundle.UNINSTALLED);
+            fireFrameworkEvent(FrameworkEvent.ERROR, this, ex);
+            m_logger.log(Logger.LOG_ERROR,
+                "Unable to re-install " + bundle._getLocation(), ex);
+        }
+    }
+
+    private List<BundleImpl> installBundleBatch(
+        final Bundle origin, final List<String> locations)
+        throws BundleException
+    {
+        final int count = locations.size();
+        final long[] ids = new long[count];
+        for (int i = 0; i < count; i++)
+        {
+            ids[i] = getNextId();
+        }
+        final BundleArchive[] archives = new BundleArchive[count];
+        final BundleImpl[] bundles = new BundleImpl[count];
+        final BundleRevisionImpl[] revisions = new BundleRevisionImpl[count];
+        final int startLevel = getInitialBundleStartLevel();
+
+        // Cache the archives and parse the manifests concurrently.
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(getInstallParallelism(), count)));
+        Throwable failure = null;
+        String failedLocation = null;
+        try
+        {
+            List<Future<?>> futures = new ArrayList<Future<?>>(count);
+            for (int i = 0; i < count; i++)
+            {
+                final int idx = i;
+                futures.add(executor.submit(new Callable<Object>()
+                {
+                    public Object call() throws Exception
+                    {
+                        archives[idx] = m_cache.create(
+                            ids[idx], startLevel, locations.get(idx), null);
+                        bundles[idx] = new BundleImpl(
+                            Felix.this, origin, archives[idx], false);
+                        revisions[idx] = bundles[idx].parseRevision();
+                        if (revisions[idx].isExtension())
+                        {
+                            throw new BundleException(
+                                "Extension bundles cannot be installed in a batch.");
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < count; i++)
+            {
+                try
+                {
+                    futures.get(i).get();
+                }
+                catch (ExecutionException ex)
+                {
+                    if (failure == null)
+                    {
+                        failure = ex.getCause();
+                        failedLocation = locations.get(i);
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    if (failure == null)
+                    {
+                        failure = ex;
+                        failedLocation = locations.get(i);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        List<BundleImpl> installed = new ArrayList<BundleImpl>(count);
+        if (failure == null)
+        {
+            try
+            {
+                // Acquire the global lock to add the revisions,
+                // since this impacts the global state.
+                boolean locked = acquireGlobalLock();
+                if (!locked)
+                {
+                    throw new BundleException(
+                        "Unable to acquire the global lock to install the bundles.");
+                }
+                try
+                {
+                    List<Bundle> pending = new ArrayList<Bundle>(count);
+                    for (int i = 0; i < count; i++)
+                    {
+                        failedLocation = locations.get(i);
+                        bundles[i].addInitialRevision(revisions[i], pending);
+                        pending.add(bundles[i]);
+                        installed.add(bundles[i]);
+                    }
+                }
+                finally
+                {
+                    // Always release the global lock.
+                    releaseGlobalLock();
+                }
+
+                // Check the permissions once the bundles have their
+                // revisions, like installBundle() does.
+                Object sm = System.getSecurityManager();
+                if (sm != null)
+                {
+                    for (int i = 0; i < count; i++)
+                    {
+                        failedLocation = locations.get(i);
+                        ((SecurityManager) sm).checkPermission(
+                            new AdminPermission(bundles[i], AdminPermission.LIFECYCLE));
+                    }
+                }
+
+                // Publish all bundles at once.
+                locked = acquireGlobalLock();
+                if (!locked)
+                {
+                    throw new BundleException(
+                        "Unable to acquire the global lock to install the bundles.");
+                }
+                try
+                {
+                    // Use a copy-on-write approach to add the bundles
+                    // to the installed maps.
+                    Map[] maps = new Map[] {
+                        new HashMap<String, BundleImpl>(m_installedBundles[LOCATION_MAP_IDX]),
+                        new TreeMap<Long, BundleImpl>(m_installedBundles[IDENTIFIER_MAP_IDX])
+                    };
+                    for (BundleImpl bundle : installed)
+                    {
+                        maps[LOCATION_MAP_IDX].put(bundle._getLocation(), bundle);
+                        maps[IDENTIFIER_MAP_IDX].put(new Long(bundle.getBundleId()), bundle);
+                    }
+                    m_installedBundles = maps;
+                }
+                finally
+                {
+                    // Always release the global lock.
+                    releaseGlobalLock();
+                }
+                return installed;
+            }
+            catch (Throwable ex)
+            {
+                failure = ex;
+            }
+        }
+
+        // Remove the whole batch from the cache.
+        for (int i = 0; i < count; i++)
+        {
+            try
+            {
+                // Only the revisions added to installed bundles are
+                // closed by closeAndDelete().
+                if ((revisions[i] != null) && (i >= installed.size()))
+                {
+                    revisions[i].close();
+                }
+                if (bundles[i] != null)
+                {
+                    bundles[i].closeAndDelete();
+                }
+                else if (archives[i] != null)
+                {
+                    archives[i].closeAndDelete();
+                }
+            }
+            catch (Exception ex)
+            {
+                m_logger.log(bundles[i],
+                    Logger.LOG_ERROR,
+                    "Could not remove from cache.", ex);
+            }
+        }
+        if (failure instanceof BundleException)
+        {
+            throw (BundleException) failure;
+        }
+        else if (failure instanceof AccessControlException)
+        {
+            throw (AccessControlException) failure;
+        }
+        throw new BundleException("Unable to install bundle: " + failedLocation, failure);
+    }
+
     /**
      * Retrieves a bundle from its location.
      *
@@ -4880,6 +5724,9 @@ public class Felix extends BundleImpl implements Framework
                 }
             }
 
+            // Persist the resulting wiring for the next run, if enabled.
+            m_resolver.closeResolutionCache();
+
             // Delete uninstalled bundles.
             for (int i = 0;
                 (m_uninstalledBundles != null) && (i < m_uninstalledBundles.size());
@@ -5051,6 +5898,20 @@ public class Felix extends BundleImpl implements Framework
         }
     }
 
+    // Creates the threads starting the bundles of a start level concurrently.
+    private static class StartLevelThreadFactory implements ThreadFactory
+    {
+        private int m_count = 0;
+
+        public synchronized Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r,
+                FrameworkStartLevelImpl.THREAD_NAME + "-" + (++m_count));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
     // Compares bundles by start level. Within a start level,
     // bundles are sorted by bundle ID.
     private static class StartLevelTuple implements Comparable<StartLevelTuple>
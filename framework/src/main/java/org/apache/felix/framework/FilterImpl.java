@@ -22,23 +22,21 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import org.apache.felix.framework.ServiceRegistrationImpl.ServiceReferenceImpl;
-import org.apache.felix.framework.capabilityset.CapabilitySet;
+import org.apache.felix.framework.capabilityset.CompiledFilter;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.apache.felix.framework.util.StringMap;
-import org.apache.felix.framework.wiring.BundleCapabilityImpl;
 import org.osgi.framework.Filter;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
-import org.osgi.framework.wiring.BundleRevision;
 
 public class FilterImpl implements Filter
 {
     private final SimpleFilter m_filter;
+    private final CompiledFilter m_compiled;
 
     public FilterImpl(String filterStr) throws InvalidSyntaxException
     {
@@ -50,33 +48,36 @@ public class FilterImpl implements Filter
         {
             throw new InvalidSyntaxException(th.getMessage(), filterStr);
         }
+        m_compiled = CompiledFilter.compile(m_filter);
     }
 
     public boolean match(ServiceReference sr)
     {
         if (sr instanceof ServiceReferenceImpl)
         {
-            return CapabilitySet.matches((ServiceReferenceImpl) sr, m_filter);
+            return m_compiled.matches(
+                ((ServiceReferenceImpl) sr).getRegistration().getPropertyMap());
         }
         else
         {
-            return CapabilitySet.matches(new WrapperCapability(sr), m_filter);
+            return m_compiled.matches(sr);
         }
     }
 
     public boolean match(Dictionary<String, ? > dctnr)
     {
-        return CapabilitySet.matches(new WrapperCapability(dctnr, false), m_filter);
+        // Copying the dictionary detects keys that only differ in case.
+        return m_compiled.matches(new DictionaryToMap(dctnr, false));
     }
 
     public boolean matchCase(Dictionary<String, ? > dctnr)
     {
-        return CapabilitySet.matches(new WrapperCapability(dctnr, true), m_filter);
+        return m_compiled.matches(dctnr);
     }
 
     public boolean matches(Map<String, ?> map)
     {
-        return CapabilitySet.matches(new WrapperCapability(map), m_filter);
+        return m_compiled.matches(map);
     }
 
     public boolean equals(Object o)
@@ -94,63 +95,6 @@ public class FilterImpl implements Filter
         return m_filter.toString();
     }
 
-    static class WrapperCapability extends BundleCapabilityImpl
-    {
-        private final Map m_map;
-
-        public WrapperCapability(Map map)
-        {
-            super(null, null, Collections.EMPTY_MAP, Collections.EMPTY_MAP);
-            m_map = (map == null) ? Collections.EMPTY_MAP : map;
-        }
-
-        public WrapperCapability(Dictionary dict, boolean caseSensitive)
-        {
-            super(null, null, Collections.EMPTY_MAP, Collections.EMPTY_MAP);
-            m_map = new DictionaryToMap(dict, caseSensitive);
-        }
-
-        public WrapperCapability(ServiceReference sr)
-        {
-            super(null, null, Collections.EMPTY_MAP, Collections.EMPTY_MAP);
-            m_map = new StringMap();
-            for (String key : sr.getPropertyKeys())
-            {
-                m_map.put(key, sr.getProperty(key));
-            }
-        }
-
-        @Override
-        public BundleRevision getRevision()
-        {
-            throw new UnsupportedOperationException("Not supported yet.");
-        }
-
-        @Override
-        public String getNamespace()
-        {
-            throw new UnsupportedOperationException("Not supported yet.");
-        }
-
-        @Override
-        public Map<String, String> getDirectives()
-        {
-            throw new UnsupportedOperationException("Not supported yet.");
-        }
-
-        @Override
-        public Map<String, Object> getAttributes()
-        {
-            return m_map;
-        }
-
-        @Override
-        public List<String> getUses()
-        {
-            throw new UnsupportedOperationException("Not supported yet.");
-        }
-    }
-
     private static class DictionaryToMap implements Map
     {
         private final Map m_map;
@@ -0,0 +1,621 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.felix.framework.util.Util;
+import org.apache.felix.framework.wiring.BundleWireImpl;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+
+/**
+ * Persists the wiring computed by the resolver so that it can be reused
+ * after a framework restart instead of resolving again. The persisted wiring
+ * is only used if the digest of the installed revisions' manifests and the
+ * framework execution environment are unchanged; otherwise the resolver
+ * is used as usual. Wires are persisted by revision identifier and the
+ * index of their requirement and capability within the declaring revision.
+ */
+class ResolutionCache
+{
+    private static final int VERSION = 1;
+
+    private final Logger m_logger;
+    private final File m_file;
+    private final String m_fwkExecEnvStr;
+
+    // Digest of the revisions the persisted wiring was computed against.
+    private String m_persistedDigest;
+    // Maps revision identifiers to the wires loaded from persistent storage.
+    private Map<String, List<WireRecord>> m_persistedWires =
+        new HashMap<String, List<WireRecord>>();
+    // Maps revision identifiers to the wires resolved during this run.
+    private final Map<String, List<WireRecord>> m_wires =
+        new HashMap<String, List<WireRecord>>();
+    // Caches the digest of each revision's manifest.
+    private final Map<BundleRevision, byte[]> m_revisionDigests =
+        new HashMap<BundleRevision, byte[]>();
+    // Digest of all revisions; null when a revision was added or removed.
+    private String m_digest;
+    // Maps revision identifiers to revisions; null along with the digest.
+    private Map<String, BundleRevision> m_revisionsById;
+    // Number of resolves served from and not served from the persisted wiring.
+    private int m_hits;
+    private int m_misses;
+
+    ResolutionCache(Logger logger, File file, String fwkExecEnvStr)
+    {
+        m_logger = logger;
+        m_file = file;
+        m_fwkExecEnvStr = fwkExecEnvStr;
+    }
+
+    synchronized void load()
+    {
+        InputStream is = null;
+        try
+        {
+            is = Felix.m_secureAction.getFileInputStream(m_file);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+            if (in.readInt() != VERSION)
+            {
+                return;
+            }
+            String digest = in.readUTF();
+            Map<String, List<WireRecord>> wires = new HashMap<String, List<WireRecord>>();
+            for (int i = in.readInt(); i > 0; i--)
+            {
+                String id = in.readUTF();
+                int size = in.readInt();
+                List<WireRecord> records = new ArrayList<WireRecord>(size);
+                for (int j = 0; j < size; j++)
+                {
+                    records.add(new WireRecord(
+                        in.readUTF(), in.readUTF(), in.readInt(),
+                        in.readUTF(), in.readUTF(), in.readInt()));
+                }
+                wires.put(id, records);
+            }
+            m_persistedDigest = digest;
+            m_persistedWires = wires;
+        }
+        catch (FileNotFoundException ex)
+        {
+            // Ignore this case because there is no persisted
+            // wiring before the first shutdown of the framework.
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(
+                Logger.LOG_WARNING,
+                "Unable to load resolution cache from persistent storage.",
+                ex);
+        }
+        finally
+        {
+            try
+            {
+                if (is != null) is.close();
+            }
+            catch (Exception ex)
+            {
+                m_logger.log(
+                    Logger.LOG_WARNING,
+                    "Unable to close resolution cache file.",
+                    ex);
+            }
+        }
+    }
+
+    /**
+     * Persists the wires of all currently resolved revisions along with the
+     * digest of the specified revisions.
+     * @param revisions all revisions known to the resolver.
+     */
+    synchronized void store(Collection<BundleRevision> revisions)
+    {
+        String digest = getDigest(revisions);
+
+        Map<String, List<WireRecord>> wires = new HashMap<String, List<WireRecord>>();
+        for (Entry<String, List<WireRecord>> entry : m_wires.entrySet())
+        {
+            BundleRevision revision = m_revisionsById.get(entry.getKey());
+            if ((revision != null) && (revision.getWiring() != null))
+            {
+                wires.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        // Write to a temporary file first, so an interrupted shutdown
+        // never leaves a truncated cache file behind.
+        File tmpFile = new File(m_file.getPath() + ".tmp");
+        OutputStream os = null;
+        try
+        {
+            os = Felix.m_secureAction.getFileOutputStream(tmpFile);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+            out.writeInt(VERSION);
+            out.writeUTF(digest);
+            out.writeInt(wires.size());
+            for (Entry<String, List<WireRecord>> entry : wires.entrySet())
+            {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (WireRecord record : entry.getValue())
+                {
+                    out.writeUTF(record.m_requirerId);
+                    out.writeUTF(record.m_reqRevisionId);
+                    out.writeInt(record.m_reqIndex);
+                    out.writeUTF(record.m_providerId);
+                    out.writeUTF(record.m_capRevisionId);
+                    out.writeInt(record.m_capIndex);
+                }
+            }
+            out.close();
+            os = null;
+            Felix.m_secureAction.deleteFile(m_file);
+            if (!Felix.m_secureAction.renameFile(tmpFile, m_file))
+            {
+                throw new IOException("Unable to rename " + tmpFile);
+            }
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(
+                Logger.LOG_WARNING,
+                "Unable to save resolution cache to persistent storage.",
+                ex);
+        }
+        finally
+        {
+            try
+            {
+                if (os != null) os.close();
+            }
+            catch (Exception ex)
+            {
+                m_logger.log(
+                    Logger.LOG_WARNING,
+                    "Unable to close resolution cache file.",
+                    ex);
+            }
+            Felix.m_secureAction.deleteFile(tmpFile);
+        }
+    }
+
+    synchronized void addRevision(BundleRevision revision)
+    {
+        m_digest = null;
+        m_revisionsById = null;
+    }
+
+    synchronized void removeRevision(BundleRevision revision)
+    {
+        m_revisionDigests.remove(revision);
+        m_digest = null;
+        m_revisionsById = null;
+    }
+
+    /**
+     * Returns the persisted wiring for the specified revisions, if the
+     * persisted wiring was computed against the same set of revisions and
+     * it covers all of the specified revisions. The returned wiring also
+     * contains the wires of any unresolved revisions the specified ones
+     * depend on as well as any attached fragments.
+     * @param revisions all revisions known to the resolver.
+     * @param mandatory the mandatory revisions to resolve.
+     * @param optional the optional revisions to resolve.
+     * @return the persisted wiring or <tt>null</tt> if it cannot be used.
+     */
+    synchronized Map<Resource, List<Wire>> getWiring(
+        Collection<BundleRevision> revisions,
+        Set<BundleRevision> mandatory, Set<BundleRevision> optional)
+    {
+        Map<Resource, List<Wire>> wireMap = findWiring(revisions, mandatory, optional);
+        if (wireMap != null)
+        {
+            m_hits++;
+        }
+        else
+        {
+            m_misses++;
+        }
+        return wireMap;
+    }
+
+    /**
+     * Returns the number of calls to {@link #getWiring} which returned the
+     * persisted wiring.
+     */
+    synchronized int getHits()
+    {
+        return m_hits;
+    }
+
+    /**
+     * Returns the number of calls to {@link #getWiring} which did not return
+     * the persisted wiring, such that the resolver was used.
+     */
+    synchronized int getMisses()
+    {
+        return m_misses;
+    }
+
+    private Map<Resource, List<Wire>> findWiring(
+        Collection<BundleRevision> revisions,
+        Set<BundleRevision> mandatory, Set<BundleRevision> optional)
+    {
+        if (m_persistedWires.isEmpty()
+            || (mandatory.isEmpty() && optional.isEmpty())
+            || !getDigest(revisions).equals(m_persistedDigest))
+        {
+            return null;
+        }
+
+        // Maps a host revision identifier to its attached fragments.
+        Map<String, List<String>> fragments = new HashMap<String, List<String>>();
+        for (Entry<String, List<WireRecord>> entry : m_persistedWires.entrySet())
+        {
+            BundleRevision revision = m_revisionsById.get(entry.getKey());
+            if ((revision != null) && Util.isFragment(revision))
+            {
+                for (WireRecord record : entry.getValue())
+                {
+                    List<String> hostFragments = fragments.get(record.m_providerId);
+                    if (hostFragments == null)
+                    {
+                        hostFragments = new ArrayList<String>();
+                        fragments.put(record.m_providerId, hostFragments);
+                    }
+                    hostFragments.add(entry.getKey());
+                }
+            }
+        }
+
+        // Calculate the closure of unresolved revisions.
+        Set<BundleRevision> closure = new LinkedHashSet<BundleRevision>();
+        List<BundleRevision> todo = new ArrayList<BundleRevision>(mandatory);
+        todo.addAll(optional);
+        while (!todo.isEmpty())
+        {
+            BundleRevision revision = todo.remove(todo.size() - 1);
+            if (revision.getWiring() != null)
+            {
+                // Fragments that are already attached to a host would need
+                // their existing wires merged, so leave that to the resolver.
+                if (Util.isFragment(revision))
+                {
+                    return null;
+                }
+                continue;
+            }
+            if (!closure.add(revision))
+            {
+                continue;
+            }
+            List<WireRecord> records = m_persistedWires.get(getId(revision));
+            if (records == null)
+            {
+                return null;
+            }
+            for (WireRecord record : records)
+            {
+                BundleRevision provider = m_revisionsById.get(record.m_providerId);
+                if (provider == null)
+                {
+                    return null;
+                }
+                todo.add(provider);
+            }
+            List<String> hostFragments = fragments.get(getId(revision));
+            if (hostFragments != null)
+            {
+                for (String fragmentId : hostFragments)
+                {
+                    todo.add(m_revisionsById.get(fragmentId));
+                }
+            }
+        }
+
+        if (closure.isEmpty())
+        {
+            return null;
+        }
+
+        Map<Resource, List<Wire>> wireMap = new HashMap<Resource, List<Wire>>();
+        for (BundleRevision revision : closure)
+        {
+            List<WireRecord> records = m_persistedWires.get(getId(revision));
+            List<Wire> wires = new ArrayList<Wire>(records.size());
+            for (WireRecord record : records)
+            {
+                Wire wire = record.toWire(m_revisionsById);
+                if (wire == null)
+                {
+                    return null;
+                }
+                wires.add(wire);
+            }
+            wireMap.put(revision, wires);
+        }
+        return wireMap;
+    }
+
+    /**
+     * Records the wiring computed by the resolver, so that it will be
+     * persisted on shutdown.
+     * @param wireMap the wiring of the newly resolved revisions.
+     */
+    synchronized void record(Map<Resource, List<Wire>> wireMap)
+    {
+        for (Entry<Resource, List<Wire>> entry : wireMap.entrySet())
+        {
+            if (!(entry.getKey() instanceof BundleRevisionImpl))
+            {
+                continue;
+            }
+            BundleRevision revision = (BundleRevision) entry.getKey();
+            List<WireRecord> records = new ArrayList<WireRecord>(entry.getValue().size());
+            // Fragments may get attached to additional hosts later, so
+            // keep their existing host wires.
+            if (Util.isFragment(revision) && (m_wires.get(getId(revision)) != null))
+            {
+                records.addAll(m_wires.get(getId(revision)));
+            }
+            for (Wire wire : entry.getValue())
+            {
+                WireRecord record = WireRecord.fromWire(wire);
+                if (record == null)
+                {
+                    // The wire cannot be persisted, so neither can the
+                    // wiring of the revision.
+                    records = null;
+                    break;
+                }
+                records.add(record);
+            }
+            if (records != null)
+            {
+                m_wires.put(getId(revision), records);
+            }
+            else
+            {
+                m_wires.remove(getId(revision));
+            }
+        }
+    }
+
+    private static String getId(BundleRevision revision)
+    {
+        return ((BundleRevisionImpl) revision).getId();
+    }
+
+    private String getDigest(Collection<BundleRevision> revisions)
+    {
+        if (m_digest != null)
+        {
+            return m_digest;
+        }
+
+        try
+        {
+            Map<String, BundleRevision> revisionsById =
+                new TreeMap<String, BundleRevision>();
+            for (BundleRevision revision : revisions)
+            {
+                revisionsById.put(getId(revision), revision);
+            }
+
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            update(md, m_fwkExecEnvStr);
+            for (Entry<String, BundleRevision> entry : revisionsById.entrySet())
+            {
+                byte[] revisionDigest = m_revisionDigests.get(entry.getValue());
+                if (revisionDigest == null)
+                {
+                    revisionDigest = getRevisionDigest((BundleRevisionImpl) entry.getValue());
+                    m_revisionDigests.put(entry.getValue(), revisionDigest);
+                }
+                update(md, entry.getKey());
+                md.update(revisionDigest);
+            }
+
+            StringBuffer sb = new StringBuffer();
+            for (byte b : md.digest())
+            {
+                sb.append(Integer.toHexString((b >> 4) & 0xF));
+                sb.append(Integer.toHexString(b & 0xF));
+            }
+            m_digest = sb.toString();
+            m_revisionsById = revisionsById;
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            m_logger.log(
+                Logger.LOG_WARNING,
+                "Unable to calculate resolution cache digest.",
+                ex);
+            m_digest = "";
+            m_revisionsById = new HashMap<String, BundleRevision>();
+        }
+        return m_digest;
+    }
+
+    private static byte[] getRevisionDigest(BundleRevisionImpl revision)
+        throws NoSuchAlgorithmException
+    {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        Map<String, Object> headers = new TreeMap<String, Object>(revision.getHeaders());
+        for (Entry<String, Object> entry : headers.entrySet())
+        {
+            update(md, entry.getKey());
+            update(md, String.valueOf(entry.getValue()));
+        }
+        // The system bundle's capabilities depend on the framework
+        // configuration and extensions rather than on its manifest.
+        if (revision.getBundle().getBundleId() == 0)
+        {
+            for (BundleCapability cap : revision.getDeclaredCapabilities(null))
+            {
+                update(md, cap.getNamespace());
+                for (Entry<String, Object> entry
+                    : new TreeMap<String, Object>(cap.getAttributes()).entrySet())
+                {
+                    update(md, entry.getKey());
+                    update(md, (entry.getValue() instanceof Object[])
+                        ? Arrays.asList((Object[]) entry.getValue()).toString()
+                        : String.valueOf(entry.getValue()));
+                }
+                for (Entry<String, String> entry
+                    : new TreeMap<String, String>(cap.getDirectives()).entrySet())
+                {
+                    update(md, entry.getKey());
+                    update(md, entry.getValue());
+                }
+            }
+        }
+        return md.digest();
+    }
+
+    private static void update(MessageDigest md, String s)
+    {
+        if (s != null)
+        {
+            try
+            {
+                md.update(s.getBytes("UTF-8"));
+            }
+            catch (IOException ex)
+            {
+                // UTF-8 is always supported.
+            }
+        }
+        md.update((byte) 0);
+    }
+
+    private static class WireRecord
+    {
+        private final String m_requirerId;
+        private final String m_reqRevisionId;
+        private final int m_reqIndex;
+        private final String m_providerId;
+        private final String m_capRevisionId;
+        private final int m_capIndex;
+
+        WireRecord(
+            String requirerId, String reqRevisionId, int reqIndex,
+            String providerId, String capRevisionId, int capIndex)
+        {
+            m_requirerId = requirerId;
+            m_reqRevisionId = reqRevisionId;
+            m_reqIndex = reqIndex;
+            m_providerId = providerId;
+            m_capRevisionId = capRevisionId;
+            m_capIndex = capIndex;
+        }
+
+        static WireRecord fromWire(Wire wire)
+        {
+            if (!(wire.getRequirer() instanceof BundleRevisionImpl)
+                || !(wire.getRequirement() instanceof BundleRequirement)
+                || !(wire.getProvider() instanceof BundleRevisionImpl)
+                || !(wire.getCapability() instanceof BundleCapability))
+            {
+                return null;
+            }
+            BundleRequirement req = (BundleRequirement) wire.getRequirement();
+            BundleCapability cap = (BundleCapability) wire.getCapability();
+            if (!(req.getRevision() instanceof BundleRevisionImpl)
+                || !(cap.getRevision() instanceof BundleRevisionImpl))
+            {
+                return null;
+            }
+            int reqIndex = indexOf(req.getRevision().getDeclaredRequirements(null), req);
+            int capIndex = indexOf(cap.getRevision().getDeclaredCapabilities(null), cap);
+            if ((reqIndex < 0) || (capIndex < 0))
+            {
+                return null;
+            }
+            return new WireRecord(
+                ((BundleRevisionImpl) wire.getRequirer()).getId(),
+                ((BundleRevisionImpl) req.getRevision()).getId(),
+                reqIndex,
+                ((BundleRevisionImpl) wire.getProvider()).getId(),
+                ((BundleRevisionImpl) cap.getRevision()).getId(),
+                capIndex);
+        }
+
+        Wire toWire(Map<String, BundleRevision> revisionsById)
+        {
+            BundleRevision requirer = revisionsById.get(m_requirerId);
+            BundleRevision reqRevision = revisionsById.get(m_reqRevisionId);
+            BundleRevision provider = revisionsById.get(m_providerId);
+            BundleRevision capRevision = revisionsById.get(m_capRevisionId);
+            if ((requirer == null) || (reqRevision == null)
+                || (provider == null) || (capRevision == null))
+            {
+                return null;
+            }
+            List<BundleRequirement> reqs = reqRevision.getDeclaredRequirements(null);
+            List<BundleCapability> caps = capRevision.getDeclaredCapabilities(null);
+            if ((m_reqIndex >= reqs.size()) || (m_capIndex >= caps.size()))
+            {
+                return null;
+            }
+            return new BundleWireImpl(
+                requirer, reqs.get(m_reqIndex), provider, caps.get(m_capIndex));
+        }
+
+        private static int indexOf(List<?> list, Object o)
+        {
+            for (int i = 0; i < list.size(); i++)
+            {
+                if (list.get(i) == o)
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
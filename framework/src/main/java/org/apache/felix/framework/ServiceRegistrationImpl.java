@@ -202,6 +202,16 @@ class ServiceRegistrationImpl implements ServiceRegistration
         return m_propMap.get(key);
     }
 
+    /**
+     * Returns the current service properties, keyed case-insensitively.
+     * Since the properties are replaced rather than modified, the returned
+     * map is a consistent snapshot that must not be modified.
+    **/
+    Map<String, Object> getPropertyMap()
+    {
+        return m_propMap;
+    }
+
     private String[] getPropertyKeys()
     {
         Set s = m_propMap.keySet();
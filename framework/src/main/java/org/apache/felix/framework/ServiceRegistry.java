@@ -23,6 +23,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -30,10 +31,12 @@ import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
-import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.apache.felix.framework.ext.InstrumentationListener;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
@@ -42,6 +45,7 @@ import org.osgi.framework.ServiceException;
 import org.osgi.framework.ServiceFactory;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
+import org.osgi.resource.Capability;
 
 public class ServiceRegistry
 {
@@ -49,17 +53,26 @@ public class ServiceRegistry
     private long m_currentServiceId = 1L;
     // Maps bundle to an array of service registrations.
     private final Map<Bundle, ServiceRegistration<?>[]> m_regsMap = Collections.synchronizedMap(new HashMap<Bundle, ServiceRegistration<?>[]>());
-    // Capability set for all service registrations.
-    private final CapabilitySet m_regCapSet;
+    // Maps object class name to a copy-on-write array of service references
+    // registered under that name. Arrays are only replaced while holding
+    // the registry lock, so lookups can read them without locking.
+    private final ConcurrentMap<String, ServiceReference<?>[]> m_regsByClass =
+        new ConcurrentHashMap<String, ServiceReference<?>[]>();
+    // All registered service references, for lookups without an object class.
+    private final ConcurrentMap<ServiceReference<?>, ServiceReference<?>> m_allRefs =
+        new ConcurrentHashMap<ServiceReference<?>, ServiceReference<?>>();
 
     // Maps registration to thread to keep track when a
     // registration is in use, which will cause other
     // threads to wait.
     private final Map<ServiceRegistration<?>, Object> m_lockedRegsMap = new HashMap<ServiceRegistration<?>, Object>();
-    // Maps bundle to an array of usage counts.
-    private final Map<Bundle, UsageCount[]> m_inUseMap = new HashMap<Bundle, UsageCount[]>();
+    // Maps bundle to an array of usage counts. Arrays are replaced rather
+    // than modified, so the in use services can be read without locking.
+    private final Map<Bundle, UsageCount[]> m_inUseMap =
+        new ConcurrentHashMap<Bundle, UsageCount[]>();
 
     private final ServiceRegistryCallbacks m_callbacks;
+    private final InstrumentationListener m_instrumentation;
 
     private final WeakHashMap<ServiceReference<?>, ServiceReference<?>> m_blackList =
         new WeakHashMap<ServiceReference<?>, ServiceReference<?>>();
@@ -80,15 +93,23 @@ public class ServiceRegistry
     };
     private final Map<Class<?>, Set<ServiceReference<?>>> m_allHooks =
         new HashMap<Class<?>, Set<ServiceReference<?>>>();
+    // Sorted, unmodifiable copies of the hooks per hook class, which are
+    // replaced whenever the hooks of a class change, so that looking up
+    // hooks neither locks nor copies.
+    private volatile Map<Class<?>, SortedSet<ServiceReference<?>>> m_hookSnapshot =
+        Collections.emptyMap();
 
     public ServiceRegistry(Logger logger, ServiceRegistryCallbacks callbacks)
+    {
+        this(logger, callbacks, null);
+    }
+
+    public ServiceRegistry(Logger logger, ServiceRegistryCallbacks callbacks,
+        InstrumentationListener instrumentation)
     {
         m_logger = logger;
         m_callbacks = callbacks;
-
-        List indices = new ArrayList();
-        indices.add(Constants.OBJECTCLASS);
-        m_regCapSet = new CapabilitySet(indices, false);
+        m_instrumentation = instrumentation;
     }
 
     public ServiceReference<?>[] getRegisteredServices(Bundle bundle)
@@ -117,11 +138,12 @@ public class ServiceRegistry
     public ServiceRegistration<?> registerService(
         BundleContext context, String[] classNames, Object svcObj, Dictionary dict)
     {
+        long start = (m_instrumentation != null) ? System.nanoTime() : 0;
         ServiceRegistrationImpl reg = null;
+        Bundle bundle = context.getBundle();
 
         synchronized (this)
         {
-            Bundle bundle = context.getBundle();
 
             // Create the service registration.
             reg = new ServiceRegistrationImpl(
@@ -133,7 +155,14 @@ public class ServiceRegistry
             // Get the bundles current registered services.
             ServiceRegistration<?>[] regs = m_regsMap.get(bundle);
             m_regsMap.put(bundle, addServiceRegistration(regs, reg));
-            m_regCapSet.addCapability((BundleCapabilityImpl) reg.getReference());
+            indexServiceReference(classNames, reg.getReference());
+        }
+
+        if (m_instrumentation != null)
+        {
+            m_instrumentation.record(InstrumentationListener.SERVICE_REGISTER,
+                bundle.getBundleId(), classNames[0], start,
+                System.nanoTime() - start);
         }
 
         return reg;
@@ -155,7 +184,7 @@ public class ServiceRegistry
             // Now remove the registered service.
             ServiceRegistration<?>[] regs = m_regsMap.get(bundle);
             m_regsMap.put(bundle, removeServiceRegistration(regs, reg));
-            m_regCapSet.removeCapability((BundleCapabilityImpl) reg.getReference());
+            deindexServiceReference(reg.getReference());
         }
 
         // Notify callback objects about unregistering service.
@@ -239,32 +268,78 @@ public class ServiceRegistry
         }
     }
 
-    public synchronized Collection getServiceReferences(String className, SimpleFilter filter)
+    /**
+     * Returns the service references matching the specified class name and
+     * filter. This method does not acquire the registry lock; it works on
+     * the copy-on-write per class arrays, so concurrent lookups neither
+     * wait for each other nor for registrations in progress.
+     * @param className the object class to match or <tt>null</tt>.
+     * @param filter the filter to match or <tt>null</tt>.
+     * @return a modifiable collection of matching service references.
+    **/
+    public Collection getServiceReferences(String className, SimpleFilter filter)
     {
-        if ((className == null) && (filter == null))
+        // If no class name is given, see whether the filter itself
+        // restricts the object class so we can still use the index.
+        if ((className == null) && (filter != null))
         {
-            // Return all services.
-            filter = new SimpleFilter(null, null, SimpleFilter.MATCH_ALL);
+            className = getObjectClass(filter);
         }
-        else if ((className != null) && (filter == null))
+
+        Set<Capability> matches = new HashSet<Capability>();
+        if (className != null)
         {
-            // Return services matching the class name.
-            filter = new SimpleFilter(Constants.OBJECTCLASS, className, SimpleFilter.EQ);
+            ServiceReference<?>[] refs = m_regsByClass.get(className);
+            for (int i = 0; (refs != null) && (i < refs.length); i++)
+            {
+                Capability cap = (Capability) refs[i];
+                if ((filter == null) || CapabilitySet.matches(cap, filter, false))
+                {
+                    matches.add(cap);
+                }
+            }
         }
-        else if ((className != null) && (filter != null))
+        else
         {
-            // Return services matching the class name and filter.
-            List<SimpleFilter> filters = new ArrayList<SimpleFilter>(2);
-            filters.add(new SimpleFilter(Constants.OBJECTCLASS, className, SimpleFilter.EQ));
-            filters.add(filter);
-            filter = new SimpleFilter(null, filters, SimpleFilter.AND);
+            for (ServiceReference<?> ref : m_allRefs.keySet())
+            {
+                Capability cap = (Capability) ref;
+                if ((filter == null) || CapabilitySet.matches(cap, filter, false))
+                {
+                    matches.add(cap);
+                }
+            }
         }
-        // else just use the specified filter.
+        return matches;
+    }
 
-        return m_regCapSet.match(filter, false);
+    /**
+     * Returns the object class required by an equality comparison at the
+     * top level of the filter, or <tt>null</tt> if there is none.
+    **/
+    private static String getObjectClass(SimpleFilter filter)
+    {
+        if ((filter.getOperation() == SimpleFilter.EQ)
+            && Constants.OBJECTCLASS.equalsIgnoreCase(filter.getName()))
+        {
+            return (String) filter.getValue();
+        }
+        else if (filter.getOperation() == SimpleFilter.AND)
+        {
+            List<SimpleFilter> sfs = (List<SimpleFilter>) filter.getValue();
+            for (int i = 0; i < sfs.size(); i++)
+            {
+                String className = getObjectClass(sfs.get(i));
+                if (className != null)
+                {
+                    return className;
+                }
+            }
+        }
+        return null;
     }
 
-    public synchronized ServiceReference<?>[] getServicesInUse(Bundle bundle)
+    public ServiceReference<?>[] getServicesInUse(Bundle bundle)
     {
         UsageCount[] usages = m_inUseMap.get(bundle);
         if (usages != null)
@@ -279,8 +354,29 @@ public class ServiceRegistry
         return null;
     }
 
+    public <S> S getService(Bundle bundle, ServiceReference<S> ref, boolean isServiceObjects)
+    {
+        if (m_instrumentation == null)
+        {
+            return doGetService(bundle, ref, isServiceObjects);
+        }
+        long start = System.nanoTime();
+        try
+        {
+            return doGetService(bundle, ref, isServiceObjects);
+        }
+        finally
+        {
+            Object classes = ref.getProperty(Constants.OBJECTCLASS);
+            m_instrumentation.record(InstrumentationListener.SERVICE_GET,
+                bundle.getBundleId(),
+                (classes instanceof String[]) ? ((String[]) classes)[0] : null,
+                start, System.nanoTime() - start);
+        }
+    }
+
     @SuppressWarnings("unchecked")
-    public <S> S getService(final Bundle bundle, final ServiceReference<S> ref, final boolean isServiceObjects)
+    private <S> S doGetService(final Bundle bundle, final ServiceReference<S> ref, final boolean isServiceObjects)
     {
     	// prototype scope is only possible if called from ServiceObjects
     	final boolean isPrototype = isServiceObjects && ref.getProperty(Constants.SERVICE_SCOPE) == Constants.SCOPE_PROTOTYPE;
@@ -608,6 +704,60 @@ public class ServiceRegistry
         return regs;
     }
 
+    // Caller must hold the registry lock.
+    private void indexServiceReference(String[] classNames, ServiceReference<?> ref)
+    {
+        m_allRefs.put(ref, ref);
+        for (int i = 0; i < classNames.length; i++)
+        {
+            ServiceReference<?>[] refs = m_regsByClass.get(classNames[i]);
+            if (refs == null)
+            {
+                refs = new ServiceReference[] { ref };
+            }
+            else
+            {
+                ServiceReference<?>[] newRefs = new ServiceReference[refs.length + 1];
+                System.arraycopy(refs, 0, newRefs, 0, refs.length);
+                newRefs[refs.length] = ref;
+                refs = newRefs;
+            }
+            m_regsByClass.put(classNames[i], refs);
+        }
+    }
+
+    // Caller must hold the registry lock.
+    private void deindexServiceReference(ServiceReference<?> ref)
+    {
+        if (m_allRefs.remove(ref) == null)
+        {
+            return;
+        }
+        String[] classNames = (String[]) ref.getProperty(Constants.OBJECTCLASS);
+        for (int i = 0; i < classNames.length; i++)
+        {
+            ServiceReference<?>[] refs = m_regsByClass.get(classNames[i]);
+            for (int j = 0; (refs != null) && (j < refs.length); j++)
+            {
+                if (refs[j] == ref)
+                {
+                    if (refs.length == 1)
+                    {
+                        m_regsByClass.remove(classNames[i]);
+                    }
+                    else
+                    {
+                        ServiceReference<?>[] newRefs = new ServiceReference[refs.length - 1];
+                        System.arraycopy(refs, 0, newRefs, 0, j);
+                        System.arraycopy(refs, j + 1, newRefs, j, newRefs.length - j);
+                        m_regsByClass.put(classNames[i], newRefs);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
     /**
      * Utility method to retrieve the specified bundle's usage count for the
      * specified service reference.
@@ -773,6 +923,7 @@ public class ServiceRegistry
                         m_allHooks.put(hookClass, hooks);
                     }
                     hooks.add(ref);
+                    updateHookSnapshot(hookClass);
                 }
             }
         }
@@ -798,6 +949,7 @@ public class ServiceRegistry
                         List<ServiceReference<?>> refs = new ArrayList<ServiceReference<?>>(hooks);
                         hooks.clear();
                         hooks.addAll(refs);
+                        updateHookSnapshot(hookClass);
                     }
                 }
             }
@@ -824,25 +976,47 @@ public class ServiceRegistry
                         {
                             m_allHooks.remove(hookClass);
                         }
+                        updateHookSnapshot(hookClass);
                     }
                 }
             }
         }
     }
 
+    // Must be called while holding the m_allHooks lock.
+    private void updateHookSnapshot(Class<?> hookClass)
+    {
+        Map<Class<?>, SortedSet<ServiceReference<?>>> snapshot =
+            new HashMap<Class<?>, SortedSet<ServiceReference<?>>>(m_hookSnapshot);
+        Set<ServiceReference<?>> hooks = m_allHooks.get(hookClass);
+        if (hooks != null)
+        {
+            SortedSet<ServiceReference<?>> sorted =
+                new TreeSet<ServiceReference<?>>(Collections.reverseOrder());
+            sorted.addAll(hooks);
+            snapshot.put(hookClass, Collections.unmodifiableSortedSet(sorted));
+        }
+        else
+        {
+            snapshot.remove(hookClass);
+        }
+        m_hookSnapshot = snapshot;
+    }
+
+    /**
+     * Returns the registered hooks of a hook class, sorted by ranking.
+     * @param hookClass the hook class.
+     * @return an unmodifiable set of the hooks, which is not affected by
+     *         later hook changes.
+    **/
     public <S> Set<ServiceReference<S>> getHooks(Class<S> hookClass)
     {
-        synchronized (m_allHooks)
+        SortedSet<ServiceReference<?>> hooks = m_hookSnapshot.get(hookClass);
+        if (hooks != null)
         {
-            Set<ServiceReference<?>> hooks = m_allHooks.get(hookClass);
-            if (hooks != null)
-            {
-                SortedSet<ServiceReference<?>> sorted = new TreeSet<ServiceReference<?>>(Collections.reverseOrder());
-                sorted.addAll(hooks);
-                return asTypedSortedSet(sorted);
-            }
-            return Collections.emptySet();
+            return asTypedSortedSet(hooks);
         }
+        return Collections.emptySet();
     }
 
     private static <S> SortedSet<ServiceReference<S>> asTypedSortedSet(
@@ -31,11 +31,15 @@ import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.felix.framework.cache.BundleCache;
 import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.apache.felix.framework.ext.InstrumentationListener;
 import org.apache.felix.framework.resolver.CandidateComparator;
 import org.apache.felix.framework.resolver.ResolveException;
+import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.ShrinkableCollection;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.util.manifestparser.NativeLibrary;
@@ -71,7 +75,12 @@ class StatefulResolver
     private final Felix m_felix;
     private final ServiceRegistry m_registry;
     private final ResolverImpl m_resolver;
+    private final boolean m_isCacheEnabled;
+    private ResolutionCache m_resolutionCache = null;
     private boolean m_isResolving = false;
+    // Incremented whenever a revision is added or a wiring changes, so that
+    // wirings can tell when their cached class lookup misses become stale.
+    private final AtomicLong m_generation = new AtomicLong();
 
     // Set of all revisions.
     private final Set<BundleRevision> m_revisions;
@@ -94,6 +103,8 @@ class StatefulResolver
         m_registry = registry;
         m_logger = m_felix.getLogger();
         m_resolver = new ResolverImpl(m_logger);
+        m_isCacheEnabled = "true".equalsIgnoreCase(
+            (String) m_felix.getConfig().get(FelixConstants.RESOLVER_CACHE_PROP));
 
         m_revisions = new HashSet<BundleRevision>();
         m_fragments = new HashSet<BundleRevision>();
@@ -108,15 +119,18 @@ class StatefulResolver
 
         List<String> indices = new ArrayList<String>();
         indices.add(BundleRevision.BUNDLE_NAMESPACE);
-        m_capSets.put(BundleRevision.BUNDLE_NAMESPACE, new CapabilitySet(indices, true));
+        m_capSets.put(BundleRevision.BUNDLE_NAMESPACE, new CapabilitySet(
+            indices, Collections.singletonList(Constants.BUNDLE_VERSION_ATTRIBUTE), true));
 
         indices = new ArrayList<String>();
         indices.add(BundleRevision.PACKAGE_NAMESPACE);
-        m_capSets.put(BundleRevision.PACKAGE_NAMESPACE, new CapabilitySet(indices, true));
+        m_capSets.put(BundleRevision.PACKAGE_NAMESPACE, new CapabilitySet(
+            indices, Collections.singletonList(Constants.VERSION_ATTRIBUTE), true));
 
         indices = new ArrayList<String>();
         indices.add(BundleRevision.HOST_NAMESPACE);
-        m_capSets.put(BundleRevision.HOST_NAMESPACE,  new CapabilitySet(indices, true));
+        m_capSets.put(BundleRevision.HOST_NAMESPACE, new CapabilitySet(
+            indices, Collections.singletonList(Constants.BUNDLE_VERSION_ATTRIBUTE), true));
     }
 
     void start()
@@ -127,6 +141,47 @@ class StatefulResolver
                 null);
     }
 
+    /**
+     * Loads the wiring persisted by a previous run of the framework from
+     * the specified bundle cache, if the resolution cache is enabled.
+     * @param cache the bundle cache.
+     */
+    synchronized void openResolutionCache(BundleCache cache)
+    {
+        m_resolutionCache = null;
+        if (m_isCacheEnabled)
+        {
+            try
+            {
+                m_resolutionCache = new ResolutionCache(
+                    m_logger,
+                    cache.getSystemBundleDataFile("resolver.cache"),
+                    m_fwkExecEnvStr);
+                m_resolutionCache.load();
+            }
+            catch (Exception ex)
+            {
+                m_logger.log(
+                    Logger.LOG_WARNING,
+                    "Unable to open resolution cache.",
+                    ex);
+            }
+        }
+    }
+
+    /**
+     * Persists the wiring of all currently resolved revisions, if the
+     * resolution cache is enabled.
+     */
+    synchronized void closeResolutionCache()
+    {
+        if (m_resolutionCache != null)
+        {
+            m_resolutionCache.store(m_revisions);
+            m_resolutionCache = null;
+        }
+    }
+
     synchronized void addRevision(BundleRevision br)
     {
         // Always attempt to remove the revision, since
@@ -135,6 +190,10 @@ class StatefulResolver
         removeRevision(br);
 
         m_revisions.add(br);
+        if (m_resolutionCache != null)
+        {
+            m_resolutionCache.addRevision(br);
+        }
 
         // Add singletons to the singleton map.
         boolean isSingleton = Util.isSingleton(br);
@@ -156,12 +215,28 @@ class StatefulResolver
             }
             indexCapabilities(br);
         }
+
+        incrementGeneration();
+    }
+
+    long getGeneration()
+    {
+        return m_generation.get();
+    }
+
+    void incrementGeneration()
+    {
+        m_generation.incrementAndGet();
     }
 
     synchronized void removeRevision(BundleRevision br)
     {
         if (m_revisions.remove(br))
         {
+            if (m_resolutionCache != null)
+            {
+                m_resolutionCache.removeRevision(br);
+            }
             m_fragments.remove(br);
             deindexCapabilities(br);
 
@@ -185,7 +260,7 @@ class StatefulResolver
         return ((effective == null) || effective.equals(Constants.EFFECTIVE_RESOLVE));
     }
 
-    synchronized List<BundleCapability> findProviders(
+    List<BundleCapability> findProviders(
         BundleRequirement req, boolean obeyMandatory)
     {
         ResolverHookRecord record = new ResolverHookRecord(
@@ -193,38 +268,82 @@ class StatefulResolver
         return findProvidersInternal(record, req, obeyMandatory, true);
     }
 
-    synchronized List<BundleCapability> findProvidersInternal(
+    List<BundleCapability> findProvidersInternal(
         final ResolverHookRecord record,
         final Requirement req,
         final boolean obeyMandatory,
         final boolean invokeHooksAndSecurity)
     {
-        List<BundleCapability> result = new ArrayList<BundleCapability>();
-
-        CapabilitySet capSet = m_capSets.get(req.getNamespace());
-        if (capSet != null)
+        // Get the requirement's filter; if this is our own impl we
+        // have a shortcut to get the already parsed filter, otherwise
+        // we must parse it from the directive.
+        SimpleFilter sf;
+        if (req instanceof BundleRequirementImpl)
         {
-            // Get the requirement's filter; if this is our own impl we
-            // have a shortcut to get the already parsed filter, otherwise
-            // we must parse it from the directive.
-            SimpleFilter sf;
-            if (req instanceof BundleRequirementImpl)
+            sf = ((BundleRequirementImpl) req).getFilter();
+        }
+        else
+        {
+            String filter = req.getDirectives().get(Constants.FILTER_DIRECTIVE);
+            if (filter == null)
             {
-                sf = ((BundleRequirementImpl) req).getFilter();
+                sf = new SimpleFilter(null, null, SimpleFilter.MATCH_ALL);
             }
             else
             {
-                String filter = req.getDirectives().get(Constants.FILTER_DIRECTIVE);
-                if (filter == null)
-                {
-                    sf = new SimpleFilter(null, null, SimpleFilter.MATCH_ALL);
-                }
-                else
+                sf = SimpleFilter.parse(filter);
+            }
+        }
+
+        // Of the bundles reloaded in lazy mode, only create the revisions
+        // of those which may provide a matching capability. This must be
+        // done before locking the resolver state, which the new revisions
+        // are added to.
+        m_felix.createPendingRevisions(
+            req.getNamespace(), getMatchedValue(sf, req.getNamespace()));
+
+        return findProvidersInternal(
+            record, req, sf, obeyMandatory, invokeHooksAndSecurity);
+    }
+
+    /**
+     * Returns the value the specified attribute must be equal to for a
+     * capability to match the filter, if the filter requires so, otherwise
+     * <tt>null</tt>.
+    **/
+    private static String getMatchedValue(SimpleFilter sf, String name)
+    {
+        if ((sf.getOperation() == SimpleFilter.EQ) && name.equals(sf.getName())
+            && (sf.getValue() instanceof String))
+        {
+            return (String) sf.getValue();
+        }
+        else if (sf.getOperation() == SimpleFilter.AND)
+        {
+            for (SimpleFilter child : (List<SimpleFilter>) sf.getValue())
+            {
+                String value = getMatchedValue(child, name);
+                if (value != null)
                 {
-                    sf = SimpleFilter.parse(filter);
+                    return value;
                 }
             }
+        }
+        return null;
+    }
 
+    private synchronized List<BundleCapability> findProvidersInternal(
+        final ResolverHookRecord record,
+        final Requirement req,
+        final SimpleFilter sf,
+        final boolean obeyMandatory,
+        final boolean invokeHooksAndSecurity)
+    {
+        List<BundleCapability> result = new ArrayList<BundleCapability>();
+
+        CapabilitySet capSet = m_capSets.get(req.getNamespace());
+        if (capSet != null)
+        {
             // Find the matching candidates.
             Set<Capability> matches = capSet.match(sf, obeyMandatory);
             // Filter matching candidates.
@@ -361,6 +480,31 @@ class StatefulResolver
         Set<BundleRevision> mandatory,
         Set<BundleRevision> optional)
         throws ResolutionException, BundleException
+    {
+        InstrumentationListener instrumentation = m_felix.getInstrumentation();
+        if (instrumentation == null)
+        {
+            doResolve(mandatory, optional);
+            return;
+        }
+        long bundleId = (mandatory.size() == 1)
+            ? mandatory.iterator().next().getBundle().getBundleId() : -1;
+        long start = System.nanoTime();
+        try
+        {
+            doResolve(mandatory, optional);
+        }
+        finally
+        {
+            instrumentation.record(InstrumentationListener.RESOLVE,
+                bundleId, null, start, System.nanoTime() - start);
+        }
+    }
+
+    private void doResolve(
+        Set<BundleRevision> mandatory,
+        Set<BundleRevision> optional)
+        throws ResolutionException, BundleException
     {
         // Acquire global lock.
         boolean locked = m_felix.acquireGlobalLock();
@@ -382,6 +526,10 @@ class StatefulResolver
         Map<Resource, List<Wire>> wireMap = null;
         try
         {
+            // Create the revisions of the bundles reloaded in lazy mode
+            // which must be known before resolving.
+            createPendingRevisions(getResolutionCache() != null);
+
             // Make our own copy of revisions.
             mandatory = (mandatory.isEmpty())
                 ? mandatory : new HashSet<BundleRevision>(mandatory);
@@ -425,17 +573,30 @@ class StatefulResolver
             // Catch any resolve exception to rethrow later because
             // we may need to call end() on resolver hooks.
             ResolutionException rethrow = null;
+            // The persisted wiring cannot be used if there are resolver
+            // hooks, since they may influence the result.
+            ResolutionCache resolutionCache = record.m_resolveHookMap.isEmpty()
+                ? getResolutionCache() : null;
             try
             {
-                // Resolve the revision.
-                wireMap = m_resolver.resolve(
-                    new ResolveContextImpl(
-                        this,
-                        getWirings(),
-                        record,
-                        mandatory,
-                        optional,
-                        getFragments()));
+                // Reuse the persisted wiring, if nothing has changed.
+                if (resolutionCache != null)
+                {
+                    wireMap = resolutionCache.getWiring(
+                        getRevisions(), mandatory, optional);
+                }
+                // Otherwise, resolve the revision.
+                if (wireMap == null)
+                {
+                    wireMap = m_resolver.resolve(
+                        new ResolveContextImpl(
+                            this,
+                            getWirings(),
+                            record,
+                            mandatory,
+                            optional,
+                            getFragments()));
+                }
             }
             catch (ResolutionException ex)
             {
@@ -453,6 +614,11 @@ class StatefulResolver
 
             // Otherwise, mark all revisions as resolved.
             markResolvedRevisions(wireMap);
+
+            if (resolutionCache != null)
+            {
+                resolutionCache.record(wireMap);
+            }
         }
         finally
         {
@@ -505,6 +671,10 @@ class StatefulResolver
                     .getImportedPackageSource(pkgName);
                 if (provider == null)
                 {
+                    // Create the revisions of the bundles reloaded in lazy
+                    // mode which must be known before resolving.
+                    createPendingRevisions(false);
+
                     // Prepare resolver hooks, if any.
                     ResolverHookRecord record =
                         prepareResolverHooks(
@@ -654,6 +824,27 @@ class StatefulResolver
         return provider;
     }
 
+    /**
+     * Creates the deferred revisions of bundles reloaded in lazy mode which
+     * must be known before resolving. Resolver hooks and the persisted
+     * wiring are based on all revisions, so all of them are created if
+     * either is used. Otherwise only fragments and singletons are created,
+     * and every other revision once it may provide a capability the
+     * resolver looks for; see <tt>findProvidersInternal()</tt>.
+     * @param useResolutionCache whether the persisted wiring may be used.
+    **/
+    private void createPendingRevisions(boolean useResolutionCache)
+    {
+        if (useResolutionCache || !m_felix.getHooks(ResolverHookFactory.class).isEmpty())
+        {
+            m_felix.createPendingRevisions();
+        }
+        else
+        {
+            m_felix.createPendingFragmentsAndSingletons();
+        }
+    }
+
     private ResolverHookRecord prepareResolverHooks(
         Set<BundleRevision> mandatory, Set<BundleRevision> optional)
         throws BundleException, ResolutionException
@@ -1334,7 +1525,8 @@ class StatefulResolver
                     CapabilitySet capSet = m_capSets.get(cap.getNamespace());
                     if (capSet == null)
                     {
-                        capSet = new CapabilitySet(null, true);
+                        capSet = new CapabilitySet(null,
+                            Collections.singletonList(Constants.VERSION_ATTRIBUTE), true);
                         m_capSets.put(cap.getNamespace(), capSet);
                     }
                     capSet.addCapability(cap);
@@ -1573,6 +1765,16 @@ class StatefulResolver
         }
     }
 
+    private synchronized Set<BundleRevision> getRevisions()
+    {
+        return new HashSet<BundleRevision>(m_revisions);
+    }
+
+    synchronized ResolutionCache getResolutionCache()
+    {
+        return m_resolutionCache;
+    }
+
     private synchronized Set<BundleRevision> getFragments()
     {
         Set<BundleRevision> fragments = new HashSet(m_fragments);
@@ -129,6 +129,34 @@ public abstract class BundleArchiveRevision
 
     public abstract Content getContent() throws Exception;
 
+    /**
+     * <p>
+     * Returns the metadata previously stored for this revision using
+     * <tt>setMetadata()</tt>, if the content of the revision did not change
+     * since. Revisions that cannot store metadata always return <tt>null</tt>.
+     * </p>
+     * @return the stored metadata or <tt>null</tt> if there is none.
+     * @throws java.lang.Exception if any error occurs.
+    **/
+    public byte[] getMetadata() throws Exception
+    {
+        return null;
+    }
+
+    /**
+     * <p>
+     * Stores opaque metadata derived from the content of this revision, such
+     * as its parsed manifest, so it does not have to be derived again by a
+     * later framework instance. Revisions that cannot store metadata ignore
+     * this call.
+     * </p>
+     * @param metadata the metadata to store.
+     * @throws java.lang.Exception if any error occurs.
+    **/
+    public void setMetadata(byte[] metadata) throws Exception
+    {
+    }
+
     /**
      * <p>
      * This method is called when the revision is no longer needed. The directory
@@ -68,6 +68,19 @@ import org.osgi.framework.Constants;
  *       string provides control over the size of the internal buffer of the
  *       disk cache for performance reasons.
  *   </li>
+ *   <li><tt>felix.cache.mappedjars</tt> - If set to <tt>true</tt>, bundle
+ *       JAR files are memory mapped once and their entries are looked up
+ *       in a sorted index of the mapping, rather than through a zip file
+ *       which may be closed and reopened under the file limit. The default
+ *       value is <tt>false</tt>. Mapped files cannot be deleted on some
+ *       platforms until the mapping is garbage collected.
+ *   </li>
+ *   <li><tt>felix.cache.metadata</tt> - If set to <tt>true</tt>, the parsed
+ *       manifest metadata of bundle JAR files is stored next to each revision
+ *       and reused on the next framework start as long as the size and last
+ *       modification time of the JAR file are unchanged, rather than parsing
+ *       the manifest again. The default value is <tt>false</tt>.
+ *   </li>
  * <p>
  * For specific information on how to configure the Felix framework, refer
  * to the Felix framework usage documentation.
@@ -80,6 +93,8 @@ public class BundleCache
     public static final String CACHE_ROOTDIR_PROP = "felix.cache.rootdir";
     public static final String CACHE_LOCKING_PROP = "felix.cache.locking";
     public static final String CACHE_FILELIMIT_PROP = "felix.cache.filelimit";
+    public static final String CACHE_MAPPEDJARS_PROP = "felix.cache.mappedjars";
+    public static final String CACHE_METADATA_PROP = "felix.cache.metadata";
     // TODO: CACHE - This should eventually be removed along with the code
     //       supporting the old multi-file bundle cache format.
     public static final String CACHE_SINGLEBUNDLEFILE_PROP = "felix.cache.singlebundlefile";
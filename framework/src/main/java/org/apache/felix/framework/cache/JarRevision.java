@@ -18,6 +18,10 @@
  */
 package org.apache.felix.framework.cache;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -48,10 +52,14 @@ import org.apache.felix.framework.util.WeakZipFileFactory.WeakZipFile;
 class JarRevision extends BundleArchiveRevision
 {
     private static final transient String BUNDLE_JAR_FILE = "bundle.jar";
+    private static final transient String BUNDLE_METADATA_FILE = "bundle.metadata";
 
     private final WeakZipFileFactory m_zipFactory;
     private final File m_bundleFile;
     private final WeakZipFile m_zipFile;
+    private boolean m_useMappedIndex;
+    private MappedJarIndex m_mappedIndex;
+    private final boolean m_useMetadata;
 
     public JarRevision(
         Logger logger, Map configMap, WeakZipFileFactory zipFactory,
@@ -94,6 +102,11 @@ class JarRevision extends BundleArchiveRevision
             if (zipFile != null) zipFile.close();
             throw ex;
         }
+
+        m_useMappedIndex = "true".equalsIgnoreCase(
+            (String) configMap.get(BundleCache.CACHE_MAPPEDJARS_PROP));
+        m_useMetadata = "true".equalsIgnoreCase(
+            (String) configMap.get(BundleCache.CACHE_METADATA_PROP));
     }
 
     public Map getManifestHeader() throws Exception
@@ -107,12 +120,111 @@ class JarRevision extends BundleArchiveRevision
 
     public synchronized Content getContent() throws Exception
     {
+        // Map the bundle JAR once and share the index among all contents;
+        // if it cannot be mapped, fall back to the zip file.
+        if (m_useMappedIndex && (m_mappedIndex == null))
+        {
+            try
+            {
+                m_mappedIndex = MappedJarIndex.open(m_bundleFile);
+            }
+            catch (IOException ex)
+            {
+                getLogger().log(
+                    Logger.LOG_WARNING,
+                    "Unable to map bundle JAR file, using zip file instead.", ex);
+                m_useMappedIndex = false;
+            }
+        }
+        if (m_mappedIndex != null)
+        {
+            return new MappedJarContent(getLogger(), getConfig(), m_zipFactory,
+                this, getRevisionRootDir(), m_zipFile, m_mappedIndex);
+        }
         return new JarContent(getLogger(), getConfig(), m_zipFactory,
             this, getRevisionRootDir(), m_bundleFile, m_zipFile);
     }
 
+    public byte[] getMetadata() throws Exception
+    {
+        File file = new File(getRevisionRootDir(), BUNDLE_METADATA_FILE);
+        if (!m_useMetadata || !BundleCache.getSecureAction().fileExists(file))
+        {
+            return null;
+        }
+
+        DataInputStream dis = null;
+        try
+        {
+            dis = new DataInputStream(new BufferedInputStream(
+                BundleCache.getSecureAction().getFileInputStream(file)));
+            // The metadata is stale if the bundle JAR file changed.
+            if ((dis.readLong() != m_bundleFile.length())
+                || (dis.readLong() != m_bundleFile.lastModified()))
+            {
+                return null;
+            }
+            byte[] metadata = new byte[dis.readInt()];
+            dis.readFully(metadata);
+            return metadata;
+        }
+        catch (IOException ex)
+        {
+            getLogger().log(
+                Logger.LOG_WARNING,
+                "Unable to read cached bundle metadata.", ex);
+            return null;
+        }
+        finally
+        {
+            if (dis != null) dis.close();
+        }
+    }
+
+    public void setMetadata(byte[] metadata) throws Exception
+    {
+        if (!m_useMetadata)
+        {
+            return;
+        }
+
+        // Write to a temporary file first, so an interrupted write
+        // never leaves a truncated metadata file behind.
+        File file = new File(getRevisionRootDir(), BUNDLE_METADATA_FILE);
+        File tmpFile = new File(getRevisionRootDir(), BUNDLE_METADATA_FILE + ".tmp");
+        DataOutputStream dos = null;
+        try
+        {
+            dos = new DataOutputStream(new BufferedOutputStream(
+                BundleCache.getSecureAction().getFileOutputStream(tmpFile)));
+            dos.writeLong(m_bundleFile.length());
+            dos.writeLong(m_bundleFile.lastModified());
+            dos.writeInt(metadata.length);
+            dos.write(metadata);
+            dos.close();
+            dos = null;
+            BundleCache.getSecureAction().deleteFile(file);
+            if (!BundleCache.getSecureAction().renameFile(tmpFile, file))
+            {
+                throw new IOException("Unable to rename " + tmpFile);
+            }
+        }
+        finally
+        {
+            if (dos != null) dos.close();
+            BundleCache.getSecureAction().deleteFile(tmpFile);
+        }
+    }
+
     protected void close() throws Exception
     {
+        synchronized (this)
+        {
+            if (m_mappedIndex != null)
+            {
+                m_mappedIndex.close();
+            }
+        }
         m_zipFile.close();
     }
 
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.Map;
+
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.WeakZipFileFactory;
+import org.apache.felix.framework.util.WeakZipFileFactory.WeakZipFile;
+
+/**
+ * <p>
+ * A JAR content that serves entry lookups and reads from a memory mapped
+ * index of the JAR file shared by all contents of a revision, instead of
+ * going through the zip file. Extracting embedded JAR files, directories
+ * and native libraries is still done by <tt>JarContent</tt>, since it is
+ * rare and not performance sensitive.
+ * </p>
+**/
+public class MappedJarContent extends JarContent
+{
+    private final Logger m_logger;
+    private final Map m_configMap;
+    private final WeakZipFileFactory m_zipFactory;
+    private final Object m_revisionLock;
+    private final File m_rootDir;
+    private final WeakZipFile m_zipFile;
+    private final MappedJarIndex m_index;
+
+    MappedJarContent(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        Object revisionLock, File rootDir, WeakZipFile zipFile, MappedJarIndex index)
+    {
+        super(logger, configMap, zipFactory, revisionLock, rootDir,
+            index.getFile(), zipFile);
+        m_logger = logger;
+        m_configMap = configMap;
+        m_zipFactory = zipFactory;
+        m_revisionLock = revisionLock;
+        m_rootDir = rootDir;
+        m_zipFile = zipFile;
+        m_index = index;
+    }
+
+    public boolean hasEntry(String name) throws IllegalStateException
+    {
+        return m_index.hasEntry(name);
+    }
+
+    public Enumeration<String> getEntries()
+    {
+        return m_index.getEntries();
+    }
+
+    public byte[] getEntryAsBytes(String name) throws IllegalStateException
+    {
+        try
+        {
+            return m_index.getEntryAsBytes(name);
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(
+                Logger.LOG_ERROR,
+                "MappedJarContent: Unable to read bytes for file " + name
+                + " in ZIP file " + getFile().getAbsolutePath(), ex);
+            return null;
+        }
+    }
+
+    public InputStream getEntryAsStream(String name)
+        throws IllegalStateException, IOException
+    {
+        try
+        {
+            return m_index.getEntryAsStream(name);
+        }
+        catch (Exception ex)
+        {
+            return null;
+        }
+    }
+
+    public Content getEntryAsContent(String entryName)
+    {
+        // The content itself shares the mapped index.
+        if (entryName.equals(FelixConstants.CLASS_PATH_DOT))
+        {
+            return new MappedJarContent(m_logger, m_configMap, m_zipFactory,
+                m_revisionLock, m_rootDir, m_zipFile, m_index);
+        }
+        return super.getEntryAsContent(entryName);
+    }
+}
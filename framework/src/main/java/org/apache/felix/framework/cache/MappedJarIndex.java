@@ -0,0 +1,624 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * <p>
+ * A read-only view of a JAR file that is memory mapped once. The central
+ * directory of the mapped file is indexed by two primitive arrays holding
+ * the sorted hash codes of the entry names and the offsets of the entries,
+ * so looking up an entry is a binary search followed by a comparison with
+ * the name in the mapping, without any per-entry objects on the heap.
+ * Stored entries are served as slices of the mapping; deflated entries
+ * are inflated straight from the mapping.
+ * </p>
+ * <p>
+ * ZIP64 archives are not supported and cause {@link #open(File)} to fail,
+ * so callers are expected to fall back to a regular zip file.
+ * </p>
+**/
+class MappedJarIndex
+{
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int LOC_HDR = 30;
+    private static final int CEN_HDR = 46;
+    private static final int END_HDR = 22;
+    private static final int MAX_COMMENT = 0xFFFF;
+
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private final File m_file;
+    private volatile ByteBuffer m_buffer;
+    // Offset of the start of the archive within the file, which is only
+    // non-zero if data was prepended to the archive.
+    private final int m_base;
+    private final int m_cenStart;
+    private final int m_cenCount;
+    // The index consists of the hash codes of all entry names in ascending
+    // order and the central directory offsets of the corresponding entries.
+    // Names hash like strings, so a lookup neither encodes the name nor
+    // creates any objects.
+    private final int[] m_hashes;
+    private final int[] m_offsets;
+    // The position of the first hash code for each value of the high bits
+    // of the hash codes, which narrows a lookup to a few candidates.
+    private final int[] m_buckets;
+    private final int m_shift;
+
+    private MappedJarIndex(File file, ByteBuffer buffer) throws IOException
+    {
+        m_file = file;
+        m_buffer = buffer;
+
+        int end = findEnd(buffer);
+        if (end < 0)
+        {
+            throw new IOException("No central directory found: " + file);
+        }
+        int count = u16(buffer, end + 10);
+        long cenSize = u32(buffer, end + 12);
+        long cenOffset = u32(buffer, end + 16);
+        if ((count == 0xFFFF) || (cenSize == 0xFFFFFFFFL) || (cenOffset == 0xFFFFFFFFL))
+        {
+            throw new IOException("ZIP64 archives are not supported: " + file);
+        }
+        m_cenStart = (int) (end - cenSize);
+        m_base = (int) (m_cenStart - cenOffset);
+        if ((m_cenStart < 0) || (m_base < 0))
+        {
+            throw new IOException("Invalid central directory: " + file);
+        }
+
+        // Index the central directory headers by name hash, working on a
+        // heap copy of the central directory since that is a lot faster
+        // than reading the mapping byte by byte.
+        byte[] cen = new byte[end - m_cenStart];
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(m_cenStart);
+        dup.get(cen);
+        long[] entries = new long[count];
+        int pos = 0;
+        for (int i = 0; i < count; i++)
+        {
+            if ((pos + CEN_HDR > cen.length) || (getInt(cen, pos) != CEN_SIG))
+            {
+                throw new IOException("Invalid central directory header: " + file);
+            }
+            int len = getShort(cen, pos + 28);
+            if (pos + CEN_HDR + len > cen.length)
+            {
+                throw new IOException("Invalid central directory header: " + file);
+            }
+            entries[i] = (((long) hash(cen, pos + CEN_HDR, len)) << 32)
+                | (m_cenStart + pos);
+            pos += CEN_HDR + len + getShort(cen, pos + 30) + getShort(cen, pos + 32);
+        }
+        m_cenCount = count;
+
+        Arrays.sort(entries);
+        m_hashes = new int[count];
+        m_offsets = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            m_hashes[i] = (int) (entries[i] >> 32);
+            m_offsets[i] = (int) entries[i];
+        }
+
+        int bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(count));
+        m_shift = 32 - bits;
+        m_buckets = new int[(1 << bits) + 1];
+        int idx = 0;
+        for (int b = 0; b < m_buckets.length; b++)
+        {
+            while ((idx < count) && (bucket(m_hashes[idx]) < b))
+            {
+                idx++;
+            }
+            m_buckets[b] = idx;
+        }
+    }
+
+    /**
+     * Maps the specified JAR file and indexes its entries.
+     * @param file the JAR file to map.
+     * @return the index of the mapped file.
+     * @throws IOException if the file cannot be mapped or is not a
+     *         supported archive.
+    **/
+    static MappedJarIndex open(File file) throws IOException
+    {
+        FileInputStream fis = BundleCache.getSecureAction().getFileInputStream(file);
+        try
+        {
+            FileChannel channel = fis.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+            {
+                throw new IOException("File too large to map: " + file);
+            }
+            // The mapping stays valid after the channel is closed.
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return new MappedJarIndex(file, buffer);
+        }
+        finally
+        {
+            fis.close();
+        }
+    }
+
+    File getFile()
+    {
+        return m_file;
+    }
+
+    /**
+     * Drops the reference to the mapping. The mapping itself is released
+     * once it is no longer reachable, including any slices handed out.
+    **/
+    void close()
+    {
+        m_buffer = null;
+    }
+
+    boolean hasEntry(String name)
+    {
+        ByteBuffer buffer = m_buffer;
+        return (buffer != null) && (find(buffer, name) >= 0);
+    }
+
+    Enumeration<String> getEntries()
+    {
+        ByteBuffer buffer = m_buffer;
+        if ((buffer == null) || (m_cenCount == 0))
+        {
+            return null;
+        }
+        return new EntriesEnumeration(buffer);
+    }
+
+    /**
+     * Returns the contents of the named entry; for stored entries this is a
+     * single bulk copy out of the mapping.
+    **/
+    byte[] getEntryAsBytes(String name) throws IOException
+    {
+        ByteBuffer buffer = m_buffer;
+        int cen = (buffer == null) ? -1 : find(buffer, name);
+        if (cen < 0)
+        {
+            return null;
+        }
+
+        ByteBuffer data = getData(buffer, cen);
+        int method = u16(buffer, cen + 10);
+        long size = u32(buffer, cen + 24);
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IOException("Entry too large: " + name);
+        }
+        byte[] bytes = new byte[(int) size];
+        if (method == STORED)
+        {
+            if (data.remaining() != bytes.length)
+            {
+                throw new IOException("Invalid stored entry size: " + name);
+            }
+            data.get(bytes);
+        }
+        else if (method == DEFLATED)
+        {
+            inflate(data, bytes, name);
+        }
+        else
+        {
+            throw new IOException("Unsupported compression method: " + name);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns a stream over the named entry; for stored entries the stream
+     * reads directly from a slice of the mapping.
+    **/
+    InputStream getEntryAsStream(String name) throws IOException
+    {
+        ByteBuffer buffer = m_buffer;
+        int cen = (buffer == null) ? -1 : find(buffer, name);
+        if (cen < 0)
+        {
+            return null;
+        }
+
+        ByteBuffer data = getData(buffer, cen);
+        int method = u16(buffer, cen + 10);
+        if (method == STORED)
+        {
+            return new ByteBufferInputStream(data, false);
+        }
+        else if (method == DEFLATED)
+        {
+            // A raw inflater needs an extra dummy byte at the end of input.
+            final Inflater inflater = new Inflater(true);
+            return new InflaterInputStream(
+                new ByteBufferInputStream(data, true), inflater, 512)
+            {
+                private boolean m_closed = false;
+
+                public void close() throws IOException
+                {
+                    if (!m_closed)
+                    {
+                        m_closed = true;
+                        inflater.end();
+                        super.close();
+                    }
+                }
+            };
+        }
+        throw new IOException("Unsupported compression method: " + name);
+    }
+
+    //
+    // Private methods.
+    //
+
+    private int find(ByteBuffer buffer, String name)
+    {
+        int cen = search(buffer, name, false);
+        // Like ZipFile, also find directory entries without trailing slash.
+        if ((cen < 0) && (name.length() > 0) && !name.endsWith("/"))
+        {
+            cen = search(buffer, name, true);
+        }
+        return cen;
+    }
+
+    private int search(ByteBuffer buffer, String name, boolean slash)
+    {
+        int hash = slash ? (31 * name.hashCode() + '/') : name.hashCode();
+
+        // Find the first entry with the hash and check all entries with it.
+        int b = bucket(hash);
+        int low = m_buckets[b];
+        int high = m_buckets[b + 1];
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (m_hashes[mid] < hash)
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid;
+            }
+        }
+        for (int i = low; (i < m_buckets[b + 1]) && (m_hashes[i] == hash); i++)
+        {
+            if (nameEquals(buffer, m_offsets[i], name, slash))
+            {
+                return m_offsets[i];
+            }
+        }
+        return -1;
+    }
+
+    private ByteBuffer getData(ByteBuffer buffer, int cen) throws IOException
+    {
+        int loc = m_base + (int) u32(buffer, cen + 42);
+        if ((loc < 0) || (loc + LOC_HDR > buffer.limit())
+            || (buffer.getInt(loc) != LOC_SIG))
+        {
+            throw new IOException("Invalid local header in " + m_file);
+        }
+        int start = loc + LOC_HDR + u16(buffer, loc + 26) + u16(buffer, loc + 28);
+        long end = start + u32(buffer, cen + 20);
+        if (end > buffer.limit())
+        {
+            throw new IOException("Truncated entry in " + m_file);
+        }
+        ByteBuffer data = buffer.duplicate();
+        data.position(start);
+        data.limit((int) end);
+        return data.slice();
+    }
+
+    private static void inflate(ByteBuffer data, byte[] bytes, String name)
+        throws IOException
+    {
+        Inflater inflater = new Inflater(true);
+        try
+        {
+            // Inflater only accepts arrays as input, so feed the compressed
+            // data in chunks plus the dummy byte a raw inflater needs.
+            byte[] chunk = new byte[Math.min(data.remaining() + 1, 8192)];
+            boolean padded = false;
+            int off = 0;
+            while (off < bytes.length)
+            {
+                if (inflater.needsInput())
+                {
+                    int n = Math.min(chunk.length, data.remaining());
+                    if (n == 0)
+                    {
+                        if (padded)
+                        {
+                            throw new IOException("Truncated entry: " + name);
+                        }
+                        padded = true;
+                        chunk[0] = 0;
+                        n = 1;
+                    }
+                    else
+                    {
+                        data.get(chunk, 0, n);
+                    }
+                    inflater.setInput(chunk, 0, n);
+                }
+                int n = inflater.inflate(bytes, off, bytes.length - off);
+                if ((n == 0) && (inflater.finished() || inflater.needsDictionary()))
+                {
+                    throw new IOException("Truncated entry: " + name);
+                }
+                off += n;
+            }
+        }
+        catch (DataFormatException ex)
+        {
+            throw new IOException("Invalid compressed entry " + name + ": " + ex.getMessage());
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    private static int findEnd(ByteBuffer buffer)
+    {
+        int min = Math.max(0, buffer.limit() - END_HDR - MAX_COMMENT);
+        for (int pos = buffer.limit() - END_HDR; pos >= min; pos--)
+        {
+            if ((buffer.get(pos) == 0x50) && (buffer.getInt(pos) == END_SIG))
+            {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    private static int nextCen(ByteBuffer buffer, int cen)
+    {
+        return cen + CEN_HDR + u16(buffer, cen + 28)
+            + u16(buffer, cen + 30) + u16(buffer, cen + 32);
+    }
+
+    private int bucket(int hash)
+    {
+        // Flipping the sign bit keeps the order of the signed hash codes.
+        return (hash ^ 0x80000000) >>> m_shift;
+    }
+
+    private static boolean nameEquals(
+        ByteBuffer buffer, int cen, String name, boolean slash)
+    {
+        int len = u16(buffer, cen + 28);
+        int nameLen = name.length();
+        if (len != nameLen + (slash ? 1 : 0))
+        {
+            // Only names with non-ASCII characters differ in length.
+            return (len > nameLen) && !isAscii(name)
+                && (slash ? name + "/" : name).equals(getName(buffer, cen));
+        }
+        for (int i = 0; i < nameLen; i++)
+        {
+            int b = buffer.get(cen + CEN_HDR + i);
+            if (b < 0)
+            {
+                return (slash ? name + "/" : name).equals(getName(buffer, cen));
+            }
+            if (b != name.charAt(i))
+            {
+                return false;
+            }
+        }
+        return !slash || (buffer.get(cen + CEN_HDR + nameLen) == '/');
+    }
+
+    private static boolean isAscii(String name)
+    {
+        for (int i = 0; i < name.length(); i++)
+        {
+            if (name.charAt(i) >= 0x80)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes the hash code of the string encoded by the given UTF-8 bytes.
+    **/
+    private static int hash(byte[] bytes, int off, int len)
+    {
+        int h = 0;
+        for (int i = off; i < off + len; i++)
+        {
+            if (bytes[i] < 0)
+            {
+                try
+                {
+                    return new String(bytes, off, len, "UTF-8").hashCode();
+                }
+                catch (UnsupportedEncodingException ex)
+                {
+                    // UTF-8 is always supported.
+                    throw new IllegalStateException(ex.getMessage());
+                }
+            }
+            h = 31 * h + bytes[i];
+        }
+        return h;
+    }
+
+    private static String getName(ByteBuffer buffer, int cen)
+    {
+        byte[] bytes = new byte[u16(buffer, cen + 28)];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = buffer.get(cen + CEN_HDR + i);
+        }
+        try
+        {
+            return new String(bytes, "UTF-8");
+        }
+        catch (UnsupportedEncodingException ex)
+        {
+            // UTF-8 is always supported.
+            throw new IllegalStateException(ex.getMessage());
+        }
+    }
+
+    private static int u16(ByteBuffer buffer, int pos)
+    {
+        return buffer.getShort(pos) & 0xFFFF;
+    }
+
+    private static long u32(ByteBuffer buffer, int pos)
+    {
+        return buffer.getInt(pos) & 0xFFFFFFFFL;
+    }
+
+    private static int getShort(byte[] bytes, int pos)
+    {
+        return (bytes[pos] & 0xFF) | ((bytes[pos + 1] & 0xFF) << 8);
+    }
+
+    private static int getInt(byte[] bytes, int pos)
+    {
+        return getShort(bytes, pos) | (getShort(bytes, pos + 2) << 16);
+    }
+
+    private class EntriesEnumeration implements Enumeration<String>
+    {
+        private final ByteBuffer m_buf;
+        private int m_pos = m_cenStart;
+        private int m_index = 0;
+
+        public EntriesEnumeration(ByteBuffer buffer)
+        {
+            m_buf = buffer;
+        }
+
+        public boolean hasMoreElements()
+        {
+            return m_index < m_cenCount;
+        }
+
+        public String nextElement()
+        {
+            if (m_index >= m_cenCount)
+            {
+                throw new NoSuchElementException();
+            }
+            String name = getName(m_buf, m_pos);
+            m_pos = nextCen(m_buf, m_pos);
+            m_index++;
+            return name;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer m_data;
+        private boolean m_pad;
+
+        ByteBufferInputStream(ByteBuffer data, boolean pad)
+        {
+            m_data = data;
+            m_pad = pad;
+        }
+
+        public int read()
+        {
+            if (m_data.hasRemaining())
+            {
+                return m_data.get() & 0xFF;
+            }
+            else if (m_pad)
+            {
+                m_pad = false;
+                return 0;
+            }
+            return -1;
+        }
+
+        public int read(byte[] b, int off, int len)
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            int n = Math.min(len, m_data.remaining());
+            if (n > 0)
+            {
+                m_data.get(b, off, n);
+                return n;
+            }
+            else if (m_pad)
+            {
+                m_pad = false;
+                b[off] = 0;
+                return 1;
+            }
+            return -1;
+        }
+
+        public long skip(long n)
+        {
+            int skipped = (int) Math.max(0, Math.min(n, m_data.remaining()));
+            m_data.position(m_data.position() + skipped);
+            return skipped;
+        }
+
+        public int available()
+        {
+            return m_data.remaining();
+        }
+    }
+}
@@ -31,6 +31,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
 
 import org.apache.felix.framework.util.SecureAction;
@@ -44,6 +45,7 @@ import org.osgi.resource.Capability;
 public class CapabilitySet
 {
     private final Map<String, Map<Object, Set<BundleCapability>>> m_indices;
+    private final Map<String, RangeIndex> m_rangeIndices;
     private final Set<Capability> m_capSet = new HashSet<Capability>();
     private final static SecureAction m_secureAction = new SecureAction();
 
@@ -77,6 +79,24 @@ public class CapabilitySet
     }
 
     public CapabilitySet(List<String> indexProps, boolean caseSensitive)
+    {
+        this(indexProps, null, caseSensitive);
+    }
+
+    /**
+     * Creates a capability set with exact-value indices for the attributes
+     * in <tt>indexProps</tt> and sorted indices for the attributes in
+     * <tt>rangeIndexProps</tt>. Sorted indices answer <tt>&gt;=</tt>,
+     * <tt>&lt;=</tt>, version range and prefix substring comparisons
+     * without scanning every capability; they are intended for attributes
+     * such as <tt>version</tt> whose values are typically
+     * <tt>Version</tt> or <tt>String</tt> instances.
+     * @param indexProps attributes to index by exact value, may be null.
+     * @param rangeIndexProps attributes to index in sorted order, may be null.
+     * @param caseSensitive whether attribute names are case sensitive.
+    **/
+    public CapabilitySet(
+        List<String> indexProps, List<String> rangeIndexProps, boolean caseSensitive)
     {
         m_indices = (caseSensitive)
             ? new TreeMap<String, Map<Object, Set<BundleCapability>>>()
@@ -87,12 +107,28 @@ public class CapabilitySet
             m_indices.put(
                 indexProps.get(i), new HashMap<Object, Set<BundleCapability>>());
         }
+        m_rangeIndices = (caseSensitive)
+            ? new TreeMap<String, RangeIndex>()
+            : new TreeMap<String, RangeIndex>(StringComparator.COMPARATOR);
+        for (int i = 0; (rangeIndexProps != null) && (i < rangeIndexProps.size()); i++)
+        {
+            m_rangeIndices.put(rangeIndexProps.get(i), new RangeIndex());
+        }
     }
 
     public void addCapability(BundleCapability cap)
     {
         m_capSet.add(cap);
 
+        for (Entry<String, RangeIndex> entry : m_rangeIndices.entrySet())
+        {
+            Object value = cap.getAttributes().get(entry.getKey());
+            if (value != null)
+            {
+                entry.getValue().add(cap, value);
+            }
+        }
+
         // Index capability.
         for (Entry<String, Map<Object, Set<BundleCapability>>> entry : m_indices.entrySet())
         {
@@ -138,6 +174,15 @@ public class CapabilitySet
     {
         if (m_capSet.remove(cap))
         {
+            for (Entry<String, RangeIndex> entry : m_rangeIndices.entrySet())
+            {
+                Object value = cap.getAttributes().get(entry.getKey());
+                if (value != null)
+                {
+                    entry.getValue().remove(cap, value);
+                }
+            }
+
             for (Entry<String, Map<Object, Set<BundleCapability>>> entry : m_indices.entrySet())
             {
                 Object value = cap.getAttributes().get(entry.getKey());
@@ -202,8 +247,10 @@ public class CapabilitySet
             // Evaluate each subfilter against the remaining capabilities.
             // For AND we calculate the intersection of each subfilter.
             // We can short-circuit the AND operation if there are no
-            // remaining capabilities.
-            List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
+            // remaining capabilities. Subfilters that can be answered by
+            // an index are evaluated first, so the remaining ones only
+            // need to look at the already narrowed candidates.
+            List<SimpleFilter> sfs = orderByIndex((List<SimpleFilter>) sf.getValue());
             for (int i = 0; (caps.size() > 0) && (i < sfs.size()); i++)
             {
                 matches = match(caps, sfs.get(i));
@@ -234,6 +281,7 @@ public class CapabilitySet
         else
         {
             Map<Object, Set<BundleCapability>> index = m_indices.get(sf.getName());
+            RangeIndex rangeIndex = m_rangeIndices.get(sf.getName());
             if ((sf.getOperation() == SimpleFilter.EQ) && (index != null))
             {
                 Set<BundleCapability> existingCaps = index.get(sf.getValue());
@@ -246,6 +294,17 @@ public class CapabilitySet
                     }
                 }
             }
+            // A candidate set already narrowed down by another subfilter is
+            // usually cheaper to scan than a range walk plus intersection.
+            else if ((rangeIndex != null) && RangeIndex.supports(sf.getOperation())
+                && ((caps == m_capSet) || (caps.size() > (m_capSet.size() / 2))))
+            {
+                rangeIndex.match(matches, sf);
+                if (caps != m_capSet)
+                {
+                    matches.retainAll(caps);
+                }
+            }
             else
             {
                 for (Iterator<Capability> it = caps.iterator(); it.hasNext(); )
@@ -266,9 +325,70 @@ public class CapabilitySet
         return matches;
     }
 
+    /**
+     * Returns the subfilters of an AND filter so that the ones answered by
+     * an exact-value index come first, followed by the ones answered by a
+     * sorted index, followed by everything else. The relative order within
+     * each group is kept. Since AND is an intersection the result is the
+     * same, only the amount of capabilities that must be scanned changes.
+    **/
+    private List<SimpleFilter> orderByIndex(List<SimpleFilter> sfs)
+    {
+        if (m_indices.isEmpty() && m_rangeIndices.isEmpty())
+        {
+            return sfs;
+        }
+
+        boolean sorted = true;
+        for (int i = 1; sorted && (i < sfs.size()); i++)
+        {
+            sorted = indexRank(sfs.get(i - 1)) <= indexRank(sfs.get(i));
+        }
+        if (sorted)
+        {
+            return sfs;
+        }
+
+        List<SimpleFilter> ordered = new ArrayList<SimpleFilter>(sfs.size());
+        for (int rank = 0; rank <= 2; rank++)
+        {
+            for (int i = 0; i < sfs.size(); i++)
+            {
+                if (indexRank(sfs.get(i)) == rank)
+                {
+                    ordered.add(sfs.get(i));
+                }
+            }
+        }
+        return ordered;
+    }
+
+    private int indexRank(SimpleFilter sf)
+    {
+        if (sf.getName() != null)
+        {
+            if ((sf.getOperation() == SimpleFilter.EQ)
+                && m_indices.containsKey(sf.getName()))
+            {
+                return 0;
+            }
+            else if (RangeIndex.supports(sf.getOperation())
+                && m_rangeIndices.containsKey(sf.getName()))
+            {
+                return 1;
+            }
+        }
+        return 2;
+    }
+
     public static boolean matches(Capability cap, SimpleFilter sf)
     {
-        return matchesInternal(cap, sf) && matchMandatory(cap, sf);
+        return matches(cap, sf, true);
+    }
+
+    public static boolean matches(Capability cap, SimpleFilter sf, boolean obeyMandatory)
+    {
+        return matchesInternal(cap, sf) && (!obeyMandatory || matchMandatory(cap, sf));
     }
 
     private static boolean matchesInternal(Capability cap, SimpleFilter sf)
@@ -544,7 +664,7 @@ public class CapabilitySet
         }
     }
 
-    private static boolean compareApproximate(Object lhs, Object rhs)
+    static boolean compareApproximate(Object lhs, Object rhs)
     {
         if (rhs instanceof String)
         {
@@ -572,7 +692,7 @@ public class CapabilitySet
         return sb.toString();
     }
 
-    private static Object coerceType(Object lhs, String rhsString) throws Exception
+    static Object coerceType(Object lhs, String rhsString) throws Exception
     {
         // If the LHS expects a string, then we can just return
         // the RHS since it is a string.
@@ -659,4 +779,312 @@ public class CapabilitySet
         }
         return list;
     }
+
+    /**
+     * Sorted index over the values of a single attribute. <tt>Version</tt>
+     * and <tt>String</tt> values are kept in separate sorted maps, since
+     * they are not comparable with each other. Numeric values are kept in
+     * one sorted map per wrapper type, since the filter value is coerced to
+     * the type of the attribute value, so <tt>Long</tt> 15 and
+     * <tt>Double</tt> 15.0 are never compared with each other. Capabilities
+     * with values of any other type are remembered and compared one by
+     * one. Each lookup
+     * produces exactly the capabilities that a linear scan using
+     * {@link CapabilitySet#compare(Object, Object, int)} would produce.
+    **/
+    private static class RangeIndex
+    {
+        private final TreeMap<Version, Set<BundleCapability>> m_versions =
+            new TreeMap<Version, Set<BundleCapability>>();
+        private final TreeMap<String, Set<BundleCapability>> m_strings =
+            new TreeMap<String, Set<BundleCapability>>();
+        private final Map<Class<?>, TreeMap<Comparable, Set<BundleCapability>>> m_numbers =
+            new HashMap<Class<?>, TreeMap<Comparable, Set<BundleCapability>>>();
+        private final Set<BundleCapability> m_others = new HashSet<BundleCapability>();
+
+        static boolean supports(int op)
+        {
+            return (op == SimpleFilter.EQ) || (op == SimpleFilter.GTE)
+                || (op == SimpleFilter.LTE) || (op == SimpleFilter.SUBSTRING);
+        }
+
+        void add(BundleCapability cap, Object value)
+        {
+            if (value.getClass().isArray())
+            {
+                value = convertArrayToList(value);
+            }
+            if (value instanceof Collection)
+            {
+                for (Object o : (Collection) value)
+                {
+                    addValue(cap, o);
+                }
+            }
+            else
+            {
+                addValue(cap, value);
+            }
+        }
+
+        private void addValue(BundleCapability cap, Object value)
+        {
+            if ((value != null) && (value.getClass() == Version.class))
+            {
+                put(m_versions, (Version) value, cap);
+            }
+            else if (value instanceof String)
+            {
+                put(m_strings, (String) value, cap);
+            }
+            else if (isNumber(value))
+            {
+                TreeMap<Comparable, Set<BundleCapability>> numbers =
+                    m_numbers.get(value.getClass());
+                if (numbers == null)
+                {
+                    numbers = new TreeMap<Comparable, Set<BundleCapability>>();
+                    m_numbers.put(value.getClass(), numbers);
+                }
+                put(numbers, (Comparable) value, cap);
+            }
+            else
+            {
+                m_others.add(cap);
+            }
+        }
+
+        private static boolean isNumber(Object value)
+        {
+            Class<?> clazz = (value != null) ? value.getClass() : null;
+            return (clazz == Long.class) || (clazz == Integer.class)
+                || (clazz == Double.class) || (clazz == Float.class)
+                || (clazz == Short.class) || (clazz == Byte.class);
+        }
+
+        private static <K> void put(
+            Map<K, Set<BundleCapability>> map, K key, BundleCapability cap)
+        {
+            Set<BundleCapability> caps = map.get(key);
+            if (caps == null)
+            {
+                caps = new HashSet<BundleCapability>();
+                map.put(key, caps);
+            }
+            caps.add(cap);
+        }
+
+        void remove(BundleCapability cap, Object value)
+        {
+            if (value.getClass().isArray())
+            {
+                value = convertArrayToList(value);
+            }
+            if (value instanceof Collection)
+            {
+                for (Object o : (Collection) value)
+                {
+                    removeValue(cap, o);
+                }
+            }
+            else
+            {
+                removeValue(cap, value);
+            }
+        }
+
+        private void removeValue(BundleCapability cap, Object value)
+        {
+            if ((value != null) && (value.getClass() == Version.class))
+            {
+                delete(m_versions, (Version) value, cap);
+            }
+            else if (value instanceof String)
+            {
+                delete(m_strings, (String) value, cap);
+            }
+            else if (isNumber(value))
+            {
+                TreeMap<Comparable, Set<BundleCapability>> numbers =
+                    m_numbers.get(value.getClass());
+                if (numbers != null)
+                {
+                    delete(numbers, (Comparable) value, cap);
+                    if (numbers.isEmpty())
+                    {
+                        m_numbers.remove(value.getClass());
+                    }
+                }
+            }
+            else
+            {
+                m_others.remove(cap);
+            }
+        }
+
+        private static <K> void delete(
+            Map<K, Set<BundleCapability>> map, K key, BundleCapability cap)
+        {
+            Set<BundleCapability> caps = map.get(key);
+            if (caps != null)
+            {
+                caps.remove(cap);
+                if (caps.isEmpty())
+                {
+                    map.remove(key);
+                }
+            }
+        }
+
+        void match(Set<Capability> matches, SimpleFilter sf)
+        {
+            matchVersions(matches, sf);
+            matchStrings(matches, sf);
+            matchNumbers(matches, sf);
+
+            for (BundleCapability cap : m_others)
+            {
+                if (!matches.contains(cap)
+                    && compare(cap.getAttributes().get(sf.getName()),
+                        sf.getValue(), sf.getOperation()))
+                {
+                    matches.add(cap);
+                }
+            }
+        }
+
+        private void matchVersions(Set<Capability> matches, SimpleFilter sf)
+        {
+            // Substring comparisons never match non-string values.
+            if (m_versions.isEmpty() || (sf.getOperation() == SimpleFilter.SUBSTRING))
+            {
+                return;
+            }
+
+            // Coerce exactly the way compare() does, so an unparsable
+            // value or a range used with >= or <= matches no version.
+            Object rhs;
+            try
+            {
+                rhs = coerceType(Version.emptyVersion, (String) sf.getValue());
+            }
+            catch (Exception ex)
+            {
+                return;
+            }
+
+            if (rhs instanceof VersionRange)
+            {
+                if (sf.getOperation() == SimpleFilter.EQ)
+                {
+                    VersionRange range = (VersionRange) rhs;
+                    for (Entry<Version, Set<BundleCapability>> entry
+                        : m_versions.tailMap(range.getFloor()).entrySet())
+                    {
+                        if ((range.getCeiling() != null)
+                            && (entry.getKey().compareTo(range.getCeiling()) > 0))
+                        {
+                            break;
+                        }
+                        if (range.isInRange(entry.getKey()))
+                        {
+                            matches.addAll(entry.getValue());
+                        }
+                    }
+                }
+            }
+            else if (rhs instanceof Version)
+            {
+                addRange(matches, m_versions, (Version) rhs, sf.getOperation());
+            }
+        }
+
+        private void matchNumbers(Set<Capability> matches, SimpleFilter sf)
+        {
+            // Substring comparisons never match non-string values.
+            if (sf.getOperation() == SimpleFilter.SUBSTRING)
+            {
+                return;
+            }
+
+            for (TreeMap<Comparable, Set<BundleCapability>> numbers : m_numbers.values())
+            {
+                // Coerce exactly the way compare() does, so a value which
+                // is not a number of this type matches none of them.
+                Comparable rhs;
+                try
+                {
+                    rhs = (Comparable) coerceType(numbers.firstKey(), (String) sf.getValue());
+                }
+                catch (Exception ex)
+                {
+                    continue;
+                }
+                addRange(matches, numbers, rhs, sf.getOperation());
+            }
+        }
+
+        private void matchStrings(Set<Capability> matches, SimpleFilter sf)
+        {
+            if (m_strings.isEmpty())
+            {
+                return;
+            }
+
+            if (sf.getOperation() == SimpleFilter.SUBSTRING)
+            {
+                List<String> pieces = (List<String>) sf.getValue();
+                if (pieces.size() == 1)
+                {
+                    addRange(matches, m_strings, pieces.get(0), SimpleFilter.EQ);
+                    return;
+                }
+
+                // Only strings starting with the first piece can match.
+                String prefix = pieces.get(0);
+                for (Entry<String, Set<BundleCapability>> entry
+                    : m_strings.tailMap(prefix).entrySet())
+                {
+                    if (!entry.getKey().startsWith(prefix))
+                    {
+                        break;
+                    }
+                    if (SimpleFilter.compareSubstring(pieces, entry.getKey()))
+                    {
+                        matches.addAll(entry.getValue());
+                    }
+                }
+            }
+            else
+            {
+                addRange(matches, m_strings, (String) sf.getValue(), sf.getOperation());
+            }
+        }
+
+        private static <K> void addRange(
+            Set<Capability> matches, TreeMap<K, Set<BundleCapability>> map, K key, int op)
+        {
+            Set<BundleCapability> exact = map.get(key);
+            if (exact != null)
+            {
+                matches.addAll(exact);
+            }
+            SortedMap<K, Set<BundleCapability>> range = null;
+            if (op == SimpleFilter.GTE)
+            {
+                range = map.tailMap(key);
+            }
+            else if (op == SimpleFilter.LTE)
+            {
+                range = map.headMap(key);
+            }
+            if (range != null)
+            {
+                for (Set<BundleCapability> caps : range.values())
+                {
+                    matches.addAll(caps);
+                }
+            }
+        }
+    }
 }
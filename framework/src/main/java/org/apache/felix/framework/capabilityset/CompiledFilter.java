@@ -0,0 +1,479 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.capabilityset;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.felix.framework.util.VersionRange;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.Version;
+
+/**
+ * A filter compiled from a <tt>SimpleFilter</tt> into a tree of nodes that
+ * is evaluated directly against a property map, dictionary, or service
+ * reference, without wrapping it as a capability. Each comparison caches
+ * its operand coerced to the type of the compared property value, as long
+ * as that type is immutable, so repeated evaluation does not reflectively
+ * convert the same string again. The result of a match is the same as that
+ * of <tt>CapabilitySet.matches()</tt> for a capability without mandatory
+ * attributes.
+**/
+public class CompiledFilter
+{
+    private static final Object INVALID = new Object();
+
+    private static final Set<Class> IMMUTABLE_TYPES = new HashSet<Class>();
+
+    static
+    {
+        IMMUTABLE_TYPES.add(Boolean.class);
+        IMMUTABLE_TYPES.add(Character.class);
+        IMMUTABLE_TYPES.add(Byte.class);
+        IMMUTABLE_TYPES.add(Short.class);
+        IMMUTABLE_TYPES.add(Integer.class);
+        IMMUTABLE_TYPES.add(Long.class);
+        IMMUTABLE_TYPES.add(Float.class);
+        IMMUTABLE_TYPES.add(Double.class);
+        IMMUTABLE_TYPES.add(BigInteger.class);
+        IMMUTABLE_TYPES.add(BigDecimal.class);
+        IMMUTABLE_TYPES.add(Version.class);
+    }
+
+    private final Node m_root;
+
+    private CompiledFilter(Node root)
+    {
+        m_root = root;
+    }
+
+    /**
+     * Compiles a filter.
+     * @param sf the filter to compile.
+     * @return the compiled filter.
+    **/
+    public static CompiledFilter compile(SimpleFilter sf)
+    {
+        return new CompiledFilter(compileNode(sf));
+    }
+
+    /**
+     * Evaluates the filter against a map, using the lookup semantics of
+     * the map for attribute names.
+     * @param attrs the attributes to match.
+     * @return <tt>true</tt> if the attributes match the filter.
+    **/
+    public boolean matches(Map<String, ?> attrs)
+    {
+        return m_root.matches(attrs);
+    }
+
+    /**
+     * Evaluates the filter against a dictionary, looking up attribute names
+     * with their exact case.
+     * @param dict the attributes to match.
+     * @return <tt>true</tt> if the attributes match the filter.
+    **/
+    public boolean matches(Dictionary<String, ?> dict)
+    {
+        return m_root.matches(dict);
+    }
+
+    /**
+     * Evaluates the filter against the properties of a service reference.
+     * @param ref the service reference to match.
+     * @return <tt>true</tt> if the service properties match the filter.
+    **/
+    public boolean matches(ServiceReference ref)
+    {
+        return m_root.matches(ref);
+    }
+
+    private static Node compileNode(SimpleFilter sf)
+    {
+        switch (sf.getOperation())
+        {
+            case SimpleFilter.MATCH_ALL:
+                return new MatchAll();
+            case SimpleFilter.AND:
+            case SimpleFilter.OR:
+            case SimpleFilter.NOT:
+                List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
+                Node[] children = new Node[sfs.size()];
+                for (int i = 0; i < children.length; i++)
+                {
+                    children[i] = compileNode(sfs.get(i));
+                }
+                return new Composite(sf.getOperation(), children);
+            default:
+                return new Comparison(sf.getName(), sf.getValue(), sf.getOperation());
+        }
+    }
+
+    /**
+     * Looks up an attribute in a map, dictionary, or service reference.
+    **/
+    private static Object getAttribute(Object attrs, String name)
+    {
+        if (attrs instanceof Map)
+        {
+            return ((Map) attrs).get(name);
+        }
+        else if (attrs instanceof Dictionary)
+        {
+            return ((Dictionary) attrs).get(name);
+        }
+        return ((ServiceReference) attrs).getProperty(name);
+    }
+
+    private static abstract class Node
+    {
+        abstract boolean matches(Object attrs);
+    }
+
+    private static class MatchAll extends Node
+    {
+        boolean matches(Object attrs)
+        {
+            return true;
+        }
+    }
+
+    private static class Composite extends Node
+    {
+        private final int m_op;
+        private final Node[] m_children;
+
+        Composite(int op, Node[] children)
+        {
+            m_op = op;
+            m_children = children;
+        }
+
+        boolean matches(Object attrs)
+        {
+            switch (m_op)
+            {
+                case SimpleFilter.AND:
+                    for (int i = 0; i < m_children.length; i++)
+                    {
+                        if (!m_children[i].matches(attrs))
+                        {
+                            return false;
+                        }
+                    }
+                    return true;
+                case SimpleFilter.OR:
+                    for (int i = 0; i < m_children.length; i++)
+                    {
+                        if (m_children[i].matches(attrs))
+                        {
+                            return true;
+                        }
+                    }
+                    return false;
+                default:
+                    // Like the interpreter, NOT yields the negation of its
+                    // last operand and matches if it has none.
+                    boolean matched = true;
+                    for (int i = 0; i < m_children.length; i++)
+                    {
+                        matched = !m_children[i].matches(attrs);
+                    }
+                    return matched;
+            }
+        }
+    }
+
+    private static class Comparison extends Node
+    {
+        private final String m_name;
+        private final Object m_value;
+        private final int m_op;
+        private final String m_approx;
+        private volatile Coerced m_coerced;
+
+        Comparison(String name, Object value, int op)
+        {
+            m_name = name;
+            m_value = value;
+            m_op = op;
+            m_approx = ((op == SimpleFilter.APPROX) && (value instanceof String))
+                ? removeWhitespace((String) value) : null;
+        }
+
+        boolean matches(Object attrs)
+        {
+            if (attrs == null)
+            {
+                return false;
+            }
+            Object lhs = getAttribute(attrs, m_name);
+            return (lhs != null) && compare(lhs);
+        }
+
+        /**
+         * Compares a property value with the operand, following
+         * <tt>CapabilitySet.compare()</tt>.
+        **/
+        private boolean compare(Object lhs)
+        {
+            if (m_op == SimpleFilter.PRESENT)
+            {
+                return true;
+            }
+
+            if ((lhs instanceof Version) && (m_op == SimpleFilter.EQ))
+            {
+                Object rhs = coerce(lhs);
+                if (rhs instanceof VersionRange)
+                {
+                    return ((VersionRange) rhs).isInRange((Version) lhs);
+                }
+            }
+
+            if (lhs instanceof Comparable)
+            {
+                // Spec says SUBSTRING is false for all types other than string.
+                if (m_op == SimpleFilter.SUBSTRING)
+                {
+                    return (lhs instanceof String)
+                        && SimpleFilter.compareSubstring((List<String>) m_value, (String) lhs);
+                }
+
+                Object rhs = coerce(lhs);
+                if (rhs == INVALID)
+                {
+                    return false;
+                }
+                switch (m_op)
+                {
+                    case SimpleFilter.EQ :
+                        try
+                        {
+                            return (((Comparable) lhs).compareTo(rhs) == 0);
+                        }
+                        catch (Exception ex)
+                        {
+                            return false;
+                        }
+                    case SimpleFilter.GTE :
+                        try
+                        {
+                            return (((Comparable) lhs).compareTo(rhs) >= 0);
+                        }
+                        catch (Exception ex)
+                        {
+                            return false;
+                        }
+                    case SimpleFilter.LTE :
+                        try
+                        {
+                            return (((Comparable) lhs).compareTo(rhs) <= 0);
+                        }
+                        catch (Exception ex)
+                        {
+                            return false;
+                        }
+                    case SimpleFilter.APPROX :
+                        if ((lhs instanceof String) && (m_approx != null))
+                        {
+                            return equalsApproximate((String) lhs, m_approx);
+                        }
+                        return CapabilitySet.compareApproximate(lhs, rhs);
+                    default:
+                        throw new RuntimeException(
+                            "Unknown comparison operator: " + m_op);
+                }
+            }
+            // Booleans do not implement comparable, so special case them.
+            else if (lhs instanceof Boolean)
+            {
+                Object rhs = coerce(lhs);
+                if (rhs == INVALID)
+                {
+                    return false;
+                }
+                switch (m_op)
+                {
+                    case SimpleFilter.EQ :
+                    case SimpleFilter.GTE :
+                    case SimpleFilter.LTE :
+                    case SimpleFilter.APPROX :
+                        return (lhs.equals(rhs));
+                    default:
+                        throw new RuntimeException(
+                            "Unknown comparison operator: " + m_op);
+                }
+            }
+
+            // Compare each element of arrays and collections until a
+            // match is found.
+            if (lhs instanceof Object[])
+            {
+                Object[] array = (Object[]) lhs;
+                for (int i = 0; i < array.length; i++)
+                {
+                    if ((array[i] != null) && compare(array[i]))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            else if (lhs.getClass().isArray())
+            {
+                for (int i = 0, len = Array.getLength(lhs); i < len; i++)
+                {
+                    if (compare(Array.get(lhs, i)))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            else if (lhs instanceof Collection)
+            {
+                for (Iterator it = ((Collection) lhs).iterator(); it.hasNext(); )
+                {
+                    Object o = it.next();
+                    if ((o != null) && compare(o))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            // Spec says SUBSTRING is false for all types other than string.
+            if (m_op == SimpleFilter.SUBSTRING)
+            {
+                return false;
+            }
+
+            // Since we cannot identify the LHS type, then we can only perform
+            // equality comparison.
+            Object rhs = coerce(lhs);
+            return (rhs != INVALID) && lhs.equals(rhs);
+        }
+
+        /**
+         * Returns the operand converted to the type of the given value, or
+         * <tt>INVALID</tt> if it cannot be converted. The result is cached
+         * for immutable types, which covers the types that properties
+         * usually have.
+        **/
+        private Object coerce(Object lhs)
+        {
+            if (!(m_value instanceof String))
+            {
+                return INVALID;
+            }
+            Class type = lhs.getClass();
+            if (type == String.class)
+            {
+                return m_value;
+            }
+
+            Coerced coerced = m_coerced;
+            if ((coerced != null) && (coerced.m_type == type))
+            {
+                return coerced.m_value;
+            }
+
+            Object rhs;
+            try
+            {
+                rhs = CapabilitySet.coerceType(lhs, (String) m_value);
+            }
+            catch (Exception ex)
+            {
+                rhs = INVALID;
+            }
+            if (IMMUTABLE_TYPES.contains(type))
+            {
+                m_coerced = new Coerced(type, rhs);
+            }
+            return rhs;
+        }
+    }
+
+    private static class Coerced
+    {
+        private final Class m_type;
+        private final Object m_value;
+
+        Coerced(Class type, Object value)
+        {
+            m_type = type;
+            m_value = value;
+        }
+    }
+
+    /**
+     * Compares a string ignoring whitespace and case with an operand from
+     * which whitespace has already been removed, without creating a copy of
+     * the string.
+    **/
+    private static boolean equalsApproximate(String s, String approx)
+    {
+        int j = 0;
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c))
+            {
+                continue;
+            }
+            if (j == approx.length())
+            {
+                return false;
+            }
+            char a = approx.charAt(j++);
+            if ((c != a)
+                && (Character.toUpperCase(c) != Character.toUpperCase(a))
+                && (Character.toLowerCase(c) != Character.toLowerCase(a)))
+            {
+                return false;
+            }
+        }
+        return j == approx.length();
+    }
+
+    private static String removeWhitespace(String s)
+    {
+        StringBuffer sb = new StringBuffer(s.length());
+        for (int i = 0; i < s.length(); i++)
+        {
+            if (!Character.isWhitespace(s.charAt(i)))
+            {
+                sb.append(s.charAt(i));
+            }
+        }
+        return sb.toString();
+    }
+}
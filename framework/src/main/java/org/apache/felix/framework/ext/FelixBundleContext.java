@@ -18,6 +18,9 @@
  */
 package org.apache.felix.framework.ext;
 
+import java.util.List;
+
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
 
@@ -27,4 +30,17 @@ public interface FelixBundleContext extends BundleContext
     public void removeRequirement() throws BundleException;
     public void addCapability() throws BundleException;
     public void removeCapability() throws BundleException;
+
+    /**
+     * Installs a batch of bundles from their locations, like calling
+     * <tt>installBundle(String)</tt> for each location, except that the
+     * bundles are read concurrently and either all or none of them are
+     * installed. The <tt>INSTALLED</tt> events are fired once the whole
+     * batch is installed. Extension bundles cannot be installed this way.
+     *
+     * @param locations The locations of the bundles to install.
+     * @return The installed bundles in the order of the locations.
+     * @throws BundleException If any of the bundles could not be installed.
+    **/
+    public List<Bundle> installBundles(List<String> locations) throws BundleException;
 }
\ No newline at end of file
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.ext;
+
+/**
+ * Receives the timings of the framework's lifecycle hot paths. An instance
+ * is passed to the framework in its configuration map under the
+ * <tt>felix.instrumentation</tt> property; alternatively, setting
+ * <tt>felix.instrumentation.jfr</tt> to <tt>true</tt> records the timings
+ * as JDK Flight Recorder events, if available. Without either, the framework
+ * does not measure anything.
+ * <p>
+ * The listener is called synchronously on the thread that performed the
+ * operation, possibly while framework locks are held, so implementations
+ * must be fast, thread safe and must not call back into the framework.
+**/
+public interface InstrumentationListener
+{
+    /**
+     * A resolve operation; the bundle is the only mandatory bundle to
+     * resolve, if any.
+    **/
+    int RESOLVE = 1;
+    /**
+     * Starting a bundle, including resolving it and calling its activator.
+    **/
+    int BUNDLE_START = 2;
+    /**
+     * Stopping a bundle, including calling its activator.
+    **/
+    int BUNDLE_STOP = 3;
+    /**
+     * Defining a class in a bundle class loader; the detail is the class name.
+    **/
+    int CLASS_DEFINE = 4;
+    /**
+     * Finding a class in the content of a bundle, including weaving and
+     * defining it; the detail is the class name.
+    **/
+    int CLASS_FIND = 5;
+    /**
+     * Registering a service; the bundle is the registering bundle and the
+     * detail the first service interface.
+    **/
+    int SERVICE_REGISTER = 6;
+    /**
+     * Getting a service, including calling its service factory; the bundle
+     * is the using bundle and the detail the first service interface.
+    **/
+    int SERVICE_GET = 7;
+    /**
+     * Delivering a framework, bundle or service event to one listener; the
+     * bundle is the listener's bundle and the detail the listener's class.
+    **/
+    int EVENT_DELIVERY = 8;
+
+    /**
+     * Records a completed operation. The operation is recorded even if it
+     * failed.
+     *
+     * @param type The type of the operation, one of the constants above.
+     * @param bundleId The id of the bundle the operation applies to, or
+     *        <tt>-1</tt> if none.
+     * @param detail A description of the operation or <tt>null</tt>.
+     * @param startNanos The start of the operation as given by
+     *        <tt>System.nanoTime()</tt>.
+     * @param durationNanos The duration of the operation in nanoseconds.
+    **/
+    void record(int type, long bundleId, String detail, long startNanos, long durationNanos);
+}
@@ -20,6 +20,7 @@ package org.apache.felix.framework.util;
 
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -28,13 +29,19 @@ import java.util.EventListener;
 import java.util.EventObject;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.ServiceRegistry;
+import org.apache.felix.framework.ext.InstrumentationListener;
 import org.osgi.framework.AllServiceListener;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -56,6 +63,7 @@ public class EventDispatcher
 {
     private final Logger m_logger;
     private final ServiceRegistry m_registry;
+    private final InstrumentationListener m_instrumentation;
 
     private Map<BundleContext, List<ListenerInfo>>
         m_fwkListeners = Collections.EMPTY_MAP;
@@ -65,8 +73,11 @@ public class EventDispatcher
         m_syncBndlListeners = Collections.EMPTY_MAP;
     private Map<BundleContext, List<ListenerInfo>>
         m_svcListeners = Collections.EMPTY_MAP;
+    // Service listeners indexed by the object classes of their filters;
+    // it is replaced together with m_svcListeners.
+    private ServiceListenerIndex m_svcListenerIndex = ServiceListenerIndex.EMPTY;
 
-    // A single thread is used to deliver events for all dispatchers.
+    // By default a single thread is used to deliver events for all dispatchers.
     private static Thread m_thread = null;
     private final static String m_threadLock = new String("thread lock");
     private static int m_references = 0;
@@ -79,14 +90,67 @@ public class EventDispatcher
 
     private static final SecureAction m_secureAction = new SecureAction();
 
+    // If configured, a dispatcher uses its own pool of delivery threads
+    // instead of the shared thread. Each listener is always served by the
+    // same worker, so a listener still sees its events in order, while a
+    // slow listener only holds up the listeners sharing its worker.
+    private final int m_poolSize;
+    private final boolean m_useVirtualThreads;
+    private final Object m_poolLock = new Object();
+    private volatile DeliveryWorker[] m_workers = null;
+
+    // Delivery statistics of the listeners notified by the workers.
+    private final ConcurrentMap<EventListener, ListenerStatistics> m_stats =
+        new ConcurrentHashMap<EventListener, ListenerStatistics>();
+    // Time spent in event hooks per hook class.
+    private final ConcurrentMap<Class<?>, HookStatistics> m_hookStats =
+        new ConcurrentHashMap<Class<?>, HookStatistics>();
+
     public EventDispatcher(Logger logger, ServiceRegistry registry)
+    {
+        this(logger, registry, null);
+    }
+
+    public EventDispatcher(Logger logger, ServiceRegistry registry, Map configMap)
+    {
+        this(logger, registry, configMap, null);
+    }
+
+    public EventDispatcher(Logger logger, ServiceRegistry registry, Map configMap,
+        InstrumentationListener instrumentation)
     {
         m_logger = logger;
         m_registry = registry;
+        m_instrumentation = instrumentation;
+
+        int poolSize = 0;
+        String poolSizeStr = (configMap == null)
+            ? null : (String) configMap.get(FelixConstants.EVENT_DISPATCHER_THREADS_PROP);
+        if (poolSizeStr != null)
+        {
+            try
+            {
+                poolSize = Integer.parseInt(poolSizeStr.trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                m_logger.log(Logger.LOG_WARNING,
+                    "Invalid event dispatcher thread count: " + poolSizeStr);
+            }
+        }
+        m_poolSize = poolSize;
+        m_useVirtualThreads = (configMap != null) && "true".equalsIgnoreCase(
+            (String) configMap.get(FelixConstants.EVENT_DISPATCHER_VIRTUAL_PROP));
     }
 
     public void startDispatching()
     {
+        if (m_poolSize > 0)
+        {
+            startWorkers();
+            return;
+        }
+
         synchronized (m_threadLock)
         {
             // Start event dispatching thread if necessary.
@@ -125,6 +189,12 @@ public class EventDispatcher
 
     public void stopDispatching()
     {
+        if (m_poolSize > 0)
+        {
+            stopWorkers();
+            return;
+        }
+
         synchronized (m_threadLock)
         {
             // Return if already dead or stopping.
@@ -165,6 +235,222 @@ public class EventDispatcher
         }
     }
 
+    private void startWorkers()
+    {
+        synchronized (m_poolLock)
+        {
+            if (m_workers != null)
+            {
+                return;
+            }
+            DeliveryWorker[] workers = new DeliveryWorker[m_poolSize];
+            for (int i = 0; i < workers.length; i++)
+            {
+                workers[i] = new DeliveryWorker();
+                workers[i].m_thread = createThread(
+                    workers[i], "FelixDispatchQueue-" + (i + 1));
+            }
+            for (int i = 0; i < workers.length; i++)
+            {
+                workers[i].m_thread.start();
+            }
+            m_workers = workers;
+        }
+    }
+
+    private void stopWorkers()
+    {
+        DeliveryWorker[] workers;
+        synchronized (m_poolLock)
+        {
+            workers = m_workers;
+            m_workers = null;
+        }
+        if (workers == null)
+        {
+            return;
+        }
+
+        // Let the workers deliver what is already queued, then wait for them.
+        for (int i = 0; i < workers.length; i++)
+        {
+            workers[i].stop();
+        }
+        for (int i = 0; i < workers.length; i++)
+        {
+            if (workers[i].m_thread != Thread.currentThread())
+            {
+                try
+                {
+                    workers[i].m_thread.join();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private Thread createThread(Runnable runnable, String name)
+    {
+        if (m_useVirtualThreads)
+        {
+            // Virtual threads are only available on newer VMs, so they
+            // are created reflectively.
+            try
+            {
+                Class builderClass = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builderClass.getMethod("name", String.class)
+                    .invoke(builder, name);
+                return (Thread) builderClass.getMethod("unstarted", Runnable.class)
+                    .invoke(builder, runnable);
+            }
+            catch (Throwable th)
+            {
+                m_logger.log(Logger.LOG_WARNING,
+                    "Virtual threads not available, using platform threads.");
+            }
+        }
+        return new Thread(runnable, name);
+    }
+
+    /**
+     * Returns the number of asynchronous listener notifications of this
+     * dispatcher that are queued but not yet delivered.
+     * @return the number of pending notifications.
+    **/
+    public int getQueueDepth()
+    {
+        DeliveryWorker[] workers = m_workers;
+        int depth = 0;
+        if (workers != null)
+        {
+            for (int i = 0; i < workers.length; i++)
+            {
+                depth += workers[i].size();
+            }
+        }
+        else if (m_poolSize <= 0)
+        {
+            synchronized (m_requestList)
+            {
+                for (Request req : m_requestList)
+                {
+                    if (req.m_dispatcher == this)
+                    {
+                        for (List<ListenerInfo> infos : req.m_listeners.values())
+                        {
+                            depth += infos.size();
+                        }
+                    }
+                }
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the delivery statistics of the currently registered listeners
+     * that received asynchronous events. Statistics are only recorded if the
+     * dispatcher uses its own pool of delivery threads. The latency of a
+     * delivery is the time from queuing the event until the listener returned.
+     * @return an unmodifiable view of the statistics per listener.
+    **/
+    public Map<EventListener, ListenerStatistics> getListenerStatistics()
+    {
+        return Collections.unmodifiableMap(m_stats);
+    }
+
+    private void recordDelivery(EventListener l, long latency)
+    {
+        ListenerStatistics stats = m_stats.get(l);
+        if (stats == null)
+        {
+            // The listener may have been removed while its event was queued;
+            // since forgetStatistics() is called while holding the dispatcher
+            // lock, checking the registration under that lock ensures no
+            // statistics are kept for removed listeners.
+            synchronized (this)
+            {
+                if (!isRegistered(m_fwkListeners, l) && !isRegistered(m_bndlListeners, l))
+                {
+                    return;
+                }
+                stats = m_stats.get(l);
+                if (stats == null)
+                {
+                    stats = new ListenerStatistics();
+                    m_stats.put(l, stats);
+                }
+            }
+        }
+        stats.record(latency);
+    }
+
+    /**
+     * Returns the time spent in event hooks per hook class, that is, in
+     * service and bundle <tt>EventHook</tt>s and <tt>EventListenerHook</tt>s.
+     * Each event for which hooks were called is recorded once, with the time
+     * spent in all hooks of the class including filtering the listeners.
+     * @return an unmodifiable view of the statistics per hook class.
+    **/
+    public Map<Class<?>, HookStatistics> getHookStatistics()
+    {
+        return Collections.unmodifiableMap(m_hookStats);
+    }
+
+    private void recordHookTime(Class<?> hookClass, long time)
+    {
+        HookStatistics stats = m_hookStats.get(hookClass);
+        if (stats == null)
+        {
+            stats = new HookStatistics();
+            HookStatistics existing = m_hookStats.putIfAbsent(hookClass, stats);
+            if (existing != null)
+            {
+                stats = existing;
+            }
+        }
+        stats.record(time);
+    }
+
+    // Must be called while holding the dispatcher lock, after the listener
+    // maps have been updated.
+    private void forgetStatistics(List<ListenerInfo> infos)
+    {
+        if ((infos == null) || m_stats.isEmpty())
+        {
+            return;
+        }
+        for (ListenerInfo info : infos)
+        {
+            EventListener l = info.getListener();
+            if (!isRegistered(m_fwkListeners, l) && !isRegistered(m_bndlListeners, l))
+            {
+                m_stats.remove(l);
+            }
+        }
+    }
+
+    private static boolean isRegistered(
+        Map<BundleContext, List<ListenerInfo>> listeners, EventListener l)
+    {
+        for (List<ListenerInfo> infos : listeners.values())
+        {
+            for (ListenerInfo info : infos)
+            {
+                if (info.getListener() == l)
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public Filter addListener(BundleContext bc, Class clazz, EventListener l, Filter filter)
     {
         // Verify the listener.
@@ -260,6 +546,7 @@ public class EventDispatcher
             else if (clazz == ServiceListener.class)
             {
                 m_svcListeners = listeners;
+                m_svcListenerIndex = m_svcListenerIndex.add(info);
             }
         }
         return null;
@@ -312,6 +599,7 @@ public class EventDispatcher
 
             // Try to find the instance in our list.
             int idx = -1;
+            ListenerInfo removedInfo = null;
             for (Entry<BundleContext, List<ListenerInfo>> entry : listeners.entrySet())
             {
                 List<ListenerInfo> infos = entry.getValue();
@@ -328,6 +616,7 @@ public class EventDispatcher
                         {
                             returnInfo = new ListenerInfo(infos.get(i), true);
                         }
+                        removedInfo = info;
                         idx = i;
                         break;
                     }
@@ -358,6 +647,15 @@ public class EventDispatcher
             else if (clazz == ServiceListener.class)
             {
                 m_svcListeners = listeners;
+                if (removedInfo != null)
+                {
+                    m_svcListenerIndex = m_svcListenerIndex.remove(removedInfo);
+                }
+            }
+
+            if (idx >= 0)
+            {
+                forgetStatistics(Collections.singletonList(removedInfo));
             }
         }
 
@@ -375,6 +673,9 @@ public class EventDispatcher
 
         synchronized (this)
         {
+            List<ListenerInfo> fwkInfos = m_fwkListeners.get(bc);
+            List<ListenerInfo> bndlInfos = m_bndlListeners.get(bc);
+
             // Remove all framework listeners associated with the specified bundle.
             m_fwkListeners = removeListenerInfos(m_fwkListeners, bc);
 
@@ -386,7 +687,15 @@ public class EventDispatcher
             m_syncBndlListeners = removeListenerInfos(m_syncBndlListeners, bc);
 
             // Remove all service listeners associated with the specified bundle.
+            List<ListenerInfo> svcInfos = m_svcListeners.get(bc);
             m_svcListeners = removeListenerInfos(m_svcListeners, bc);
+            for (int i = 0; (svcInfos != null) && (i < svcInfos.size()); i++)
+            {
+                m_svcListenerIndex = m_svcListenerIndex.remove(svcInfos.get(i));
+            }
+
+            forgetStatistics(fwkInfos);
+            forgetStatistics(bndlInfos);
         }
     }
 
@@ -427,6 +736,7 @@ public class EventDispatcher
                             info.getSecurityContext(),
                             info.isRemoved());
                         m_svcListeners = updateListenerInfo(m_svcListeners, i, newInfo);
+                        m_svcListenerIndex = m_svcListenerIndex.update(info, newInfo);
                         return oldFilter;
                     }
                 }
@@ -531,12 +841,15 @@ public class EventDispatcher
     public void fireServiceEvent(
         final ServiceEvent event, final Dictionary oldProps, final Framework felix)
     {
-        // Take a snapshot of the listener array.
-        Map<BundleContext, List<ListenerInfo>> listeners = null;
+        // Take a snapshot of the listener index and only consider the
+        // listeners whose filters can match the object classes of the service.
+        ServiceListenerIndex index = null;
         synchronized (this)
         {
-            listeners = m_svcListeners;
+            index = m_svcListenerIndex;
         }
+        Map<BundleContext, List<ListenerInfo>> listeners =
+            index.getCandidates(event.getServiceReference());
 
         // Use service registry hooks to filter target listeners.
         listeners = filterListenersUsingHooks(event, felix, listeners);
@@ -546,7 +859,6 @@ public class EventDispatcher
             this, Request.SERVICE_EVENT, listeners, event, oldProps);
     }
 
-// TODO: OSGi R4.3 - This is ugly and inefficient.
     private Map<BundleContext, List<ListenerInfo>> filterListenersUsingHooks(
         ServiceEvent event, Framework felix, Map<BundleContext, List<ListenerInfo>> listeners)
     {
@@ -577,32 +889,20 @@ public class EventDispatcher
             m_registry.getHooks(org.osgi.framework.hooks.service.EventListenerHook.class);
         if ((elhs != null) && !elhs.isEmpty())
         {
-            List<ListenerInfo> systemBundleListeners = null;
+            long start = System.nanoTime();
 
-            // The mutable map is used to keep the lists that underpin the shrinkable collections.
-            Map<BundleContext, List<ListenerInfo>> mutableMap =
-                    new HashMap<BundleContext, List<ListenerInfo>>();
-            // Create map with shrinkable collections.
+            // Wrap the listener lists so that they are only copied if a
+            // hook actually removes a listener.
+            Map<BundleContext, ShrinkableListenerList> lists =
+                new HashMap<BundleContext, ShrinkableListenerList>();
             Map<BundleContext, Collection<ListenerHook.ListenerInfo>> shrinkableMap =
                 new HashMap<BundleContext, Collection<ListenerHook.ListenerInfo>>();
             for (Entry<BundleContext, List<ListenerInfo>> entry : listeners.entrySet())
             {
-                BundleContext bc = entry.getKey();
-                ArrayList<ListenerInfo> mutableList = new ArrayList<ListenerInfo>(entry.getValue());
-                mutableMap.put(bc, mutableList);
-
-                // We want to pass the list as a generic collection to Shrinkable Collection.
-                // Need to convert to raw type before we can do this...
-                ArrayList ml = mutableList;
-
-                Collection<ListenerHook.ListenerInfo> shrinkableCollection =
-                        new ShrinkableCollection<ListenerHook.ListenerInfo>(ml);
-                shrinkableMap.put(bc, shrinkableCollection);
-
-                // Keep a copy of the System Bundle Listeners, as they might be removed by the hooks, but we
-                // actually need to keep them in the end.
-                if (bc == felix.getBundleContext())
-                    systemBundleListeners = new ArrayList<ListenerInfo>(entry.getValue());
+                ShrinkableListenerList list = new ShrinkableListenerList(entry.getValue());
+                lists.put(entry.getKey(), list);
+                shrinkableMap.put(entry.getKey(),
+                    new ShrinkableCollection<ListenerHook.ListenerInfo>(list));
             }
             shrinkableMap =
                 new ShrinkableMap<BundleContext, Collection<ListenerHook.ListenerInfo>>
@@ -641,28 +941,38 @@ public class EventDispatcher
                 }
             }
 
-// TODO: OSGi R4.3 - Should check and only do this if there was a change.
-
-            // the listeners map should only contain List values, and not Shrinkable
-            // Collections. Therefore we create a new map from the lists that are
-            // the delegates for the Shrinkable Collections. Any changes made by the
-            // hooks will have propagated to these maps.
-            Map<BundleContext, List<ListenerInfo>> newMap =
-                new HashMap<BundleContext, List<ListenerInfo>>();
-            for (Map.Entry<BundleContext, Collection<ListenerHook.ListenerInfo>> entry : shrinkableMap.entrySet())
+            // Only create a new listener map if the hooks removed something.
+            boolean shrunk = (shrinkableMap.size() != listeners.size());
+            for (Iterator<ShrinkableListenerList> it = lists.values().iterator();
+                !shrunk && it.hasNext(); )
+            {
+                shrunk = it.next().isShrunk();
+            }
+            if (shrunk)
             {
-                if (!entry.getValue().isEmpty())
+                Map<BundleContext, List<ListenerInfo>> newMap =
+                    new HashMap<BundleContext, List<ListenerInfo>>();
+                for (BundleContext bc : shrinkableMap.keySet())
                 {
-                    newMap.put(entry.getKey(), mutableMap.get(entry.getKey()));
+                    List<ListenerInfo> list = lists.get(bc).getList();
+                    if (!list.isEmpty())
+                    {
+                        newMap.put(bc, list);
+                    }
                 }
-            }
 
-            // Put the system bundle listeners back, because they really need to be called
-            // regardless whether they were removed by the hooks or not.
-            if (systemBundleListeners != null)
-                newMap.put(felix.getBundleContext(), systemBundleListeners);
+                // Put the system bundle listeners back, because they really need
+                // to be called regardless whether they were removed by the hooks or not.
+                BundleContext systemBundleContext = felix.getBundleContext();
+                if (listeners.containsKey(systemBundleContext))
+                {
+                    newMap.put(systemBundleContext, listeners.get(systemBundleContext));
+                }
+                listeners = newMap;
+            }
 
-            listeners = newMap;
+            recordHookTime(org.osgi.framework.hooks.service.EventListenerHook.class,
+                System.nanoTime() - start);
         }
 
         return listeners;
@@ -679,6 +989,7 @@ public class EventDispatcher
         Set<ServiceReference<T>> hooks = m_registry.getHooks(hookClass);
         if ((hooks != null) && !hooks.isEmpty())
         {
+            long start = System.nanoTime();
             boolean systemBundleListener = false;
             BundleContext systemBundleContext = felix.getBundleContext();
 
@@ -760,6 +1071,8 @@ public class EventDispatcher
             {
                 whitelist = null;
             }
+
+            recordHookTime(hookClass, System.nanoTime() - start);
         }
         return whitelist;
     }
@@ -769,6 +1082,12 @@ public class EventDispatcher
         Map<BundleContext, List<ListenerInfo>> listeners,
         EventObject event)
     {
+        if (dispatcher.m_poolSize > 0)
+        {
+            dispatcher.enqueue(type, listeners, event);
+            return;
+        }
+
         //TODO: should possibly check this within thread lock, seems to be ok though without
         // If dispatch thread is stopped, then ignore dispatch request.
         if (m_stopping || m_thread == null)
@@ -806,6 +1125,28 @@ public class EventDispatcher
         }
     }
 
+    private void enqueue(
+        int type, Map<BundleContext, List<ListenerInfo>> listeners, EventObject event)
+    {
+        // If the workers are stopped, then ignore dispatch request.
+        DeliveryWorker[] workers = m_workers;
+        if ((workers == null) || listeners.isEmpty())
+        {
+            return;
+        }
+
+        long queued = System.nanoTime();
+        for (Entry<BundleContext, List<ListenerInfo>> entry : listeners.entrySet())
+        {
+            for (ListenerInfo info : entry.getValue())
+            {
+                int idx = (System.identityHashCode(info.getListener()) & 0x7FFFFFFF)
+                    % workers.length;
+                workers[idx].add(new Delivery(type, info, event, queued));
+            }
+        }
+    }
+
     private static void fireEventImmediately(
         EventDispatcher dispatcher, int type,
         Map<BundleContext, List<ListenerInfo>> listeners,
@@ -818,44 +1159,60 @@ public class EventDispatcher
             {
                 for (ListenerInfo info : entry.getValue())
                 {
-                    Bundle bundle = info.getBundle();
-                    EventListener l = info.getListener();
-                    Filter filter = info.getParsedFilter();
-                    Object acc = info.getSecurityContext();
-
-                    try
-                    {
-                        if (type == Request.FRAMEWORK_EVENT)
-                        {
-                            invokeFrameworkListenerCallback(bundle, l, event);
-                        }
-                        else if (type == Request.BUNDLE_EVENT)
-                        {
-                            invokeBundleListenerCallback(bundle, l, event);
-                        }
-                        else if (type == Request.SERVICE_EVENT)
-                        {
-                            invokeServiceListenerCallback(
-                                bundle, l, filter, acc, event, oldProps);
-                        }
-                    }
-                    catch (Throwable th)
-                    {
-                        if ((type != Request.FRAMEWORK_EVENT)
-                            || (((FrameworkEvent) event).getType() != FrameworkEvent.ERROR))
-                        {
-                            dispatcher.m_logger.log(bundle,
-                                Logger.LOG_ERROR,
-                                "EventDispatcher: Error during dispatch.", th);
-                            dispatcher.fireFrameworkEvent(
-                                new FrameworkEvent(FrameworkEvent.ERROR, bundle, th));
-                        }
-                    }
+                    deliverEvent(dispatcher, type, info, event, oldProps);
                 }
             }
         }
     }
 
+    private static void deliverEvent(
+        EventDispatcher dispatcher, int type, ListenerInfo info,
+        EventObject event, Dictionary oldProps)
+    {
+        Bundle bundle = info.getBundle();
+        EventListener l = info.getListener();
+        Filter filter = info.getParsedFilter();
+        Object acc = info.getSecurityContext();
+
+        InstrumentationListener instrumentation = dispatcher.m_instrumentation;
+        long start = (instrumentation != null) ? System.nanoTime() : 0;
+        try
+        {
+            if (type == Request.FRAMEWORK_EVENT)
+            {
+                invokeFrameworkListenerCallback(bundle, l, event);
+            }
+            else if (type == Request.BUNDLE_EVENT)
+            {
+                invokeBundleListenerCallback(bundle, l, event);
+            }
+            else if (type == Request.SERVICE_EVENT)
+            {
+                invokeServiceListenerCallback(
+                    bundle, l, filter, acc, event, oldProps);
+            }
+        }
+        catch (Throwable th)
+        {
+            if ((type != Request.FRAMEWORK_EVENT)
+                || (((FrameworkEvent) event).getType() != FrameworkEvent.ERROR))
+            {
+                dispatcher.m_logger.log(bundle,
+                    Logger.LOG_ERROR,
+                    "EventDispatcher: Error during dispatch.", th);
+                dispatcher.fireFrameworkEvent(
+                    new FrameworkEvent(FrameworkEvent.ERROR, bundle, th));
+            }
+        }
+
+        if (instrumentation != null)
+        {
+            instrumentation.record(InstrumentationListener.EVENT_DELIVERY,
+                bundle.getBundleId(), l.getClass().getName(), start,
+                System.nanoTime() - start);
+        }
+    }
+
     private static void invokeFrameworkListenerCallback(
         Bundle bundle, final EventListener l, final EventObject event)
     {
@@ -1167,4 +1524,254 @@ public class EventDispatcher
         public Map<BundleContext, List<ListenerInfo>> m_listeners = null;
         public EventObject m_event = null;
     }
+
+    private static class Delivery
+    {
+        private final int m_type;
+        private final ListenerInfo m_info;
+        private final EventObject m_event;
+        private final long m_queued;
+
+        Delivery(int type, ListenerInfo info, EventObject event, long queued)
+        {
+            m_type = type;
+            m_info = info;
+            m_event = event;
+            m_queued = queued;
+        }
+    }
+
+    /**
+     * A delivery thread of a dispatcher with its own queue. All deliveries
+     * for a given listener go through the same worker.
+    **/
+    private class DeliveryWorker implements Runnable
+    {
+        private final LinkedList<Delivery> m_queue = new LinkedList<Delivery>();
+        private boolean m_done = false;
+        private Thread m_thread;
+
+        void add(Delivery delivery)
+        {
+            synchronized (m_queue)
+            {
+                if (!m_done)
+                {
+                    m_queue.add(delivery);
+                    m_queue.notify();
+                }
+            }
+        }
+
+        int size()
+        {
+            synchronized (m_queue)
+            {
+                return m_queue.size();
+            }
+        }
+
+        void stop()
+        {
+            synchronized (m_queue)
+            {
+                m_done = true;
+                m_queue.notify();
+            }
+        }
+
+        public void run()
+        {
+            while (true)
+            {
+                Delivery d;
+                synchronized (m_queue)
+                {
+                    while (m_queue.isEmpty() && !m_done)
+                    {
+                        try
+                        {
+                            m_queue.wait();
+                        }
+                        catch (InterruptedException ex)
+                        {
+                            // Not much we can do here except for keep waiting.
+                        }
+                    }
+
+                    // If there is nothing left to deliver and the worker
+                    // was stopped, then exit.
+                    if (m_queue.isEmpty())
+                    {
+                        return;
+                    }
+
+                    d = m_queue.removeFirst();
+                }
+
+                // Deliver event outside of synchronized block so that we
+                // don't block other deliveries from being queued.
+                deliverEvent(EventDispatcher.this, d.m_type, d.m_info, d.m_event, null);
+                recordDelivery(d.m_info.getListener(), System.nanoTime() - d.m_queued);
+            }
+        }
+    }
+
+    /**
+     * Delivery statistics of a listener for asynchronously delivered events.
+     * Latencies are measured in nanoseconds.
+    **/
+    public static class ListenerStatistics
+    {
+        private long m_count = 0;
+        private long m_totalLatency = 0;
+        private long m_maxLatency = 0;
+
+        synchronized void record(long latency)
+        {
+            m_count++;
+            m_totalLatency += latency;
+            if (latency > m_maxLatency)
+            {
+                m_maxLatency = latency;
+            }
+        }
+
+        public synchronized long getDeliveryCount()
+        {
+            return m_count;
+        }
+
+        public synchronized long getTotalLatency()
+        {
+            return m_totalLatency;
+        }
+
+        public synchronized long getMaxLatency()
+        {
+            return m_maxLatency;
+        }
+
+        public synchronized long getAverageLatency()
+        {
+            return (m_count == 0) ? 0 : m_totalLatency / m_count;
+        }
+    }
+
+    /**
+     * Time spent in the event hooks of a hook class. Times are measured in
+     * nanoseconds.
+    **/
+    public static class HookStatistics
+    {
+        private long m_count = 0;
+        private long m_totalTime = 0;
+        private long m_maxTime = 0;
+
+        synchronized void record(long time)
+        {
+            m_count++;
+            m_totalTime += time;
+            if (time > m_maxTime)
+            {
+                m_maxTime = time;
+            }
+        }
+
+        public synchronized long getEventCount()
+        {
+            return m_count;
+        }
+
+        public synchronized long getTotalTime()
+        {
+            return m_totalTime;
+        }
+
+        public synchronized long getMaxTime()
+        {
+            return m_maxTime;
+        }
+
+        public synchronized long getAverageTime()
+        {
+            return (m_count == 0) ? 0 : m_totalTime / m_count;
+        }
+    }
+
+    /**
+     * A listener list handed to event listener hooks, which is only copied
+     * when a hook removes a listener, so the original list is never modified.
+    **/
+    private static class ShrinkableListenerList extends AbstractCollection
+    {
+        private final List<ListenerInfo> m_original;
+        private List<ListenerInfo> m_shrunk = null;
+
+        ShrinkableListenerList(List<ListenerInfo> original)
+        {
+            m_original = original;
+        }
+
+        boolean isShrunk()
+        {
+            return m_shrunk != null;
+        }
+
+        List<ListenerInfo> getList()
+        {
+            return (m_shrunk != null) ? m_shrunk : m_original;
+        }
+
+        @Override
+        public int size()
+        {
+            return getList().size();
+        }
+
+        @Override
+        public void clear()
+        {
+            m_shrunk = new ArrayList<ListenerInfo>();
+        }
+
+        @Override
+        public Iterator iterator()
+        {
+            return new Iterator()
+            {
+                private int m_next = 0;
+                private boolean m_removable = false;
+
+                public boolean hasNext()
+                {
+                    return m_next < getList().size();
+                }
+
+                public Object next()
+                {
+                    if (!hasNext())
+                    {
+                        throw new NoSuchElementException();
+                    }
+                    m_removable = true;
+                    return getList().get(m_next++);
+                }
+
+                public void remove()
+                {
+                    if (!m_removable)
+                    {
+                        throw new IllegalStateException();
+                    }
+                    if (m_shrunk == null)
+                    {
+                        m_shrunk = new ArrayList<ListenerInfo>(m_original);
+                    }
+                    m_shrunk.remove(--m_next);
+                    m_removable = false;
+                }
+            };
+        }
+    }
 }
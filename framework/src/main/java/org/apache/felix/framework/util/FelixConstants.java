@@ -53,6 +53,15 @@ public interface FelixConstants extends org.osgi.framework.Constants
     String USE_LOCALURLS_PROP = "felix.jarurls";
     String NATIVE_OS_NAME_ALIAS_PREFIX = "felix.native.osname.alias";
     String NATIVE_PROC_NAME_ALIAS_PREFIX = "felix.native.processor.alias";
+    String RESOLVER_CACHE_PROP = "felix.resolver.cache";
+    String WIRING_LOOKUP_CACHE_SIZE_PROP = "felix.wiring.lookupcache.size";
+    String EVENT_DISPATCHER_THREADS_PROP = "felix.eventdispatcher.threads";
+    String EVENT_DISPATCHER_VIRTUAL_PROP = "felix.eventdispatcher.virtual";
+    String INSTALL_PARALLELISM_PROP = "felix.install.parallelism";
+    String STARTLEVEL_PARALLELISM_PROP = "felix.startlevel.parallelism";
+    String INSTRUMENTATION_PROP = "felix.instrumentation";
+    String INSTRUMENTATION_JFR_PROP = "felix.instrumentation.jfr";
+    String LAZY_REVISIONS_PROP = "felix.cache.lazyrevisions";
 
     // Missing OSGi constant for resolution directive.
     String RESOLUTION_DYNAMIC = "dynamic";
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.felix.framework.ext.InstrumentationListener;
+
+/**
+ * Records framework timings as JDK Flight Recorder events. Since the
+ * framework has to run on JVMs without Flight Recorder, the event types are
+ * created at runtime through <tt>jdk.jfr.EventFactory</tt> using reflection.
+ * There is one event type per operation type, named
+ * <tt>org.apache.felix.framework.&lt;Operation&gt;</tt>, with the bundle id,
+ * the detail and the measured duration as fields. As the events are only
+ * committed once the operation is over, their own duration is zero and the
+ * measured one is in the <tt>elapsed</tt> field.
+**/
+public class JfrInstrumentation implements InstrumentationListener
+{
+    private static final String[] NAMES = {
+        null, "Resolve", "BundleStart", "BundleStop", "ClassDefine",
+        "ClassFind", "ServiceRegister", "ServiceGet", "EventDelivery"
+    };
+    private static final String[] LABELS = {
+        null, "Resolve", "Bundle Start", "Bundle Stop", "Class Define",
+        "Class Find", "Service Register", "Service Get", "Event Delivery"
+    };
+
+    private final Object[] m_factories;
+    private final Method m_newEvent;
+    private final Method m_isEnabled;
+    private final Method m_set;
+    private final Method m_commit;
+
+    private JfrInstrumentation(Object[] factories, Method newEvent,
+        Method isEnabled, Method set, Method commit)
+    {
+        m_factories = factories;
+        m_newEvent = newEvent;
+        m_isEnabled = isEnabled;
+        m_set = set;
+        m_commit = commit;
+    }
+
+    /**
+     * Creates the event types and returns an instance recording them.
+     *
+     * @return The instance.
+     * @throws Exception If Flight Recorder is not available.
+    **/
+    public static JfrInstrumentation create() throws Exception
+    {
+        Class factoryClass = Class.forName("jdk.jfr.EventFactory");
+        Class eventClass = Class.forName("jdk.jfr.Event");
+        Class annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+        Class descriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+        Constructor annotation = annotationClass.getConstructor(
+            new Class[] { Class.class, Object.class });
+        Constructor descriptor = descriptorClass.getConstructor(
+            new Class[] { Class.class, String.class, List.class });
+        Method create = factoryClass.getMethod(
+            "create", new Class[] { List.class, List.class });
+
+        List fields = new ArrayList();
+        fields.add(descriptor.newInstance(new Object[] {
+            long.class, "bundleId", Arrays.asList(new Object[] {
+                annotation.newInstance(new Object[] {
+                    Class.forName("jdk.jfr.Label"), "Bundle Id" }) }) }));
+        fields.add(descriptor.newInstance(new Object[] {
+            String.class, "detail", Arrays.asList(new Object[] {
+                annotation.newInstance(new Object[] {
+                    Class.forName("jdk.jfr.Label"), "Detail" }) }) }));
+        fields.add(descriptor.newInstance(new Object[] {
+            long.class, "elapsed", Arrays.asList(new Object[] {
+                annotation.newInstance(new Object[] {
+                    Class.forName("jdk.jfr.Label"), "Elapsed" }),
+                annotation.newInstance(new Object[] {
+                    Class.forName("jdk.jfr.Timespan"), "NANOSECONDS" }) }) }));
+
+        Object[] factories = new Object[NAMES.length];
+        for (int i = 1; i < NAMES.length; i++)
+        {
+            List annotations = new ArrayList();
+            annotations.add(annotation.newInstance(new Object[] {
+                Class.forName("jdk.jfr.Name"),
+                "org.apache.felix.framework." + NAMES[i] }));
+            annotations.add(annotation.newInstance(new Object[] {
+                Class.forName("jdk.jfr.Label"), LABELS[i] }));
+            annotations.add(annotation.newInstance(new Object[] {
+                Class.forName("jdk.jfr.Category"),
+                new String[] { "Apache Felix", "Framework" } }));
+            factories[i] = create.invoke(null, new Object[] { annotations, fields });
+        }
+
+        return new JfrInstrumentation(factories,
+            factoryClass.getMethod("newEvent", new Class[0]),
+            eventClass.getMethod("isEnabled", new Class[0]),
+            eventClass.getMethod("set", new Class[] { int.class, Object.class }),
+            eventClass.getMethod("commit", new Class[0]));
+    }
+
+    public void record(
+        int type, long bundleId, String detail, long startNanos, long durationNanos)
+    {
+        if ((type < 1) || (type >= m_factories.length))
+        {
+            return;
+        }
+        try
+        {
+            Object event = m_newEvent.invoke(m_factories[type], (Object[]) null);
+            if (((Boolean) m_isEnabled.invoke(event, (Object[]) null)).booleanValue())
+            {
+                m_set.invoke(event, new Object[] { new Integer(0), new Long(bundleId) });
+                m_set.invoke(event, new Object[] { new Integer(1), detail });
+                m_set.invoke(event, new Object[] { new Integer(2), new Long(durationNanos) });
+                m_commit.invoke(event, (Object[]) null);
+            }
+        }
+        catch (Exception ex)
+        {
+            // Not much we can do, the event is lost.
+        }
+    }
+}
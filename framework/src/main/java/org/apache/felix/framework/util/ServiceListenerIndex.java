@@ -0,0 +1,317 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.UnfilteredServiceListener;
+
+/**
+ * An immutable index of service listeners by the object classes their
+ * filters require, so that a service event only needs to be matched against
+ * the listeners that can possibly match it. Listeners whose filters do not
+ * require specific object classes are kept in a list of unindexed listeners,
+ * which are candidates for every event. Modifications return a new index and
+ * only copy the affected lists.
+**/
+class ServiceListenerIndex
+{
+    static final ServiceListenerIndex EMPTY = new ServiceListenerIndex(
+        Collections.<String, List<Entry>>emptyMap(), Collections.<Entry>emptyList(), 0);
+
+    private static final Comparator<Entry> ORDER = new Comparator<Entry>()
+    {
+        public int compare(Entry e1, Entry e2)
+        {
+            return (e1.m_order < e2.m_order) ? -1 : ((e1.m_order > e2.m_order) ? 1 : 0);
+        }
+    };
+
+    private final Map<String, List<Entry>> m_byClass;
+    private final List<Entry> m_unindexed;
+    private final long m_nextOrder;
+
+    private ServiceListenerIndex(
+        Map<String, List<Entry>> byClass, List<Entry> unindexed, long nextOrder)
+    {
+        m_byClass = byClass;
+        m_unindexed = unindexed;
+        m_nextOrder = nextOrder;
+    }
+
+    /**
+     * Returns an index with the given listener added.
+     * @param info the listener to add.
+     * @return the new index.
+    **/
+    ServiceListenerIndex add(ListenerInfo info)
+    {
+        return add(new Entry(info, m_nextOrder), m_nextOrder + 1);
+    }
+
+    /**
+     * Returns an index with a listener replaced by one with a new filter;
+     * the replacement keeps the delivery order of the replaced listener.
+     * @param oldInfo the listener to replace.
+     * @param newInfo the replacement.
+     * @return the new index.
+    **/
+    ServiceListenerIndex update(ListenerInfo oldInfo, ListenerInfo newInfo)
+    {
+        Entry entry = find(oldInfo);
+        long order = (entry != null) ? entry.m_order : m_nextOrder;
+        return remove(oldInfo).add(new Entry(newInfo, order), m_nextOrder + 1);
+    }
+
+    /**
+     * Returns an index without the given listener.
+     * @param info the listener to remove.
+     * @return the new index.
+    **/
+    ServiceListenerIndex remove(ListenerInfo info)
+    {
+        Set<String> classes = getObjectClasses(info);
+        if (classes == null)
+        {
+            return new ServiceListenerIndex(
+                m_byClass, removeEntry(m_unindexed, info), m_nextOrder);
+        }
+        Map<String, List<Entry>> byClass = new HashMap<String, List<Entry>>(m_byClass);
+        for (String clazz : classes)
+        {
+            List<Entry> entries = byClass.get(clazz);
+            if (entries != null)
+            {
+                entries = removeEntry(entries, info);
+                if (entries.isEmpty())
+                {
+                    byClass.remove(clazz);
+                }
+                else
+                {
+                    byClass.put(clazz, entries);
+                }
+            }
+        }
+        return new ServiceListenerIndex(byClass, m_unindexed, m_nextOrder);
+    }
+
+    /**
+     * Returns the listeners that may match an event for the given service,
+     * grouped by bundle context like the listener maps of the event
+     * dispatcher. Within a bundle context, listeners keep the order in which
+     * they were added.
+     * @param ref the service reference of the event.
+     * @return the candidate listeners.
+    **/
+    Map<BundleContext, List<ListenerInfo>> getCandidates(ServiceReference ref)
+    {
+        List<Entry> candidates = new ArrayList<Entry>(m_unindexed);
+        Object value = ref.getProperty(Constants.OBJECTCLASS);
+        String[] classes = (value instanceof String[]) ? (String[]) value : null;
+        int buckets = 0;
+        for (int i = 0; (classes != null) && (i < classes.length); i++)
+        {
+            List<Entry> entries = m_byClass.get(classes[i]);
+            if (entries != null)
+            {
+                candidates.addAll(entries);
+                buckets++;
+            }
+        }
+
+        // A listener may be indexed under several of the object classes.
+        if (buckets > 1)
+        {
+            Map<ListenerInfo, Entry> unique = new IdentityHashMap<ListenerInfo, Entry>();
+            for (Entry entry : candidates)
+            {
+                unique.put(entry.m_info, entry);
+            }
+            candidates = new ArrayList<Entry>(unique.values());
+        }
+        Collections.sort(candidates, ORDER);
+
+        Map<BundleContext, List<ListenerInfo>> result =
+            new HashMap<BundleContext, List<ListenerInfo>>();
+        for (Entry entry : candidates)
+        {
+            List<ListenerInfo> infos = result.get(entry.m_info.getBundleContext());
+            if (infos == null)
+            {
+                infos = new ArrayList<ListenerInfo>();
+                result.put(entry.m_info.getBundleContext(), infos);
+            }
+            infos.add(entry.m_info);
+        }
+        return result;
+    }
+
+    int getIndexedClassCount()
+    {
+        return m_byClass.size();
+    }
+
+    int getUnindexedCount()
+    {
+        return m_unindexed.size();
+    }
+
+    private ServiceListenerIndex add(Entry entry, long nextOrder)
+    {
+        Set<String> classes = getObjectClasses(entry.m_info);
+        if (classes == null)
+        {
+            List<Entry> unindexed = new ArrayList<Entry>(m_unindexed.size() + 1);
+            unindexed.addAll(m_unindexed);
+            unindexed.add(entry);
+            return new ServiceListenerIndex(m_byClass, unindexed, nextOrder);
+        }
+        Map<String, List<Entry>> byClass = new HashMap<String, List<Entry>>(m_byClass);
+        for (String clazz : classes)
+        {
+            List<Entry> entries = byClass.get(clazz);
+            List<Entry> copy = new ArrayList<Entry>(
+                (entries == null) ? 1 : entries.size() + 1);
+            if (entries != null)
+            {
+                copy.addAll(entries);
+            }
+            copy.add(entry);
+            byClass.put(clazz, copy);
+        }
+        return new ServiceListenerIndex(byClass, m_unindexed, nextOrder);
+    }
+
+    private Entry find(ListenerInfo info)
+    {
+        Set<String> classes = getObjectClasses(info);
+        List<Entry> entries = (classes == null)
+            ? m_unindexed : m_byClass.get(classes.iterator().next());
+        for (int i = 0; (entries != null) && (i < entries.size()); i++)
+        {
+            if (entries.get(i).m_info == info)
+            {
+                return entries.get(i);
+            }
+        }
+        return null;
+    }
+
+    private static List<Entry> removeEntry(List<Entry> entries, ListenerInfo info)
+    {
+        for (int i = 0; i < entries.size(); i++)
+        {
+            if (entries.get(i).m_info == info)
+            {
+                List<Entry> copy = new ArrayList<Entry>(entries);
+                copy.remove(i);
+                return copy;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the object classes of which a service must have at least one
+     * to match the filter of a listener, or <tt>null</tt> if the filter
+     * does not require any specific object class.
+    **/
+    private static Set<String> getObjectClasses(ListenerInfo info)
+    {
+        Filter filter = info.getParsedFilter();
+        if ((filter == null) || (info.getListener() instanceof UnfilteredServiceListener))
+        {
+            return null;
+        }
+        try
+        {
+            return getObjectClasses(SimpleFilter.parse(filter.toString()));
+        }
+        catch (Exception ex)
+        {
+            return null;
+        }
+    }
+
+    private static Set<String> getObjectClasses(SimpleFilter sf)
+    {
+        switch (sf.getOperation())
+        {
+            case SimpleFilter.EQ:
+                if (Constants.OBJECTCLASS.equalsIgnoreCase(sf.getName())
+                    && (sf.getValue() instanceof String))
+                {
+                    return Collections.singleton((String) sf.getValue());
+                }
+                return null;
+            case SimpleFilter.AND:
+                // Any of the terms restricts the object classes.
+                for (Object child : (List) sf.getValue())
+                {
+                    Set<String> classes = getObjectClasses((SimpleFilter) child);
+                    if (classes != null)
+                    {
+                        return classes;
+                    }
+                }
+                return null;
+            case SimpleFilter.OR:
+                // All of the alternatives must restrict the object classes.
+                Set<String> result = new HashSet<String>();
+                for (Object child : (List) sf.getValue())
+                {
+                    Set<String> classes = getObjectClasses((SimpleFilter) child);
+                    if (classes == null)
+                    {
+                        return null;
+                    }
+                    result.addAll(classes);
+                }
+                return result.isEmpty() ? null : result;
+            default:
+                return null;
+        }
+    }
+
+    private static class Entry
+    {
+        private final ListenerInfo m_info;
+        private final long m_order;
+
+        Entry(ListenerInfo info, long order)
+        {
+            m_info = info;
+            m_order = order;
+        }
+    }
+}
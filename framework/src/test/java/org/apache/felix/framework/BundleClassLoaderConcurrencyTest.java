@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+public class BundleClassLoaderConcurrencyTest extends TestCase
+{
+    private static final String PACKAGE = "concurrent.gen";
+
+    private File m_cacheDir;
+    private Framework m_framework;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+        m_framework = startFramework(m_cacheDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_framework.stop();
+        m_framework.waitForStop(10000);
+        deleteDir(m_cacheDir);
+        super.tearDown();
+    }
+
+    public void testConcurrentLoadDefinesEachClassOnce() throws Exception
+    {
+        int count = 500;
+        Bundle bundle = installBundle(m_framework, m_cacheDir, count);
+
+        Class[][] results = loadConcurrently(bundle, count, 8);
+        for (int i = 0; i < count; i++)
+        {
+            Class expected = bundle.loadClass(className(i));
+            assertEquals(className(i), expected.getName());
+            for (int t = 0; t < results.length; t++)
+            {
+                assertSame(expected, results[t][i]);
+            }
+        }
+    }
+
+    /**
+     * Loads all classes on the given number of threads, each thread in its
+     * own random order, and returns the classes each thread got.
+    **/
+    private static Class[][] loadConcurrently(
+        final Bundle bundle, final int count, int threads) throws Exception
+    {
+        final Class[][] results = new Class[threads][count];
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] loaders = new Thread[threads];
+        for (int t = 0; t < threads; t++)
+        {
+            final int idx = t;
+            loaders[t] = new Thread()
+            {
+                public void run()
+                {
+                    List<Integer> order = new ArrayList<Integer>(count);
+                    for (int i = 0; i < count; i++)
+                    {
+                        order.add(i);
+                    }
+                    Collections.shuffle(order, new Random(idx));
+                    try
+                    {
+                        start.await();
+                        for (int i : order)
+                        {
+                            results[idx][i] = bundle.loadClass(className(i));
+                        }
+                    }
+                    catch (Throwable th)
+                    {
+                        failure.compareAndSet(null, th);
+                    }
+                }
+            };
+            loaders[t].start();
+        }
+        start.countDown();
+        for (int t = 0; t < threads; t++)
+        {
+            loaders[t].join();
+        }
+        if (failure.get() != null)
+        {
+            throw new AssertionError(failure.get());
+        }
+        return results;
+    }
+
+    private static String className(int i)
+    {
+        return PACKAGE + ".C" + i;
+    }
+
+    /**
+     * Creates the bytes of an empty public class extending Object.
+    **/
+    private static byte[] createClass(String name) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(49);
+        out.writeShort(5);
+        out.writeByte(7);
+        out.writeShort(2);
+        out.writeByte(1);
+        out.writeUTF(name.replace('.', '/'));
+        out.writeByte(7);
+        out.writeShort(4);
+        out.writeByte(1);
+        out.writeUTF("java/lang/Object");
+        out.writeShort(0x0021);
+        out.writeShort(1);
+        out.writeShort(3);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.close();
+        return baos.toByteArray();
+    }
+
+    private static Bundle installBundle(Framework f, File dir, int count) throws Exception
+    {
+        File file = File.createTempFile("felix-bundle", ".jar", dir);
+        Manifest mf = new Manifest(new ByteArrayInputStream((
+            "Manifest-Version: 1.0\n"
+            + "Bundle-SymbolicName: concurrent.loader\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Export-Package: " + PACKAGE + "\n").getBytes("utf-8")));
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(file), mf);
+        for (int i = 0; i < count; i++)
+        {
+            os.putNextEntry(new ZipEntry(className(i).replace('.', '/') + ".class"));
+            os.write(createClass(className(i)));
+            os.closeEntry();
+        }
+        os.close();
+
+        Bundle bundle = f.getBundleContext().installBundle(file.toURI().toString());
+        assertTrue(f.adapt(FrameworkWiring.class).resolveBundles(Arrays.asList(bundle)));
+        return bundle;
+    }
+
+    private static Framework startFramework(File cacheDir) throws Exception
+    {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        Framework f = new Felix(params);
+        f.init();
+        f.start();
+        return f;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+
+    /**
+     * Measures the time to load several thousand classes from a single
+     * wiring for an increasing number of threads, using a fresh framework
+     * for each run; not run as part of the test suite.
+    **/
+    public static void main(String[] args) throws Exception
+    {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+        for (int threads = 1; threads <= 16; threads *= 2)
+        {
+            File cacheDir = File.createTempFile("felix-cache", ".dir");
+            cacheDir.delete();
+            cacheDir.mkdirs();
+            Framework f = startFramework(cacheDir);
+            try
+            {
+                Bundle bundle = installBundle(f, cacheDir, count);
+                long start = System.nanoTime();
+                loadConcurrently(bundle, count, threads);
+                System.out.println(threads + " threads: "
+                    + ((System.nanoTime() - start) / 1000000) + "ms for "
+                    + count + " classes");
+            }
+            finally
+            {
+                f.stop();
+                f.waitForStop(10000);
+                deleteDir(cacheDir);
+            }
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.AccessControlException;
+import java.security.Permission;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.ext.FelixBundleContext;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.AdminPermission;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.SynchronousBundleListener;
+
+public class BundleInstallBatchTest extends TestCase
+{
+    private File m_cacheDir;
+    private Felix m_felix;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+        m_felix = startFramework(m_cacheDir, "4");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        deleteDir(m_cacheDir);
+        super.tearDown();
+    }
+
+    public void testInstallBundles() throws Exception
+    {
+        FelixBundleContext context = (FelixBundleContext) m_felix.getBundleContext();
+        Bundle existing = context.installBundle(
+            createBundle(m_cacheDir, "batch.existing").toURI().toString());
+
+        final List<Long> events = Collections.synchronizedList(new ArrayList<Long>());
+        context.addBundleListener(new SynchronousBundleListener()
+        {
+            public void bundleChanged(BundleEvent event)
+            {
+                if (event.getType() == BundleEvent.INSTALLED)
+                {
+                    events.add(event.getBundle().getBundleId());
+                }
+            }
+        });
+
+        List<String> locations = new ArrayList<String>();
+        for (int i = 0; i < 10; i++)
+        {
+            locations.add(createBundle(m_cacheDir, "batch.b" + i).toURI().toString());
+        }
+        locations.add(3, existing.getLocation());
+        locations.add(locations.get(5));
+
+        List<Bundle> bundles = context.installBundles(locations);
+        assertEquals(locations.size(), bundles.size());
+        List<Long> expected = new ArrayList<Long>();
+        for (int i = 0; i < locations.size(); i++)
+        {
+            Bundle bundle = bundles.get(i);
+            assertEquals(locations.get(i), bundle.getLocation());
+            assertEquals(Bundle.INSTALLED, bundle.getState());
+            assertSame(bundle, context.getBundle(bundle.getBundleId()));
+            if ((bundle != existing) && !expected.contains(bundle.getBundleId()))
+            {
+                // Identifiers follow the order of the locations.
+                if (!expected.isEmpty())
+                {
+                    assertTrue(bundle.getBundleId() > expected.get(expected.size() - 1));
+                }
+                expected.add(bundle.getBundleId());
+            }
+        }
+        assertSame(existing, bundles.get(3));
+        assertSame(bundles.get(5), bundles.get(bundles.size() - 1));
+        assertEquals(10, expected.size());
+        assertEquals(expected, events);
+
+        // The bundles are usable like individually installed ones.
+        for (Bundle bundle : bundles)
+        {
+            bundle.start();
+            assertEquals(Bundle.ACTIVE, bundle.getState());
+        }
+    }
+
+    public void testFailedBundleInstallsNothing() throws Exception
+    {
+        FelixBundleContext context = (FelixBundleContext) m_felix.getBundleContext();
+        int before = context.getBundles().length;
+
+        // The same symbolic name twice in a batch is a collision.
+        List<String> locations = new ArrayList<String>();
+        locations.add(createBundle(m_cacheDir, "batch.ok1").toURI().toString());
+        locations.add(createBundle(m_cacheDir, "batch.dup").toURI().toString());
+        locations.add(createBundle(m_cacheDir, "batch.dup").toURI().toString());
+        try
+        {
+            context.installBundles(locations);
+            fail("Expected duplicate bundles to be rejected.");
+        }
+        catch (BundleException ex)
+        {
+            // Expected.
+        }
+        assertEquals(before, context.getBundles().length);
+        for (String location : locations)
+        {
+            assertNull(context.getBundle(location));
+        }
+
+        // An invalid location fails the batch as well.
+        locations.remove(2);
+        locations.add(new File(m_cacheDir, "missing.jar").toURI().toString());
+        try
+        {
+            context.installBundles(locations);
+            fail("Expected missing bundle to be rejected.");
+        }
+        catch (BundleException ex)
+        {
+            // Expected.
+        }
+        assertEquals(before, context.getBundles().length);
+
+        // The batch can be installed once it is fixed.
+        locations.remove(2);
+        assertEquals(2, context.installBundles(locations).size());
+        assertEquals(before + 2, context.getBundles().length);
+    }
+
+    public void testInstallBundlesAfterRestart() throws Exception
+    {
+        FelixBundleContext context = (FelixBundleContext) m_felix.getBundleContext();
+        List<String> locations = new ArrayList<String>();
+        for (int i = 0; i < 5; i++)
+        {
+            locations.add(createBundle(m_cacheDir, "batch.r" + i).toURI().toString());
+        }
+        List<Bundle> bundles = context.installBundles(locations);
+
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        m_felix = startFramework(m_cacheDir, "4");
+        context = (FelixBundleContext) m_felix.getBundleContext();
+        for (Bundle bundle : bundles)
+        {
+            Bundle reloaded = context.getBundle(bundle.getBundleId());
+            assertNotNull(reloaded);
+            assertEquals(bundle.getLocation(), reloaded.getLocation());
+            assertEquals(bundle.getSymbolicName(), reloaded.getSymbolicName());
+        }
+    }
+
+    public void testPermissionCheckSeesBundleRevision() throws Exception
+    {
+        FelixBundleContext context = (FelixBundleContext) m_felix.getBundleContext();
+        int before = context.getBundles().length;
+        List<String> locations = new ArrayList<String>();
+        locations.add(createBundle(m_cacheDir, "batch.allowed1").toURI().toString());
+        locations.add(createBundle(m_cacheDir, "batch.allowed2").toURI().toString());
+        List<String> denied = new ArrayList<String>(locations);
+        denied.add(createBundle(m_cacheDir, "batch.denied").toURI().toString());
+
+        // The permission is granted by symbolic name, which is only known
+        // once the bundle has its revision.
+        try
+        {
+            System.setSecurityManager(new LifecycleSecurityManager(
+                new AdminPermission("(name=batch.allowed*)", AdminPermission.LIFECYCLE)));
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            // The security manager cannot be enabled on this JVM.
+            return;
+        }
+        try
+        {
+            try
+            {
+                context.installBundles(denied);
+                fail("Expected the batch to be denied.");
+            }
+            catch (AccessControlException ex)
+            {
+                // Expected.
+            }
+            assertEquals(before, context.getBundles().length);
+
+            List<Bundle> bundles = context.installBundles(locations);
+            assertEquals("batch.allowed1", bundles.get(0).getSymbolicName());
+            assertEquals("batch.allowed2", bundles.get(1).getSymbolicName());
+        }
+        finally
+        {
+            System.setSecurityManager(null);
+        }
+        assertEquals(before + 2, context.getBundles().length);
+    }
+
+    private static Felix startFramework(File cacheDir, String parallelism)
+        throws BundleException
+    {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        params.put(FelixConstants.INSTALL_PARALLELISM_PROP, parallelism);
+        Felix felix = new Felix(params);
+        felix.init();
+        felix.start();
+        return felix;
+    }
+
+    private static File createBundle(File dir, String symbolicName) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", dir);
+
+        Manifest mf = new Manifest(new ByteArrayInputStream((
+            "Manifest-Version: 1.0\n"
+            + "Bundle-SymbolicName: " + symbolicName + "\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: org.osgi.framework\n").getBytes("utf-8")));
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+
+    // Denies the admin permissions with the actions of the granted one
+    // which it does not imply.
+    private static class LifecycleSecurityManager extends SecurityManager
+    {
+        private final Permission m_granted;
+
+        LifecycleSecurityManager(Permission granted)
+        {
+            m_granted = granted;
+        }
+
+        @Override
+        public void checkPermission(Permission perm)
+        {
+            if ((perm instanceof AdminPermission)
+                && perm.getActions().equals(m_granted.getActions())
+                && !m_granted.implies(perm))
+            {
+                throw new AccessControlException("Denied " + perm, perm);
+            }
+        }
+
+        @Override
+        public void checkPermission(Permission perm, Object context)
+        {
+            checkPermission(perm);
+        }
+    }
+
+    /**
+     * Compares installing bundles one by one with installing them as a
+     * batch; not run as part of the test suite.
+    **/
+    public static void main(String[] args) throws Exception
+    {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+        for (int round = 0; round < 3; round++)
+        {
+            File dir = File.createTempFile("felix-batch", ".dir");
+            dir.delete();
+            dir.mkdirs();
+            try
+            {
+                List<String> single = new ArrayList<String>();
+                List<String> batch = new ArrayList<String>();
+                for (int i = 0; i < count; i++)
+                {
+                    single.add(createBundle(dir, "single.b" + i).toURI().toString());
+                    batch.add(createBundle(dir, "batch.b" + i).toURI().toString());
+                }
+                Felix felix = startFramework(new File(dir, "cache"),
+                    "" + Runtime.getRuntime().availableProcessors());
+                FelixBundleContext context = (FelixBundleContext) felix.getBundleContext();
+
+                long start = System.nanoTime();
+                for (String location : single)
+                {
+                    context.installBundle(location);
+                }
+                long singleTime = System.nanoTime() - start;
+                start = System.nanoTime();
+                context.installBundles(batch);
+                long batchTime = System.nanoTime() - start;
+
+                System.out.println(count + " bundles: single="
+                    + (singleTime / 1000000) + "ms batch="
+                    + (batchTime / 1000000) + "ms");
+                felix.stop();
+                felix.waitForStop(10000);
+            }
+            finally
+            {
+                deleteDir(dir);
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.cache.BundleCache;
+import org.apache.felix.framework.wiring.BundleRequirementImpl;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+
+public class BundleRevisionMetadataTest extends TestCase
+{
+    private static final String MANIFEST =
+        "Manifest-Version: 1.0\r\n"
+        + "Bundle-ManifestVersion: 2\r\n"
+        + "Bundle-SymbolicName: metadata.test;singleton:=true\r\n"
+        + "Bundle-Version: 1.0.0\r\n"
+        + "Bundle-ActivationPolicy: lazy;include:=\"org.test.a\"\r\n"
+        + "Import-Package: org.osgi.framework;version=\"[1.4,2)\","
+        + "org.test.opt;resolution:=optional\r\n"
+        + "Export-Package: org.test.a;version=1.2.3;uses:=\"org.test.b\";"
+        + "mandatory:=x;x=y,org.test.b\r\n"
+        + "Require-Capability: test.ns;filter:=\"(&(count>=2)(!(name=foo*)))\";"
+        + "resolution:=optional\r\n"
+        + "Provide-Capability: test.ns;count:Long=3;ratio:Double=1.5;"
+        + "v:Version=2.1;names:List<String>=\"a,b\"\r\n"
+        + "\r\n";
+
+    private File m_cacheDir;
+    private Felix m_felix;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+        m_felix = startFramework();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        deleteDir(m_cacheDir);
+        super.tearDown();
+    }
+
+    public void testMetadataSurvivesRestart() throws Exception
+    {
+        File jar = new File(m_cacheDir, "metadata.jar");
+        createBundle(jar, MANIFEST);
+        Bundle bundle = m_felix.getBundleContext().installBundle(jar.toURI().toString());
+        List<String> expected = describe(bundle.adapt(BundleRevision.class));
+        assertNotNull(findFile(m_cacheDir, "bundle.metadata"));
+
+        restartFramework();
+        bundle = m_felix.getBundleContext().getBundle(bundle.getBundleId());
+        BundleRevision revision = bundle.adapt(BundleRevision.class);
+        assertEquals(expected, describe(revision));
+        assertEquals("1.0.0", bundle.getHeaders().get(Constants.BUNDLE_VERSION));
+        assertEquals(BundleRevisionImpl.LAZY_ACTIVATION,
+            ((BundleRevisionImpl) revision).getDeclaredActivationPolicy());
+        assertTrue(((BundleRevisionImpl) revision).isActivationTrigger("org.test.a"));
+        assertFalse(((BundleRevisionImpl) revision).isActivationTrigger("org.test.b"));
+
+        bundle.start(Bundle.START_ACTIVATION_POLICY);
+        assertEquals(Bundle.STARTING, bundle.getState());
+    }
+
+    public void testChangedJarIsParsedAgain() throws Exception
+    {
+        File jar = new File(m_cacheDir, "metadata.jar");
+        createBundle(jar, MANIFEST);
+        Bundle bundle = m_felix.getBundleContext().installBundle(
+            "reference:" + jar.toURI().toString());
+        long lastModified = jar.lastModified();
+
+        // An unchanged size and time stamp keep the cached metadata.
+        createBundle(jar, MANIFEST.replace("1.0.0", "3.0.0"));
+        assertTrue(jar.setLastModified(lastModified));
+        restartFramework();
+        bundle = m_felix.getBundleContext().getBundle(bundle.getBundleId());
+        assertEquals("1.0.0", bundle.getVersion().toString());
+
+        // A changed time stamp invalidates it.
+        assertTrue(jar.setLastModified(lastModified - 10000));
+        restartFramework();
+        bundle = m_felix.getBundleContext().getBundle(bundle.getBundleId());
+        assertEquals("3.0.0", bundle.getVersion().toString());
+    }
+
+    public void testNativeCodeIsNotCached() throws Exception
+    {
+        File jar = new File(m_cacheDir, "native.jar");
+        createBundle(jar, MANIFEST.replace("Bundle-Version",
+            "Bundle-NativeCode: lib/foo.so;osname=Linux,*\r\nBundle-Version"));
+        m_felix.getBundleContext().installBundle(jar.toURI().toString());
+        assertNull(findFile(m_cacheDir, "bundle.metadata"));
+    }
+
+    private void restartFramework() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        m_felix = startFramework();
+    }
+
+    private Felix startFramework() throws Exception
+    {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(BundleCache.CACHE_METADATA_PROP, "true");
+        Felix felix = new Felix(params);
+        felix.init();
+        felix.start();
+        return felix;
+    }
+
+    private static List<String> describe(BundleRevision revision)
+    {
+        List<String> result = new ArrayList<String>();
+        result.add(revision.getSymbolicName() + " " + revision.getVersion());
+        for (BundleCapability cap : revision.getDeclaredCapabilities(null))
+        {
+            result.add(cap.getNamespace() + " " + cap.getDirectives() + " "
+                + cap.getAttributes() + " " + describeTypes(cap.getAttributes()));
+        }
+        for (BundleRequirement req : revision.getDeclaredRequirements(null))
+        {
+            result.add(req.getNamespace() + " " + req.getDirectives() + " "
+                + req.getAttributes() + " " + ((BundleRequirementImpl) req).getFilter());
+        }
+        return result;
+    }
+
+    private static String describeTypes(Map<String, Object> attrs)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Object value : attrs.values())
+        {
+            sb.append(value.getClass().getName()).append(' ');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Creates a bundle JAR with an uncompressed manifest, so that manifests
+     * of the same length result in files of the same size.
+    **/
+    private static void createBundle(File file, String manifest) throws IOException
+    {
+        byte[] bytes = manifest.getBytes("UTF-8");
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ZipEntry entry = new ZipEntry("META-INF/MANIFEST.MF");
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(bytes.length);
+        entry.setCompressedSize(bytes.length);
+        entry.setCrc(crc.getValue());
+        entry.setTime(0);
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+        zos.putNextEntry(entry);
+        zos.write(bytes);
+        zos.closeEntry();
+        zos.close();
+    }
+
+    private static File findFile(File dir, String name)
+    {
+        for (File file : dir.listFiles())
+        {
+            if (file.getName().equals(name))
+            {
+                return file;
+            }
+            if (file.isDirectory() && (findFile(file, name) != null))
+            {
+                return findFile(file, name);
+            }
+        }
+        return null;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+public class BundleWiringLookupCacheTest extends TestCase
+{
+    private File m_cacheDir;
+    private Framework m_framework;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(FelixConstants.IMPLICIT_BOOT_DELEGATION_PROP, "false");
+        m_framework = new Felix(params);
+        m_framework.init();
+        m_framework.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_framework.stop();
+        m_framework.waitForStop(10000);
+        deleteDir(m_cacheDir);
+        super.tearDown();
+    }
+
+    public void testMissesAreCachedAndInvalidated() throws Exception
+    {
+        Bundle importer = m_framework.getBundleContext().installBundle(
+            createBundle(
+                "Bundle-SymbolicName: lookup.importer\n"
+                + "Bundle-ManifestVersion: 2\n"
+                + "DynamicImport-Package: lookup.dyn\n", null).toURI().toString());
+        assertTrue(m_framework.adapt(FrameworkWiring.class).resolveBundles(
+            Arrays.asList(importer)));
+        BundleWiringImpl wiring =
+            (BundleWiringImpl) importer.adapt(BundleWiring.class);
+
+        assertNull(importer.getResource("lookup/dyn/test.txt"));
+        long misses = wiring.getLookupCacheMisses();
+        assertNull(importer.getResource("lookup/dyn/test.txt"));
+        assertNull(importer.getResource("lookup/dyn/test.txt"));
+        assertEquals(2, wiring.getLookupCacheHits());
+        assertEquals(misses, wiring.getLookupCacheMisses());
+
+        try
+        {
+            importer.loadClass("lookup.dyn.Missing");
+            fail("Class should not be found");
+        }
+        catch (ClassNotFoundException ex)
+        {
+            // Expected.
+        }
+
+        // Installing a bundle that can satisfy the dynamic import must
+        // invalidate the cached miss.
+        m_framework.getBundleContext().installBundle(
+            createBundle(
+                "Bundle-SymbolicName: lookup.exporter\n"
+                + "Bundle-ManifestVersion: 2\n"
+                + "Export-Package: lookup.dyn\n",
+                "lookup/dyn/test.txt").toURI().toString());
+
+        assertNotNull(importer.getResource("lookup/dyn/test.txt"));
+        assertNotNull(importer.getResource("lookup/dyn/test.txt"));
+    }
+
+    private File createBundle(String manifest, String entry) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", m_cacheDir);
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        if (entry != null)
+        {
+            os.putNextEntry(new ZipEntry(entry));
+            os.write("test".getBytes("utf-8"));
+            os.closeEntry();
+        }
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.EventDispatcher;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+
+public class EventDispatcherPoolTest extends TestCase
+{
+    private static final int THREADS = 4;
+
+    private File m_cacheDir;
+    private Felix m_felix;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(FelixConstants.EVENT_DISPATCHER_THREADS_PROP, "" + THREADS);
+        params.put(FelixConstants.EVENT_DISPATCHER_VIRTUAL_PROP, "true");
+        m_felix = new Felix(params);
+        m_felix.init();
+        m_felix.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        deleteDir(m_cacheDir);
+        super.tearDown();
+    }
+
+    public void testSlowListenerDoesNotBlockOthers() throws Exception
+    {
+        BundleContext context = m_felix.getBundleContext();
+        final CountDownLatch release = new CountDownLatch(1);
+        BundleListener slow = new BundleListener()
+        {
+            public void bundleChanged(BundleEvent event)
+            {
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        // Pick a listener that is served by another worker than the slow one.
+        RecordingListener fast;
+        do
+        {
+            fast = new RecordingListener(2);
+        }
+        while (worker(fast) == worker(slow));
+
+        context.addBundleListener(slow);
+        context.addBundleListener(fast);
+        try
+        {
+            context.installBundle(createBundle("pool.slow1").toURI().toString());
+            context.installBundle(createBundle("pool.slow2").toURI().toString());
+            assertTrue(fast.await());
+            // At least the second event is still waiting for the slow listener.
+            assertTrue(m_felix.getEventDispatcher().getQueueDepth() >= 1);
+        }
+        finally
+        {
+            release.countDown();
+        }
+    }
+
+    public void testEventsKeepOrderPerListener() throws Exception
+    {
+        BundleContext context = m_felix.getBundleContext();
+        int count = 20;
+        List<RecordingListener> listeners = new ArrayList<RecordingListener>();
+        for (int i = 0; i < 8; i++)
+        {
+            RecordingListener l = new RecordingListener(count);
+            listeners.add(l);
+            context.addBundleListener(l);
+        }
+
+        List<Long> expected = new ArrayList<Long>();
+        for (int i = 0; i < count; i++)
+        {
+            expected.add(context.installBundle(
+                createBundle("pool.order" + i).toURI().toString()).getBundleId());
+        }
+
+        EventDispatcher dispatcher = m_felix.getEventDispatcher();
+        for (RecordingListener l : listeners)
+        {
+            assertTrue(l.await());
+            assertEquals(expected, l.getBundleIds());
+        }
+
+        // Statistics are recorded once the listener returned.
+        long deadline = System.currentTimeMillis() + 10000;
+        for (RecordingListener l : listeners)
+        {
+            EventDispatcher.ListenerStatistics stats;
+            while (((stats = dispatcher.getListenerStatistics().get(l)) == null
+                || stats.getDeliveryCount() < count)
+                && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(10);
+            }
+            assertEquals(count, stats.getDeliveryCount());
+            assertTrue(stats.getMaxLatency() >= stats.getAverageLatency());
+        }
+        assertEquals(0, dispatcher.getQueueDepth());
+
+        context.removeBundleListener(listeners.get(0));
+        assertNull(dispatcher.getListenerStatistics().get(listeners.get(0)));
+    }
+
+    public void testNoStatisticsForListenerRemovedWhileQueued() throws Exception
+    {
+        BundleContext context = m_felix.getBundleContext();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        BundleListener removed = new BundleListener()
+        {
+            public void bundleChanged(BundleEvent event)
+            {
+                blocked.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        // Pick a listener served by the same worker, which is notified
+        // once the delivery to the removed listener has completed.
+        RecordingListener after;
+        do
+        {
+            after = new RecordingListener(1);
+        }
+        while (worker(after) != worker(removed));
+
+        context.addBundleListener(removed);
+        context.addBundleListener(after);
+        try
+        {
+            context.installBundle(createBundle("pool.removed").toURI().toString());
+            assertTrue(blocked.await(10, TimeUnit.SECONDS));
+            context.removeBundleListener(removed);
+        }
+        finally
+        {
+            release.countDown();
+        }
+        assertTrue(after.await());
+
+        assertNull(m_felix.getEventDispatcher().getListenerStatistics().get(removed));
+    }
+
+    public void testNoStatisticsWithSharedThread() throws Exception
+    {
+        File cacheDir = new File(m_cacheDir, "shared");
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        Felix felix = new Felix(params);
+        felix.init();
+        felix.start();
+        try
+        {
+            RecordingListener l = new RecordingListener(1);
+            felix.getBundleContext().addBundleListener(l);
+            felix.getBundleContext().installBundle(
+                createBundle("pool.shared").toURI().toString());
+            assertTrue(l.await());
+            assertTrue(felix.getEventDispatcher().getListenerStatistics().isEmpty());
+        }
+        finally
+        {
+            felix.stop();
+            felix.waitForStop(10000);
+        }
+    }
+
+    private static int worker(Object listener)
+    {
+        return (System.identityHashCode(listener) & 0x7FFFFFFF) % THREADS;
+    }
+
+    private static class RecordingListener implements BundleListener
+    {
+        private final List<Long> m_ids = Collections.synchronizedList(new ArrayList<Long>());
+        private final CountDownLatch m_latch;
+
+        RecordingListener(int count)
+        {
+            m_latch = new CountDownLatch(count);
+        }
+
+        public void bundleChanged(BundleEvent event)
+        {
+            if (event.getType() == BundleEvent.INSTALLED)
+            {
+                m_ids.add(event.getBundle().getBundleId());
+                m_latch.countDown();
+            }
+        }
+
+        boolean await() throws InterruptedException
+        {
+            return m_latch.await(10, TimeUnit.SECONDS);
+        }
+
+        List<Long> getBundleIds()
+        {
+            return new ArrayList<Long>(m_ids);
+        }
+    }
+
+    private File createBundle(String symbolicName) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", m_cacheDir);
+
+        Manifest mf = new Manifest(new ByteArrayInputStream((
+            "Manifest-Version: 1.0\n"
+            + "Bundle-SymbolicName: " + symbolicName + "\n"
+            + "Bundle-ManifestVersion: 2\n").getBytes("utf-8")));
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.EventDispatcher.HookStatistics;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.hooks.service.EventListenerHook;
+import org.osgi.framework.hooks.service.ListenerHook.ListenerInfo;
+
+public class EventHookStatisticsTest extends TestCase
+{
+    private static final String HIDDEN = "(!(hidden=true))";
+
+    private File m_cacheDir;
+    private Felix m_felix;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        m_felix = new Felix(params);
+        m_felix.init();
+        m_felix.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        deleteDir(m_cacheDir);
+        super.tearDown();
+    }
+
+    public void testHookSnapshotChangesOnlyWithHooks() throws Exception
+    {
+        BundleContext bc = m_felix.getBundleContext();
+        Set<ServiceReference<EventListenerHook>> hooks =
+            m_felix.getHooks(EventListenerHook.class);
+        assertTrue(hooks.isEmpty());
+
+        ServiceRegistration reg1 = bc.registerService(
+            EventListenerHook.class.getName(), new RemovingHook(null), null);
+        Set<ServiceReference<EventListenerHook>> hooks1 =
+            m_felix.getHooks(EventListenerHook.class);
+        assertEquals(1, hooks1.size());
+        bc.registerService(Runnable.class.getName(), new Thread(), null);
+        assertSame(hooks1, m_felix.getHooks(EventListenerHook.class));
+        try
+        {
+            hooks1.clear();
+            fail("Hook snapshots must not be modifiable.");
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            // Expected.
+        }
+
+        ServiceRegistration reg2 = bc.registerService(
+            EventListenerHook.class.getName(), new RemovingHook(null), null);
+        assertEquals(1, hooks1.size());
+        assertEquals(2, m_felix.getHooks(EventListenerHook.class).size());
+        reg1.unregister();
+        reg2.unregister();
+        assertTrue(m_felix.getHooks(EventListenerHook.class).isEmpty());
+    }
+
+    public void testEventListenerHooksAreTimed() throws Exception
+    {
+        Bundle bundle = installBundle("hook.test");
+        bundle.start();
+        BundleContext bc = bundle.getBundleContext();
+
+        List<String> received = new ArrayList<String>();
+        bc.addServiceListener(new RecordingListener("kept", received));
+        bc.addServiceListener(new RecordingListener("hidden", received), HIDDEN);
+        m_felix.getBundleContext().addServiceListener(
+            new RecordingListener("system", received));
+
+        // A hook that removes nothing leaves all listeners in place.
+        ServiceRegistration hookReg = m_felix.getBundleContext().registerService(
+            EventListenerHook.class.getName(), new RemovingHook(null), null);
+        received.clear();
+        bc.registerService(Runnable.class.getName(), new Thread(), null);
+        assertEquals(3, received.size());
+        hookReg.unregister();
+
+        // A hook hiding a listener is respected, except for the listeners
+        // of the system bundle.
+        hookReg = m_felix.getBundleContext().registerService(
+            EventListenerHook.class.getName(), new RemovingHook(HIDDEN), null);
+        received.clear();
+        bc.registerService(Runnable.class.getName(), new Thread(), null);
+        assertEquals(2, received.size());
+        assertTrue(received.contains("kept"));
+        assertTrue(received.contains("system"));
+        hookReg.unregister();
+
+        HookStatistics stats = m_felix.getEventDispatcher()
+            .getHookStatistics().get(EventListenerHook.class);
+        assertNotNull(stats);
+        assertTrue(stats.getEventCount() >= 2);
+        assertTrue(stats.getTotalTime() >= stats.getMaxTime());
+    }
+
+    private Bundle installBundle(String symbolicName) throws Exception
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", m_cacheDir);
+        Manifest mf = new Manifest(new ByteArrayInputStream(
+            ("Manifest-Version: 1.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Bundle-SymbolicName: " + symbolicName + "\n").getBytes("utf-8")));
+        new JarOutputStream(new FileOutputStream(f), mf).close();
+        return m_felix.getBundleContext().installBundle(f.toURI().toString());
+    }
+
+    private static class RecordingListener implements ServiceListener
+    {
+        private final String m_name;
+        private final List<String> m_received;
+
+        RecordingListener(String name, List<String> received)
+        {
+            m_name = name;
+            m_received = received;
+        }
+
+        public void serviceChanged(ServiceEvent event)
+        {
+            if (event.getType() == ServiceEvent.REGISTERED)
+            {
+                m_received.add(m_name);
+            }
+        }
+    }
+
+    /**
+     * Removes the listeners with the given filter, as well as the listeners
+     * of the system bundle, which must be called nevertheless.
+    **/
+    private static class RemovingHook implements EventListenerHook
+    {
+        private final String m_filter;
+
+        RemovingHook(String filter)
+        {
+            m_filter = filter;
+        }
+
+        public void event(ServiceEvent event,
+            Map<BundleContext, Collection<ListenerInfo>> listeners)
+        {
+            if (m_filter == null)
+            {
+                return;
+            }
+            for (Collection<ListenerInfo> infos : listeners.values())
+            {
+                for (Iterator<ListenerInfo> it = infos.iterator(); it.hasNext(); )
+                {
+                    ListenerInfo info = it.next();
+                    if (m_filter.equals(info.getFilter())
+                        || (info.getBundleContext().getBundle().getBundleId() == 0))
+                    {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.ext.InstrumentationListener;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
+
+public class InstrumentationTest extends TestCase
+{
+    private File m_cacheDir;
+    private Felix m_felix;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        if (m_felix != null)
+        {
+            m_felix.stop();
+            m_felix.waitForStop(10000);
+        }
+        deleteDir(m_cacheDir);
+        super.tearDown();
+    }
+
+    public void testLifecycleIsRecorded() throws Exception
+    {
+        RecordingListener recorder = new RecordingListener();
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(FelixConstants.INSTRUMENTATION_PROP, recorder);
+        startFramework(params);
+
+        BundleContext bc = m_felix.getBundleContext();
+        bc.addBundleListener(new SynchronousBundleListener()
+        {
+            public void bundleChanged(BundleEvent event)
+            {
+            }
+        });
+        Bundle bundle = bc.installBundle(createBundle().toURI().toString());
+        long id = bundle.getBundleId();
+        bundle.start();
+        ServiceReference ref = bc.getServiceReference(Runnable.class.getName());
+        assertNotNull(bc.getService(ref));
+        bc.ungetService(ref);
+        bundle.stop();
+
+        String activator = TestActivator.class.getName();
+        assertTrue(recorder.contains(InstrumentationListener.RESOLVE, id, null));
+        assertTrue(recorder.contains(InstrumentationListener.BUNDLE_START, id, null));
+        assertTrue(recorder.contains(InstrumentationListener.BUNDLE_STOP, id, null));
+        assertTrue(recorder.contains(InstrumentationListener.CLASS_FIND, id, activator));
+        assertTrue(recorder.contains(InstrumentationListener.CLASS_DEFINE, id, activator));
+        assertTrue(recorder.contains(
+            InstrumentationListener.SERVICE_REGISTER, id, Runnable.class.getName()));
+        assertTrue(recorder.contains(
+            InstrumentationListener.SERVICE_GET, 0, Runnable.class.getName()));
+        assertTrue(recorder.contains(InstrumentationListener.EVENT_DELIVERY, 0, null));
+
+        // Starting includes resolving and calling the activator.
+        assertTrue(recorder.getDuration(InstrumentationListener.BUNDLE_START, id)
+            >= recorder.getDuration(InstrumentationListener.RESOLVE, id));
+    }
+
+    public void testDisabledByDefault() throws Exception
+    {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        startFramework(params);
+        assertNull(m_felix.getInstrumentation());
+    }
+
+    private void startFramework(Map<String, Object> params) throws Exception
+    {
+        m_felix = new Felix(params);
+        m_felix.init();
+        m_felix.start();
+    }
+
+    public static class TestActivator implements BundleActivator
+    {
+        public void start(BundleContext context)
+        {
+            context.registerService(Runnable.class.getName(), new Thread(), null);
+        }
+
+        public void stop(BundleContext context)
+        {
+        }
+    }
+
+    private static class RecordingListener implements InstrumentationListener
+    {
+        private final List<Object[]> m_records = new ArrayList<Object[]>();
+
+        public synchronized void record(int type, long bundleId, String detail,
+            long startNanos, long durationNanos)
+        {
+            assertTrue(durationNanos >= 0);
+            m_records.add(new Object[] { type, bundleId, detail, durationNanos });
+        }
+
+        synchronized boolean contains(int type, long bundleId, String detail)
+        {
+            for (Object[] record : m_records)
+            {
+                if (record[0].equals(type) && record[1].equals(bundleId)
+                    && ((detail == null) || detail.equals(record[2])))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized long getDuration(int type, long bundleId)
+        {
+            for (Object[] record : m_records)
+            {
+                if (record[0].equals(type) && record[1].equals(bundleId))
+                {
+                    return (Long) record[3];
+                }
+            }
+            return -1;
+        }
+    }
+
+    private File createBundle() throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", m_cacheDir);
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(
+            ("Manifest-Version: 1.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Bundle-SymbolicName: instrumentation.test\n"
+            + "Bundle-Activator: " + TestActivator.class.getName() + "\n"
+            + "Import-Package: org.osgi.framework\n").getBytes("utf-8")));
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        String path = TestActivator.class.getName().replace('.', '/') + ".class";
+        os.putNextEntry(new ZipEntry(path));
+        InputStream is = TestActivator.class.getClassLoader().getResourceAsStream(path);
+        byte[] buffer = new byte[8 * 1024];
+        for (int i = is.read(buffer); i != -1; i = is.read(buffer))
+        {
+            os.write(buffer, 0, i);
+        }
+        is.close();
+        os.closeEntry();
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+}
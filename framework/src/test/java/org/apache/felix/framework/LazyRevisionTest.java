@@ -0,0 +1,301 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.wiring.BundleRequirementImpl;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+public class LazyRevisionTest extends TestCase
+{
+    private File m_cacheDir;
+    private Map<String, String> m_params;
+    private Felix m_felix;
+    private File m_exporterFile;
+    private File m_importerFile;
+    private File m_otherFile;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        m_params = new HashMap<String, String>();
+        m_params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        m_params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+
+        m_exporterFile = createBundle(
+            "Bundle-SymbolicName: lazy.exporter; singleton:=true\n"
+            + "Bundle-Version: 1.2.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Export-Package: lazy.test; version=1.0\n");
+        m_importerFile = createBundle(
+            "Bundle-SymbolicName: lazy.importer\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: lazy.test, org.osgi.framework\n");
+        m_otherFile = createBundle(
+            "Bundle-SymbolicName: lazy.other\n"
+            + "Bundle-ManifestVersion: 2\n");
+
+        startFramework();
+        m_felix.getBundleContext().installBundle(m_exporterFile.toURI().toString());
+        m_felix.getBundleContext().installBundle(m_importerFile.toURI().toString());
+        m_felix.getBundleContext().installBundle(m_otherFile.toURI().toString());
+        stopFramework();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        stopFramework();
+        deleteDir(m_cacheDir);
+        super.tearDown();
+    }
+
+    public void testRevisionsAreCreatedWhenNeeded() throws Exception
+    {
+        m_params.put(FelixConstants.LAZY_REVISIONS_PROP, "true");
+        startFramework();
+
+        BundleImpl exporter = getBundle(m_exporterFile);
+        BundleImpl importer = getBundle(m_importerFile);
+        BundleImpl other = getBundle(m_otherFile);
+        assertTrue(exporter.isRevisionPending());
+        assertTrue(importer.isRevisionPending());
+        assertTrue(other.isRevisionPending());
+
+        // The identity is known without creating the revision.
+        assertEquals("lazy.exporter", exporter.getSymbolicName());
+        assertEquals(new Version(1, 2, 0), exporter.getVersion());
+        assertEquals(Version.emptyVersion, importer.getVersion());
+        assertTrue(exporter.isRevisionPending());
+
+        // Querying a bundle only creates its own revision.
+        BundleRevision revision = other.adapt(BundleRevision.class);
+        assertNotNull(revision);
+        assertEquals("lazy.other", revision.getSymbolicName());
+        assertFalse(other.isRevisionPending());
+        assertTrue(exporter.isRevisionPending());
+
+        // Resolving creates the revisions of the candidate providers.
+        assertTrue(m_felix.adapt(FrameworkWiring.class).resolveBundles(
+            Collections.<Bundle>singletonList(importer)));
+        assertFalse(exporter.isRevisionPending());
+        assertFalse(importer.isRevisionPending());
+
+        List<BundleWire> wires = importer.adapt(BundleWiring.class)
+            .getRequiredWires(BundleRevision.PACKAGE_NAMESPACE);
+        boolean found = false;
+        for (BundleWire wire : wires)
+        {
+            if ("lazy.test".equals(wire.getCapability().getAttributes()
+                .get(BundleRevision.PACKAGE_NAMESPACE)))
+            {
+                assertEquals(exporter, wire.getProvider().getBundle());
+                found = true;
+            }
+        }
+        assertTrue(found);
+        assertEquals("lazy.exporter",
+            exporter.adapt(BundleRevision.class).getSymbolicName());
+    }
+
+    public void testUnrelatedRevisionsStayPending() throws Exception
+    {
+        File providerFile = createBundle(
+            "Bundle-SymbolicName: lazy.provider\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Export-Package: lazy.provided\n");
+        File consumerFile = createBundle(
+            "Bundle-SymbolicName: lazy.consumer\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: lazy.provided\n");
+        File unusedFile = createBundle(
+            "Bundle-SymbolicName: lazy.unused\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Export-Package: lazy.unused\n");
+        startFramework();
+        m_felix.getBundleContext().installBundle(providerFile.toURI().toString());
+        m_felix.getBundleContext().installBundle(consumerFile.toURI().toString());
+        m_felix.getBundleContext().installBundle(unusedFile.toURI().toString());
+        stopFramework();
+
+        m_params.put(FelixConstants.LAZY_REVISIONS_PROP, "true");
+        startFramework();
+
+        BundleImpl consumer = getBundle(consumerFile);
+        consumer.start();
+        assertEquals(Bundle.ACTIVE, consumer.getState());
+        assertFalse(getBundle(providerFile).isRevisionPending());
+
+        // Bundles which cannot provide what the consumer requires are
+        // neither parsed nor resolved.
+        BundleImpl unused = getBundle(unusedFile);
+        assertTrue(unused.isRevisionPending());
+        assertTrue(getBundle(m_importerFile).isRevisionPending());
+        assertTrue(getBundle(m_otherFile).isRevisionPending());
+
+        // Looking up providers only creates the revisions of candidates.
+        Collection<BundleCapability> caps = m_felix.findProviders(
+            new BundleRequirementImpl(null, BundleRevision.PACKAGE_NAMESPACE,
+                Collections.<String, String>emptyMap(),
+                Collections.<String, Object>singletonMap(
+                    BundleRevision.PACKAGE_NAMESPACE, "lazy.unused")));
+        assertEquals(1, caps.size());
+        assertEquals(unused, caps.iterator().next().getRevision().getBundle());
+        assertFalse(unused.isRevisionPending());
+        assertTrue(getBundle(m_importerFile).isRevisionPending());
+        assertTrue(getBundle(m_otherFile).isRevisionPending());
+    }
+
+    public void testInvalidPendingRevisionRemovesBundle() throws Exception
+    {
+        // Replace the cached bundle with one whose identity is still valid,
+        // while the rest of its manifest is not.
+        startFramework();
+        long id = getBundle(m_otherFile).getBundleId();
+        stopFramework();
+        File archiveDir = new File(m_cacheDir, "bundle" + id);
+        File[] revisionDirs = archiveDir.listFiles();
+        boolean replaced = false;
+        for (int i = 0; (revisionDirs != null) && (i < revisionDirs.length); i++)
+        {
+            File jar = new File(revisionDirs[i], "bundle.jar");
+            if (jar.isFile())
+            {
+                writeBundle(jar,
+                    "Bundle-SymbolicName: lazy.other\n"
+                    + "Bundle-ManifestVersion: 2\n"
+                    + "Import-Package: lazy.test, lazy.test\n");
+                replaced = true;
+            }
+        }
+        assertTrue(replaced);
+
+        m_params.put(FelixConstants.LAZY_REVISIONS_PROP, "true");
+        startFramework();
+
+        BundleImpl other = getBundle(m_otherFile);
+        assertTrue(other.isRevisionPending());
+        try
+        {
+            other.adapt(BundleRevision.class);
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException ex)
+        {
+            // expected
+        }
+
+        // Like a bundle that cannot be reloaded eagerly, it is gone.
+        assertEquals(Bundle.UNINSTALLED, other.getState());
+        assertNull(m_felix.getBundleContext().getBundle(id));
+        assertNull(other.adapt(BundleRevision.class));
+        for (Bundle bundle : m_felix.getBundleContext().getBundles())
+        {
+            assertNotNull(bundle.adapt(BundleRevision.class));
+        }
+
+        // The other bundles are not affected.
+        assertTrue(m_felix.adapt(FrameworkWiring.class).resolveBundles(
+            Collections.<Bundle>singletonList(getBundle(m_importerFile))));
+    }
+
+    public void testRevisionsAreCreatedEagerlyByDefault() throws Exception
+    {
+        startFramework();
+        assertFalse(getBundle(m_exporterFile).isRevisionPending());
+        assertFalse(getBundle(m_importerFile).isRevisionPending());
+        assertFalse(getBundle(m_otherFile).isRevisionPending());
+    }
+
+    private BundleImpl getBundle(File file)
+    {
+        return (BundleImpl) m_felix.getBundleContext().getBundle(file.toURI().toString());
+    }
+
+    private void startFramework() throws Exception
+    {
+        m_felix = new Felix(m_params);
+        m_felix.init();
+        m_felix.start();
+    }
+
+    private void stopFramework() throws Exception
+    {
+        if (m_felix != null)
+        {
+            m_felix.stop();
+            m_felix.waitForStop(10000);
+            m_felix = null;
+        }
+    }
+
+    private File createBundle(String manifest) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", m_cacheDir);
+        writeBundle(f, manifest);
+        return f;
+    }
+
+    private static void writeBundle(File f, String manifest) throws IOException
+    {
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.close();
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+
+public class ParallelStartLevelTest extends TestCase
+{
+    private static final long DELAY = 300;
+
+    private File m_cacheDir;
+    private Felix m_felix;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(FelixConstants.STARTLEVEL_PARALLELISM_PROP, "4");
+        m_felix = new Felix(params);
+        m_felix.init();
+        m_felix.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        deleteDir(m_cacheDir);
+        super.tearDown();
+    }
+
+    public void testBundlesOfStartLevelStartConcurrently() throws Exception
+    {
+        List<Bundle> independent = new ArrayList<Bundle>();
+        for (int i = 0; i < 4; i++)
+        {
+            independent.add(install("parallel.independent" + i, 2, ""));
+        }
+        Bundle provider = install("parallel.provider", 2,
+            "Export-Package: org.test.parallel\n");
+        Bundle consumer = install("parallel.consumer", 2,
+            "Import-Package: org.test.parallel\n");
+        Bundle failing = install("parallel.fail", 2, "");
+        Bundle later = install("parallel.later", 3, "");
+
+        final List<Bundle> errors = Collections.synchronizedList(new ArrayList<Bundle>());
+        m_felix.getBundleContext().addFrameworkListener(new FrameworkListener()
+        {
+            public void frameworkEvent(FrameworkEvent event)
+            {
+                if (event.getType() == FrameworkEvent.ERROR)
+                {
+                    errors.add(event.getBundle());
+                }
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        setStartLevel(3);
+        long elapsed = System.currentTimeMillis() - start;
+
+        for (Bundle b : independent)
+        {
+            assertEquals(Bundle.ACTIVE, b.getState());
+        }
+        assertEquals(Bundle.ACTIVE, provider.getState());
+        assertEquals(Bundle.ACTIVE, consumer.getState());
+        assertEquals(Bundle.ACTIVE, later.getState());
+        assertEquals(Bundle.RESOLVED, failing.getState());
+        assertEquals(Collections.singletonList(failing), errors);
+
+        // Independent bundles overlap, while the consumer waits for its
+        // provider and the next start level waits for the whole level.
+        long firstEnd = Long.MAX_VALUE;
+        long lastEnd = 0;
+        for (Bundle b : independent)
+        {
+            assertTrue(started(b) < ended(independent.get(0)));
+            firstEnd = Math.min(firstEnd, ended(b));
+            lastEnd = Math.max(lastEnd, ended(b));
+        }
+        assertTrue(started(consumer) >= ended(provider));
+        assertTrue(started(later) >= Math.max(lastEnd, ended(consumer)));
+        assertTrue("Took " + elapsed + " ms", elapsed < 8 * DELAY);
+    }
+
+    private Bundle install(String symbolicName, int startLevel, String headers)
+        throws Exception
+    {
+        String mf = "Bundle-SymbolicName: " + symbolicName + "\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: org.osgi.framework\n"
+            + headers
+            + Constants.BUNDLE_ACTIVATOR + ": " + SlowActivator.class.getName() + "\n";
+        if (headers.startsWith("Import-Package"))
+        {
+            mf = mf.replace("Import-Package: org.osgi.framework\nImport-Package: ",
+                "Import-Package: org.osgi.framework,");
+        }
+        File f = createBundle(mf, SlowActivator.class);
+        Bundle b = m_felix.getBundleContext().installBundle(f.toURI().toString());
+        b.adapt(BundleStartLevel.class).setStartLevel(startLevel);
+        b.start();
+        return b;
+    }
+
+    private void setStartLevel(int level) throws InterruptedException
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        m_felix.adapt(FrameworkStartLevel.class).setStartLevel(level,
+            new FrameworkListener()
+            {
+                public void frameworkEvent(FrameworkEvent event)
+                {
+                    latch.countDown();
+                }
+            });
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+    }
+
+    private static long started(Bundle b)
+    {
+        return Long.parseLong(System.getProperty(b.getSymbolicName() + ".started"));
+    }
+
+    private static long ended(Bundle b)
+    {
+        return Long.parseLong(System.getProperty(b.getSymbolicName() + ".ended"));
+    }
+
+    public static class SlowActivator implements BundleActivator
+    {
+        public void start(BundleContext context) throws Exception
+        {
+            String name = context.getBundle().getSymbolicName();
+            System.setProperty(name + ".started", Long.toString(System.nanoTime()));
+            Thread.sleep(DELAY);
+            System.setProperty(name + ".ended", Long.toString(System.nanoTime()));
+            if (name.endsWith(".fail"))
+            {
+                throw new Exception("Expected failure.");
+            }
+        }
+
+        public void stop(BundleContext context)
+        {
+        }
+    }
+
+    private File createBundle(String manifest, Class... classes) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", m_cacheDir);
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(
+            ("Manifest-Version: 1.0\n" + manifest).getBytes("utf-8")));
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        for (Class clazz : classes)
+        {
+            String path = clazz.getName().replace('.', '/') + ".class";
+            os.putNextEntry(new ZipEntry(path));
+
+            InputStream is = clazz.getClassLoader().getResourceAsStream(path);
+            byte[] buffer = new byte[8 * 1024];
+            for (int i = is.read(buffer); i != -1; i = is.read(buffer))
+            {
+                os.write(buffer, 0, i);
+            }
+            is.close();
+            os.closeEntry();
+        }
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+}
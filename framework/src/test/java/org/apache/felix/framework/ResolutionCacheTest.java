@@ -0,0 +1,281 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+public class ResolutionCacheTest extends TestCase
+{
+    private File m_cacheDir;
+    private Map<String, String> m_params;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+        String cache = m_cacheDir.getPath();
+
+        m_params = new HashMap<String, String>();
+        m_params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        m_params.put(Constants.FRAMEWORK_STORAGE, cache);
+        m_params.put(FelixConstants.RESOLVER_CACHE_PROP, "true");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+        deleteDir(m_cacheDir);
+    }
+
+    public void testWiringSurvivesRestart() throws Exception
+    {
+        File exporterFile = createBundle(
+            "Bundle-SymbolicName: cache.exporter\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Export-Package: cache.test; version=1.0\n");
+        File importerFile = createBundle(
+            "Bundle-SymbolicName: cache.importer\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: cache.test, org.osgi.framework\n");
+        File otherFile = createBundle(
+            "Bundle-SymbolicName: cache.other\n"
+            + "Bundle-ManifestVersion: 2\n");
+        File addedFile = createBundle(
+            "Bundle-SymbolicName: cache.added\n"
+            + "Bundle-ManifestVersion: 2\n");
+
+        Framework f = new Felix(m_params);
+        f.init();
+        f.start();
+        try
+        {
+            Bundle exporter = f.getBundleContext().installBundle(exporterFile.toURI().toString());
+            Bundle importer = f.getBundleContext().installBundle(importerFile.toURI().toString());
+            f.getBundleContext().installBundle(otherFile.toURI().toString());
+            assertTrue(f.adapt(FrameworkWiring.class).resolveBundles(
+                Arrays.asList(exporter, importer)));
+        }
+        finally
+        {
+            f.stop();
+            f.waitForStop(10000);
+        }
+
+        assertTrue(new File(new File(m_cacheDir, "bundle0"), "resolver.cache").isFile());
+
+        f = new Felix(m_params);
+        f.init();
+        f.start();
+        try
+        {
+            Bundle importer = f.getBundleContext().getBundle(importerFile.toURI().toString());
+            Bundle exporter = f.getBundleContext().getBundle(exporterFile.toURI().toString());
+            ResolutionCache cache = getResolutionCache(f);
+            int hits = cache.getHits();
+            int misses = cache.getMisses();
+            assertTrue(f.adapt(FrameworkWiring.class).resolveBundles(
+                Arrays.asList(importer)));
+            assertEquals(hits + 1, cache.getHits());
+            assertEquals(misses, cache.getMisses());
+
+            List<BundleWire> wires = importer.adapt(BundleWiring.class)
+                .getRequiredWires(BundleRevision.PACKAGE_NAMESPACE);
+            assertEquals(2, wires.size());
+            boolean found = false;
+            for (BundleWire wire : wires)
+            {
+                if ("cache.test".equals(wire.getCapability().getAttributes()
+                    .get(BundleRevision.PACKAGE_NAMESPACE)))
+                {
+                    assertEquals(exporter, wire.getProvider().getBundle());
+                    found = true;
+                }
+            }
+            assertTrue(found);
+            assertEquals(Bundle.RESOLVED, exporter.getState());
+        }
+        finally
+        {
+            f.stop();
+            f.waitForStop(10000);
+        }
+
+        // Installing a bundle invalidates the persisted wiring.
+        f = new Felix(m_params);
+        f.init();
+        f.start();
+        try
+        {
+            f.getBundleContext().installBundle(addedFile.toURI().toString());
+            assertResolvedByResolver(f, importerFile);
+        }
+        finally
+        {
+            f.stop();
+            f.waitForStop(10000);
+        }
+
+        // So does uninstalling one.
+        f = new Felix(m_params);
+        f.init();
+        f.start();
+        try
+        {
+            f.getBundleContext().getBundle(otherFile.toURI().toString()).uninstall();
+            assertResolvedByResolver(f, importerFile);
+        }
+        finally
+        {
+            f.stop();
+            f.waitForStop(10000);
+        }
+    }
+
+    public void testInstallAfterCachedResolve() throws Exception
+    {
+        File exporterFile = createBundle(
+            "Bundle-SymbolicName: cache.exporter\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Export-Package: cache.test; version=1.0\n");
+        File importerFile = createBundle(
+            "Bundle-SymbolicName: cache.importer\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: cache.test\n");
+        File brokenFile = createBundle(
+            "Bundle-SymbolicName: cache.broken\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: cache.missing\n");
+        File addedFile = createBundle(
+            "Bundle-SymbolicName: cache.added\n"
+            + "Bundle-ManifestVersion: 2\n");
+
+        Framework f = new Felix(m_params);
+        f.init();
+        f.start();
+        try
+        {
+            Bundle exporter = f.getBundleContext().installBundle(exporterFile.toURI().toString());
+            Bundle importer = f.getBundleContext().installBundle(importerFile.toURI().toString());
+            f.getBundleContext().installBundle(brokenFile.toURI().toString());
+            assertTrue(f.adapt(FrameworkWiring.class).resolveBundles(
+                Arrays.asList(exporter, importer)));
+        }
+        finally
+        {
+            f.stop();
+            f.waitForStop(10000);
+        }
+
+        f = new Felix(m_params);
+        f.init();
+        f.start();
+        try
+        {
+            // A failed resolve consults the persisted wiring without
+            // changing the set of revisions.
+            Bundle broken = f.getBundleContext().getBundle(brokenFile.toURI().toString());
+            ResolutionCache cache = getResolutionCache(f);
+            int misses = cache.getMisses();
+            assertFalse(f.adapt(FrameworkWiring.class).resolveBundles(
+                Arrays.asList(broken)));
+            assertEquals(misses + 1, cache.getMisses());
+
+            // A bundle installed afterwards invalidates the persisted wiring.
+            f.getBundleContext().installBundle(addedFile.toURI().toString());
+            assertResolvedByResolver(f, importerFile);
+        }
+        finally
+        {
+            f.stop();
+            f.waitForStop(10000);
+        }
+
+        File cacheFile = new File(new File(m_cacheDir, "bundle0"), "resolver.cache");
+        assertTrue(cacheFile.isFile());
+        assertFalse(new File(cacheFile.getPath() + ".tmp").exists());
+    }
+
+    private void assertResolvedByResolver(Framework f, File bundleFile)
+    {
+        Bundle bundle = f.getBundleContext().getBundle(bundleFile.toURI().toString());
+        ResolutionCache cache = getResolutionCache(f);
+        int hits = cache.getHits();
+        int misses = cache.getMisses();
+        assertTrue(f.adapt(FrameworkWiring.class).resolveBundles(
+            Arrays.asList(bundle)));
+        assertEquals(hits, cache.getHits());
+        assertEquals(misses + 1, cache.getMisses());
+        assertEquals(Bundle.RESOLVED, bundle.getState());
+    }
+
+    private static ResolutionCache getResolutionCache(Framework f)
+    {
+        ResolutionCache cache = ((Felix) f).getResolver().getResolutionCache();
+        assertNotNull(cache);
+        return cache;
+    }
+
+    private File createBundle(String manifest) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", m_cacheDir);
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.launch.Framework;
+
+public class ServiceRegistryLookupTest extends TestCase
+{
+    private File m_cacheDir;
+    private Framework m_framework;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+        m_framework = startFramework(m_cacheDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_framework.stop();
+        m_framework.waitForStop(10000);
+        deleteDir(m_cacheDir);
+        super.tearDown();
+    }
+
+    public void testLookupByClassAndFilter() throws Exception
+    {
+        BundleContext context = m_framework.getBundleContext();
+        ServiceRegistration<?> a = context.registerService(
+            new String[] { "test.A" }, new DummyFactory(), props("x", "1"));
+        ServiceRegistration<?> ab = context.registerService(
+            new String[] { "test.A", "test.B" }, new DummyFactory(), props("x", "2"));
+        ServiceRegistration<?> b = context.registerService(
+            new String[] { "test.B" }, new DummyFactory(), null);
+
+        assertEquals(2, count(context, "test.A", null));
+        assertEquals(1, count(context, "test.A", "(x=2)"));
+        assertEquals(1, count(context, null, "(&(x=2)(objectClass=test.B))"));
+        assertEquals(1, count(context, null, "(&(OBJECTCLASS=test.A)(!(x=2)))"));
+        assertEquals(2, count(context, null, "(x=*)"));
+        assertEquals(3, count(context, null, "(|(objectClass=test.A)(objectClass=test.B))"));
+        assertEquals(0, count(context, "test.C", null));
+
+        ab.unregister();
+        assertEquals(1, count(context, "test.A", null));
+        assertEquals(1, count(context, "test.B", null));
+        assertEquals(0, count(context, null, "(x=2)"));
+
+        a.unregister();
+        b.unregister();
+        assertEquals(0, count(context, "test.A", null));
+        assertEquals(0, count(context, "test.B", null));
+    }
+
+    public void testLookupDuringRegistrationChurn() throws Exception
+    {
+        final BundleContext context = m_framework.getBundleContext();
+        final List<ServiceRegistration<?>> stable = new ArrayList<ServiceRegistration<?>>();
+        for (int i = 0; i < 10; i++)
+        {
+            stable.add(context.registerService(
+                new String[] { "test.Stable" }, new DummyFactory(), props("id", "" + i)));
+        }
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++)
+        {
+            readers[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        while (!done.get())
+                        {
+                            if (count(context, "test.Stable", null) != 10)
+                            {
+                                throw new AssertionError("Stable services missing");
+                            }
+                            count(context, null, "(objectClass=test.Churn)");
+                        }
+                    }
+                    catch (Throwable th)
+                    {
+                        failure.compareAndSet(null, th);
+                    }
+                }
+            };
+            readers[i].start();
+        }
+
+        for (int i = 0; i < 500; i++)
+        {
+            context.registerService(
+                new String[] { "test.Churn" }, new DummyFactory(), null).unregister();
+        }
+        done.set(true);
+        for (int i = 0; i < readers.length; i++)
+        {
+            readers[i].join();
+        }
+
+        assertNull(String.valueOf(failure.get()), failure.get());
+        assertEquals(0, count(context, "test.Churn", null));
+        for (ServiceRegistration<?> reg : stable)
+        {
+            reg.unregister();
+        }
+    }
+
+    // A factory allows registering under arbitrary class names.
+    private static class DummyFactory implements ServiceFactory<Object>
+    {
+        public Object getService(Bundle bundle, ServiceRegistration<Object> reg)
+        {
+            return new Object();
+        }
+
+        public void ungetService(Bundle bundle, ServiceRegistration<Object> reg, Object svcObj)
+        {
+        }
+    }
+
+    private static int count(BundleContext context, String className, String filter)
+        throws Exception
+    {
+        ServiceReference<?>[] refs = context.getServiceReferences(className, filter);
+        return (refs == null) ? 0 : refs.length;
+    }
+
+    private static Hashtable<String, Object> props(String key, Object value)
+    {
+        Hashtable<String, Object> props = new Hashtable<String, Object>();
+        props.put(key, value);
+        return props;
+    }
+
+    private static Framework startFramework(File cacheDir) throws Exception
+    {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        Framework f = new Felix(params);
+        f.init();
+        f.start();
+        return f;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+
+    /**
+     * Measures lookup throughput for an increasing number of threads while
+     * another thread keeps registering and unregistering services; not run
+     * as part of the test suite.
+    **/
+    public static void main(String[] args) throws Exception
+    {
+        File cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+        Framework f = startFramework(cacheDir);
+        try
+        {
+            final BundleContext context = f.getBundleContext();
+            for (int i = 0; i < 1000; i++)
+            {
+                context.registerService(
+                    new String[] { "bench.S" + (i % 50) }, new DummyFactory(), props("id", "" + i));
+            }
+
+            for (int threads = 1; threads <= 16; threads *= 2)
+            {
+                final AtomicBoolean done = new AtomicBoolean();
+                final AtomicLong lookups = new AtomicLong();
+                final CountDownLatch started = new CountDownLatch(threads);
+                Thread churn = new Thread()
+                {
+                    public void run()
+                    {
+                        while (!done.get())
+                        {
+                            context.registerService(
+                                new String[] { "bench.Churn" }, new DummyFactory(), null).unregister();
+                        }
+                    }
+                };
+                Thread[] readers = new Thread[threads];
+                for (int i = 0; i < threads; i++)
+                {
+                    final int offset = i;
+                    readers[i] = new Thread()
+                    {
+                        public void run()
+                        {
+                            started.countDown();
+                            long n = 0;
+                            try
+                            {
+                                while (!done.get())
+                                {
+                                    context.getServiceReferences(
+                                        "bench.S" + ((n + offset) % 50), "(id=*)");
+                                    n++;
+                                }
+                            }
+                            catch (Exception ex)
+                            {
+                                ex.printStackTrace();
+                            }
+                            lookups.addAndGet(n);
+                        }
+                    };
+                    readers[i].start();
+                }
+                churn.start();
+                started.await();
+                Thread.sleep(2000);
+                done.set(true);
+                churn.join();
+                for (int i = 0; i < threads; i++)
+                {
+                    readers[i].join();
+                }
+                System.out.println(threads + " threads: "
+                    + (lookups.get() / 2) + " lookups/s");
+            }
+        }
+        finally
+        {
+            f.stop();
+            f.waitForStop(10000);
+            deleteDir(cacheDir);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.WeakZipFileFactory;
+import org.apache.felix.framework.util.WeakZipFileFactory.WeakZipFile;
+
+public class MappedJarContentTest extends TestCase
+{
+    private File m_dir;
+    private WeakZipFileFactory m_factory;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_dir = File.createTempFile("felix-cache", ".dir");
+        m_dir.delete();
+        m_dir.mkdirs();
+        m_factory = new WeakZipFileFactory(0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        deleteDir(m_dir);
+        super.tearDown();
+    }
+
+    public void testMatchesJarContent() throws Exception
+    {
+        File file = new File(m_dir, "bundle.jar");
+        List<String> names = createJar(file, 500, new Random(7));
+
+        WeakZipFile zipFile = m_factory.create(file);
+        MappedJarIndex index = MappedJarIndex.open(file);
+        try
+        {
+            JarContent expected = new JarContent(new Logger(), new HashMap(),
+                m_factory, this, m_dir, file, zipFile);
+            Content actual = new MappedJarContent(new Logger(), new HashMap(),
+                m_factory, this, m_dir, zipFile, index);
+
+            assertEquals(list(expected.getEntries()), list(actual.getEntries()));
+
+            List<String> lookups = new ArrayList<String>(names);
+            lookups.add("missing.txt");
+            lookups.add("dir");
+            lookups.add("dir/sub");
+            lookups.add("di");
+            lookups.add("");
+            for (String name : lookups)
+            {
+                assertEquals(name, expected.hasEntry(name), actual.hasEntry(name));
+                assertEquals(name, toString(expected.getEntryAsBytes(name)),
+                    toString(actual.getEntryAsBytes(name)));
+                assertEquals(name, toString(read(expected.getEntryAsStream(name))),
+                    toString(read(actual.getEntryAsStream(name))));
+            }
+
+            Content dot = actual.getEntryAsContent(".");
+            assertTrue(dot instanceof MappedJarContent);
+            assertTrue(dot.hasEntry(names.get(0)));
+            dot.close();
+
+            // Contents share the index, so closing a content keeps it usable.
+            actual.close();
+            assertTrue(actual.hasEntry(names.get(0)));
+        }
+        finally
+        {
+            index.close();
+            zipFile.close();
+        }
+        assertFalse(index.hasEntry(names.get(0)));
+        assertNull(index.getEntries());
+    }
+
+    public void testPrependedData() throws Exception
+    {
+        File jar = new File(m_dir, "plain.jar");
+        List<String> names = createJar(jar, 20, new Random(3));
+        byte[] bytes = read(new java.io.FileInputStream(jar));
+
+        // Data before the archive shifts all offsets.
+        File file = new File(m_dir, "prepended.jar");
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(new byte[1000]);
+        fos.write(bytes);
+        fos.close();
+
+        MappedJarIndex plain = MappedJarIndex.open(jar);
+        MappedJarIndex prepended = MappedJarIndex.open(file);
+        for (String name : names)
+        {
+            assertEquals(name, toString(plain.getEntryAsBytes(name)),
+                toString(prepended.getEntryAsBytes(name)));
+        }
+        plain.close();
+        prepended.close();
+    }
+
+    public void testInvalidFile() throws Exception
+    {
+        File file = new File(m_dir, "invalid.jar");
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write("not a zip file".getBytes("UTF-8"));
+        fos.close();
+        try
+        {
+            MappedJarIndex.open(file);
+            fail("Expected invalid archive to be rejected.");
+        }
+        catch (IOException ex)
+        {
+            // Expected.
+        }
+    }
+
+    /**
+     * Creates a JAR with a mix of stored and deflated entries of random
+     * size, including directory entries and names with non-ASCII
+     * characters, and returns the entry names.
+    **/
+    private static List<String> createJar(File file, int count, Random rnd)
+        throws IOException
+    {
+        return createJar(file, count, rnd, "-\u00e9");
+    }
+
+    private static List<String> createJar(File file, int count, Random rnd, String infix)
+        throws IOException
+    {
+        List<String> names = new ArrayList<String>();
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+        zos.putNextEntry(new ZipEntry("dir/"));
+        zos.closeEntry();
+        zos.putNextEntry(new ZipEntry("dir/sub/"));
+        zos.closeEntry();
+        names.add("dir/");
+        names.add("dir/sub/");
+        for (int i = 0; i < count; i++)
+        {
+            String name = ((i % 3 == 0) ? "dir/" : (i % 3 == 1) ? "dir/sub/" : "")
+                + "e" + rnd.nextInt(1000000) + infix + i + ".txt";
+            byte[] data = new byte[rnd.nextInt(5000)];
+            for (int j = 0; j < data.length; j++)
+            {
+                data[j] = (byte) ((j % 7 == 0) ? rnd.nextInt() : 'a' + (j % 13));
+            }
+            ZipEntry ze = new ZipEntry(name);
+            if (i % 2 == 0)
+            {
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                ze.setMethod(ZipEntry.STORED);
+                ze.setSize(data.length);
+                ze.setCompressedSize(data.length);
+                ze.setCrc(crc.getValue());
+            }
+            zos.putNextEntry(ze);
+            zos.write(data);
+            zos.closeEntry();
+            names.add(name);
+        }
+        zos.close();
+        return names;
+    }
+
+    private static List<String> list(Enumeration<String> e)
+    {
+        return (e == null) ? null : Collections.list(e);
+    }
+
+    private static String toString(byte[] bytes)
+    {
+        return (bytes == null) ? null : new String(bytes);
+    }
+
+    private static byte[] read(InputStream is) throws IOException
+    {
+        if (is == null)
+        {
+            return null;
+        }
+        try
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[777];
+            int n;
+            while ((n = is.read(buf)) >= 0)
+            {
+                baos.write(buf, 0, n);
+            }
+            return baos.toByteArray();
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+
+    /**
+     * Compares opening and looking up entries in a JAR with many entries
+     * through a zip file and through the mapped index; not run as part of
+     * the test suite.
+    **/
+    public static void main(String[] args) throws Exception
+    {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 40000;
+        File file = File.createTempFile("felix-mapped", ".jar");
+        try
+        {
+            List<String> names = createJar(file, count, new Random(42), "-");
+            Collections.shuffle(names, new Random(1));
+            WeakZipFileFactory factory = new WeakZipFileFactory(0);
+            for (int round = 0; round < 3; round++)
+            {
+                long start = System.nanoTime();
+                WeakZipFile zipFile = factory.create(file);
+                JarContent zip = new JarContent(new Logger(), new HashMap(),
+                    factory, file, file.getParentFile(), file, zipFile);
+                long zipOpen = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (String name : names)
+                {
+                    zip.hasEntry(name);
+                    zip.hasEntry(name + ".missing");
+                }
+                long zipLookup = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (String name : names)
+                {
+                    zip.getEntryAsBytes(name);
+                }
+                long zipRead = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                MappedJarIndex index = MappedJarIndex.open(file);
+                Content mapped = new MappedJarContent(new Logger(), new HashMap(),
+                    factory, file, file.getParentFile(), zipFile, index);
+                long mappedOpen = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (String name : names)
+                {
+                    mapped.hasEntry(name);
+                    mapped.hasEntry(name + ".missing");
+                }
+                long mappedLookup = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (String name : names)
+                {
+                    mapped.getEntryAsBytes(name);
+                }
+                long mappedRead = System.nanoTime() - start;
+
+                System.out.println(count + " entries: zip open="
+                    + (zipOpen / 1000000) + "ms lookup=" + (zipLookup / 1000000)
+                    + "ms read=" + (zipRead / 1000000) + "ms, mapped open="
+                    + (mappedOpen / 1000000) + "ms lookup=" + (mappedLookup / 1000000)
+                    + "ms read=" + (mappedRead / 1000000) + "ms");
+                index.close();
+                zipFile.close();
+            }
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+}
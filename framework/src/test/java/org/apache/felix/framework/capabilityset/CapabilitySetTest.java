@@ -0,0 +1,244 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.capabilityset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+
+public class CapabilitySetTest extends TestCase
+{
+    private static final String[] FILTERS = new String[] {
+        "(osgi.wiring.package=pkg.3)",
+        "(version>=1.2.0)",
+        "(version<=1.2.0)",
+        "(version=1.2.0)",
+        "(version=[1.0,2.0\\))",
+        "(version=\\(1.1,1.3])",
+        "(version>=[1.0,2.0\\))",
+        "(version>=foo)",
+        "(version=pkg*)",
+        "(version>=b)",
+        "(version<=b)",
+        "(version=str*)",
+        "(version=*)",
+        "(version~=1.2.0)",
+        "(&(osgi.wiring.package=pkg.3)(version>=1.2.0))",
+        "(&(version>=1.2.0)(osgi.wiring.package=pkg.3))",
+        "(&(version>=1.0.0)(!(version>=2.0.0))(osgi.wiring.package=pkg.*))",
+        "(&(version>=1.0.0)(version<=1.5.0))",
+        "(|(version<=0.5.0)(version>=2.5.0))",
+        "(!(version>=1.0.0))",
+        "(&(osgi.wiring.package=pkg.*)(version=[1.0.0,1.0.0]))",
+        "(version>=2)",
+        "(version<=1.5)",
+        "(version=3)",
+        "(version=2.0)",
+        "(version>=-1)",
+        "(&(osgi.wiring.package=pkg.3)(version<=2))"
+    };
+
+    public void testRangeIndexMatchesLinearScan()
+    {
+        List<BundleCapability> caps = createCapabilities(2000, new Random(42), true);
+
+        CapabilitySet linear = new CapabilitySet(null, true);
+        CapabilitySet indexed = createIndexedSet();
+        for (BundleCapability cap : caps)
+        {
+            linear.addCapability(cap);
+            indexed.addCapability(cap);
+        }
+
+        assertSameMatches(linear, indexed);
+
+        // Removal must leave the indices consistent.
+        for (int i = 0; i < caps.size(); i += 3)
+        {
+            linear.removeCapability(caps.get(i));
+            indexed.removeCapability(caps.get(i));
+        }
+
+        assertSameMatches(linear, indexed);
+    }
+
+    public void testMixedValueTypes()
+    {
+        CapabilitySet indexed = createIndexedSet();
+        BundleCapability v = createCapability("a", Version.parseVersion("1.5"));
+        BundleCapability s = createCapability("b", "1.5");
+        BundleCapability l = createCapability("c", Long.valueOf(15));
+        BundleCapability list = createCapability("d",
+            Arrays.asList(Version.parseVersion("0.5"), Version.parseVersion("3.0")));
+        indexed.addCapability(v);
+        indexed.addCapability(s);
+        indexed.addCapability(l);
+        indexed.addCapability(list);
+
+        assertEquals(new HashSet<Object>(Arrays.asList(v, s, list)),
+            indexed.match(SimpleFilter.parse("(version>=1.5)"), false));
+        assertEquals(new HashSet<Object>(Arrays.asList(l, list)),
+            indexed.match(SimpleFilter.parse("(version>=2)"), false));
+        assertEquals(Collections.singleton(list),
+            indexed.match(SimpleFilter.parse("(version=[2.0,4.0\\))"), false));
+        assertEquals(Collections.singleton(s),
+            indexed.match(SimpleFilter.parse("(version=1.*)"), false));
+    }
+
+    public void testNumericValueTypes()
+    {
+        CapabilitySet indexed = createIndexedSet();
+        BundleCapability i = createCapability("a", Integer.valueOf(15));
+        BundleCapability l = createCapability("b", Long.valueOf(15));
+        BundleCapability d = createCapability("c", Double.valueOf(1.5));
+        indexed.addCapability(i);
+        indexed.addCapability(l);
+        indexed.addCapability(d);
+
+        assertEquals(new HashSet<Object>(Arrays.asList(i, l)),
+            indexed.match(SimpleFilter.parse("(version>=2)"), false));
+        assertEquals(Collections.singleton(d),
+            indexed.match(SimpleFilter.parse("(version=1.5)"), false));
+        assertEquals(new HashSet<Object>(Arrays.asList(i, l, d)),
+            indexed.match(SimpleFilter.parse("(version<=15)"), false));
+        assertEquals(Collections.emptySet(),
+            indexed.match(SimpleFilter.parse("(version=1*)"), false));
+
+        indexed.removeCapability(l);
+        assertEquals(Collections.singleton(i),
+            indexed.match(SimpleFilter.parse("(version=15)"), false));
+    }
+
+    private static void assertSameMatches(CapabilitySet expected, CapabilitySet actual)
+    {
+        for (String filter : FILTERS)
+        {
+            SimpleFilter sf = SimpleFilter.parse(filter);
+            assertEquals(filter, expected.match(sf, false), actual.match(sf, false));
+        }
+    }
+
+    private static CapabilitySet createIndexedSet()
+    {
+        return new CapabilitySet(
+            Collections.singletonList(BundleRevision.PACKAGE_NAMESPACE),
+            Collections.singletonList("version"), true);
+    }
+
+    private static List<BundleCapability> createCapabilities(
+        int count, Random rnd, boolean mixedTypes)
+    {
+        List<BundleCapability> caps = new ArrayList<BundleCapability>(count);
+        for (int i = 0; i < count; i++)
+        {
+            Object version;
+            switch (mixedTypes ? (i % 10) : -1)
+            {
+                case 0:
+                    version = "str" + rnd.nextInt(5);
+                    break;
+                case 1:
+                    version = Long.valueOf(rnd.nextInt(4));
+                    break;
+                case 3:
+                    version = Integer.valueOf(rnd.nextInt(4));
+                    break;
+                case 4:
+                    version = Double.valueOf(rnd.nextInt(8) / 2.0);
+                    break;
+                case 5:
+                    version = new long[] { rnd.nextInt(4), rnd.nextInt(4) };
+                    break;
+                case 2:
+                    version = new Version[] {
+                        new Version(rnd.nextInt(3), rnd.nextInt(10), 0),
+                        new Version(rnd.nextInt(3), rnd.nextInt(10), 0) };
+                    break;
+                default:
+                    version = new Version(rnd.nextInt(3), rnd.nextInt(10), rnd.nextInt(2));
+            }
+            caps.add(createCapability("pkg." + rnd.nextInt(20), version));
+        }
+        return caps;
+    }
+
+    private static BundleCapability createCapability(String pkg, Object version)
+    {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(BundleRevision.PACKAGE_NAMESPACE, pkg);
+        attrs.put("version", version);
+        return new BundleCapabilityImpl(null, BundleRevision.PACKAGE_NAMESPACE,
+            Collections.<String, String>emptyMap(), attrs);
+    }
+
+    /**
+     * Simple timing comparison of range queries against 10k capabilities
+     * with and without sorted indices; not run as part of the test suite.
+    **/
+    public static void main(String[] args)
+    {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+        List<BundleCapability> caps = createCapabilities(count, new Random(42), false);
+        CapabilitySet linear = new CapabilitySet(
+            Collections.singletonList(BundleRevision.PACKAGE_NAMESPACE), true);
+        CapabilitySet indexed = createIndexedSet();
+        for (BundleCapability cap : caps)
+        {
+            linear.addCapability(cap);
+            indexed.addCapability(cap);
+        }
+
+        SimpleFilter[] sfs = new SimpleFilter[] {
+            SimpleFilter.parse("(version>=2.9.0)"),
+            SimpleFilter.parse("(version=[1.2,1.3\\))"),
+            SimpleFilter.parse("(&(version>=1.2.0)(osgi.wiring.package=pkg.3))")
+        };
+        for (int round = 0; round < 3; round++)
+        {
+            for (SimpleFilter sf : sfs)
+            {
+                System.out.println(sf + " linear=" + time(linear, sf)
+                    + "us indexed=" + time(indexed, sf) + "us");
+            }
+        }
+    }
+
+    private static long time(CapabilitySet capSet, SimpleFilter sf)
+    {
+        int iterations = 100;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            capSet.match(sf, false);
+        }
+        return (System.nanoTime() - start) / iterations / 1000;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.capabilityset;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.FilterImpl;
+import org.apache.felix.framework.util.StringMap;
+import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.osgi.framework.Version;
+
+public class CompiledFilterTest extends TestCase
+{
+    private static final String[] FILTERS = new String[] {
+        "(p=*)",
+        "(p=1)",
+        "(p= 1 )",
+        "(p>=2)",
+        "(p<=2)",
+        "(p=1.5)",
+        "(p>=1.2.0)",
+        "(p=[1.0,2.0\\))",
+        "(p=\\(1.1,1.3])",
+        "(p=[1.0,2.0)",
+        "(p=true)",
+        "(p~=TRUE)",
+        "(p=x)",
+        "(p~=a b C)",
+        "(p=a*)",
+        "(p=*c)",
+        "(p>=b)",
+        "(p=foo)",
+        "(!(p=1))",
+        "(&(p>=1)(p<=3))",
+        "(|(p=a*)(p=2))",
+        "(&(p=*)(!(q=*)))",
+        "(P=1)"
+    };
+
+    private static final Object[] VALUES = new Object[] {
+        "1", "abc", "A B c", "x", "b",
+        new Long(1), new Integer(2), new Short((short) 3), new Double(1.5),
+        new Float(2), new BigDecimal("1.50"),
+        Boolean.TRUE, Boolean.FALSE,
+        new Character('x'), new Character('1'),
+        new Version("1.2.0"), new Version("2.0.0"),
+        new String[] { "a", "b" }, new Object[] { null, new Long(2) },
+        new int[] { 0, 2 }, new long[0], new boolean[] { true },
+        Arrays.asList("x", "abc"), Arrays.asList(new Long(1), new Version("1.2.0")),
+        new StringValue("foo"), new Object()
+    };
+
+    public void testMatchesLikeInterpreter() throws Exception
+    {
+        List<CompiledFilter> compiled = new ArrayList<CompiledFilter>();
+        for (String filter : FILTERS)
+        {
+            compiled.add(CompiledFilter.compile(SimpleFilter.parse(filter)));
+        }
+
+        // Evaluate twice, with alternating value types, so that cached
+        // operands are both used and replaced.
+        for (int pass = 0; pass < 2; pass++)
+        {
+            for (Object value : VALUES)
+            {
+                Map<String, Object> attrs = new StringMap();
+                attrs.put("p", value);
+                for (int i = 0; i < FILTERS.length; i++)
+                {
+                    SimpleFilter sf = SimpleFilter.parse(FILTERS[i]);
+                    boolean expected = CapabilitySet.matches(new MapCapability(attrs), sf);
+                    assertEquals(FILTERS[i] + " with " + describe(value),
+                        expected, compiled.get(i).matches(attrs));
+                }
+            }
+        }
+    }
+
+    public void testDictionaryMatching() throws Exception
+    {
+        FilterImpl filter = new FilterImpl("(&(Name=foo)(count>=2))");
+        Hashtable<String, Object> dict = new Hashtable<String, Object>();
+        dict.put("name", "foo");
+        dict.put("count", new Integer(3));
+        assertTrue(filter.match(dict));
+        assertFalse(filter.matchCase(dict));
+        dict.put("Name", "foo");
+        assertTrue(filter.matchCase(dict));
+        dict.remove("Name");
+        assertFalse(filter.match((Hashtable<String, Object>) null));
+
+        dict.put("NAME", "foo");
+        try
+        {
+            filter.match(dict);
+            fail("Keys only differing in case must be rejected.");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // Expected.
+        }
+    }
+
+    private static String describe(Object value)
+    {
+        if (value instanceof Object[])
+        {
+            return Arrays.asList((Object[]) value).toString();
+        }
+        return value + " (" + value.getClass().getName() + ")";
+    }
+
+    /**
+     * A capability exposing a map as is, like filters wrapped the
+     * properties they were matched against before being compiled.
+    **/
+    private static class MapCapability extends BundleCapabilityImpl
+    {
+        private final Map<String, Object> m_attrs;
+
+        MapCapability(Map<String, Object> attrs)
+        {
+            super(null, null, Collections.EMPTY_MAP, Collections.EMPTY_MAP);
+            m_attrs = attrs;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes()
+        {
+            return m_attrs;
+        }
+    }
+
+    public static class StringValue
+    {
+        private final String m_value;
+
+        public StringValue(String value)
+        {
+            m_value = value;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return (o instanceof StringValue) && ((StringValue) o).m_value.equals(m_value);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return m_value.hashCode();
+        }
+    }
+
+    /**
+     * Compares the throughput of the compiled form with interpreting the
+     * filter against a capability wrapping the properties, as filters were
+     * evaluated before; not run as part of the test suite.
+    **/
+    public static void main(String[] args) throws Exception
+    {
+        int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 5000000;
+        SimpleFilter sf = SimpleFilter.parse(
+            "(&(objectClass=org.example.Service)(service.ranking>=10)"
+            + "(|(version>=1.2.0)(vendor=acme*)))");
+        CompiledFilter compiled = CompiledFilter.compile(sf);
+        Map<String, Object> props = new StringMap();
+        props.put("objectClass", new String[] { "org.example.Other", "org.example.Service" });
+        props.put("service.id", new Long(42));
+        props.put("service.ranking", new Integer(20));
+        props.put("version", new Version("1.0.0"));
+        props.put("vendor", "acme corp");
+
+        for (int round = 0; round < 3; round++)
+        {
+            long start = System.nanoTime();
+            int matched = 0;
+            for (int i = 0; i < iterations; i++)
+            {
+                if (CapabilitySet.matches(new MapCapability(props), sf))
+                {
+                    matched++;
+                }
+            }
+            long interpreted = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                if (compiled.matches(props))
+                {
+                    matched++;
+                }
+            }
+            long time = System.nanoTime() - start;
+            System.out.println("interpreted: " + (interpreted / iterations)
+                + " ns/match, compiled: " + (time / iterations) + " ns/match ("
+                + matched + " matches)");
+        }
+    }
+}
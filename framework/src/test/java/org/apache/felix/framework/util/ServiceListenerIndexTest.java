@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.Felix;
+import org.apache.felix.framework.FilterImpl;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.UnfilteredServiceListener;
+
+public class ServiceListenerIndexTest extends TestCase
+{
+    private final BundleContext m_bc1 = proxy(BundleContext.class, null);
+    private final BundleContext m_bc2 = proxy(BundleContext.class, null);
+
+    public void testIndexesObjectClassTerms() throws Exception
+    {
+        ServiceListenerIndex index = ServiceListenerIndex.EMPTY;
+        ListenerInfo eq = info(m_bc1, "(objectClass=a.A)");
+        ListenerInfo and = info(m_bc1, "(&(x=1)(OBJECTCLASS=b.B))");
+        ListenerInfo or = info(m_bc2, "(|(objectClass=a.A)(objectClass=c.C))");
+        ListenerInfo substring = info(m_bc2, "(objectClass=a.*)");
+        ListenerInfo not = info(m_bc2, "(!(objectClass=a.A))");
+        ListenerInfo none = info(m_bc1, null);
+        ListenerInfo unfiltered = new ListenerInfo(null, m_bc1, ServiceListener.class,
+            new TestUnfilteredListener(), new FilterImpl("(objectClass=z.Z)"), null, false);
+        for (ListenerInfo info : new ListenerInfo[] {
+            eq, and, or, substring, not, none, unfiltered })
+        {
+            index = index.add(info);
+        }
+        assertEquals(3, index.getIndexedClassCount());
+        assertEquals(4, index.getUnindexedCount());
+
+        assertCandidates(index, new String[] { "a.A" },
+            new ListenerInfo[] { eq, none, unfiltered },
+            new ListenerInfo[] { or, substring, not });
+        assertCandidates(index, new String[] { "b.B", "c.C" },
+            new ListenerInfo[] { and, none, unfiltered },
+            new ListenerInfo[] { or, substring, not });
+        assertCandidates(index, new String[] { "a.A", "c.C" },
+            new ListenerInfo[] { eq, none, unfiltered },
+            new ListenerInfo[] { or, substring, not });
+        assertCandidates(index, new String[] { "d.D" },
+            new ListenerInfo[] { none, unfiltered },
+            new ListenerInfo[] { substring, not });
+
+        // Updating keeps the position of the listener.
+        ListenerInfo updated = new ListenerInfo(null, m_bc1, ServiceListener.class,
+            eq.getListener(), new FilterImpl("(objectClass=d.D)"), null, false);
+        index = index.update(eq, updated).remove(none).remove(substring).remove(or);
+        assertCandidates(index, new String[] { "a.A", "d.D" },
+            new ListenerInfo[] { updated, unfiltered },
+            new ListenerInfo[] { not });
+        assertEquals(2, index.getIndexedClassCount());
+        assertEquals(2, index.getUnindexedCount());
+    }
+
+    private void assertCandidates(ServiceListenerIndex index, String[] classes,
+        ListenerInfo[] bc1, ListenerInfo[] bc2)
+    {
+        Hashtable<String, Object> props = new Hashtable<String, Object>();
+        props.put(Constants.OBJECTCLASS, classes);
+        Map<BundleContext, List<ListenerInfo>> candidates =
+            index.getCandidates(proxy(ServiceReference.class, props));
+        assertEquals(java.util.Arrays.asList(bc1), candidates.get(m_bc1));
+        assertEquals(java.util.Arrays.asList(bc2), candidates.get(m_bc2));
+    }
+
+    private static ListenerInfo info(BundleContext bc, String filter) throws Exception
+    {
+        return new ListenerInfo(null, bc, ServiceListener.class,
+            new TestListener(), (filter == null) ? null : new FilterImpl(filter),
+            null, false);
+    }
+
+    private static <T> T proxy(Class<T> clazz, final Dictionary<String, Object> props)
+    {
+        return clazz.cast(Proxy.newProxyInstance(clazz.getClassLoader(),
+            new Class[] { clazz }, new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if (method.getName().equals("getProperty"))
+                    {
+                        return props.get(args[0]);
+                    }
+                    else if (method.getName().equals("hashCode"))
+                    {
+                        return System.identityHashCode(proxy);
+                    }
+                    else if (method.getName().equals("equals"))
+                    {
+                        return proxy == args[0];
+                    }
+                    return null;
+                }
+            }));
+    }
+
+    private static class TestListener implements ServiceListener
+    {
+        public void serviceChanged(ServiceEvent event)
+        {
+        }
+    }
+
+    private static class TestUnfilteredListener
+        extends TestListener implements UnfilteredServiceListener
+    {
+    }
+
+    /**
+     * Measures service registration and unregistration throughput as the
+     * number of service listeners filtering on distinct object classes
+     * grows; not run as part of the test suite.
+    **/
+    public static void main(String[] args) throws Exception
+    {
+        int registrations = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        File cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        Felix felix = new Felix(params);
+        felix.init();
+        felix.start();
+        try
+        {
+            BundleContext bc = felix.getBundleContext();
+            // A service factory avoids checking the service object's class.
+            ServiceFactory factory = new ServiceFactory()
+            {
+                public Object getService(Bundle bundle, ServiceRegistration reg)
+                {
+                    return null;
+                }
+
+                public void ungetService(Bundle bundle, ServiceRegistration reg, Object svc)
+                {
+                }
+            };
+            int listeners = 0;
+            for (int target : new int[] { 0, 500, 1000, 2000, 4000, 8000 })
+            {
+                for (; listeners < target; listeners++)
+                {
+                    bc.addServiceListener(new TestListener(),
+                        "(objectClass=test.Service" + listeners + ")");
+                }
+                long start = System.nanoTime();
+                for (int i = 0; i < registrations; i++)
+                {
+                    ServiceRegistration reg = bc.registerService(
+                        "test.Service" + (i % Math.max(1, listeners)), factory, null);
+                    reg.unregister();
+                }
+                long time = System.nanoTime() - start;
+                System.out.println(listeners + " listeners: "
+                    + (registrations * 1000000000L / time) + " register/unregister per second");
+            }
+        }
+        finally
+        {
+            felix.stop();
+            felix.waitForStop(10000);
+            deleteDir(cacheDir);
+        }
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        root.delete();
+    }
+}
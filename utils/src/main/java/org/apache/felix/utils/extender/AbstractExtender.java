@@ -20,19 +20,27 @@ import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
 import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.service.startlevel.StartLevel;
 import org.osgi.util.tracker.BundleTracker;
 import org.osgi.util.tracker.BundleTrackerCustomizer;
 
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Base class to write bundle extenders.
@@ -46,16 +54,55 @@ import java.util.concurrent.TimeUnit;
  * the STOPPING event of a given bundle and that all extensions will be stopped
  * before the extender bundle is stopped.
  *
+ * Asynchronous starts are executed by the executor returned by
+ * {@link #createExecutor()}, which can be configured with
+ * {@link #setExecutorType(ExecutorType)} and {@link #setThreadPoolSize(int)}
+ * before the extender is started.  With {@link #setOrderedByStartLevel(boolean)},
+ * pending extensions of bundles with a lower start level are started first.
+ * The time spent starting each extension is available from
+ * {@link #getStartTimes()}.
+ *
  */
 public abstract class AbstractExtender implements BundleActivator, BundleTrackerCustomizer, SynchronousBundleListener {
 
+    /**
+     * The kind of executor used to start extensions asynchronously.
+     */
+    public enum ExecutorType {
+        /**
+         * A pool with a fixed number of threads.
+         */
+        FIXED,
+        /**
+         * A work-stealing pool, if supported by the JVM (Java 8+),
+         * else a fixed pool.
+         */
+        WORK_STEALING,
+        /**
+         * A new virtual thread per extension, if supported by the JVM (Java 21+),
+         * else a fixed pool.
+         */
+        VIRTUAL
+    }
+
+    /**
+     * The default number of threads used to start extensions.
+     */
+    public static final int DEFAULT_THREAD_POOL_SIZE = 3;
+
     private final ConcurrentMap<Bundle, Extension> extensions = new ConcurrentHashMap<Bundle, Extension>();
     private final ConcurrentMap<Bundle, FutureTask> destroying = new ConcurrentHashMap<Bundle, FutureTask>();
+    private final ConcurrentMap<Bundle, Long> startTimes = new ConcurrentHashMap<Bundle, Long>();
+    private final PriorityBlockingQueue<PendingStart> pending = new PriorityBlockingQueue<PendingStart>();
+    private final AtomicLong sequence = new AtomicLong();
     private volatile boolean stopping;
     private volatile boolean stopped;
 
     private boolean synchronous;
     private boolean preemptiveShutdown;
+    private ExecutorType executorType = ExecutorType.FIXED;
+    private int threadPoolSize = DEFAULT_THREAD_POOL_SIZE;
+    private boolean orderedByStartLevel;
     private BundleContext context;
     private ExecutorService executors;
     private BundleTracker tracker;
@@ -100,6 +147,62 @@ public abstract class AbstractExtender implements BundleActivator, BundleTracker
         this.preemptiveShutdown = preemptiveShutdown;
     }
 
+    public ExecutorType getExecutorType() {
+        return executorType;
+    }
+
+    /**
+     * Set the kind of executor used to start extensions asynchronously.
+     * Must be called before the extender is started.
+     *
+     * @param executorType the kind of executor
+     */
+    public void setExecutorType(ExecutorType executorType) {
+        this.executorType = executorType;
+    }
+
+    public int getThreadPoolSize() {
+        return threadPoolSize;
+    }
+
+    /**
+     * Set the number of threads used to start extensions asynchronously,
+     * or the parallelism of a work-stealing pool.  A value less than one
+     * means the number of available processors.  Must be called before
+     * the extender is started.
+     *
+     * @param threadPoolSize the number of threads
+     */
+    public void setThreadPoolSize(int threadPoolSize) {
+        this.threadPoolSize = threadPoolSize;
+    }
+
+    public boolean isOrderedByStartLevel() {
+        return orderedByStartLevel;
+    }
+
+    /**
+     * Set whether extensions waiting to be started asynchronously are started
+     * in the order of the start levels of their bundles instead of the order
+     * they were created in.  Extensions of bundles with the same start level
+     * are still started in the order they were created in.
+     *
+     * @param orderedByStartLevel if the extensions are ordered by start level
+     */
+    public void setOrderedByStartLevel(boolean orderedByStartLevel) {
+        this.orderedByStartLevel = orderedByStartLevel;
+    }
+
+    /**
+     * Get the time spent starting the extension of each bundle that has been
+     * started and not yet destroyed.
+     *
+     * @return the start times in nanoseconds by bundle
+     */
+    public Map<Bundle, Long> getStartTimes() {
+        return Collections.unmodifiableMap(new HashMap<Bundle, Long>(startTimes));
+    }
+
     public boolean isStopping() {
         return stopping;
     }
@@ -126,6 +229,7 @@ public abstract class AbstractExtender implements BundleActivator, BundleTracker
             }
         }
         doStop();
+        pending.clear();
         if (executors != null) {
             executors.shutdown();
             try {
@@ -155,12 +259,34 @@ public abstract class AbstractExtender implements BundleActivator, BundleTracker
     }
 
     /**
-     * Create the executor used to start extensions asynchronously.
+     * Create the executor used to start extensions asynchronously,
+     * according to the configured executor type and thread pool size.
      *
-     * @return an
+     * @return an executor
      */
     protected ExecutorService createExecutor() {
-        return Executors.newScheduledThreadPool(3);
+        int size = threadPoolSize > 0 ? threadPoolSize : Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = null;
+        if (executorType == ExecutorType.WORK_STEALING) {
+            executor = invokeExecutorFactory("newWorkStealingPool", new Class[] { int.class }, new Object[] { size });
+        } else if (executorType == ExecutorType.VIRTUAL) {
+            executor = invokeExecutorFactory("newVirtualThreadPerTaskExecutor", new Class[0], new Object[0]);
+        }
+        return executor != null ? executor : Executors.newScheduledThreadPool(size);
+    }
+
+    /**
+     * Create an executor using a factory method of {@link Executors} that
+     * may not be available on the running JVM.
+     */
+    private ExecutorService invokeExecutorFactory(String name, Class[] types, Object[] args) {
+        try {
+            Method method = Executors.class.getMethod(name, types);
+            return (ExecutorService) method.invoke(null, args);
+        } catch (Throwable t) {
+            error("Executor " + name + " not available, using a fixed thread pool", t);
+            return null;
+        }
     }
 
     /**
@@ -256,15 +382,20 @@ public abstract class AbstractExtender implements BundleActivator, BundleTracker
             }
             if (synchronous) {
                 debug(bundle, "Starting extension synchronously");
+                long start = System.nanoTime();
                 extension.start();
+                recordStartTime(bundle, extension, System.nanoTime() - start);
             } else {
                 debug(bundle, "Scheduling asynchronous start of extension");
+                int startLevel = orderedByStartLevel ? getStartLevel(bundle) : 0;
+                pending.add(new PendingStart(bundle, extension, startLevel, sequence.getAndIncrement()));
                 getExecutors().submit(new Runnable() {
                     public void run() {
-                        try {
-                            extension.start();
-                        } catch (Exception e) {
-                            warn(bundle, "Error starting extension", e);
+                        // Start the first pending extension, which is not
+                        // necessarily the one this task was submitted for
+                        PendingStart next = pending.poll();
+                        if (next != null) {
+                            startExtension(next.bundle, next.extension);
                         }
                     }
                 });
@@ -274,6 +405,44 @@ public abstract class AbstractExtender implements BundleActivator, BundleTracker
         }
     }
 
+    private void startExtension(Bundle bundle, Extension extension) {
+        long start = System.nanoTime();
+        try {
+            extension.start();
+        } catch (Exception e) {
+            warn(bundle, "Error starting extension", e);
+        } finally {
+            recordStartTime(bundle, extension, System.nanoTime() - start);
+        }
+    }
+
+    private void recordStartTime(Bundle bundle, Extension extension, long time) {
+        // Only record the time if the extension has not been destroyed meanwhile
+        if (extensions.get(bundle) == extension) {
+            startTimes.put(bundle, time);
+            debug(bundle, "Extension started in " + TimeUnit.NANOSECONDS.toMillis(time) + " ms");
+        }
+    }
+
+    private int getStartLevel(Bundle bundle) {
+        try {
+            ServiceReference ref = context.getServiceReference(StartLevel.class.getName());
+            if (ref != null) {
+                try {
+                    StartLevel startLevel = (StartLevel) context.getService(ref);
+                    if (startLevel != null) {
+                        return startLevel.getBundleStartLevel(bundle);
+                    }
+                } finally {
+                    context.ungetService(ref);
+                }
+            }
+        } catch (Exception e) {
+            // The bundle may have been uninstalled, fall back to the creation order
+        }
+        return 0;
+    }
+
     private void destroyExtension(final Bundle bundle) {
         FutureTask future;
         synchronized (extensions) {
@@ -281,6 +450,7 @@ public abstract class AbstractExtender implements BundleActivator, BundleTracker
             future = destroying.get(bundle);
             if (future == null) {
                 final Extension extension = extensions.remove(bundle);
+                startTimes.remove(bundle);
                 if (extension != null) {
                     debug(bundle, "Scheduling extension destruction");
                     future = new FutureTask<Void>(new Runnable() {
@@ -330,4 +500,25 @@ public abstract class AbstractExtender implements BundleActivator, BundleTracker
     protected abstract void warn(Bundle bundle, String msg, Throwable t);
     protected abstract void error(String msg, Throwable t);
 
+    private static class PendingStart implements Comparable<PendingStart> {
+        private final Bundle bundle;
+        private final Extension extension;
+        private final int startLevel;
+        private final long sequence;
+
+        PendingStart(Bundle bundle, Extension extension, int startLevel, long sequence) {
+            this.bundle = bundle;
+            this.extension = extension;
+            this.startLevel = startLevel;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(PendingStart other) {
+            if (startLevel != other.startLevel) {
+                return startLevel < other.startLevel ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence > other.sequence ? 1 : 0);
+        }
+    }
+
 }
@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.utils.manifest;
+
+/**
+ * A pool of the strings, and optionally the clauses, of parsed manifest
+ * headers, used by {@link Parser#parseHeader(String, ManifestPool)}.
+ * Package names, attribute names and values such as versions repeat a lot
+ * across the manifests of a set of bundles, so parsing them through a shared
+ * pool returns the same instances instead of new copies.  Lookups are made
+ * directly on the characters of the header, so no string is created for
+ * values that are already pooled.
+ *
+ * If clauses are shared, parsing a clause that has been parsed before returns
+ * the same {@link Clause} instances, which must then not be modified.
+ *
+ * The pool is thread safe.  It holds at most the given number of strings and
+ * clauses each; when full, it is cleared and filled again.
+ */
+public final class ManifestPool
+{
+
+    /**
+     * The default maximum number of strings and clauses held.
+     */
+    public static final int DEFAULT_MAX_SIZE = 16 * 1024;
+
+    private final Table strings;
+    private final Table clauses;
+
+    public ManifestPool()
+    {
+        this(DEFAULT_MAX_SIZE, false);
+    }
+
+    /**
+     * Create a pool.
+     * @param maxSize the maximum number of strings and clauses held.
+     * @param shareClauses whether to share the clauses of parsed headers.
+     */
+    public ManifestPool(int maxSize, boolean shareClauses)
+    {
+        this.strings = new Table(maxSize);
+        this.clauses = shareClauses ? new Table(maxSize) : null;
+    }
+
+    public boolean isSharingClauses()
+    {
+        return clauses != null;
+    }
+
+    /**
+     * Return the pooled string with the given characters.
+     * @param chars the characters.
+     * @param offset the offset of the first character.
+     * @param length the number of characters.
+     * @return the pooled string.
+     */
+    public String intern(char[] chars, int offset, int length)
+    {
+        if (length == 0)
+        {
+            return "";
+        }
+        synchronized (strings)
+        {
+            String s = (String) strings.get(chars, offset, length);
+            if (s == null)
+            {
+                s = new String(chars, offset, length);
+                strings.put(s, s);
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Return the pooled string equal to the given one.
+     * @param s the string.
+     * @return the pooled string.
+     */
+    public String intern(String s)
+    {
+        return intern(s.toCharArray(), 0, s.length());
+    }
+
+    /**
+     * Return the number of pooled strings.
+     * @return the number of strings.
+     */
+    public int size()
+    {
+        synchronized (strings)
+        {
+            return strings.size;
+        }
+    }
+
+    Clause[] getClauses(char[] chars, int offset, int length)
+    {
+        synchronized (clauses)
+        {
+            return (Clause[]) clauses.get(chars, offset, length);
+        }
+    }
+
+    void putClauses(char[] chars, int offset, int length, Clause[] parsed)
+    {
+        synchronized (clauses)
+        {
+            clauses.put(new String(chars, offset, length), parsed);
+        }
+    }
+
+    /**
+     * A hash table with string keys that can be looked up by a range
+     * of characters.
+     */
+    private static final class Table
+    {
+        private final int maxSize;
+        private Entry[] entries = new Entry[64];
+        private int size;
+
+        Table(int maxSize)
+        {
+            this.maxSize = maxSize;
+        }
+
+        Object get(char[] chars, int offset, int length)
+        {
+            int hash = hash(chars, offset, length);
+            for (Entry e = entries[hash & (entries.length - 1)]; e != null; e = e.next)
+            {
+                if (e.hash == hash && equals(e.key, chars, offset, length))
+                {
+                    return e.value;
+                }
+            }
+            return null;
+        }
+
+        void put(String key, Object value)
+        {
+            if (size >= maxSize)
+            {
+                entries = new Entry[64];
+                size = 0;
+            }
+            else if (size >= entries.length * 3 / 4)
+            {
+                resize();
+            }
+            int hash = key.hashCode();
+            int idx = hash & (entries.length - 1);
+            entries[idx] = new Entry(key, hash, value, entries[idx]);
+            size++;
+        }
+
+        private void resize()
+        {
+            Entry[] old = entries;
+            entries = new Entry[old.length * 2];
+            for (int i = 0; i < old.length; i++)
+            {
+                for (Entry e = old[i]; e != null;)
+                {
+                    Entry next = e.next;
+                    int idx = e.hash & (entries.length - 1);
+                    e.next = entries[idx];
+                    entries[idx] = e;
+                    e = next;
+                }
+            }
+        }
+
+        // Same as String.hashCode()
+        private static int hash(char[] chars, int offset, int length)
+        {
+            int h = 0;
+            for (int i = offset, end = offset + length; i < end; i++)
+            {
+                h = 31 * h + chars[i];
+            }
+            return h;
+        }
+
+        private static boolean equals(String key, char[] chars, int offset, int length)
+        {
+            if (key.length() != length)
+            {
+                return false;
+            }
+            for (int i = 0; i < length; i++)
+            {
+                if (key.charAt(i) != chars[offset + i])
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Entry
+    {
+        final String key;
+        final int hash;
+        final Object value;
+        Entry next;
+
+        Entry(String key, int hash, Object value, Entry next)
+        {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+}
@@ -23,6 +23,9 @@ import java.util.List;
 
 public final class Parser
 {
+    private static final Directive[] NO_DIRECTIVES = new Directive[0];
+    private static final Attribute[] NO_ATTRIBUTES = new Attribute[0];
+
     private Parser() { }
 
     public static Clause[] parseHeader(String header) throws IllegalArgumentException
@@ -40,6 +43,224 @@ public final class Parser
         return (clauses == null) ? new Clause[0] : clauses;
     }
 
+    /**
+     * Parses a header like {@link #parseHeader(String)}, but in a single pass
+     * over its characters, without creating intermediate strings.  Paths as
+     * well as names and values of directives and attributes are taken from
+     * the given pool, which may be shared by the parsing of many manifests,
+     * and clauses are shared too if the pool is configured to do so.
+     * Directives and attributes that are empty are shared by all clauses.
+     * @param header the header to parse.
+     * @param pool the pool to use or <tt>null</tt> to create new strings.
+     * @return the clauses of the header.
+     * @throws IllegalArgumentException if the header is not valid.
+    **/
+    public static Clause[] parseHeader(String header, ManifestPool pool) throws IllegalArgumentException
+    {
+        if (header == null)
+        {
+            return new Clause[0];
+        }
+        if (header.length() == 0)
+        {
+            throw new IllegalArgumentException("The header cannot be an empty string.");
+        }
+
+        char[] chars = header.toCharArray();
+        List clauses = new ArrayList();
+        int[] pieces = new int[16];
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i <= chars.length; i++)
+        {
+            if (i == chars.length || (chars[i] == ',' && !quoted))
+            {
+                int s = trimStart(chars, start, i);
+                int e = trimEnd(chars, s, i);
+                // Like parseDelimitedString(), only drop a trailing empty clause.
+                if (i < chars.length || e > s)
+                {
+                    pieces = parseClause(chars, s, e, pool, clauses, pieces);
+                }
+                start = i + 1;
+            }
+            else if (chars[i] == '"')
+            {
+                quoted = !quoted;
+            }
+        }
+        return (Clause[]) clauses.toArray(new Clause[clauses.size()]);
+    }
+
+    /**
+     * Parses the clause between the given indexes and adds its paths to the
+     * given list.  Returns the buffer for the boundaries of its pieces, which
+     * is grown as needed.
+    **/
+    private static int[] parseClause(char[] chars, int start, int end,
+        ManifestPool pool, List clauses, int[] pieces)
+    {
+        if (pool != null && pool.isSharingClauses())
+        {
+            Clause[] shared = pool.getClauses(chars, start, end - start);
+            if (shared != null)
+            {
+                for (int i = 0; i < shared.length; i++)
+                {
+                    clauses.add(shared[i]);
+                }
+                return pieces;
+            }
+        }
+
+        // Find the boundaries of the semi-colon delimited pieces.
+        int count = 0;
+        boolean quoted = false;
+        int pieceStart = start;
+        for (int i = start; i <= end; i++)
+        {
+            if (i == end || (chars[i] == ';' && !quoted))
+            {
+                int s = trimStart(chars, pieceStart, i);
+                int e = trimEnd(chars, s, i);
+                if (i < end || e > s)
+                {
+                    if (count * 2 + 2 > pieces.length)
+                    {
+                        int[] tmp = new int[pieces.length * 2];
+                        System.arraycopy(pieces, 0, tmp, 0, pieces.length);
+                        pieces = tmp;
+                    }
+                    pieces[count * 2] = s;
+                    pieces[count * 2 + 1] = e;
+                    count++;
+                }
+                pieceStart = i + 1;
+            }
+            else if (chars[i] == '"')
+            {
+                quoted = !quoted;
+            }
+        }
+
+        // Paths come first and do not contain an '='.
+        int pathCount = 0;
+        while (pathCount < count && indexOf(chars, pieces[pathCount * 2], pieces[pathCount * 2 + 1], '=') < 0)
+        {
+            pathCount++;
+        }
+        if (pathCount == 0)
+        {
+            throw new IllegalArgumentException("No path specified on clause: " + new String(chars, start, end - start));
+        }
+
+        // Parse the directives/attributes.
+        Directive[] dirs = new Directive[count - pathCount];
+        Attribute[] attrs = new Attribute[count - pathCount];
+        int dirCount = 0, attrCount = 0;
+        for (int pieceIdx = pathCount; pieceIdx < count; pieceIdx++)
+        {
+            int s = pieces[pieceIdx * 2];
+            int e = pieces[pieceIdx * 2 + 1];
+            boolean directive = true;
+            int idx = indexOf(chars, s, e, ':');
+            while (idx >= 0 && (idx + 1 >= e || chars[idx + 1] != '='))
+            {
+                idx = indexOf(chars, idx + 1, e, ':');
+            }
+            if (idx < 0)
+            {
+                directive = false;
+                idx = indexOf(chars, s, e, '=');
+            }
+            if (idx < 0)
+            {
+                throw new IllegalArgumentException("Not a directive/attribute: " + new String(chars, start, end - start));
+            }
+
+            int keyEnd = trimEnd(chars, s, idx);
+            int valueStart = trimStart(chars, idx + (directive ? 2 : 1), e);
+            int valueEnd = e;
+            // Remove quotes, if value is quoted.
+            if (valueEnd - valueStart >= 2 && chars[valueStart] == '"' && chars[valueEnd - 1] == '"')
+            {
+                valueStart++;
+                valueEnd--;
+            }
+            String key = newString(pool, chars, s, keyEnd);
+            String value = newString(pool, chars, valueStart, valueEnd);
+            if (directive)
+            {
+                dirs[dirCount++] = new Directive(key, value);
+            }
+            else
+            {
+                attrs[attrCount++] = new Attribute(key, value);
+            }
+        }
+
+        Directive[] dirsFinal = NO_DIRECTIVES;
+        if (dirCount > 0)
+        {
+            dirsFinal = new Directive[dirCount];
+            System.arraycopy(dirs, 0, dirsFinal, 0, dirCount);
+        }
+        Attribute[] attrsFinal = NO_ATTRIBUTES;
+        if (attrCount > 0)
+        {
+            attrsFinal = new Attribute[attrCount];
+            System.arraycopy(attrs, 0, attrsFinal, 0, attrCount);
+        }
+
+        Clause[] pkgs = new Clause[pathCount];
+        for (int pkgIdx = 0; pkgIdx < pathCount; pkgIdx++)
+        {
+            pkgs[pkgIdx] = new Clause(newString(pool, chars, pieces[pkgIdx * 2], pieces[pkgIdx * 2 + 1]), dirsFinal, attrsFinal);
+            clauses.add(pkgs[pkgIdx]);
+        }
+        if (pool != null && pool.isSharingClauses())
+        {
+            pool.putClauses(chars, start, end - start, pkgs);
+        }
+        return pieces;
+    }
+
+    private static String newString(ManifestPool pool, char[] chars, int start, int end)
+    {
+        return (pool != null) ? pool.intern(chars, start, end - start) : new String(chars, start, end - start);
+    }
+
+    // Same as String.trim()
+    private static int trimStart(char[] chars, int start, int end)
+    {
+        while (start < end && chars[start] <= ' ')
+        {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(char[] chars, int start, int end)
+    {
+        while (end > start && chars[end - 1] <= ' ')
+        {
+            end--;
+        }
+        return end;
+    }
+
+    private static int indexOf(char[] chars, int start, int end, char c)
+    {
+        for (int i = start; i < end; i++)
+        {
+            if (chars[i] == c)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     public static Clause[] parseClauses(String[] ss) throws IllegalArgumentException
     {
         if (ss == null)
@@ -0,0 +1,259 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.utils.extender;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.startlevel.StartLevel;
+
+public class AbstractExtenderTest extends TestCase
+{
+    private final Map<Bundle, Integer> startLevels = new HashMap<Bundle, Integer>();
+    private final BundleContext context = (BundleContext) proxy(BundleContext.class, new Handler()
+    {
+        Object handle(String name, Object[] args)
+        {
+            if (name.equals("getBundles"))
+            {
+                return new Bundle[0];
+            }
+            else if (name.equals("getBundle"))
+            {
+                return (args == null) ? extenderBundle : systemBundle;
+            }
+            else if (name.equals("getServiceReference")
+                && StartLevel.class.getName().equals(args[0]))
+            {
+                return proxy(ServiceReference.class, new Handler());
+            }
+            else if (name.equals("getService"))
+            {
+                return startLevel;
+            }
+            return null;
+        }
+    });
+    private final Object startLevel = proxy(StartLevel.class, new Handler()
+    {
+        Object handle(String name, Object[] args)
+        {
+            if (name.equals("getBundleStartLevel"))
+            {
+                return startLevels.get(args[0]);
+            }
+            return null;
+        }
+    });
+    private final Bundle systemBundle = createBundle(0, 0);
+    private final Bundle extenderBundle = createBundle(1, 1);
+
+    public void testOrderedByStartLevel() throws Exception
+    {
+        TestExtender extender = new TestExtender();
+        extender.setThreadPoolSize(1);
+        extender.setOrderedByStartLevel(true);
+        extender.start(context);
+
+        // Block the only thread, so that the other extensions are pending.
+        Bundle first = createBundle(10, 1);
+        extender.blocked = first;
+        extender.modifiedBundle(first, null, first);
+        assertTrue(extender.entered.await(10, TimeUnit.SECONDS));
+
+        Bundle level5 = createBundle(11, 5);
+        Bundle level2 = createBundle(12, 2);
+        Bundle level3 = createBundle(13, 3);
+        Bundle level2Later = createBundle(14, 2);
+        for (Bundle bundle : new Bundle[] { level5, level2, level3, level2Later })
+        {
+            extender.modifiedBundle(bundle, null, bundle);
+        }
+        extender.release.countDown();
+        assertTrue(extender.done.await(10, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList(10L, 12L, 14L, 13L, 11L), extender.started);
+        waitForStartTimes(extender, 5);
+        assertTrue(extender.getStartTimes().get(first).longValue() > 0);
+
+        extender.stop(context);
+        assertTrue(extender.getStartTimes().isEmpty());
+    }
+
+    public void testExecutorTypes() throws Exception
+    {
+        for (AbstractExtender.ExecutorType type : AbstractExtender.ExecutorType.values())
+        {
+            TestExtender extender = new TestExtender();
+            extender.setExecutorType(type);
+            extender.setThreadPoolSize(0);
+            extender.start(context);
+            assertNotNull(extender.getExecutors());
+            for (int i = 0; i < 5; i++)
+            {
+                Bundle bundle = createBundle(20 + i, 1);
+                extender.modifiedBundle(bundle, null, bundle);
+            }
+            assertTrue(type.toString(), extender.done.await(10, TimeUnit.SECONDS));
+            waitForStartTimes(extender, 5);
+            extender.stop(context);
+        }
+    }
+
+    public void testSynchronousStartTimes() throws Exception
+    {
+        TestExtender extender = new TestExtender();
+        extender.setSynchronous(true);
+        extender.start(context);
+        Bundle bundle = createBundle(30, 1);
+        extender.modifiedBundle(bundle, null, bundle);
+        assertEquals(Collections.singletonList(30L), extender.started);
+        assertTrue(extender.getStartTimes().containsKey(bundle));
+        extender.stop(context);
+    }
+
+    // Start times are recorded right after the extensions have been started.
+    private static void waitForStartTimes(AbstractExtender extender, int count)
+        throws InterruptedException
+    {
+        for (int i = 0; (i < 100) && (extender.getStartTimes().size() < count); i++)
+        {
+            Thread.sleep(100);
+        }
+        assertEquals(count, extender.getStartTimes().size());
+    }
+
+    private Bundle createBundle(final long id, int level)
+    {
+        Bundle bundle = (Bundle) proxy(Bundle.class, new Handler()
+        {
+            Object handle(String name, Object[] args)
+            {
+                if (name.equals("getBundleId"))
+                {
+                    return id;
+                }
+                else if (name.equals("getState"))
+                {
+                    return Bundle.ACTIVE;
+                }
+                else if (name.equals("getBundleContext"))
+                {
+                    return context;
+                }
+                else if (name.equals("getHeaders"))
+                {
+                    return new Hashtable();
+                }
+                return null;
+            }
+        });
+        startLevels.put(bundle, level);
+        return bundle;
+    }
+
+    private static Object proxy(Class clazz, final Handler handler)
+    {
+        return Proxy.newProxyInstance(clazz.getClassLoader(), new Class[] { clazz },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if (method.getName().equals("hashCode"))
+                    {
+                        return System.identityHashCode(proxy);
+                    }
+                    else if (method.getName().equals("equals"))
+                    {
+                        return proxy == args[0];
+                    }
+                    Object result = handler.handle(method.getName(), args);
+                    if ((result == null) && (method.getReturnType() == boolean.class))
+                    {
+                        return Boolean.FALSE;
+                    }
+                    return result;
+                }
+            });
+    }
+
+    private static class Handler
+    {
+        Object handle(String name, Object[] args)
+        {
+            return null;
+        }
+    }
+
+    private static class TestExtender extends AbstractExtender
+    {
+        final List<Long> started = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(5);
+        volatile Bundle blocked;
+
+        protected Extension doCreateExtension(final Bundle bundle) throws Exception
+        {
+            return new Extension()
+            {
+                public void start() throws Exception
+                {
+                    if (bundle == blocked)
+                    {
+                        entered.countDown();
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+                    started.add(bundle.getBundleId());
+                    done.countDown();
+                }
+
+                public void destroy() throws Exception
+                {
+                }
+            };
+        }
+
+        protected void debug(Bundle bundle, String msg)
+        {
+        }
+
+        protected void warn(Bundle bundle, String msg, Throwable t)
+        {
+        }
+
+        protected void error(String msg, Throwable t)
+        {
+        }
+    }
+}
@@ -18,6 +18,15 @@
  */
 package org.apache.felix.utils.manifest;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
 import junit.framework.TestCase;
 
 public class ParserTest extends TestCase
@@ -70,4 +79,171 @@ public class ParserTest extends TestCase
         assertEquals("2", paths[2].getDirective("1"));
     }
 
+    public void testPooledParsingLikeParseHeader() throws Exception {
+        List headers = new ArrayList(Arrays.asList(new String[] {
+            "/foo.xml, /foo/bar.xml",
+            "org.osgi.framework;version=\"[1.5,2)\",org.osgi.util.tracker;version=\"1.4\"",
+            "a;b;c;x=1;y:=\"2,3\";z = \" q \" ",
+            "a;x=\"1\";",
+            " a , b ,",
+            "a,,b",
+            ";x=1",
+            "a;;b=1",
+            "a;b=1;c",
+            "a;b:=c=d;e=f:=g",
+            "a;b=\"unterminated, c",
+            "\"quoted;path\";v=1",
+            " ",
+            "x;y=\"\"",
+            "a=1"
+        }));
+        Random random = new Random(0);
+        String alphabet = "ab.=:;, \"";
+        for (int i = 0; i < 2000; i++) {
+            StringBuffer sb = new StringBuffer();
+            for (int j = random.nextInt(20) + 1; j > 0; j--) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            headers.add(sb.toString());
+        }
+
+        ManifestPool pool = new ManifestPool(ManifestPool.DEFAULT_MAX_SIZE, true);
+        for (Iterator it = headers.iterator(); it.hasNext();) {
+            String header = (String) it.next();
+            // A single quote as value is not supported by parseHeader(String).
+            if (header.matches(".*=\\s*\"\\s*(;.*|,.*)?")) {
+                continue;
+            }
+            String expected = describe(header, null);
+            assertEquals(header, expected, describe(header, pool));
+            assertEquals(header, expected, describe(header, pool));
+        }
+    }
+
+    public void testPooling() throws Exception {
+        ManifestPool pool = new ManifestPool();
+        Clause[] c1 = Parser.parseHeader(new String("org.foo;version=\"1.0.0\",org.bar;version=1.0.0"), pool);
+        Clause[] c2 = Parser.parseHeader(new String("org.foo;version=\"1.0.0\""), pool);
+        assertSame(c1[0].getName(), c2[0].getName());
+        assertSame(c1[0].getAttributes()[0].getName(), c2[0].getAttributes()[0].getName());
+        assertSame(c1[0].getAttribute("version"), c1[1].getAttribute("version"));
+        assertNotSame(c1[0], c2[0]);
+        assertEquals(0, c1[0].getDirectives().length);
+
+        ManifestPool shared = new ManifestPool(ManifestPool.DEFAULT_MAX_SIZE, true);
+        c1 = Parser.parseHeader("org.foo;version=\"1.0.0\", org.bar", shared);
+        c2 = Parser.parseHeader("org.bar,org.foo;version=\"1.0.0\"", shared);
+        assertSame(c1[0], c2[1]);
+        assertSame(c1[1], c2[0]);
+
+        ManifestPool small = new ManifestPool(2, false);
+        Parser.parseHeader("a,b,c", small);
+        assertTrue(small.size() <= 2);
+    }
+
+    private static String describe(String header, ManifestPool pool) {
+        try {
+            Clause[] clauses = (pool == null) ? Parser.parseHeader(header) : Parser.parseHeader(header, pool);
+            StringBuffer sb = new StringBuffer();
+            for (int i = 0; i < clauses.length; i++) {
+                sb.append('[').append(clauses[i].getName()).append(']');
+                for (int j = 0; j < clauses[i].getDirectives().length; j++) {
+                    Directive d = clauses[i].getDirectives()[j];
+                    sb.append("[").append(d.getName()).append(":=").append(d.getValue()).append(']');
+                }
+                for (int j = 0; j < clauses[i].getAttributes().length; j++) {
+                    Attribute a = clauses[i].getAttributes()[j];
+                    sb.append("[").append(a.getName()).append("=").append(a.getValue()).append(']');
+                }
+                sb.append('\n');
+            }
+            return sb.toString();
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+    }
+
+    /**
+     * Compares parsing the headers of all manifests of the jars found in the
+     * given directories with and without a pool; not run as part of the tests.
+     */
+    public static void main(String[] args) throws Exception {
+        List headers = new ArrayList();
+        for (int i = 0; i < args.length; i++) {
+            collectHeaders(new File(args[i]), headers);
+        }
+        System.out.println(headers.size() + " headers");
+        int iterations = Integer.getInteger("iterations", 200).intValue();
+        String[] modes = { "parseHeader", "pooled", "shared clauses" };
+        for (int round = 0; round < 5; round++) {
+            StringBuffer sb = new StringBuffer();
+            for (int mode = 0; mode < modes.length; mode++) {
+                ManifestPool pool = (mode == 0) ? null : new ManifestPool(ManifestPool.DEFAULT_MAX_SIZE, mode == 2);
+                List kept = new ArrayList();
+                Runtime.getRuntime().gc();
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    kept.clear();
+                    for (Iterator it = headers.iterator(); it.hasNext();) {
+                        String header = (String) it.next();
+                        kept.add((pool == null) ? Parser.parseHeader(header) : Parser.parseHeader(header, pool));
+                    }
+                }
+                long time = System.nanoTime() - start;
+                kept.clear();
+                long before = usedMemory();
+                // Keep the clauses of parsing each header ten times, as a
+                // tool holding the metadata of many similar bundles would.
+                for (int i = 0; i < 10; i++) {
+                    for (Iterator it = headers.iterator(); it.hasNext();) {
+                        String header = (String) it.next();
+                        kept.add((pool == null) ? Parser.parseHeader(header) : Parser.parseHeader(header, pool));
+                    }
+                }
+                long retained = usedMemory() - before;
+                sb.append(modes[mode]).append(": ").append(time / iterations / headers.size())
+                    .append(" ns/header, ").append(retained / 1024).append(" KB retained; ");
+                kept.clear();
+            }
+            System.out.println(sb);
+        }
+    }
+
+    private static long usedMemory() {
+        Runtime.getRuntime().gc();
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
+
+    private static void collectHeaders(File file, List headers) throws Exception {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            for (int i = 0; files != null && i < files.length; i++) {
+                collectHeaders(files[i], headers);
+            }
+        } else if (file.getName().endsWith(".jar")) {
+            JarFile jar = null;
+            try {
+                jar = new JarFile(file);
+                Manifest manifest = jar.getManifest();
+                if (manifest == null) {
+                    return;
+                }
+                String[] names = { "Export-Package", "Import-Package", "Require-Bundle",
+                    "DynamicImport-Package", "Provide-Capability", "Require-Capability" };
+                for (int i = 0; i < names.length; i++) {
+                    String value = manifest.getMainAttributes().getValue(names[i]);
+                    if (value != null && value.length() > 0) {
+                        headers.add(value);
+                    }
+                }
+            } catch (Exception e) {
+                // Ignore broken jars
+            } finally {
+                if (jar != null) {
+                    jar.close();
+                }
+            }
+        }
+    }
+
 }